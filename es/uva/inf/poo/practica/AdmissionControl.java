@@ -0,0 +1,293 @@
+package es.uva.inf.poo.practica;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Control de admisin de las compras con tarjeta, para proteger el servicio de tarjetas de las rfagas de
+ * reintentos de lectores averiados o de tarjetas usadas de forma abusiva.
+ * Cada tarjeta y cada mquina tienen un cubo de fichas: se rellena a un ritmo fijo hasta su capacidad, y cada
+ * compra gasta una ficha de la tarjeta y otra de la mquina. Las compras sin fichas se rechazan enseguida,
+ * antes de buscar el slot y antes de llamar a la tarjeta.
+ * Las tarjetas se identifican por la credencial con la que se compra, no por el objeto de la tarjeta,
+ * para que un lector que crea un objeto nuevo en cada reintento no tenga un cubo nuevo cada vez.
+ * Los cubos se guardan en tablas concurrentes de tamao limitado. Un cubo lleno es igual que uno nuevo, as
+ * que los cubos que se han vuelto a llenar caducan y se descartan al barrer las tablas, lo que ocurre al
+ * crear cubos nuevos de vez en cuando, o siempre que la tabla esta llena. Si aun as no cabe el cubo de
+ * una tarjeta nueva, la compra se rechaza.
+ * Los ritmos y capacidades se pueden cambiar en cualquier momento, y se aplican a los cubos existentes.
+ * @author rauvill, alvdela
+ *
+ */
+public class AdmissionControl {
+
+	/** Nmero mximo de cubos de cada tabla por defecto. */
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private static final long SWEEP_PERIOD = TimeUnit.SECONDS.toNanos(1);			//barrido peridico al crear cubos
+	private static final long FULL_SWEEP_PERIOD = TimeUnit.MILLISECONDS.toNanos(10);	//barrido con la tabla llena
+	private static final String msgErrorCard = "Demasiadas compras seguidas con esta tarjeta, intntelo ms tarde.";
+	private static final String msgErrorMachine = "Demasiadas compras seguidas en esta mquina, intntelo ms tarde.";
+	private static final String msgErrorFull = "Hay demasiadas tarjetas comprando a la vez, intntelo ms tarde.";
+
+	private volatile Limit cardLimit;
+	private volatile Limit machineLimit;
+	private final Buckets<String> cards;								//por credencial
+	private final Buckets<VendingMachine> machines;
+	private final LongAdder admitted;
+	private final LongAdder rejected;
+
+	/**
+	 * Inicializa un control de admisin con el nmero mximo de cubos por defecto.
+	 * @param cardRate Compras por segundo que se admiten de cada tarjeta.
+	 * @param cardBurst Compras seguidas que se admiten de una tarjeta que no ha comprado en un tiempo.
+	 * @param machineRate Compras por segundo que se admiten en cada mquina.
+	 * @param machineBurst Compras seguidas que se admiten en una mquina que no ha vendido en un tiempo.
+	 * @throws IllegalArgumentException Cuando algn ritmo no es positivo.
+	 * @throws IllegalArgumentException Cuando alguna capacidad no es positiva.
+	 */
+	public AdmissionControl(double cardRate, int cardBurst, double machineRate, int machineBurst) {
+		this(cardRate, cardBurst, machineRate, machineBurst, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Inicializa un control de admisin.
+	 * @param cardRate Compras por segundo que se admiten de cada tarjeta.
+	 * @param cardBurst Compras seguidas que se admiten de una tarjeta que no ha comprado en un tiempo.
+	 * @param machineRate Compras por segundo que se admiten en cada mquina.
+	 * @param machineBurst Compras seguidas que se admiten en una mquina que no ha vendido en un tiempo.
+	 * @param maxEntries Nmero mximo de tarjetas, y de mquinas, con cubo a la vez.
+	 * @throws IllegalArgumentException Cuando algn ritmo no es positivo.
+	 * @throws IllegalArgumentException Cuando alguna capacidad no es positiva.
+	 * @throws IllegalArgumentException Cuando el nmero mximo de cubos no es positivo.
+	 */
+	public AdmissionControl(double cardRate, int cardBurst, double machineRate, int machineBurst, int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("El nmero mximo de cubos debe ser positivo.");
+		}
+		cardLimit = new Limit(cardRate, cardBurst);
+		machineLimit = new Limit(machineRate, machineBurst);
+		cards = new Buckets<>(maxEntries);
+		machines = new Buckets<>(maxEntries);
+		admitted = new LongAdder();
+		rejected = new LongAdder();
+	}
+
+	/**
+	 * Conecta el control de admisin a las compras de todas las mquinas del sistema, incluidas las que
+	 * se aadan despus.
+	 * @param system Sistema cuyas compras se van a controlar.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 */
+	public void attach(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		system.setAdmissionControl(this);
+	}
+
+	/**
+	 * Conecta el control de admisin a las compras de todas las mquinas de una provincia, incluidas las
+	 * que se aadan despus.
+	 * @param city Provincia cuyas compras se van a controlar.
+	 * @throws IllegalArgumentException Cuando la provincia es nula.
+	 */
+	public void attach(VendingCity city) {
+		if (city == null) {
+			throw new IllegalArgumentException("La provincia no puede ser nula.");
+		}
+		city.setAdmissionControl(this);
+	}
+
+	/**
+	 * Conecta el control de admisin a las compras de una mquina.
+	 * @param machine Mquina cuyas compras se van a controlar.
+	 * @throws IllegalArgumentException Cuando la mquina es nula.
+	 */
+	public void attach(VendingMachine machine) {
+		if (machine == null) {
+			throw new IllegalArgumentException("La maquina no puede ser nula");
+		}
+		machine.setAdmissionControl(this);
+	}
+
+	/**
+	 * Cambia el ritmo y la capacidad de los cubos de las tarjetas, tambin de los que ya existen.
+	 * @param rate Compras por segundo que se admiten de cada tarjeta.
+	 * @param burst Compras seguidas que se admiten de una tarjeta que no ha comprado en un tiempo.
+	 * @throws IllegalArgumentException Cuando el ritmo o la capacidad no son positivos.
+	 */
+	public void setCardLimit(double rate, int burst) {
+		cardLimit = new Limit(rate, burst);
+	}
+
+	/**
+	 * Cambia el ritmo y la capacidad de los cubos de las mquinas, tambin de los que ya existen.
+	 * @param rate Compras por segundo que se admiten en cada mquina.
+	 * @param burst Compras seguidas que se admiten en una mquina que no ha vendido en un tiempo.
+	 * @throws IllegalArgumentException Cuando el ritmo o la capacidad no son positivos.
+	 */
+	public void setMachineLimit(double rate, int burst) {
+		machineLimit = new Limit(rate, burst);
+	}
+
+	/**
+	 * Consulta cuntas compras se han admitido.
+	 * @return Nmero de compras admitidas.
+	 */
+	public long getAdmitted() {
+		return admitted.sum();
+	}
+
+	/**
+	 * Consulta cuntas compras se han rechazado.
+	 * @return Nmero de compras rechazadas.
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Consulta cuntas tarjetas tienen cubo en este momento.
+	 * @return Nmero de tarjetas seguidas.
+	 */
+	public int getTrackedCards() {
+		return cards.map.size();
+	}
+
+	/**
+	 * Mtodo visible en el paquete que admite una compra con tarjeta en una mquina, gastando una ficha de
+	 * cada una, o la rechaza sin gastar ninguna. No crea objetos salvo al crear el cubo de una tarjeta o
+	 * mquina nueva.
+	 * @param credential Credencial con la que se compra, que identifica a la tarjeta.
+	 * @throws IllegalStateException Cuando la tarjeta o la mquina no tienen fichas, o la tabla de tarjetas esta llena.
+	 */
+	void admit(VendingMachine machine, String credential) {
+		long now = System.nanoTime();
+		Limit forCard = cardLimit;
+		Bucket cardBucket = cards.get(credential, forCard, now);
+		if (cardBucket == null) {
+			rejected.increment();
+			throw new IllegalStateException(msgErrorFull);
+		}
+		if (!cardBucket.take(forCard, now)) {
+			rejected.increment();
+			throw new IllegalStateException(msgErrorCard);
+		}
+		Limit forMachine = machineLimit;
+		Bucket machineBucket = machines.get(machine, forMachine, now);
+		if (machineBucket == null || !machineBucket.take(forMachine, now)) {
+			cardBucket.refund(forCard);									//la compra no se hace, la tarjeta recupera su ficha
+			rejected.increment();
+			throw new IllegalStateException(msgErrorMachine);
+		}
+		admitted.increment();
+	}
+
+	/**
+	 * Ritmo de relleno (fichas por nanosegundo) y capacidad de un tipo de cubo.
+	 */
+	private static final class Limit {
+		final double perNano;
+		final int burst;
+
+		Limit(double rate, int burst) {
+			if (!(rate > 0)) {
+				throw new IllegalArgumentException("El ritmo de compras debe ser positivo.");
+			}
+			if (burst <= 0) {
+				throw new IllegalArgumentException("La capacidad del cubo debe ser positiva.");
+			}
+			perNano = rate / TimeUnit.SECONDS.toNanos(1);
+			this.burst = burst;
+		}
+	}
+
+	/**
+	 * Cubo de fichas de una tarjeta o mquina.
+	 */
+	private static final class Bucket {
+		private double tokens;
+		private long stamp;
+
+		Bucket(int tokens, long now) {
+			this.tokens = tokens;
+			stamp = now;
+		}
+
+		synchronized boolean take(Limit limit, long now) {
+			refill(limit, now);
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+
+		synchronized void refund(Limit limit) {
+			tokens = Math.min(limit.burst, tokens + 1);
+		}
+
+		synchronized boolean isFull(Limit limit, long now) {
+			refill(limit, now);
+			return tokens >= limit.burst;
+		}
+
+		private void refill(Limit limit, long now) {
+			if (now > stamp) {
+				tokens = Math.min(limit.burst, tokens + (now - stamp) * limit.perNano);
+				stamp = now;
+			}
+		}
+	}
+
+	/**
+	 * Tabla concurrente de cubos con un nmero mximo de entradas, de la que se descartan los cubos llenos.
+	 */
+	private static final class Buckets<K> {
+		final ConcurrentHashMap<K, Bucket> map = new ConcurrentHashMap<>();
+		final int maxEntries;
+		final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+		Buckets(int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+
+		/**
+		 * Obtiene el cubo de la clave, crendolo lleno si no tena.
+		 * @return El cubo, o null si no tena y la tabla esta llena.
+		 */
+		Bucket get(K key, Limit limit, long now) {
+			Bucket bucket = map.get(key);
+			if (bucket != null) {
+				return bucket;
+			}
+			boolean full = map.size() >= maxEntries;
+			long last = lastSweep.get();
+			if (now - last >= (full ? FULL_SWEEP_PERIOD : SWEEP_PERIOD) && lastSweep.compareAndSet(last, now)) {
+				sweep(limit, now);										//solo barre un hilo a la vez
+				full = map.size() >= maxEntries;
+			}
+			if (full) {
+				return null;
+			}
+			return map.computeIfAbsent(key, k -> new Bucket(limit.burst, now));
+		}
+
+		/**
+		 * Descarta los cubos llenos. Una compra que acabe de obtener un cubo descartado gasta su ficha en l
+		 * y no en el siguiente, as que como mucho se admite una compra de ms por cubo descartado, de una
+		 * tarjeta o mquina que llevaba tiempo sin comprar.
+		 */
+		void sweep(Limit limit, long now) {
+			for (Map.Entry<K, Bucket> entry : map.entrySet()) {
+				if (entry.getValue().isFull(limit, now)) {
+					map.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+}
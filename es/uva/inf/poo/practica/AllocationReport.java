@@ -0,0 +1,178 @@
+package es.uva.inf.poo.practica;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import fabricante.externo.tarjetas.TarjetaMonedero;
+
+/**
+ * Medicin de la memoria que reservan las operaciones ms frecuentes (compra, consulta de precios),
+ * en rgimen estable, con los bytes reservados por el hilo actual que da la JVM. Cada operacin tiene
+ * un presupuesto de bytes por llamada; una compra correcta no debe reservar memoria.
+ * Sirve para detectar regresiones como copias de fechas, construccin de excepciones o copias de
+ * listas en los caminos calientes.
+ * <pre>
+ * java es.uva.inf.poo.practica.AllocationReport     muestra los bytes por operacin y falla si alguna supera su presupuesto
+ * </pre>
+ * @author rauvill, alvdela
+ *
+ */
+public class AllocationReport {
+
+	private static final int WARMUP = 200000;					//llamadas para que el compilador JIT optimice la operacin
+	private static final int CALLS = 100000;
+
+	/**
+	 * Constructor privado: la clase solo tiene mtodos de clase.
+	 */
+	private AllocationReport() {
+	}
+
+	/**
+	 * Mide los bytes reservados por llamada de cada operacin.
+	 * @return Bytes por llamada de cada operacin, en el orden en que se miden.
+	 * @throws UnsupportedOperationException Cuando la JVM no mide la memoria reservada por hilo.
+	 */
+	public static LinkedHashMap<String, Double> measure() {
+		LinkedHashMap<String, Double> bytes = new LinkedHashMap<>();
+		Calendar expiry = new GregorianCalendar();
+		expiry.add(Calendar.YEAR, 1);
+		Product water = new Product(1.0, expiry, "agua", "123456789012");
+		Product cola = new Product(1.5, expiry, "cola", "036000291452");
+		Pack pack = new Pack("pack", "P1", new Product[] {water, cola});
+		VendingMachine heap = stocked(false, water, pack);
+		VendingMachine offHeap = stocked(true, water, pack);
+		VendingMachine sessionMachine = stocked(false, water, pack);
+		VendingMachine guarded = stocked(false, water, pack);
+		new AdmissionControl(1e12, Integer.MAX_VALUE, 1e12, Integer.MAX_VALUE).attach(guarded);	//lmites que no rechazan nunca
+		TarjetaMonedero card = new TarjetaMonedero(1e12);
+		CardSession session = new CardSession(new TarjetaMonedero(1e12), "credencial", 1e12, 1, TimeUnit.HOURS);
+		VendingCity city = new VendingCity("c", "provincia");
+		for (int i = 0; i < 100; i++) {
+			city.addVendingMachine(new VendingMachine("m" + i, 1, 1));
+		}
+		double[] sink = new double[1];								//evita que el compilador descarte las llamadas
+		bytes.put("buyVendible", perCall(() -> heap.buyVendible("A0", card, "credencial")));
+		bytes.put("buyVendible fuera del heap", perCall(() -> offHeap.buyVendible("A0", card, "credencial")));
+		bytes.put("buyVendible de un pack", perCall(() -> heap.buyVendible("B0", card, "credencial")));
+		bytes.put("buyVendible con sesin", perCall(() -> sessionMachine.buyVendible("A0", session)));
+		bytes.put("buyVendible con control de admisin", perCall(() -> guarded.buyVendible("A0", card, "credencial")));
+		bytes.put("getPriceVendible", perCall(() -> sink[0] += heap.getPriceVendible("C0")));
+		bytes.put("Pack.getPrice", perCall(() -> sink[0] += pack.getPrice()));
+		bytes.put("getStock", perCall(() -> sink[0] += heap.getStock("A0")));
+		bytes.put("VendingCity.getMachinesView (recorrido)", perCall(() -> {
+			for (VendingMachine machine : city.getMachinesView()) {
+				sink[0] += machine.getNumSlots();
+			}
+		}));
+		bytes.put("VendingCity.getMachines (copia)", perCall(() -> sink[0] += city.getMachines().size()));
+		if (sink[0] == 0) {
+			throw new IllegalStateException();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Devuelve el presupuesto de bytes por llamada de las operaciones que lo tienen.
+	 * @return Presupuesto de cada operacin.
+	 */
+	public static LinkedHashMap<String, Double> budgets() {
+		LinkedHashMap<String, Double> budgets = new LinkedHashMap<>();
+		budgets.put("buyVendible", 0.0);
+		budgets.put("buyVendible fuera del heap", 0.0);
+		budgets.put("buyVendible de un pack", 0.0);
+		budgets.put("buyVendible con sesin", 0.0);
+		budgets.put("buyVendible con control de admisin", 0.0);
+		budgets.put("getPriceVendible", 0.0);
+		budgets.put("Pack.getPrice", 0.0);
+		budgets.put("getStock", 0.0);
+		return budgets;
+	}
+
+	/**
+	 * Compara los bytes medidos con los presupuestos y devuelve las operaciones que los superan. Se admite
+	 * menos de un byte por llamada de margen, para las reservas puntuales de la propia JVM durante la medicin.
+	 * @param bytes Bytes por llamada medidos.
+	 * @param budgets Presupuesto de cada operacin.
+	 * @return Descripcin de cada operacin que supera su presupuesto, vaca si ninguna.
+	 * @throws IllegalArgumentException Cuando algn mapa es nulo.
+	 */
+	public static ArrayList<String> checkAgainst(Map<String, Double> bytes, Map<String, Double> budgets) {
+		if (bytes == null || budgets == null) {
+			throw new IllegalArgumentException("Las mediciones no pueden ser nulas.");
+		}
+		ArrayList<String> regressions = new ArrayList<>();
+		for (Map.Entry<String, Double> entry : bytes.entrySet()) {
+			Double budget = budgets.get(entry.getKey());
+			if (budget != null && entry.getValue() >= budget + 1) {
+				regressions.add(entry.getKey() + ": " + entry.getValue() + " bytes por llamada, presupuesto " + budget);
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Muestra los bytes por llamada de cada operacin y termina con cdigo de salida 1 si alguna supera su presupuesto.
+	 * @param args No se usan.
+	 */
+	public static void main(String[] args) {
+		LinkedHashMap<String, Double> bytes = measure();
+		for (Map.Entry<String, Double> entry : bytes.entrySet()) {
+			System.out.printf("%-45s %10.2f bytes/llamada%n", entry.getKey(), entry.getValue());
+		}
+		ArrayList<String> regressions = checkAgainst(bytes, budgets());
+		for (String regression : regressions) {
+			System.out.println("REGRESIN " + regression);
+		}
+		if (!regressions.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Mtodo privado que ejecuta la operacin hasta que se estabiliza y mide los bytes reservados por llamada.
+	 */
+	private static double perCall(Runnable operation) {
+		com.sun.management.ThreadMXBean threads = threadBean();
+		long thread = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP; i++) {
+			operation.run();
+		}
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < CALLS; i++) {
+			operation.run();
+		}
+		long after = threads.getThreadAllocatedBytes(thread);
+		return (double) (after - before) / CALLS;
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			throw new UnsupportedOperationException("La JVM no mide la memoria reservada por hilo.");
+		}
+		return (com.sun.management.ThreadMXBean) bean;
+	}
+
+	/**
+	 * Mtodo privado que crea una mquina con suficientes unidades para todas las compras de la medicin.
+	 */
+	private static VendingMachine stocked(boolean offHeap, Product product, Pack pack) {
+		VendingMachine machine = new VendingMachine("m", 3, 1, offHeap);
+		ArrayList<Vendible> products = new ArrayList<>();
+		ArrayList<Vendible> packs = new ArrayList<>();
+		for (int i = 0; i < WARMUP + CALLS; i++) {
+			products.add(product);
+			packs.add(pack);
+		}
+		machine.restockMultipleVendible("A0", products);
+		machine.restockMultipleVendible("B0", packs);
+		machine.restockSlot("C0", pack);
+		return machine;
+	}
+}
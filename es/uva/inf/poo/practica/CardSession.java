@@ -0,0 +1,207 @@
+package es.uva.inf.poo.practica;
+
+import java.util.concurrent.TimeUnit;
+
+import fabricante.externo.tarjetas.TarjetaMonedero;
+
+/**
+ * Sesin de compra con una TarjetaMonedero preautorizada: al abrirla se comprueba una nica vez que la
+ * tarjeta tiene saldo para la cantidad retenida, y las compras de la sesin se descuentan de esa retencin
+ * localmente, sin consultar la tarjeta. La nica excepcin es la primera compra, que se cobra en la
+ * tarjeta antes de entregar nada: la tarjeta no permite comprobar una credencial sin cobrar, y as una
+ * sesin con una credencial incorrecta no entrega ningn producto. Al cerrar la sesin se cobra en un
+ * nico {@link TarjetaMonedero#descontarDelSaldo(String, double)} el resto de lo gastado y se libera lo
+ * que quede de la retencin. Una sesin que pasa demasiado tiempo sin compras caduca: deja de admitir compras y queda
+ * pendiente de cobro, que hace {@link CardSessionManager} en su siguiente barrido o quien la cierre.
+ * La tarjeta no permite retener saldo, as que la retencin es solo local: si la tarjeta se usa fuera de
+ * la sesin mientras esta abierta, el cobro final puede fallar. En ese caso la sesin queda cerrada con
+ * el importe pendiente, y se puede volver a intentar el cobro cerrndola de nuevo.
+ * @author rauvill, alvdela
+ *
+ */
+public class CardSession implements AutoCloseable {
+
+	private final TarjetaMonedero card;
+	private final String credential;
+	private final double hold;
+	private final long idleTimeoutNanos;
+	private double spent;
+	private double charged;									//parte de lo gastado que ya se ha cobrado en la tarjeta
+	private boolean verified;								//la tarjeta ya ha aceptado la credencial
+	private long purchases;
+	private long lastUse;
+	private boolean open;
+	private boolean settled;
+
+	/**
+	 * Abre una sesin preautorizando la tarjeta por la cantidad recibida.
+	 * @param card TarjetaMonedero con la que se pagan las compras de la sesin.
+	 * @param credential Credenciales del cliente, que se comprueban al cobrar la primera compra.
+	 * @param hold Cantidad retenida: el mximo que se puede gastar en la sesin.
+	 * @param idleTimeout Tiempo sin compras tras el que la sesin caduca.
+	 * @param unit Unidad del tiempo de inactividad.
+	 * @throws IllegalArgumentException Cuando la tarjeta o la unidad son nulas.
+	 * @throws IllegalArgumentException Cuando las credenciales son nulas o estan vacas.
+	 * @throws IllegalArgumentException Cuando la cantidad retenida o el tiempo de inactividad no son positivos.
+	 * @throws IllegalArgumentException Cuando no hay saldo suficiente en la tarjeta para la cantidad retenida.
+	 */
+	public CardSession(TarjetaMonedero card, String credential, double hold, long idleTimeout, TimeUnit unit) {
+		if (card == null) {
+			throw new IllegalArgumentException("No se ha introducido ninguna tarjeta.");
+		}
+		if (credential == null) {
+			throw new IllegalArgumentException("La credencial no puede ser nula.");
+		}
+		if (credential.isEmpty()) {
+			throw new IllegalArgumentException("La credencial no puede estar vaca.");
+		}
+		if (hold <= 0) {
+			throw new IllegalArgumentException("La cantidad retenida debe ser positiva.");
+		}
+		if (unit == null || idleTimeout <= 0) {
+			throw new IllegalArgumentException("El tiempo de inactividad debe ser positivo.");
+		}
+		if (card.getSaldoActual() < hold) {
+			throw new IllegalArgumentException("No hay saldo suficiente en la tarjeta.");
+		}
+		this.card = card;
+		this.credential = credential;
+		this.hold = hold;
+		this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+		lastUse = System.nanoTime();
+		open = true;
+	}
+
+	/**
+	 * Consulta la tarjeta de la sesin.
+	 * @return La TarjetaMonedero preautorizada.
+	 */
+	public TarjetaMonedero getCard() {
+		return card;
+	}
+
+	/**
+	 * Mtodo visible en el paquete que consulta la credencial a la que esta ligada la sesin.
+	 * @return Credencial con la que se abri la sesin.
+	 */
+	String getCredential() {
+		return credential;
+	}
+
+	/**
+	 * Consulta la cantidad retenida al abrir la sesin.
+	 * @return Cantidad retenida.
+	 */
+	public double getHold() {
+		return hold;
+	}
+
+	/**
+	 * Consulta lo gastado en la sesin, cobrado o pendiente de cobrar.
+	 * @return Total de las compras de la sesin.
+	 */
+	public synchronized double getSpent() {
+		return spent;
+	}
+
+	/**
+	 * Consulta cunto se puede gastar todava en la sesin.
+	 * @return Lo que queda de la retencin, o 0 si la sesin esta cerrada.
+	 */
+	public synchronized double getRemaining() {
+		return open ? hold - spent : 0;
+	}
+
+	/**
+	 * Consulta el nmero de compras de la sesin.
+	 * @return Nmero de compras.
+	 */
+	public synchronized long getPurchases() {
+		return purchases;
+	}
+
+	/**
+	 * Comprueba si la sesin admite compras.
+	 * @return True si esta abierta, false si se ha cerrado o ha caducado.
+	 */
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Comprueba si ya se ha cobrado el total de la sesin en la tarjeta.
+	 * @return True si la sesin esta cerrada y cobrada.
+	 */
+	public synchronized boolean isSettled() {
+		return settled;
+	}
+
+	/**
+	 * Cierra la sesin, si segua abierta, y cobra en la tarjeta lo gastado que no se cobr en la primera
+	 * compra. Si no queda nada por cobrar no se llama a la tarjeta. Si la sesin ya estaba cobrada no hace nada.
+	 * @throws IllegalArgumentException Cuando la tarjeta rechaza el cobro; la sesin queda cerrada y
+	 * pendiente de cobro, y se puede volver a intentar.
+	 */
+	@Override
+	public synchronized void close() {
+		open = false;
+		if (settled) {
+			return;
+		}
+		if (spent > charged) {
+			card.descontarDelSaldo(credential, spent - charged);
+			charged = spent;
+		}
+		settled = true;
+	}
+
+	/**
+	 * Mtodo visible en el paquete que descuenta una compra de la retencin. La primera compra se cobra
+	 * adems en la tarjeta, que comprueba as la credencial; si la rechaza, la sesin queda cerrada sin
+	 * nada que cobrar. El resto de compras no llaman a la tarjeta.
+	 * Una sesin que lleva ms tiempo del permitido sin compras queda cerrada, pendiente de cobro.
+	 * @param price Precio de la compra.
+	 * @throws IllegalStateException Cuando la sesin esta cerrada o ha caducado.
+	 * @throws IllegalArgumentException Cuando no queda retencin suficiente para la compra.
+	 * @throws IllegalArgumentException Cuando la tarjeta rechaza el cobro de la primera compra.
+	 */
+	synchronized void debit(double price) {
+		long now = System.nanoTime();
+		if (!open || expire(now)) {
+			throw
+					new IllegalStateException("La sesin de la tarjeta esta cerrada.");
+		}
+		if (hold - spent < price) {
+			throw
+					new IllegalArgumentException("No queda saldo suficiente en la sesin.");
+		}
+		if (!verified) {
+			try {
+				card.descontarDelSaldo(credential, price);
+			} catch (RuntimeException e) {
+				open = false;										//no se ha entregado nada, as que no queda nada por cobrar
+				settled = true;
+				throw
+						new IllegalArgumentException("La tarjeta ha rechazado el cobro con esta credencial.", e);
+			}
+			verified = true;
+			charged = price;
+		}
+		spent += price;
+		purchases++;
+		lastUse = now;
+	}
+
+	/**
+	 * Mtodo visible en el paquete que cierra la sesin, sin cobrarla, si lleva ms tiempo del permitido
+	 * sin compras.
+	 * @param now Instante actual, de {@link System#nanoTime()}.
+	 * @return True si la sesin esta cerrada, porque ha caducado ahora o ya lo estaba.
+	 */
+	synchronized boolean expire(long now) {
+		if (open && now - lastUse > idleTimeoutNanos) {
+			open = false;
+		}
+		return !open;
+	}
+}
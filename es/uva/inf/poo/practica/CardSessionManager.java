@@ -0,0 +1,209 @@
+package es.uva.inf.poo.practica;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fabricante.externo.tarjetas.TarjetaMonedero;
+
+/**
+ * Gestor de las sesiones de compra preautorizadas ({@link CardSession}) de un punto de venta con
+ * clientes habituales. Mantiene una sesin abierta por tarjeta, de forma que las compras repetidas con
+ * la misma tarjeta reutilizan su retencin, y un hilo en segundo plano cobra y libera peridicamente
+ * las sesiones que han caducado por inactividad. Las sesiones cuyo cobro falla se siguen guardando y se
+ * reintentan en cada barrido.
+ * Cada sesin queda ligada a la credencial con la que se abri, y solo se devuelve a quien la presenta.
+ * La tarjeta no permite comprobar una credencial sin cobrar, as que la comprueba al cobrar la primera
+ * compra de la sesin, antes de entregarla; si la rechaza, la sesin se cierra sin haber entregado nada.
+ * @author rauvill, alvdela
+ *
+ */
+public class CardSessionManager implements AutoCloseable {
+
+	private final double hold;
+	private final long idleTimeoutNanos;
+	private final ConcurrentHashMap<TarjetaMonedero, CardSession> sessions;
+	private final ScheduledExecutorService sweeper;
+	private final AtomicLong settlements;
+	private final AtomicLong failedSettlements;
+
+	/**
+	 * Inicializa el gestor y empieza a barrer las sesiones caducadas cada mitad del tiempo de inactividad.
+	 * @param hold Cantidad que se retiene al abrir cada sesin.
+	 * @param idleTimeout Tiempo sin compras tras el que una sesin caduca.
+	 * @param unit Unidad del tiempo de inactividad.
+	 * @throws IllegalArgumentException Cuando la cantidad retenida o el tiempo de inactividad no son positivos.
+	 * @throws IllegalArgumentException Cuando la unidad es nula.
+	 */
+	public CardSessionManager(double hold, long idleTimeout, TimeUnit unit) {
+		if (hold <= 0) {
+			throw new IllegalArgumentException("La cantidad retenida debe ser positiva.");
+		}
+		if (unit == null || idleTimeout <= 0) {
+			throw new IllegalArgumentException("El tiempo de inactividad debe ser positivo.");
+		}
+		this.hold = hold;
+		idleTimeoutNanos = unit.toNanos(idleTimeout);
+		sessions = new ConcurrentHashMap<>();
+		settlements = new AtomicLong();
+		failedSettlements = new AtomicLong();
+		sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "vending-card-sessions");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, idleTimeoutNanos / 2);
+		sweeper.scheduleWithFixedDelay(this::settleExpired, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Devuelve la sesin abierta de la tarjeta, si se abri con la misma credencial, o abre una nueva
+	 * preautorizando la tarjeta si no tena ninguna o la que tena ya se ha cerrado. Una sesin cerrada se
+	 * cobra antes de abrir la nueva. La tarjeta no se llama con ningn cerrojo de la tabla tomado.
+	 * @param card TarjetaMonedero del cliente.
+	 * @param credential Credenciales del cliente.
+	 * @return La sesin abierta de la tarjeta.
+	 * @throws IllegalArgumentException Cuando la tarjeta es nula.
+	 * @throws IllegalArgumentException Cuando las credenciales son nulas o estan vacas.
+	 * @throws IllegalArgumentException Cuando la tarjeta tiene una sesin abierta con otra credencial.
+	 * @throws IllegalArgumentException Cuando no hay saldo suficiente en la tarjeta para la cantidad retenida.
+	 * @throws IllegalStateException Cuando la tarjeta tiene una sesin cerrada cuyo cobro ha rechazado.
+	 */
+	public CardSession open(TarjetaMonedero card, String credential) {
+		if (card == null) {
+			throw new IllegalArgumentException("No se ha introducido ninguna tarjeta.");
+		}
+		if (credential == null) {
+			throw new IllegalArgumentException("La credencial no puede ser nula.");
+		}
+		if (credential.isEmpty()) {
+			throw new IllegalArgumentException("La credencial no puede estar vaca.");
+		}
+		while (true) {
+			CardSession current = sessions.get(card);
+			if (current != null) {
+				if (current.isOpen()) {
+					if (!sameCredential(current.getCredential(), credential)) {
+						throw new IllegalArgumentException("La tarjeta tiene una sesin abierta con otra credencial.");
+					}
+					return current;
+				}
+				if (!settle(current)) {
+					throw new IllegalStateException("La tarjeta tiene una sesin pendiente de cobro.");
+				}
+				sessions.remove(card, current);
+				continue;
+			}
+			CardSession session = new CardSession(card, credential, hold, idleTimeoutNanos, TimeUnit.NANOSECONDS);
+			if (sessions.putIfAbsent(card, session) == null) {
+				return session;
+			}
+			//otro hilo ha abierto una sesin a la vez: la nuestra no ha cobrado nada y se descarta
+		}
+	}
+
+	/**
+	 * Cierra y cobra la sesin de la tarjeta, si tena una.
+	 * @param card TarjetaMonedero del cliente.
+	 * @throws IllegalArgumentException Cuando la tarjeta es nula.
+	 * @throws IllegalStateException Cuando la tarjeta rechaza el cobro; la sesin se reintenta en el siguiente barrido.
+	 */
+	public void close(TarjetaMonedero card) {
+		if (card == null) {
+			throw new IllegalArgumentException("No se ha introducido ninguna tarjeta.");
+		}
+		CardSession session = sessions.get(card);
+		if (session == null) {
+			return;
+		}
+		if (!settle(session)) {
+			throw new IllegalStateException("La tarjeta ha rechazado el cobro de la sesin.");
+		}
+		sessions.remove(card, session);
+	}
+
+	/**
+	 * Cobra y libera las sesiones caducadas, y reintenta las que tenan el cobro pendiente.
+	 * Lo ejecuta peridicamente el hilo del gestor.
+	 * @return Nmero de sesiones cobradas en este barrido.
+	 */
+	public int settleExpired() {
+		long now = System.nanoTime();
+		int settled = 0;
+		for (CardSession session : sessions.values()) {
+			if (session.expire(now) && settle(session)) {
+				sessions.remove(session.getCard(), session);
+				settled++;
+			}
+		}
+		return settled;
+	}
+
+	/**
+	 * Consulta el nmero de sesiones abiertas o pendientes de cobro.
+	 * @return Nmero de sesiones guardadas.
+	 */
+	public int getSessions() {
+		return sessions.size();
+	}
+
+	/**
+	 * Consulta cuntas sesiones se han cobrado.
+	 * @return Nmero de cobros realizados.
+	 */
+	public long getSettlements() {
+		return settlements.get();
+	}
+
+	/**
+	 * Consulta cuntos intentos de cobro ha rechazado la tarjeta.
+	 * @return Nmero de cobros fallidos.
+	 */
+	public long getFailedSettlements() {
+		return failedSettlements.get();
+	}
+
+	/**
+	 * Detiene el barrido y cierra y cobra todas las sesiones. Las que la tarjeta rechaza siguen en el gestor.
+	 */
+	@Override
+	public void close() {
+		sweeper.shutdown();
+		for (CardSession session : sessions.values()) {
+			if (settle(session)) {
+				sessions.remove(session.getCard(), session);
+			}
+		}
+	}
+
+	/**
+	 * Mtodo privado que compara dos credenciales en un tiempo que no depende de dnde difieren.
+	 */
+	private static boolean sameCredential(String expected, String given) {
+		return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Mtodo privado que cierra y cobra una sesin, contando el resultado.
+	 * @return True si la sesin ha quedado cobrada.
+	 */
+	private boolean settle(CardSession session) {
+		try {
+			synchronized (session) {
+				if (session.isSettled()) {
+					return true;
+				}
+				session.close();
+			}
+			settlements.incrementAndGet();
+			return true;
+		} catch (IllegalArgumentException e) {
+			failedSettlements.incrementAndGet();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package es.uva.inf.poo.practica;
+
+import java.util.Arrays;
+
+/**
+ * Implementacin de un count-min sketch: estima cuntas veces se ha visto cada clave usando 
+ * una memoria fija, sea cual sea el nmero de claves distintas. La estimacin nunca es menor 
+ * que la cuenta real, y solo la supera cuando varias claves comparten casillas en todas las filas.
+ * @author rauvill, alvdela
+ *
+ */
+class CountMinSketch {
+
+	private final long[][] counts;
+	private final int mask;
+
+	/**
+	 * Inicializa un sketch vaco.
+	 * @param width Nmero de casillas por fila, que se redondea a la siguiente potencia de 2.
+	 * @param depth Nmero de filas (funciones hash independientes).
+	 * @throws IllegalArgumentException Cuando el ancho o la profundidad no son positivos.
+	 */
+	CountMinSketch(int width, int depth) {
+		if (width <= 0 || depth <= 0) {
+			throw new IllegalArgumentException("El ancho y la profundidad del sketch deben ser positivos.");
+		}
+		int size = Integer.highestOneBit(width);
+		if (size < width) {
+			size <<= 1;
+		}
+		counts = new long[depth][size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Suma una cantidad a la cuenta de la clave recibida.
+	 * @param key Clave a contar.
+	 * @param count Cantidad a sumar.
+	 */
+	void add(String key, long count) {
+		int hash = key.hashCode();
+		for (int row = 0; row < counts.length; row++) {
+			counts[row][index(hash, row)] += count;
+		}
+	}
+
+	/**
+	 * Estima cuntas veces se ha contado la clave recibida.
+	 * @param key Clave a consultar.
+	 * @return Estimacin de la cuenta, nunca menor que la real.
+	 */
+	long estimate(String key) {
+		int hash = key.hashCode();
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < counts.length; row++) {
+			min = Math.min(min, counts[row][index(hash, row)]);
+		}
+		return min;
+	}
+
+	/**
+	 * Suma al sketch las cuentas de otro con las mismas dimensiones, de forma que estima las claves
+	 * contadas en cualquiera de los dos.
+	 * @param other Sketch a sumar.
+	 */
+	void merge(CountMinSketch other) {
+		for (int row = 0; row < counts.length; row++) {
+			long[] to = counts[row];
+			long[] from = other.counts[row];
+			for (int i = 0; i < to.length; i++) {
+				to[i] += from[i];
+			}
+		}
+	}
+
+	/**
+	 * Pone a cero todas las cuentas.
+	 */
+	void clear() {
+		for (long[] row : counts) {
+			Arrays.fill(row, 0);
+		}
+	}
+
+	/**
+	 * Mtodo privado que calcula la casilla de una clave en una fila, mezclando su hash con
+	 * una semilla distinta por fila.
+	 */
+	private int index(int hash, int row) {
+		long h = hash * 0x9E3779B97F4A7C15L + (row + 1) * 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+}
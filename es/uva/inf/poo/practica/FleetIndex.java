@@ -0,0 +1,583 @@
+package es.uva.inf.poo.practica;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Motor de consultas sobre los slots de la flota de un sistema ({@link FleetQuery}), por ejemplo "mquinas
+ * operativas de la provincia C con al menos N unidades del producto X, solo o en un pack".
+ * Mantiene un ndice secundario de producto y provincia a slots, que se actualiza con cada cambio de
+ * existencias de las mquinas seguidas: un slot entra en el ndice al reabastecerse estando vaco, con
+ * el identificador de su vendible y los UPC de los productos si es un pack, y sale al vaciarse. As una
+ * consulta por producto solo recorre los slots que lo contienen. El estado operativo, las existencias y
+ * el precio se comprueban al recorrer los resultados, directamente en la mquina.
+ * Los avisos de existencias que no cambian si el slot esta vaco ni su vendible, que son casi todos, no
+ * toman el cerrojo del ndice. Los dems vuelven a leer el slot en la mquina en vez de fiarse del aviso,
+ * que puede llegar despus de otros cambios.
+ * Los resultados se generan en streaming segn se consumen, hasta el lmite de la consulta.
+ * El ndice sigue las altas y bajas de la flota: las mquinas que se aaden al sistema, tambin en
+ * provincias nuevas, entran en el ndice, y las que se retiran salen de l.
+ * Para las consultas por cercana los slots de las mquinas con ubicacin se indexan adems, por cada
+ * producto, en una rejilla de celdas de latitud y longitud. La bsqueda recorre las celdas en anillos
+ * alrededor del punto y se detiene cuando ninguna celda sin recorrer puede tener una mquina ms cercana
+ * que las encontradas, as que solo mira las mquinas de los alrededores. No se tiene en cuenta que la
+ * longitud da la vuelta en el antimeridiano.
+ * @author rauvill, alvdela
+ *
+ */
+public class FleetIndex implements StockListener {
+
+	/** Lado de las celdas de la rejilla por defecto, en grados (unos 11 km de norte a sur). */
+	public static final double DEFAULT_CELL_DEGREES = 0.1;
+
+	private static final double EARTH_RADIUS_KM = 6371.0088;
+	private static final double KM_PER_DEGREE = EARTH_RADIUS_KM * Math.PI / 180;
+	private static final long NO_CELL = Long.MIN_VALUE;
+
+	private final VendingSystem system;
+	private final double cellDegrees;
+	private final HashMap<String, HashMap<String, Bucket>> byProduct;		//producto -> provincia -> slots
+	private final HashMap<String, Grid> byLocation;						//producto -> celda -> slots de mquinas con ubicacin
+	private final ConcurrentHashMap<VendingMachine, Tracked> machines;		//se consulta sin cerrojo; las mquinas se comparan por identidad
+	private final FleetListener follower;
+
+	/**
+	 * Inicializa el ndice con celdas del tamao por defecto y empieza a seguir todas las mquinas del
+	 * sistema, incluidas las que se aadan despus.
+	 * @param system Sistema a consultar.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 */
+	public FleetIndex(VendingSystem system) {
+		this(system, DEFAULT_CELL_DEGREES);
+	}
+
+	/**
+	 * Inicializa el ndice y empieza a seguir todas las mquinas del sistema, incluidas las que se aadan despus.
+	 * Las celdas pequeas convienen a las flotas densas, y las grandes a las dispersas.
+	 * @param system Sistema a consultar.
+	 * @param cellDegrees Lado de las celdas de la rejilla de ubicaciones, en grados.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 * @throws IllegalArgumentException Cuando el lado de las celdas no es positivo o supera los 10 grados.
+	 */
+	public FleetIndex(VendingSystem system, double cellDegrees) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		if (!(cellDegrees > 0 && cellDegrees <= 10)) {
+			throw new IllegalArgumentException("El lado de las celdas debe estar entre 0 y 10 grados.");
+		}
+		this.system = system;
+		this.cellDegrees = cellDegrees;
+		byProduct = new HashMap<>();
+		byLocation = new HashMap<>();
+		machines = new ConcurrentHashMap<>();
+		follower = new FleetListener() {
+			@Override
+			public void machineAdded(VendingCity city, VendingMachine machine) {
+				track(city, machine);
+			}
+
+			@Override
+			public void machineRemoved(VendingCity city, VendingMachine machine) {
+				untrack(machine);
+			}
+		};
+		system.addFleetListener(follower);
+	}
+
+	/**
+	 * Mtodo privado que empieza a seguir una mquina aadida a la flota, si no se segua ya.
+	 */
+	private synchronized void track(VendingCity city, VendingMachine machine) {
+		if (machines.containsKey(machine)) {
+			return;
+		}
+		Tracked tracked = new Tracked(city.getIdVC(), machine.getNumSlots());
+		tracked.cell = cellOf(machine);
+		machines.put(machine, tracked);
+		machine.addStockListener(this);
+		for (int i = 0; i < machine.getNumSlots(); i++) {
+			reindexSlot(machine, tracked, i);
+		}
+	}
+
+	/**
+	 * Mtodo privado que deja de seguir una mquina retirada de la flota y saca sus slots del ndice.
+	 */
+	private synchronized void untrack(VendingMachine machine) {
+		Tracked tracked = machines.remove(machine);
+		if (tracked == null) {
+			return;
+		}
+		machine.removeStockListener(this);
+		for (int i = 0; i < tracked.postings.length(); i++) {
+			unindexSlot(tracked, i);
+		}
+	}
+
+	/**
+	 * Actualiza el ndice con el cambio de existencias de un slot. Lo llaman las mquinas seguidas.
+	 * Si el ndice ya coincide con el aviso no hace nada ni toma el cerrojo; si no, vuelve a leer el
+	 * slot en la mquina con el cerrojo tomado.
+	 */
+	@Override
+	public void stockChanged(VendingMachine machine, String idSlot, String idVendible, int stock) {
+		Tracked tracked = machines.get(machine);
+		if (tracked == null) {
+			return;
+		}
+		int index = machine.indexOf(idSlot);
+		Posting posting = tracked.postings.get(index);
+		if (stock == 0 ? posting == null : posting != null && posting.idVendible.equals(idVendible)) {
+			return;
+		}
+		synchronized (this) {
+			if (machines.get(machine) == tracked) {
+				reindexSlot(machine, tracked, index);
+			}
+		}
+	}
+
+	/**
+	 * Mueve los slots de la mquina a la celda de su nueva ubicacin. Lo llaman las mquinas seguidas.
+	 */
+	@Override
+	public synchronized void locationChanged(VendingMachine machine) {
+		Tracked tracked = machines.get(machine);
+		if (tracked == null) {
+			return;
+		}
+		for (int i = 0; i < tracked.postings.length(); i++) {
+			unindexSlot(tracked, i);
+		}
+		tracked.cell = cellOf(machine);
+		for (int i = 0; i < tracked.postings.length(); i++) {
+			reindexSlot(machine, tracked, i);
+		}
+	}
+
+	/**
+	 * Ejecuta una consulta. Las consultas por producto recorren solo los slots del ndice que lo contienen;
+	 * las dems recorren los slots de las mquinas de la provincia, o de todo el sistema. Las consultas por
+	 * cercana recorren las celdas de la rejilla del producto ms prximas al punto.
+	 * @param query Consulta a ejecutar.
+	 * @return Stream con los slots que cumplen la consulta, como mucho tantos como su lmite.
+	 * @throws IllegalArgumentException Cuando la consulta es nula.
+	 * @throws IllegalArgumentException Cuando la consulta es por cercana y no es por producto.
+	 */
+	public Stream<FleetMatch> query(FleetQuery query) {
+		if (query == null) {
+			throw new IllegalArgumentException("La consulta no puede ser nula.");
+		}
+		if (query.isNear()) {
+			if (query.getUpc() == null) {
+				throw new IllegalArgumentException("Las consultas por cercana tienen que ser por producto.");
+			}
+			return Arrays.stream(nearest(query));
+		}
+		Stream<FleetMatch> matches;
+		if (query.getUpc() != null) {
+			matches = Arrays.stream(postingsOf(query.getUpc(), query.getIdCity()))
+					.map(posting -> match(posting.idCity, posting.machine, posting.slot, posting.idVendible, query, Double.NaN));
+		} else {
+			Stream<VendingCity> cities = system.streamCities();
+			if (query.getIdCity() != null) {
+				cities = cities.filter(city -> city.getIdVC().equals(query.getIdCity()));
+			}
+			matches = cities.flatMap(city -> city.streamMachines()
+					.filter(machine -> !query.isOperativeOnly() || machine.isOperative())
+					.flatMap(machine -> IntStream.range(0, machine.getNumSlots())
+							.mapToObj(i -> match(city.getIdVC(), machine, i, null, query, Double.NaN))));
+		}
+		matches = matches.filter(Objects::nonNull);
+		Predicate<FleetMatch> condition = query.getCondition();
+		if (condition != null) {
+			matches = matches.filter(condition);
+		}
+		return matches.limit(query.getLimit());
+	}
+
+	/**
+	 * Consulta cuntos slots del ndice contienen el producto o pack recibido, en todas las provincias.
+	 * @param upc Identificador del producto o del pack.
+	 * @return Nmero de slots con el producto.
+	 */
+	public synchronized int getIndexedSlots(String upc) {
+		HashMap<String, Bucket> cities = byProduct.get(upc);
+		int count = 0;
+		if (cities != null) {
+			for (Bucket bucket : cities.values()) {
+				count += bucket.postings.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Calcula la distancia entre dos puntos sobre la superficie de la Tierra (frmula del semiverseno).
+	 * @param lat1 Latitud del primer punto, en grados.
+	 * @param lon1 Longitud del primer punto, en grados.
+	 * @param lat2 Latitud del segundo punto, en grados.
+	 * @param lon2 Longitud del segundo punto, en grados.
+	 * @return Distancia en kilmetros.
+	 */
+	public static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+
+	/**
+	 * Mtodo privado que busca las mquinas ms cercanas al punto de la consulta con un slot que la
+	 * cumple. Recorre la rejilla del producto en anillos de celdas alrededor del punto, guardando las
+	 * mejores en un montculo con la ms lejana en la cima, y para cuando el anillo siguiente esta ms
+	 * lejos que la peor de las guardadas o se sale de las celdas ocupadas. De cada anillo solo se toman
+	 * las instantneas de sus celdas con el cerrojo, y los slots se comprueban fuera de l, como en las
+	 * consultas por producto, para no parar los avisos de las ventas mientras tanto.
+	 * @return Los resultados, de la mquina ms cercana a la ms lejana.
+	 */
+	private FleetMatch[] nearest(FleetQuery query) {
+		double lat = query.getLatitude();
+		double lon = query.getLongitude();
+		int qx = cellX(lon);
+		int qy = cellY(lat);
+		Grid grid;
+		int rings;
+		synchronized (this) {
+			grid = byLocation.get(query.getUpc());
+			if (grid == null) {
+				return new FleetMatch[0];
+			}
+			rings = Math.max(Math.max(Math.abs(qx - grid.minX), Math.abs(qx - grid.maxX)),
+					Math.max(Math.abs(qy - grid.minY), Math.abs(qy - grid.maxY)));
+		}
+		int limit = query.getLimit();
+		PriorityQueue<FleetMatch> best = new PriorityQueue<>((a, b) -> Double.compare(b.getDistance(), a.getDistance()));
+		IdentityHashMap<VendingMachine, Boolean> seen = new IdentityHashMap<>();
+		ArrayList<Posting[]> cells = new ArrayList<>();
+		for (int d = 0; d <= rings; d++) {
+			cells.clear();
+			ringCells(grid, qx, qy, d, cells);
+			for (Posting[] cell : cells) {
+				visit(cell, query, lat, lon, limit, best, seen);
+			}
+			if (best.size() == limit && lowerBound(lat, d) >= best.peek().getDistance()) {
+				break;
+			}
+		}
+		FleetMatch[] result = new FleetMatch[best.size()];
+		for (int i = result.length - 1; i >= 0; i--) {
+			result[i] = best.poll();
+		}
+		return result;
+	}
+
+	/**
+	 * Mtodo privado que obtiene las instantneas de las celdas ocupadas del anillo d alrededor de la celda
+	 * del punto. Si la rejilla ya no esta en el ndice, sus celdas siguen siendo las de cuando se quit.
+	 */
+	private synchronized void ringCells(Grid grid, int qx, int qy, int d, ArrayList<Posting[]> cells) {
+		for (int x = Math.max(qx - d, grid.minX); x <= Math.min(qx + d, grid.maxX); x++) {
+			if (x == qx - d || x == qx + d) {							//en los lados del anillo se recorre toda la columna
+				for (int y = Math.max(qy - d, grid.minY); y <= Math.min(qy + d, grid.maxY); y++) {
+					addCell(grid.cells.get(key(x, y)), cells);
+				}
+			} else {													//en el resto solo la celda de arriba y la de abajo
+				if (qy - d >= grid.minY && qy - d <= grid.maxY) {
+					addCell(grid.cells.get(key(x, qy - d)), cells);
+				}
+				if (qy + d >= grid.minY && qy + d <= grid.maxY) {
+					addCell(grid.cells.get(key(x, qy + d)), cells);
+				}
+			}
+		}
+	}
+
+	private static void addCell(Bucket cell, ArrayList<Posting[]> cells) {
+		if (cell != null) {
+			cells.add(cell.snapshot());
+		}
+	}
+
+	/**
+	 * Mtodo privado que comprueba los slots de una celda y guarda los que mejoran los resultados. Los slots
+	 * de una mquina estn todos a la misma distancia, as que de cada mquina basta con el primero que
+	 * cumple la consulta.
+	 */
+	private static void visit(Posting[] cell, FleetQuery query, double lat, double lon, int limit,
+			PriorityQueue<FleetMatch> best, IdentityHashMap<VendingMachine, Boolean> seen) {
+		Predicate<FleetMatch> condition = query.getCondition();
+		for (Posting posting : cell) {
+			if ((query.getIdCity() != null && !query.getIdCity().equals(posting.idCity)) || seen.containsKey(posting.machine)) {
+				continue;
+			}
+			double km = distance(lat, lon, posting.machine.getLatitude(), posting.machine.getLongitude());
+			if (best.size() == limit && km >= best.peek().getDistance()) {
+				continue;
+			}
+			FleetMatch match = match(posting.idCity, posting.machine, posting.slot, posting.idVendible, query, km);
+			if (match != null && (condition == null || condition.test(match))) {
+				seen.put(posting.machine, Boolean.TRUE);
+				best.add(match);
+				if (best.size() > limit) {
+					best.poll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mtodo privado que calcula una cota inferior de la distancia desde el punto a cualquier celda
+	 * fuera de los primeros d anillos: entre ellas hay al menos d celdas de latitud o de longitud, y los
+	 * grados de longitud miden menos cuanto ms lejos del ecuador.
+	 */
+	private double lowerBound(double lat, int d) {
+		double farthest = Math.min(90, Math.abs(lat) + (d + 1) * cellDegrees);
+		return d * cellDegrees * KM_PER_DEGREE * Math.cos(Math.toRadians(farthest));
+	}
+
+	private long cellOf(VendingMachine machine) {
+		if (!machine.hasLocation()) {
+			return NO_CELL;
+		}
+		return key(cellX(machine.getLongitude()), cellY(machine.getLatitude()));
+	}
+
+	private int cellX(double longitude) {
+		return (int) Math.floor(longitude / cellDegrees);
+	}
+
+	private int cellY(double latitude) {
+		return (int) Math.floor(latitude / cellDegrees);
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * Mtodo privado que comprueba las condiciones de un slot sobre la mquina y construye su resultado,
+	 * o devuelve null si no las cumple.
+	 * @param idVendible Vendible con el que se index el slot, o null si no viene del ndice.
+	 * @param distance Distancia al punto de la consulta, o NaN si no es por cercana.
+	 */
+	private static FleetMatch match(String idCity, VendingMachine machine, int slot, String idVendible, FleetQuery query, double distance) {
+		if (query.isOperativeOnly() && !machine.isOperative()) {
+			return null;
+		}
+		int stock = machine.getStock(slot);
+		if (stock < query.getMinStock()) {
+			return null;
+		}
+		String current = machine.getVendibleId(slot);
+		if (current == null || (idVendible != null && !idVendible.equals(current))) {
+			return null;
+		}
+		double price = machine.getSalePrice(slot);
+		if (price > query.getMaxPrice()) {
+			return null;
+		}
+		return new FleetMatch(idCity, machine, machine.getSlotId(slot), current, stock, price, distance);
+	}
+
+	/**
+	 * Mtodo privado que obtiene la instantnea de los slots del ndice con el producto, en una provincia o en todas.
+	 */
+	private synchronized Posting[] postingsOf(String upc, String idCity) {
+		HashMap<String, Bucket> cities = byProduct.get(upc);
+		if (cities == null) {
+			return Bucket.EMPTY;
+		}
+		if (idCity != null) {
+			Bucket bucket = cities.get(idCity);
+			return bucket == null ? Bucket.EMPTY : bucket.snapshot();
+		}
+		ArrayList<Posting> all = new ArrayList<>();
+		for (Bucket bucket : cities.values()) {
+			all.addAll(bucket.postings);
+		}
+		return all.toArray(Bucket.EMPTY);
+	}
+
+	/**
+	 * Mtodo privado que lee el slot en la mquina, con su monitor, y deja su entrada del ndice de
+	 * acuerdo con l. Como los avisos que no cambian el ndice no toman el cerrojo, despus de cambiar la
+	 * entrada vuelve a leer el slot, por si otro hilo lo ha cambiado y ha visto la entrada anterior.
+	 */
+	private void reindexSlot(VendingMachine machine, Tracked tracked, int index) {
+		int[] stock = new int[1];
+		while (true) {
+			Vendible vendible = machine.readSlot(index, stock);
+			String idVendible = stock[0] == 0 ? null : vendible.getIdentifier();
+			Posting posting = tracked.postings.get(index);
+			if (idVendible == null ? posting == null : posting != null && posting.idVendible.equals(idVendible)) {
+				return;
+			}
+			unindexSlot(tracked, index);
+			if (idVendible != null) {
+				indexSlot(machine, tracked, index, vendible);
+			}
+		}
+	}
+
+	private void indexSlot(VendingMachine machine, Tracked tracked, int index, Vendible vendible) {
+		String[] keys;
+		if (vendible instanceof Pack) {
+			ArrayList<String> upcs = ((Pack) vendible).getProductsUPC();
+			keys = new String[upcs.size() + 1];
+			keys[0] = vendible.getIdentifier();
+			for (int i = 0; i < upcs.size(); i++) {
+				keys[i + 1] = upcs.get(i);
+			}
+		} else {
+			keys = new String[] {vendible.getIdentifier()};
+		}
+		Posting posting = new Posting(tracked.idCity, machine, index, vendible.getIdentifier(), tracked.cell);
+		tracked.keys[index] = keys;
+		tracked.postings.set(index, posting);
+		for (String key : keys) {
+			byProduct.computeIfAbsent(key, k -> new HashMap<>())
+					.computeIfAbsent(tracked.idCity, k -> new Bucket())
+					.add(posting);
+			if (posting.cell != NO_CELL) {
+				byLocation.computeIfAbsent(key, k -> new Grid()).add(posting);
+			}
+		}
+	}
+
+	private void unindexSlot(Tracked tracked, int index) {
+		Posting posting = tracked.postings.get(index);
+		if (posting == null) {
+			return;
+		}
+		for (String key : tracked.keys[index]) {
+			HashMap<String, Bucket> cities = byProduct.get(key);
+			Bucket bucket = cities.get(tracked.idCity);
+			bucket.remove(posting);
+			if (bucket.postings.isEmpty()) {
+				cities.remove(tracked.idCity);
+				if (cities.isEmpty()) {
+					byProduct.remove(key);
+				}
+			}
+			if (posting.cell != NO_CELL) {
+				Grid grid = byLocation.get(key);
+				if (grid.remove(posting)) {
+					byLocation.remove(key);
+				}
+			}
+		}
+		tracked.postings.set(index, null);
+		tracked.keys[index] = null;
+	}
+
+	/**
+	 * Slot indexado de una mquina, con el vendible que tena al indexarse y la celda de la mquina.
+	 */
+	private static class Posting {
+		final String idCity;
+		final VendingMachine machine;
+		final int slot;
+		final String idVendible;
+		final long cell;
+
+		Posting(String idCity, VendingMachine machine, int slot, String idVendible, long cell) {
+			this.idCity = idCity;
+			this.machine = machine;
+			this.slot = slot;
+			this.idVendible = idVendible;
+			this.cell = cell;
+		}
+	}
+
+	/**
+	 * Slots de un producto repartidos por celdas, con los lmites de las celdas ocupadas. Los lmites solo
+	 * crecen: una celda que se vaca puede quedar dentro, y la bsqueda simplemente la encuentra vaca.
+	 */
+	private static class Grid {
+		final HashMap<Long, Bucket> cells = new HashMap<>();
+		int minX = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxY = Integer.MIN_VALUE;
+
+		void add(Posting posting) {
+			cells.computeIfAbsent(posting.cell, k -> new Bucket()).add(posting);
+			int x = (int) (posting.cell >> 32);
+			int y = (int) posting.cell;
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+
+		/**
+		 * Quita el slot de su celda.
+		 * @return True si la rejilla se ha quedado vaca.
+		 */
+		boolean remove(Posting posting) {
+			Bucket bucket = cells.get(posting.cell);
+			bucket.remove(posting);
+			if (bucket.postings.isEmpty()) {
+				cells.remove(posting.cell);
+			}
+			return cells.isEmpty();
+		}
+	}
+
+	/**
+	 * Slots de un producto en una provincia, con una instantnea en vector que se reutiliza entre
+	 * consultas mientras no cambien.
+	 */
+	private static class Bucket {
+		static final Posting[] EMPTY = new Posting[0];
+		final LinkedHashSet<Posting> postings = new LinkedHashSet<>();
+		Posting[] snapshot;
+
+		void add(Posting posting) {
+			postings.add(posting);
+			snapshot = null;
+		}
+
+		void remove(Posting posting) {
+			postings.remove(posting);
+			snapshot = null;
+		}
+
+		Posting[] snapshot() {
+			if (snapshot == null) {
+				snapshot = postings.toArray(EMPTY);
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Mquina seguida: su provincia, su celda y, por cada slot, su entrada del ndice y los productos con los que se index.
+	 * Las entradas se leen sin cerrojo al recibir los avisos; el resto solo con el cerrojo del ndice.
+	 */
+	private static class Tracked {
+		final String idCity;
+		final AtomicReferenceArray<Posting> postings;
+		final String[][] keys;
+		long cell;
+
+		Tracked(String idCity, int numSlots) {
+			this.idCity = idCity;
+			postings = new AtomicReferenceArray<>(numSlots);
+			keys = new String[numSlots][];
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Oyente al que una provincia avisa de las mquinas que se aaden o se retiran, para que los componentes
+ * conectados a una provincia o a todo el sistema sigan tambin a las mquinas que se aaden despus.
+ * Al registrar el oyente se le avisa de las mquinas que ya haba, y al quitarlo de que se retiran todas.
+ * @author rauvill, alvdela
+ *
+ */
+interface FleetListener {
+
+	/**
+	 * Se llama despus de aadir una mquina a la provincia, con el monitor de la provincia tomado.
+	 * @param city Provincia a la que se ha aadido la mquina.
+	 * @param machine Mquina aadida.
+	 */
+	void machineAdded(VendingCity city, VendingMachine machine);
+
+	/**
+	 * Se llama despus de retirar una mquina de la provincia, con el monitor de la provincia tomado.
+	 * @param city Provincia de la que se ha retirado la mquina.
+	 * @param machine Mquina retirada.
+	 */
+	void machineRemoved(VendingCity city, VendingMachine machine);
+
+	/**
+	 * Se llama despus de retirar una provincia del sistema, cuando ya se ha avisado de que se retiran
+	 * todas sus mquinas, para que se olvide lo que se guardaba de la provincia. Por defecto no hace nada.
+	 * @param city Provincia retirada.
+	 */
+	default void cityRemoved(VendingCity city) {
+	}
+}
@@ -0,0 +1,94 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Resultado de una consulta de la flota: un slot de una mquina que cumple la consulta, con sus
+ * existencias y su precio de venta en el momento de la consulta.
+ * @author rauvill, alvdela
+ *
+ */
+public final class FleetMatch {
+
+	private final String idCity;
+	private final VendingMachine machine;
+	private final String idSlot;
+	private final String idVendible;
+	private final int stock;
+	private final double price;
+	private final double distance;
+
+	/**
+	 * Mtodo visible en el paquete que inicializa un resultado con los datos recibidos.
+	 */
+	FleetMatch(String idCity, VendingMachine machine, String idSlot, String idVendible, int stock, double price) {
+		this(idCity, machine, idSlot, idVendible, stock, price, Double.NaN);
+	}
+
+	/**
+	 * Mtodo visible en el paquete que inicializa un resultado de una consulta por cercana.
+	 */
+	FleetMatch(String idCity, VendingMachine machine, String idSlot, String idVendible, int stock, double price, double distance) {
+		this.idCity = idCity;
+		this.machine = machine;
+		this.idSlot = idSlot;
+		this.idVendible = idVendible;
+		this.stock = stock;
+		this.price = price;
+		this.distance = distance;
+	}
+
+	/**
+	 * Consulta el identificador de la provincia de la mquina.
+	 * @return Identificador de la provincia.
+	 */
+	public String getIdCity() {
+		return idCity;
+	}
+
+	/**
+	 * Consulta la mquina del slot.
+	 * @return La mquina.
+	 */
+	public VendingMachine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * Consulta el identificador del slot.
+	 * @return Identificador del slot.
+	 */
+	public String getIdSlot() {
+		return idSlot;
+	}
+
+	/**
+	 * Consulta el identificador del vendible del slot, que puede ser un pack que contiene el producto buscado.
+	 * @return Identificador del vendible.
+	 */
+	public String getIdVendible() {
+		return idVendible;
+	}
+
+	/**
+	 * Consulta las existencias del slot.
+	 * @return Unidades del slot.
+	 */
+	public int getStock() {
+		return stock;
+	}
+
+	/**
+	 * Consulta el precio de venta del slot.
+	 * @return Precio de venta.
+	 */
+	public double getPrice() {
+		return price;
+	}
+
+	/**
+	 * Consulta la distancia de la mquina al punto de la consulta.
+	 * @return Distancia en kilmetros, o NaN si la consulta no era por cercana.
+	 */
+	public double getDistance() {
+		return distance;
+	}
+}
@@ -0,0 +1,184 @@
+package es.uva.inf.poo.practica;
+
+import java.util.function.Predicate;
+
+/**
+ * Consulta sobre los slots de la flota, formada combinando condiciones: provincia, producto (solo o dentro
+ * de un pack), mquina operativa, existencias mnimas, precio mximo y condiciones adicionales, ms un
+ * lmite de resultados. Todas las condiciones son opcionales y se cumplen a la vez. Se ejecuta con
+ * {@link FleetIndex#query(FleetQuery)}.
+ * Con un punto de referencia la consulta devuelve las mquinas ms cercanas al punto, de la ms cercana
+ * a la ms lejana, con un nico slot de cada mquina.
+ * <pre>
+ * new FleetQuery().inCity("VA").withProduct(upc).operativeOnly().minStock(3).limit(10)
+ * new FleetQuery().withProduct(upc).operativeOnly().near(41.65, -4.72).limit(5)
+ * </pre>
+ * @author rauvill, alvdela
+ *
+ */
+public class FleetQuery {
+
+	private String idCity;
+	private String upc;
+	private boolean operativeOnly;
+	private int minStock = 1;
+	private double maxPrice = Double.POSITIVE_INFINITY;
+	private int limit = Integer.MAX_VALUE;
+	private Predicate<FleetMatch> condition;
+	private double latitude = Double.NaN;
+	private double longitude = Double.NaN;
+
+	/**
+	 * Restringe la consulta a las mquinas de una provincia.
+	 * @param idCity Identificador de la provincia.
+	 * @return Esta consulta.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo o esta vaco.
+	 */
+	public FleetQuery inCity(String idCity) {
+		if (idCity == null || idCity.isEmpty()) {
+			throw new IllegalArgumentException("El id de la provincia no puede ser nulo ni estar vaco");
+		}
+		this.idCity = idCity;
+		return this;
+	}
+
+	/**
+	 * Restringe la consulta a los slots con el producto, solo o dentro de un pack, o con el pack del identificador recibido.
+	 * @param upc Identificador del producto o del pack.
+	 * @return Esta consulta.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo o esta vaco.
+	 */
+	public FleetQuery withProduct(String upc) {
+		if (upc == null || upc.isEmpty()) {
+			throw new IllegalArgumentException("El identificador UPC no puede ser nulo ni estar vaco.");
+		}
+		this.upc = upc;
+		return this;
+	}
+
+	/**
+	 * Restringe la consulta a las mquinas operativas.
+	 * @return Esta consulta.
+	 */
+	public FleetQuery operativeOnly() {
+		operativeOnly = true;
+		return this;
+	}
+
+	/**
+	 * Restringe la consulta a los slots con al menos las unidades recibidas. Por defecto se piden slots con al menos una unidad.
+	 * @param units Existencias mnimas.
+	 * @return Esta consulta.
+	 * @throws IllegalArgumentException Cuando las unidades no son positivas.
+	 */
+	public FleetQuery minStock(int units) {
+		if (units <= 0) {
+			throw new IllegalArgumentException("Las existencias mnimas deben ser positivas.");
+		}
+		minStock = units;
+		return this;
+	}
+
+	/**
+	 * Restringe la consulta a los slots con un precio de venta que no supere el recibido.
+	 * @param price Precio mximo.
+	 * @return Esta consulta.
+	 * @throws IllegalArgumentException Cuando el precio es negativo.
+	 */
+	public FleetQuery maxPrice(double price) {
+		if (price < 0) {
+			throw new IllegalArgumentException("El precio mximo no puede ser negativo.");
+		}
+		maxPrice = price;
+		return this;
+	}
+
+	/**
+	 * Aade una condicin adicional que deben cumplir los resultados.
+	 * @param extra Condicin sobre cada resultado.
+	 * @return Esta consulta.
+	 * @throws IllegalArgumentException Cuando la condicin es nula.
+	 */
+	public FleetQuery where(Predicate<FleetMatch> extra) {
+		if (extra == null) {
+			throw new IllegalArgumentException("La condicin no puede ser nula.");
+		}
+		condition = condition == null ? extra : condition.and(extra);
+		return this;
+	}
+
+	/**
+	 * Ordena los resultados por cercana a un punto, de la mquina ms cercana a la ms lejana, y
+	 * deja solo un slot por mquina. Solo se tienen en cuenta las mquinas con ubicacin, y la consulta
+	 * tiene que ser por producto.
+	 * @param latitude Latitud del punto en grados, entre -90 y 90.
+	 * @param longitude Longitud del punto en grados, entre -180 y 180.
+	 * @return Esta consulta.
+	 * @throws IllegalArgumentException Cuando la latitud o la longitud estn fuera de rango.
+	 */
+	public FleetQuery near(double latitude, double longitude) {
+		if (!(latitude >= -90 && latitude <= 90)) {
+			throw new IllegalArgumentException("La latitud debe estar entre -90 y 90 grados.");
+		}
+		if (!(longitude >= -180 && longitude <= 180)) {
+			throw new IllegalArgumentException("La longitud debe estar entre -180 y 180 grados.");
+		}
+		this.latitude = latitude;
+		this.longitude = longitude;
+		return this;
+	}
+
+	/**
+	 * Limita el nmero de resultados.
+	 * @param max Nmero mximo de resultados.
+	 * @return Esta consulta.
+	 * @throws IllegalArgumentException Cuando el lmite no es positivo.
+	 */
+	public FleetQuery limit(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("El lmite debe ser positivo.");
+		}
+		limit = max;
+		return this;
+	}
+
+	String getIdCity() {
+		return idCity;
+	}
+
+	String getUpc() {
+		return upc;
+	}
+
+	boolean isOperativeOnly() {
+		return operativeOnly;
+	}
+
+	int getMinStock() {
+		return minStock;
+	}
+
+	double getMaxPrice() {
+		return maxPrice;
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	Predicate<FleetMatch> getCondition() {
+		return condition;
+	}
+
+	boolean isNear() {
+		return latitude == latitude;										//falso solo para NaN
+	}
+
+	double getLatitude() {
+		return latitude;
+	}
+
+	double getLongitude() {
+		return longitude;
+	}
+}
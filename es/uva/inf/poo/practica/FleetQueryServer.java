@@ -0,0 +1,403 @@
+package es.uva.inf.poo.practica;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Servicio HTTP/JSON de consulta de la flota para las herramientas de los operadores.
+ * <pre>
+ * GET /cities                                provincias con su nmero de mquinas y de mquinas operativas
+ * GET /cities/{idCity}/machines              mquinas de la provincia
+ * GET /cities/{idCity}/available             mquinas de la provincia con algn slot vaco
+ * GET /cities/{idCity}/machines/{idMachine}  slots de la mquina con su vendible, existencias y precio
+ * </pre>
+ * Las respuestas se escriben en streaming segn se generan, y se guardan en cach junto con las versiones
+ * del sistema, la provincia y las mquinas de las que dependen. Mientras ninguna de esas versiones cambie,
+ * las consultas repetidas se sirven desde la cach sin volver a recorrer la flota. Las versiones de las
+ * mquinas de cada provincia se leen ya sumadas de la provincia, as que comprobarlas no recorre las
+ * mquinas, y una respuesta guardada solo se sustituye por otra generada con versiones ms nuevas.
+ * El servicio sigue las bajas del sistema y olvida las respuestas de las provincias y mquinas retiradas.
+ * El servidor HTTP del JDK atiende las conexiones con un selector, y las consultas se ejecutan en un
+ * conjunto de hilos de tamao fijo.
+ * @author rauvill, alvdela
+ *
+ */
+public class FleetQueryServer implements AutoCloseable {
+
+	private static final String CITIES = "/cities";
+
+	private final VendingSystem system;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<String, CachedResponse> cache;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final FleetListener follower;
+
+	/**
+	 * Inicializa el servicio escuchando en la direccin recibida. No atiende consultas hasta llamar a {@link #start()}.
+	 * @param system Sistema a consultar.
+	 * @param address Direccin en la que escucha; con puerto 0 se elige un puerto libre.
+	 * @throws IllegalArgumentException Cuando el sistema o la direccin son nulos.
+	 * @throws IOException Cuando no se puede abrir el puerto.
+	 */
+	public FleetQueryServer(VendingSystem system, InetSocketAddress address) throws IOException {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		if (address == null) {
+			throw new IllegalArgumentException("La direccin no puede ser nula.");
+		}
+		this.system = system;
+		server = HttpServer.create(address, 0);
+		executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread thread = new Thread(r, "vending-query");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext(CITIES, this::handle);
+		cache = new ConcurrentHashMap<>();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		follower = new FleetListener() {
+			@Override
+			public void machineAdded(VendingCity city, VendingMachine machine) {
+			}
+
+			@Override
+			public void machineRemoved(VendingCity city, VendingMachine machine) {
+				cache.remove(machineKey(city.getIdVC(), machine.getIdMachine()));
+			}
+
+			@Override
+			public void cityRemoved(VendingCity city) {
+				String prefix = cityKey(city.getIdVC()) + "/";
+				cache.keySet().removeIf(key -> key.startsWith(prefix));
+			}
+		};
+	}
+
+	/**
+	 * Empieza a atender consultas.
+	 */
+	public void start() {
+		system.addFleetListener(follower);
+		server.start();
+	}
+
+	/**
+	 * Consulta el puerto en el que escucha el servicio.
+	 * @return El puerto local.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Consulta cuntas consultas se han servido desde la cach.
+	 * @return Nmero de aciertos de la cach.
+	 */
+	public long getCacheHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Consulta cuntas consultas han tenido que generarse recorriendo la flota.
+	 * @return Nmero de fallos de la cach.
+	 */
+	public long getCacheMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Detiene el servicio y deja de seguir las bajas del sistema.
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdown();
+		system.removeFleetListener(follower);
+		cache.clear();
+	}
+
+	/**
+	 * Mtodo privado que atiende una consulta: comprueba la ruta, calcula las versiones de las que
+	 * depende la respuesta y la sirve desde la cach o la genera.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				sendError(exchange, 405, "Solo se admiten consultas GET.");
+				return;
+			}
+			String path = exchange.getRequestURI().getPath();
+			String[] parts = path.substring(1).split("/");
+			if (!CITIES.substring(1).equals(parts[0])) {
+				sendError(exchange, 404, "Consulta desconocida.");
+			} else if (parts.length == 1) {
+				serve(exchange, CITIES, this::versionOfSystem, out -> writeCities(out));
+			} else {
+				serveCity(exchange, parts);
+			}
+		} catch (IllegalArgumentException e) {
+			sendError(exchange, 404, e.getMessage());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Mtodo privado que atiende las consultas sobre una provincia o una de sus mquinas.
+	 */
+	private void serveCity(HttpExchange exchange, String[] parts) throws IOException {
+		VendingCity city = system.getCity(parts[1]);
+		String key = cityKey(parts[1]) + "/" + parts[2];
+		if (parts.length == 3 && "machines".equals(parts[2])) {
+			serve(exchange, key, () -> versionOfCity(city), out -> writeMachines(out, city, false));
+		} else if (parts.length == 3 && "available".equals(parts[2])) {
+			serve(exchange, key, () -> versionOfCity(city), out -> writeMachines(out, city, true));
+		} else if (parts.length == 4 && "machines".equals(parts[2])) {
+			VendingMachine machine = city.getVendingMachine(parts[3]);
+			Supplier<long[]> version = () -> new long[] {system.getVersion(), city.getVersion(), machine.getVersion()};
+			serve(exchange, machineKey(parts[1], parts[3]), version, out -> writeMachine(out, machine));
+		} else {
+			sendError(exchange, 404, "Consulta desconocida.");
+		}
+	}
+
+	/**
+	 * Mtodo privado que sirve una respuesta desde la cach si sus versiones siguen siendo las mismas, o la
+	 * genera escribindola en streaming a la vez en la conexin y en la cach. Si las versiones han cambiado
+	 * mientras se generaba, por ejemplo porque se ha retirado la mquina, la respuesta no se queda en la cach.
+	 */
+	private void serve(HttpExchange exchange, String key, Supplier<long[]> versions, JsonBody body) throws IOException {
+		long[] version = versions.get();
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		CachedResponse cached = cache.get(key);
+		if (cached != null && Arrays.equals(cached.version, version)) {
+			hits.incrementAndGet();
+			exchange.sendResponseHeaders(200, cached.body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(cached.body);
+			}
+			return;
+		}
+		misses.incrementAndGet();
+		exchange.sendResponseHeaders(200, 0);							//longitud 0: respuesta por trozos, en streaming
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		try (OutputStream response = exchange.getResponseBody();
+				Writer out = new OutputStreamWriter(new TeeOutputStream(response, copy), StandardCharsets.UTF_8)) {
+			body.write(out);
+		}
+		CachedResponse generated = new CachedResponse(version, copy.toByteArray());
+		cache.merge(key, generated, (old, fresh) -> isNewer(fresh.version, old.version) ? fresh : old);
+		if (!Arrays.equals(versions.get(), version)) {
+			cache.remove(key, generated);
+		}
+	}
+
+	/**
+	 * Mtodo privado que construye la clave en la cach de las consultas sobre una provincia.
+	 */
+	private static String cityKey(String idCity) {
+		return CITIES + "/" + idCity;
+	}
+
+	/**
+	 * Mtodo privado que construye la clave en la cach de la consulta sobre una mquina.
+	 */
+	private static String machineKey(String idCity, String idMachine) {
+		return cityKey(idCity) + "/machines/" + idMachine;
+	}
+
+	/**
+	 * Mtodo privado que compara las versiones de dos respuestas. Las versiones van de la ms general a la
+	 * ms concreta, y cada una solo crece mientras no cambian las anteriores, as que se comparan en orden.
+	 */
+	private static boolean isNewer(long[] version, long[] than) {
+		for (int i = 0; i < version.length; i++) {
+			if (version[i] != than[i]) {
+				return version[i] > than[i];
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Mtodo privado que calcula las versiones de las que dependen las consultas del sistema. Mientras no
+	 * cambie el sistema sus provincias son las mismas, y como sus versiones solo crecen basta con su suma.
+	 */
+	private long[] versionOfSystem() {
+		long cities = 0;
+		long machines = 0;
+		for (VendingCity city : system.getCitiesView()) {
+			cities += city.getVersion();
+			machines += city.getMachinesVersion();
+		}
+		return new long[] {system.getVersion(), cities, machines};
+	}
+
+	/**
+	 * Mtodo privado que calcula las versiones de las que dependen las consultas de una provincia. Mientras
+	 * no cambien ni el sistema ni la provincia, sus mquinas son las mismas, y la provincia lleva la suma
+	 * de sus cambios.
+	 */
+	private long[] versionOfCity(VendingCity city) {
+		return new long[] {system.getVersion(), city.getVersion(), city.getMachinesVersion()};
+	}
+
+	private void writeCities(Writer out) throws IOException {
+		out.write('[');
+		String separator = "";
+		for (VendingCity city : system.getCitiesView()) {
+			out.write(separator);
+			out.write("{\"id\":");
+			writeString(out, city.getIdVC());
+			out.write(",\"province\":");
+			writeString(out, city.getProvince());
+			out.write(",\"machines\":" + city.getNumMachines());
+			out.write(",\"operative\":" + city.getVendingOperative() + "}");
+			separator = ",";
+		}
+		out.write(']');
+	}
+
+	private void writeMachines(Writer out, VendingCity city, boolean onlyAvailable) throws IOException {
+		out.write('[');
+		String separator = "";
+		for (VendingMachine machine : city.getMachinesView()) {
+			boolean emptySlots = machine.checkEmptySlots();
+			if (onlyAvailable && !emptySlots) {
+				continue;
+			}
+			out.write(separator);
+			out.write("{\"id\":");
+			writeString(out, machine.getIdMachine());
+			out.write(",\"operative\":" + machine.isOperative());
+			out.write(",\"slots\":" + machine.getNumSlots());
+			out.write(",\"emptySlots\":" + emptySlots + "}");
+			separator = ",";
+		}
+		out.write(']');
+	}
+
+	private void writeMachine(Writer out, VendingMachine machine) throws IOException {
+		out.write("{\"id\":");
+		writeString(out, machine.getIdMachine());
+		out.write(",\"operative\":" + machine.isOperative());
+		out.write(",\"slots\":[");
+		int[] stock = new int[1];
+		for (int i = 0; i < machine.getNumSlots(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			String idSlot = machine.getSlotId(i);
+			out.write("{\"slot\":");
+			writeString(out, idSlot);
+			Vendible vendible = machine.readSlot(i, stock);
+			if (vendible != null && stock[0] > 0) {
+				out.write(",\"vendible\":");
+				writeString(out, vendible.getIdentifier());
+				out.write(",\"price\":" + machine.getSalePrice(i));
+			}
+			out.write(",\"stock\":" + stock[0] + "}");
+		}
+		out.write("]}");
+	}
+
+	private static void writeString(Writer out, String value) throws IOException {
+		out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			} else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			} else {
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = ("{\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Generador del cuerpo JSON de una respuesta.
+	 */
+	@FunctionalInterface
+	private interface JsonBody {
+		void write(Writer out) throws IOException;
+	}
+
+	/**
+	 * Respuesta guardada en cach con las versiones con las que se gener.
+	 */
+	private static class CachedResponse {
+		final long[] version;
+		final byte[] body;
+
+		CachedResponse(long[] version, byte[] body) {
+			this.version = version;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Flujo de salida que escribe a la vez en la respuesta y en la copia para la cach.
+	 */
+	private static class TeeOutputStream extends OutputStream {
+		private final OutputStream first;
+		private final OutputStream second;
+
+		TeeOutputStream(OutputStream first, OutputStream second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			first.write(b);
+			second.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			first.write(b, off, len);
+			second.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			first.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			first.close();
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package es.uva.inf.poo.practica;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.IntFunction;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Medicin de la memoria que ocupan las entidades del modelo, para dimensionar el heap de la flota.
+ * Cada entidad se mide construyendo muchas instancias representativas, que se mantienen vivas, y
+ * dividiendo entre ellas el crecimiento del heap ocupado tras recolectar la basura, por lo que el tamao
+ * medido es el retenido por cada instancia (incluidos sus objetos internos no compartidos). La memoria
+ * directa de las mquinas con slots fuera del heap se mide aparte.
+ * Los tamaos dependen de la JVM y sus opciones (por ejemplo, punteros comprimidos), as que las bases
+ * guardan tambin la configuracin de la JVM que afecta a la disposicin de los objetos, y la
+ * comparacin falla si no coincide con la de la ejecucin.
+ * <pre>
+ * java es.uva.inf.poo.practica.FootprintReport                    muestra los tamaos
+ * java es.uva.inf.poo.practica.FootprintReport -record base.txt   graba los tamaos como base
+ * java es.uva.inf.poo.practica.FootprintReport base.txt           falla si algn tamao supera su base
+ * </pre>
+ * La base del repositorio es {@code footprint-baseline.properties}, junto a esta clase, grabada con
+ * Java 17 y las opciones de la flota (heap de 1 GB, punteros comprimidos, objetos alineados a 8 bytes,
+ * recolector paralelo).
+ * La comprobacin que hay que pasar antes de integrar cambios en el modelo, con las clases compiladas en
+ * {@code clases}, es:
+ * <pre>
+ * java -Xms1g -Xmx1g -XX:+UseParallelGC -cp clases es.uva.inf.poo.practica.FootprintReport es/uva/inf/poo/practica/footprint-baseline.properties
+ * </pre>
+ * que termina con cdigo 1 si hay alguna regresin y con cdigo 2 si la JVM no tiene la configuracin de
+ * la base. Si un cambio aumenta la memoria a propsito, la base se vuelve a grabar con las mismas
+ * opciones y {@code -record}. La base exige el recolector paralelo porque tras recolectar deja el heap
+ * ocupado exacto; con el recolector serie las instancias de una medicin siguen contando en la siguiente.
+ * @author rauvill, alvdela
+ *
+ */
+public class FootprintReport {
+
+	private static final int INSTANCES = 20000;
+	private static final int MACHINES = 500;
+	private static final int COLUMNS = 10;
+	private static final int LINES = 5;
+	private static final int UNITS = 10;
+	private static final double TOLERANCE = 0.05;				//margen sobre la base antes de considerar que hay una regresin
+	private static final String[] UPCS = {"123456789012", "036000291452", "042100005264", "012000161155", "070847811161"};
+	private static final String JVM_PREFIX = "jvm.";							//claves de la base con la configuracin de la JVM
+	private static final String[] JVM_OPTIONS = {"UseCompressedOops", "UseCompressedClassPointers", "ObjectAlignmentInBytes", "UseParallelGC"};
+
+	/**
+	 * Constructor privado: la clase solo tiene mtodos de clase.
+	 */
+	private FootprintReport() {
+	}
+
+	/**
+	 * Mide la memoria de cada entidad del modelo.
+	 * @return Bytes por instancia de cada entidad, en el orden en que se miden.
+	 */
+	public static LinkedHashMap<String, Long> measure() {
+		LinkedHashMap<String, Long> sizes = new LinkedHashMap<>();
+		sizes.put("Product", heapPerInstance(INSTANCES, i -> product(i)));
+		sizes.put("Pack(2)", heapPerInstance(INSTANCES, i -> pack(i, 2)));
+		sizes.put("Pack(5)", heapPerInstance(INSTANCES, i -> pack(i, 5)));
+		sizes.put("Slot(1)", heapPerInstance(INSTANCES, i -> slot(i, 1)));
+		sizes.put("Slot(10)", heapPerInstance(INSTANCES, i -> slot(i, UNITS)));
+		sizes.put("VendingMachine vaca", heapPerInstance(MACHINES, i -> new VendingMachine("m" + i, COLUMNS, LINES)));
+		sizes.put("VendingMachine vaca fuera del heap", heapPerInstance(MACHINES, i -> new VendingMachine("m" + i, COLUMNS, LINES, true)));
+		sizes.put("VendingMachine vaca fuera del heap (directa)", directPerInstance(MACHINES, i -> new VendingMachine("m" + i, COLUMNS, LINES, true)));
+		long stocked = heapPerInstance(MACHINES, i -> stockedMachine(i, 1, false));
+		long full = heapPerInstance(MACHINES, i -> stockedMachine(i, UNITS, false));
+		sizes.put("VendingMachine llena (1 unidad)", stocked);
+		sizes.put("VendingMachine llena (" + UNITS + " unidades)", full);
+		sizes.put("Unidad adicional en un slot", (full - stocked) / ((long) COLUMNS * LINES * (UNITS - 1)));
+		sizes.put("VendingMachine llena fuera del heap (" + UNITS + " unidades)", heapPerInstance(MACHINES, i -> stockedMachine(i, UNITS, true)));
+		long city = heapPerInstance(MACHINES / 10, i -> stockedCity(i));
+		sizes.put("VendingCity (10 mquinas llenas)", city);
+		sizes.put("Unidad vendible en la flota", city / (10L * COLUMNS * LINES * UNITS));
+		return sizes;
+	}
+
+	/**
+	 * Compara los tamaos medidos con sus bases y devuelve las regresiones: las entidades que ocupan
+	 * ms que su base, con un margen del 5% (y al menos 8 bytes) para el ruido de la medicin.
+	 * Las entidades sin base no se comparan.
+	 * @param sizes Tamaos medidos.
+	 * @param baseline Tamaos de base.
+	 * @return Descripcin de cada regresin, vaca si no hay ninguna.
+	 * @throws IllegalArgumentException Cuando algn mapa es nulo.
+	 */
+	public static ArrayList<String> checkAgainst(Map<String, Long> sizes, Map<String, Long> baseline) {
+		if (sizes == null || baseline == null) {
+			throw new IllegalArgumentException("Los tamaos no pueden ser nulos.");
+		}
+		ArrayList<String> regressions = new ArrayList<>();
+		for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+			Long base = baseline.get(entry.getKey());
+			if (base != null && entry.getValue() > base + Math.max(8, (long) (base * TOLERANCE))) {
+				regressions.add(entry.getKey() + ": " + entry.getValue() + " bytes, base " + base + " bytes");
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Consulta la configuracin de la JVM en ejecucin que afecta al tamao de los objetos.
+	 * @return Valor de cada opcin, con su nombre.
+	 */
+	public static LinkedHashMap<String, String> jvmConfiguration() {
+		LinkedHashMap<String, String> configuration = new LinkedHashMap<>();
+		configuration.put("java.specification.version", System.getProperty("java.specification.version"));
+		HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+		for (String option : JVM_OPTIONS) {
+			configuration.put(option, hotspot == null ? "?" : hotspot.getVMOption(option).getValue());
+		}
+		return configuration;
+	}
+
+	/**
+	 * Muestra los tamaos, los graba como base o los compara con una base grabada. Termina con cdigo de
+	 * salida 1 al encontrar regresiones, y con cdigo 2 si la configuracin de la JVM no es la de la base.
+	 * @param args Nada, "-record fichero" o "fichero".
+	 * @throws IOException Cuando no se puede leer o escribir el fichero de base.
+	 */
+	public static void main(String[] args) throws IOException {
+		LinkedHashMap<String, String> configuration = jvmConfiguration();
+		if (args.length == 1) {
+			Properties baseline = readBaseline(Paths.get(args[0]));
+			for (Map.Entry<String, String> option : configuration.entrySet()) {
+				String expected = baseline.getProperty(JVM_PREFIX + option.getKey());
+				if (expected != null && !expected.equals(option.getValue())) {
+					System.out.println("La base se grab con " + option.getKey() + "=" + expected + " y la JVM tiene " + option.getValue());
+					System.exit(2);
+				}
+			}
+		}
+		LinkedHashMap<String, Long> sizes = measure();
+		for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+			System.out.printf("%-50s %10d bytes%n", entry.getKey(), entry.getValue());
+		}
+		if (args.length == 2 && "-record".equals(args[0])) {
+			Properties baseline = new Properties();
+			for (Map.Entry<String, String> option : configuration.entrySet()) {
+				baseline.setProperty(JVM_PREFIX + option.getKey(), option.getValue());
+			}
+			for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+				baseline.setProperty(entry.getKey(), Long.toString(entry.getValue()));
+			}
+			try (OutputStream out = Files.newOutputStream(Paths.get(args[1]))) {
+				baseline.store(out, "Bases de memoria por entidad, en bytes");
+			}
+		} else if (args.length == 1) {
+			ArrayList<String> regressions = checkAgainst(sizes, sizesOf(readBaseline(Paths.get(args[0]))));
+			for (String regression : regressions) {
+				System.out.println("REGRESIN " + regression);
+			}
+			if (!regressions.isEmpty()) {
+				System.exit(1);
+			}
+		}
+	}
+
+	private static Properties readBaseline(Path file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		}
+		return properties;
+	}
+
+	private static LinkedHashMap<String, Long> sizesOf(Properties properties) {
+		LinkedHashMap<String, Long> baseline = new LinkedHashMap<>();
+		for (String name : properties.stringPropertyNames()) {
+			if (!name.startsWith(JVM_PREFIX)) {
+				baseline.put(name, Long.parseLong(properties.getProperty(name).trim()));
+			}
+		}
+		return baseline;
+	}
+
+	/**
+	 * Mtodo privado que mide el heap retenido por instancia: crea las instancias, las mantiene vivas en
+	 * un vector y divide el crecimiento del heap ocupado, descontando el propio vector.
+	 */
+	private static long heapPerInstance(int count, IntFunction<Object> factory) {
+		Object[] keep = new Object[count];
+		long before = usedHeap();
+		for (int i = 0; i < count; i++) {
+			keep[i] = factory.apply(i);
+		}
+		long after = usedHeap();
+		long size = Math.round((double) (after - before) / count);
+		if (keep[count - 1] == null) {							//mantiene las instancias vivas hasta despus de medir
+			throw new IllegalStateException();
+		}
+		return size;
+	}
+
+	/**
+	 * Mtodo privado que mide la memoria directa por instancia.
+	 */
+	private static long directPerInstance(int count, IntFunction<Object> factory) {
+		Object[] keep = new Object[count];
+		long before = usedDirect();
+		for (int i = 0; i < count; i++) {
+			keep[i] = factory.apply(i);
+		}
+		long size = (usedDirect() - before) / count;
+		if (keep[count - 1] == null) {
+			throw new IllegalStateException();
+		}
+		return size;
+	}
+
+	/**
+	 * Mtodo privado que recolecta la basura hasta que el heap ocupado se estabiliza y lo devuelve.
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		for (int i = 0; i < 20; i++) {
+			System.gc();
+			long now = runtime.totalMemory() - runtime.freeMemory();
+			if (Math.abs(now - used) < 1024) {
+				return now;
+			}
+			used = now;
+		}
+		return used;
+	}
+
+	private static long usedDirect() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("direct".equals(pool.getName())) {
+				return pool.getMemoryUsed();
+			}
+		}
+		return 0;
+	}
+
+	private static Product product(int i) {
+		Calendar expiry = new GregorianCalendar();
+		expiry.add(Calendar.YEAR, 1);
+		return new Product(1 + i % 5, expiry, "producto" + i, UPCS[i % UPCS.length]);
+	}
+
+	private static Pack pack(int i, int size) {
+		Product[] products = new Product[size];
+		for (int k = 0; k < size; k++) {
+			Calendar expiry = new GregorianCalendar();
+			expiry.add(Calendar.YEAR, 1);
+			products[k] = new Product(1 + k, expiry, "producto" + k, UPCS[k]);
+		}
+		return new Pack("pack" + i, "P" + i, products);
+	}
+
+	private static Slot slot(int i, int units) {
+		Slot slot = new Slot("A" + i);
+		Product product = product(i);
+		for (int u = 0; u < units; u++) {
+			slot.addVendible(product);
+		}
+		return slot;
+	}
+
+	/**
+	 * Mtodo privado que crea una mquina con todos sus slots llenos, alternando productos y packs.
+	 */
+	private static VendingMachine stockedMachine(int i, int units, boolean offHeap) {
+		VendingMachine machine = new VendingMachine("m" + i, COLUMNS, LINES, offHeap);
+		for (int s = 0; s < machine.getNumSlots(); s++) {
+			Vendible vendible = s % 5 == 4 ? pack(s, 2) : product(s);
+			String idSlot = machine.getSlotId(s);
+			for (int u = 0; u < units; u++) {
+				machine.restockSlot(idSlot, vendible);
+			}
+		}
+		return machine;
+	}
+
+	private static VendingCity stockedCity(int i) {
+		VendingCity city = new VendingCity("c" + i, "provincia" + i);
+		for (int m = 0; m < 10; m++) {
+			city.addVendingMachine(stockedMachine(m, UNITS, false));
+		}
+		return city;
+	}
+}
@@ -0,0 +1,54 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Almacn de slots en memoria del heap, con el estado en vectores planos.
+ * @author rauvill, alvdela
+ *
+ */
+class HeapSlotStore implements SlotStore {
+
+	private final Vendible[] vendibles;
+	private final int[] stock;
+	private final double[] prices;
+
+	/**
+	 * Inicializa un almacn con todos los slots vacos.
+	 * @param size Nmero de slots.
+	 */
+	HeapSlotStore(int size) {
+		vendibles = new Vendible[size];
+		stock = new int[size];
+		prices = new double[size];
+	}
+
+	@Override
+	public int size() {
+		return stock.length;
+	}
+
+	@Override
+	public Vendible getVendible(int index) {
+		return vendibles[index];
+	}
+
+	@Override
+	public void setVendible(int index, Vendible vendible) {
+		vendibles[index] = vendible;
+		prices[index] = vendible == null ? 0 : vendible.getPrice();
+	}
+
+	@Override
+	public int getStock(int index) {
+		return stock[index];
+	}
+
+	@Override
+	public void setStock(int index, int stock) {
+		this.stock[index] = stock;
+	}
+
+	@Override
+	public double getPrice(int index) {
+		return prices[index];
+	}
+}
@@ -0,0 +1,159 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Cambio del inventario publicado en el feed de cambios: existencias de un slot, precio de un producto,
+ * estado operativo de una mquina, o altas y bajas de mquinas y provincias.
+ * Los objetos estn preasignados en el buffer circular del feed y en cada consumidor, y se reutilizan,
+ * por lo que los consumidores no deben guardarlos: solo son vlidos mientras se est procesando el cambio.
+ * @author rauvill, alvdela
+ *
+ */
+public final class InventoryChange {
+
+	/**
+	 * Tipos de cambio del inventario.
+	 */
+	public enum Type {
+		/** Han cambiado las existencias de un slot. */
+		STOCK,
+		/** Ha cambiado el precio de un producto en una mquina. */
+		PRICE,
+		/** Ha cambiado el estado operativo de una mquina. */
+		OPERATIVE,
+		/** Se ha aadido una mquina a una provincia. */
+		MACHINE_ADDED,
+		/** Se ha eliminado una mquina de una provincia. */
+		MACHINE_REMOVED,
+		/** Se ha aadido una provincia al sistema. */
+		CITY_ADDED,
+		/** Se ha eliminado una provincia del sistema. */
+		CITY_REMOVED
+	}
+
+	private long sequence;
+	private long timestamp;
+	private Type type;
+	private String idCity;
+	private String idMachine;
+	private String idSlot;
+	private String identifier;
+	private int stock;
+	private double price;
+	private boolean operative;
+
+	InventoryChange() {
+	}
+
+	/**
+	 * Mtodo visible en el paquete con el que el feed rellena el cambio al publicarlo.
+	 */
+	void set(long sequence, Type type, String idCity, String idMachine, String idSlot, String identifier, int stock, double price, boolean operative) {
+		this.sequence = sequence;
+		this.timestamp = System.currentTimeMillis();
+		this.type = type;
+		this.idCity = idCity;
+		this.idMachine = idMachine;
+		this.idSlot = idSlot;
+		this.identifier = identifier;
+		this.stock = stock;
+		this.price = price;
+		this.operative = operative;
+	}
+
+	/**
+	 * Mtodo visible en el paquete con el que un consumidor copia un cambio del buffer.
+	 */
+	void copy(InventoryChange change) {
+		sequence = change.sequence;
+		timestamp = change.timestamp;
+		type = change.type;
+		idCity = change.idCity;
+		idMachine = change.idMachine;
+		idSlot = change.idSlot;
+		identifier = change.identifier;
+		stock = change.stock;
+		price = change.price;
+		operative = change.operative;
+	}
+
+	/**
+	 * Consulta el nmero de secuencia del cambio en el feed.
+	 * @return Nmero de secuencia, creciente desde 0.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Consulta el instante en el que se public el cambio.
+	 * @return Milisegundos desde 1970-01-01.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Consulta el tipo de cambio.
+	 * @return Tipo de cambio.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Consulta la provincia afectada.
+	 * @return Identificador de la provincia, o null si la mquina no pertenece a ninguna.
+	 */
+	public String getIdCity() {
+		return idCity;
+	}
+
+	/**
+	 * Consulta la mquina afectada.
+	 * @return Identificador de la mquina, o null en las altas y bajas de provincias.
+	 */
+	public String getIdMachine() {
+		return idMachine;
+	}
+
+	/**
+	 * Consulta el slot afectado en los cambios de existencias.
+	 * @return Identificador del slot, o null en el resto de cambios.
+	 */
+	public String getIdSlot() {
+		return idSlot;
+	}
+
+	/**
+	 * Consulta el vendible afectado: el del slot en los cambios de existencias y el UPC del producto
+	 * en los cambios de precio.
+	 * @return Identificador del vendible, o null en el resto de cambios.
+	 */
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * Consulta las existencias del slot tras un cambio de existencias.
+	 * @return Unidades del slot.
+	 */
+	public int getStock() {
+		return stock;
+	}
+
+	/**
+	 * Consulta el nuevo precio en un cambio de precio.
+	 * @return Nuevo precio del producto.
+	 */
+	public double getPrice() {
+		return price;
+	}
+
+	/**
+	 * Consulta el nuevo estado en un cambio de estado operativo.
+	 * @return True si la mquina esta operativa.
+	 */
+	public boolean isOperative() {
+		return operative;
+	}
+}
@@ -0,0 +1,90 @@
+package es.uva.inf.poo.practica;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Consumidor del feed de cambios del inventario. Lleva su propia secuencia y lee los cambios
+ * publicados por lotes. No es seguro usar el mismo consumidor desde varios hilos a la vez.
+ * Cada cambio se copia del buffer y se comprueba que no se haya sobrescrito mientras se copiaba antes
+ * de entregarlo, as que el procesador nunca ve un cambio a medio escribir.
+ * @author rauvill, alvdela
+ *
+ */
+public class InventoryChangeConsumer {
+
+	private final InventoryChangeFeed feed;
+	private long sequence;										//ltima secuencia procesada
+	private long lost;
+	private final InventoryChange current;						//copia del cambio que se entrega, se reutiliza
+
+	InventoryChangeConsumer(InventoryChangeFeed feed, long sequence) {
+		this.feed = feed;
+		this.sequence = sequence;
+		current = new InventoryChange();
+	}
+
+	/**
+	 * Procesa un lote con los cambios publicados que todava no ha ledo este consumidor.
+	 * Si el consumidor se ha quedado ms atrs que la capacidad del feed, salta al cambio ms
+	 * antiguo que sigue en el buffer y suma los cambios que se ha saltado a {@link #getLost()}.
+	 * @param handler Procesador de los cambios.
+	 * @param maxBatch Nmero mximo de cambios del lote.
+	 * @return Nmero de cambios procesados.
+	 * @throws IllegalArgumentException Cuando el procesador es nulo.
+	 * @throws IllegalArgumentException Cuando el tamao del lote no es positivo.
+	 */
+	public int poll(InventoryChangeHandler handler, int maxBatch) {
+		if (handler == null) {
+			throw new IllegalArgumentException("El procesador no puede ser nulo.");
+		}
+		if (maxBatch <= 0) {
+			throw new IllegalArgumentException("El tamao del lote debe ser positivo.");
+		}
+		skipOverrun();
+		long first = sequence + 1;
+		long last = sequence;
+		while (last - sequence < maxBatch && feed.isPublished(last + 1)) {
+			last++;
+		}
+		int processed = 0;
+		for (long next = first; next <= last; next++) {
+			current.copy(feed.entry(next));
+			VarHandle.loadLoadFence();							//la copia se lee antes de volver a comprobar la secuencia
+			if (!feed.isPublished(next)) {						//un publicador ha dado la vuelta y lo ha sobrescrito mientras se copiaba
+				skipOverrun();
+				return processed;
+			}
+			handler.onChange(current, next == last);
+			sequence = next;
+			processed++;
+		}
+		return processed;
+	}
+
+	/**
+	 * Consulta cuntos cambios publicados ha perdido el consumidor por quedarse atrs.
+	 * @return Nmero de cambios perdidos.
+	 */
+	public long getLost() {
+		return lost;
+	}
+
+	/**
+	 * Consulta cuntos cambios publicados quedan por leer.
+	 * @return Nmero de cambios pendientes.
+	 */
+	public long getBacklog() {
+		return feed.getCursor() - sequence;
+	}
+
+	/**
+	 * Mtodo privado que salta los cambios que el buffer ya ha sobrescrito.
+	 */
+	private void skipOverrun() {
+		long oldest = feed.getCursor() - feed.getCapacity() + 1;
+		if (sequence + 1 < oldest) {
+			lost += oldest - sequence - 1;
+			sequence = oldest - 1;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package es.uva.inf.poo.practica;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Feed de captura de cambios del inventario (existencias, precios, estado operativo, y altas y bajas
+ * de mquinas y provincias) para sistemas externos como facturacin, almacn o BI.
+ * Los cambios se publican en un buffer circular preasignado: publicar no crea objetos ni espera a los
+ * consumidores. Cada consumidor lleva su propio nmero de secuencia y lee por lotes; si se queda tan
+ * atrs que el buffer da la vuelta, los cambios que se ha perdido se le notifican con
+ * {@link InventoryChangeConsumer#getLost()} en vez de frenar las ventas.
+ * @author rauvill, alvdela
+ *
+ */
+public class InventoryChangeFeed {
+
+	private final InventoryChange[] entries;
+	private final AtomicLongArray published;			//secuencia publicada en cada posicin, -1 mientras se escribe
+	private final AtomicLong cursor;					//ltima secuencia reservada por un publicador
+	private final int mask;
+
+	/**
+	 * Inicializa un feed vaco.
+	 * @param capacity Nmero de cambios que caben en el buffer, que se redondea a la siguiente potencia de 2.
+	 * @throws IllegalArgumentException Cuando la capacidad no es positiva o es demasiado grande.
+	 */
+	public InventoryChangeFeed(int capacity) {
+		if (capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("La capacidad del feed no es vlida.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		entries = new InventoryChange[size];
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			entries[i] = new InventoryChange();
+			published.set(i, -1);
+		}
+		cursor = new AtomicLong(-1);
+		mask = size - 1;
+	}
+
+	/**
+	 * Conecta el feed al sistema, a todas sus provincias y a todas sus mquinas, incluidas las que
+	 * se aadan despus.
+	 * @param system Sistema cuyos cambios se van a publicar.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 */
+	public void attach(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		system.setChangeFeed(this);
+	}
+
+	/**
+	 * Conecta el feed a una provincia y a todas sus mquinas, incluidas las que se aadan despus.
+	 * @param city Provincia cuyos cambios se van a publicar.
+	 * @throws IllegalArgumentException Cuando la provincia es nula.
+	 */
+	public void attach(VendingCity city) {
+		if (city == null) {
+			throw new IllegalArgumentException("La provincia no puede ser nula.");
+		}
+		city.setChangeFeed(this);
+	}
+
+	/**
+	 * Crea un consumidor que leer los cambios publicados a partir de este momento.
+	 * @return El nuevo consumidor.
+	 */
+	public InventoryChangeConsumer newConsumer() {
+		return new InventoryChangeConsumer(this, cursor.get());
+	}
+
+	/**
+	 * Consulta la capacidad del buffer circular.
+	 * @return Nmero de cambios que caben en el buffer.
+	 */
+	public int getCapacity() {
+		return entries.length;
+	}
+
+	/**
+	 * Mtodo visible en el paquete que publica un cambio. Reserva la siguiente secuencia, rellena el
+	 * objeto preasignado de su posicin y lo marca como publicado.
+	 */
+	void publish(InventoryChange.Type type, String idCity, String idMachine, String idSlot, String identifier, int stock, double price, boolean operative) {
+		long sequence = cursor.incrementAndGet();
+		int index = (int) sequence & mask;
+		published.set(index, -1);										//los consumidores que lean esta posicin detectan que se est sobrescribiendo
+		VarHandle.storeStoreFence();									//la marca se ve antes que cualquier escritura del cambio
+		entries[index].set(sequence, type, idCity, idMachine, idSlot, identifier, stock, price, operative);
+		published.set(index, sequence);
+	}
+
+	long getCursor() {
+		return cursor.get();
+	}
+
+	boolean isPublished(long sequence) {
+		return published.get((int) sequence & mask) == sequence;
+	}
+
+	InventoryChange entry(long sequence) {
+		return entries[(int) sequence & mask];
+	}
+}
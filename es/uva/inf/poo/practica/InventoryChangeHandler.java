@@ -0,0 +1,18 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Procesa los cambios que un consumidor lee del feed de cambios del inventario.
+ * @author rauvill, alvdela
+ *
+ */
+@FunctionalInterface
+public interface InventoryChangeHandler {
+
+	/**
+	 * Procesa un cambio del inventario. El cambio solo es vlido durante la llamada.
+	 * @param change Cambio a procesar.
+	 * @param endOfBatch True si es el ltimo cambio del lote, para que el consumidor pueda
+	 * acumular trabajo (por ejemplo escrituras) y hacerlo una vez por lote.
+	 */
+	void onChange(InventoryChange change, boolean endOfBatch);
+}
@@ -0,0 +1,570 @@
+package es.uva.inf.poo.practica;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exportador del inventario de toda la flota, en CSV o JSON, para contabilidad.
+ * Recorre las provincias, sus mquinas y sus slots sin copiar ninguna lista, y escribe cada slot
+ * directamente en un buffer de tamao fijo que se vuelca en el canal cuando se llena, codificando
+ * los textos, importes y fechas a mano. La memoria que usa es la misma sea cual sea el tamao de la
+ * flota.
+ * Cada fila es un slot: provincia, nombre de la provincia, mquina, si esta operativa, slot, vendible,
+ * nombre, tipo (producto o pack), UPC de los productos si es un pack, fecha de caducidad, existencias
+ * y precio de venta. Los slots vacos salen sin vendible.
+ * El inventario tambin puede exportarse por provincias, cada una a su fichero, en paralelo.
+ * Las mquinas siguen funcionando mientras se exportan, as que cada fila refleja el slot en el
+ * momento en que se escribe.
+ * @author rauvill, alvdela
+ *
+ */
+public class InventoryExporter {
+
+	/** Tamao del buffer de cada exportacin por defecto. */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private static final long AMOUNT_SCALE = 10000;				//los importes se escriben con 4 decimales, como en SalesArchive
+	private static final String[] COLUMNS = {"city", "province", "machine", "operative", "slot", "vendible",
+			"name", "type", "products", "expiry", "stock", "price"};
+
+	/**
+	 * Formato del fichero exportado.
+	 */
+	public enum Format {
+		/** Una lnea de cabecera y una lnea por slot, separadas por comas. */
+		CSV(".csv"),
+		/** Un vector JSON con un objeto por slot. */
+		JSON(".json");
+
+		private final String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+
+		/**
+		 * Consulta la extensin de los ficheros en este formato.
+		 * @return La extensin, con el punto.
+		 */
+		public String getExtension() {
+			return extension;
+		}
+	}
+
+	private final VendingSystem system;
+	private final Format format;
+	private final int bufferSize;
+
+	/**
+	 * Inicializa un exportador del sistema recibido con el tamao de buffer por defecto.
+	 * @param system Sistema a exportar.
+	 * @param format Formato de la exportacin.
+	 * @throws IllegalArgumentException Cuando el sistema o el formato son nulos.
+	 */
+	public InventoryExporter(VendingSystem system, Format format) {
+		this(system, format, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Inicializa un exportador del sistema recibido.
+	 * @param system Sistema a exportar.
+	 * @param format Formato de la exportacin.
+	 * @param bufferSize Bytes del buffer de cada exportacin; debe caber al menos una fila.
+	 * @throws IllegalArgumentException Cuando el sistema o el formato son nulos.
+	 * @throws IllegalArgumentException Cuando el buffer tiene menos de 1 KiB.
+	 */
+	public InventoryExporter(VendingSystem system, Format format, int bufferSize) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		if (format == null) {
+			throw new IllegalArgumentException("El formato no puede ser nulo.");
+		}
+		if (bufferSize < 1024) {
+			throw new IllegalArgumentException("El buffer debe tener al menos 1 KiB.");
+		}
+		this.system = system;
+		this.format = format;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Exporta el inventario de todas las provincias al canal recibido, que no se cierra.
+	 * @param channel Canal en el que se escribe.
+	 * @return Nmero de filas (slots) exportadas.
+	 * @throws IllegalArgumentException Cuando el canal es nulo.
+	 * @throws IOException Cuando falla la escritura en el canal.
+	 */
+	public long export(WritableByteChannel channel) throws IOException {
+		if (channel == null) {
+			throw new IllegalArgumentException("El canal no puede ser nulo.");
+		}
+		Output out = new Output(channel, bufferSize, format);
+		out.begin();
+		for (VendingCity city : system.getCitiesView()) {
+			writeCity(out, city);
+		}
+		out.end();
+		return out.rows;
+	}
+
+	/**
+	 * Exporta el inventario de una provincia al canal recibido, que no se cierra.
+	 * @param idCity Identificador de la provincia.
+	 * @param channel Canal en el que se escribe.
+	 * @return Nmero de filas (slots) exportadas.
+	 * @throws IllegalArgumentException Cuando el canal es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador de la provincia es nulo o esta vaco.
+	 * @throws IllegalArgumentException Cuando la provincia no se encuentra en el sistema.
+	 * @throws IOException Cuando falla la escritura en el canal.
+	 */
+	public long exportCity(String idCity, WritableByteChannel channel) throws IOException {
+		if (channel == null) {
+			throw new IllegalArgumentException("El canal no puede ser nulo.");
+		}
+		return exportCity(system.getCity(idCity), channel);
+	}
+
+	/**
+	 * Exporta el inventario de cada provincia a su propio fichero del directorio recibido, que se llama
+	 * como el identificador de la provincia con la extensin del formato. Las provincias se reparten
+	 * entre varios hilos, cada uno con su buffer. Cada fichero se escribe primero con otro nombre y se
+	 * renombra al terminar, para que nunca quede uno a medias con el nombre definitivo.
+	 * @param directory Directorio en el que se escriben los ficheros; se crea si no existe.
+	 * @param threads Nmero de hilos.
+	 * @return Nmero de filas exportadas de cada provincia, por identificador de la provincia.
+	 * @throws IllegalArgumentException Cuando el directorio es nulo.
+	 * @throws IllegalArgumentException Cuando el nmero de hilos no es positivo.
+	 * @throws IllegalArgumentException Cuando el identificador de alguna provincia no sirve como nombre de fichero.
+	 * @throws IOException Cuando falla la escritura de algn fichero.
+	 */
+	public TreeMap<String, Long> exportByCity(Path directory, int threads) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("El directorio no puede ser nulo.");
+		}
+		if (threads <= 0) {
+			throw new IllegalArgumentException("El nmero de hilos debe ser positivo.");
+		}
+		List<VendingCity> cities = new ArrayList<>(system.getCitiesView());		//una instantnea, para asociar cada resultado a su provincia
+		for (VendingCity city : cities) {
+			fileOf(directory, city.getIdVC());							//comprueba los nombres antes de escribir nada
+		}
+		Files.createDirectories(directory);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, cities.size())), r -> {
+			Thread thread = new Thread(r, "vending-export");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			ArrayList<Future<Long>> partials = new ArrayList<>(cities.size());
+			for (VendingCity city : cities) {
+				partials.add(executor.submit(() -> exportToFile(city, fileOf(directory, city.getIdVC()))));
+			}
+			TreeMap<String, Long> rows = new TreeMap<>();
+			for (int i = 0; i < partials.size(); i++) {
+				rows.put(cities.get(i).getIdVC(), join(partials.get(i)));
+			}
+			return rows;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Mtodo privado que exporta una provincia a su fichero, pasando por un fichero temporal.
+	 */
+	private long exportToFile(VendingCity city, Path file) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		long rows;
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			rows = exportCity(city, channel);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return rows;
+	}
+
+	private long exportCity(VendingCity city, WritableByteChannel channel) throws IOException {
+		Output out = new Output(channel, bufferSize, format);
+		out.begin();
+		writeCity(out, city);
+		out.end();
+		return out.rows;
+	}
+
+	private void writeCity(Output out, VendingCity city) throws IOException {
+		String idCity = city.getIdVC();
+		String province = city.getProvince();
+		for (VendingMachine machine : city.getMachinesView()) {
+			String idMachine = machine.getIdMachine();
+			boolean operative = machine.isOperative();
+			int numLin = machine.getNumLin();
+			int[] read = new int[1];
+			for (int i = 0; i < machine.getNumSlots(); i++) {
+				Vendible vendible = machine.readSlot(i, read);			//vendible y existencias a la vez, coherentes entre s
+				int stock = read[0];
+				out.beginRow();
+				out.text(0, idCity);
+				out.text(1, province);
+				out.text(2, idMachine);
+				out.bool(3, operative);
+				out.slot(4, i / numLin, i % numLin);
+				if (vendible == null) {
+					out.empty(5);
+					out.empty(6);
+					out.empty(7);
+					out.empty(8);
+					out.empty(9);
+					out.number(10, stock);
+					out.empty(11);
+				} else {
+					out.text(5, vendible.getIdentifier());
+					out.text(6, vendible.getName());
+					if (vendible instanceof Pack) {
+						out.text(7, "pack");
+						out.upcs(8, (Pack) vendible);
+					} else {
+						out.text(7, "product");
+						out.empty(8);
+					}
+					out.date(9, vendible.getExpiryDay());
+					out.number(10, stock);
+					out.amount(11, machine.getSalePrice(i));
+				}
+				out.endRow();
+			}
+		}
+	}
+
+	/**
+	 * Mtodo privado que obtiene el fichero de una provincia dentro del directorio.
+	 * @throws IllegalArgumentException Cuando el identificador no sirve como nombre de fichero.
+	 */
+	private Path fileOf(Path directory, String idCity) {
+		Path file = directory.resolve(idCity + format.getExtension());
+		if (idCity.isEmpty() || !directory.equals(file.getParent()) || idCity.startsWith(".")) {
+			throw new IllegalArgumentException("El identificador de la provincia no sirve como nombre de fichero: " + idCity);
+		}
+		return file;
+	}
+
+	/**
+	 * Mtodo privado que espera al resultado de la exportacin de una provincia y relanza sus errores.
+	 */
+	private static long join(Future<Long> partial) throws IOException {
+		try {
+			return partial.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Se ha interrumpido la exportacin.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Salida de una exportacin: un buffer de tamao fijo que se vuelca en el canal cuando no cabe
+	 * el siguiente campo, y que sabe escribir cada campo en el formato elegido sin crear objetos.
+	 */
+	private static final class Output {
+		private static final int MAX_CHAR_BYTES = 6;			//lo ms largo es un carcter de control escapado en JSON
+
+		final WritableByteChannel channel;
+		final ByteBuffer buffer;
+		final boolean json;
+		final char[] letters = new char[8];						//letras de la columna de un slot, al revs
+		long rows;
+
+		Output(WritableByteChannel channel, int size, Format format) {
+			this.channel = channel;
+			buffer = ByteBuffer.allocate(size);
+			json = format == Format.JSON;
+		}
+
+		void begin() throws IOException {
+			if (json) {
+				put('[');
+				return;
+			}
+			for (int i = 0; i < COLUMNS.length; i++) {
+				if (i > 0) {
+					put(',');
+				}
+				ascii(COLUMNS[i]);
+			}
+			put('\n');
+		}
+
+		void end() throws IOException {
+			if (json) {
+				ascii(rows == 0 ? "]\n" : "\n]\n");
+			}
+			drain();
+		}
+
+		void beginRow() throws IOException {
+			if (json) {
+				ascii(rows == 0 ? "\n{" : ",\n{");
+			}
+		}
+
+		void endRow() throws IOException {
+			put(json ? '}' : '\n');
+			rows++;
+		}
+
+		/**
+		 * Escribe el separador y, en JSON, el nombre del campo.
+		 */
+		void field(int column) throws IOException {
+			if (json) {
+				if (column > 0) {
+					put(',');
+				}
+				put('"');
+				ascii(COLUMNS[column]);
+				ascii("\":");
+			} else if (column > 0) {
+				put(',');
+			}
+		}
+
+		void empty(int column) throws IOException {
+			field(column);
+			if (json) {
+				ascii("null");
+			}
+		}
+
+		void bool(int column, boolean value) throws IOException {
+			field(column);
+			ascii(value ? "true" : "false");
+		}
+
+		void number(int column, long value) throws IOException {
+			field(column);
+			digits(value);
+		}
+
+		void text(int column, String value) throws IOException {
+			field(column);
+			if (json) {
+				put('"');
+				chars(value);
+				put('"');
+			} else if (needsQuotes(value)) {
+				put('"');
+				chars(value);
+				put('"');
+			} else {
+				chars(value);
+			}
+		}
+
+		/**
+		 * Escribe el identificador de un slot, igual que VendingMachine.getSlotId pero sin crear la cadena:
+		 * las letras de la columna seguidas del nmero de lnea.
+		 */
+		void slot(int column, int col, int line) throws IOException {
+			field(column);
+			if (json) {
+				put('"');
+			}
+			int length = 0;
+			for (int n = col + 1; n > 0; n /= 26) {
+				n--;
+				letters[length++] = (char) ('A' + n % 26);
+			}
+			while (length > 0) {
+				put(letters[--length]);
+			}
+			digits(line);
+			if (json) {
+				put('"');
+			}
+		}
+
+		/**
+		 * Escribe los UPC de los productos de un pack: un vector en JSON, o separados por espacios en CSV.
+		 */
+		void upcs(int column, Pack pack) throws IOException {
+			field(column);
+			put(json ? '[' : '"');
+			for (int i = 0; i < pack.getPackSize(); i++) {
+				if (i > 0) {
+					put(json ? ',' : ' ');
+				}
+				if (json) {
+					put('"');
+				}
+				ascii(pack.getProduct(i).getIdentifier());			//los UPC son 12 dgitos
+				if (json) {
+					put('"');
+				}
+			}
+			put(json ? ']' : '"');
+		}
+
+		/**
+		 * Escribe un importe con 4 decimales como mucho, sin ceros sobrantes.
+		 */
+		void amount(int column, double value) throws IOException {
+			field(column);
+			long scaled = Math.round(value * AMOUNT_SCALE);
+			if (scaled < 0) {
+				put('-');
+				scaled = -scaled;
+			}
+			digits(scaled / AMOUNT_SCALE);
+			long fraction = scaled % AMOUNT_SCALE;
+			if (fraction != 0) {
+				put('.');
+				for (long unit = AMOUNT_SCALE / 10; unit > 0 && fraction != 0; unit /= 10) {
+					put((char) ('0' + fraction / unit));
+					fraction %= unit;
+				}
+			}
+		}
+
+		/**
+		 * Escribe una fecha (das desde 1970-01-01) como aaaa-mm-dd, o un campo vaco si no tiene.
+		 */
+		void date(int column, int epochDay) throws IOException {
+			if (epochDay == Integer.MAX_VALUE) {
+				empty(column);
+				return;
+			}
+			field(column);
+			LocalDate date = LocalDate.ofEpochDay(epochDay);
+			if (json) {
+				put('"');
+			}
+			digits(date.getYear());
+			put('-');
+			twoDigits(date.getMonthValue());
+			put('-');
+			twoDigits(date.getDayOfMonth());
+			if (json) {
+				put('"');
+			}
+		}
+
+		private void twoDigits(long value) throws IOException {
+			put((char) ('0' + value / 10));
+			put((char) ('0' + value % 10));
+		}
+
+		private void digits(long value) throws IOException {
+			if (value < 0) {
+				put('-');
+				value = -value;
+			}
+			long unit = 1;
+			while (value / unit >= 10) {
+				unit *= 10;
+			}
+			for (; unit > 0; unit /= 10) {
+				put((char) ('0' + value / unit % 10));
+			}
+		}
+
+		private void ascii(String value) throws IOException {
+			for (int i = 0; i < value.length(); i++) {
+				put(value.charAt(i));
+			}
+		}
+
+		/**
+		 * Escribe un texto en UTF-8, escapndolo segn el formato: en JSON las comillas, las barras y los
+		 * caracteres de control, y en CSV las comillas, duplicndolas.
+		 */
+		private void chars(String value) throws IOException {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (buffer.remaining() < MAX_CHAR_BYTES) {
+					drain();
+				}
+				if (c == '"') {
+					buffer.put(json ? (byte) '\\' : (byte) '"');
+					buffer.put((byte) '"');
+				} else if (json && c == '\\') {
+					buffer.put((byte) '\\');
+					buffer.put((byte) '\\');
+				} else if (json && c < 0x20) {
+					buffer.put((byte) '\\');
+					buffer.put((byte) 'u');
+					buffer.put((byte) '0');
+					buffer.put((byte) '0');
+					buffer.put((byte) Character.forDigit(c >> 4, 16));
+					buffer.put((byte) Character.forDigit(c & 0xf, 16));
+				} else if (c < 0x80) {
+					buffer.put((byte) c);
+				} else if (c < 0x800) {
+					buffer.put((byte) (0xc0 | c >> 6));
+					buffer.put((byte) (0x80 | c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int code = Character.toCodePoint(c, value.charAt(++i));
+					buffer.put((byte) (0xf0 | code >> 18));
+					buffer.put((byte) (0x80 | code >> 12 & 0x3f));
+					buffer.put((byte) (0x80 | code >> 6 & 0x3f));
+					buffer.put((byte) (0x80 | code & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					buffer.put((byte) '?');								//sustituto suelto, como hace String.getBytes
+				} else {
+					buffer.put((byte) (0xe0 | c >> 12));
+					buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+					buffer.put((byte) (0x80 | c & 0x3f));
+				}
+			}
+		}
+
+		private static boolean needsQuotes(String value) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void put(char c) throws IOException {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.put((byte) c);
+		}
+
+		/**
+		 * Vuelca en el canal todo lo que hay en el buffer.
+		 */
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
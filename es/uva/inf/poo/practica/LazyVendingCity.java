@@ -0,0 +1,371 @@
+package es.uva.inf.poo.practica;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Modo de gestin de las mquinas de una provincia(ciudad) en el que la provincia solo guarda en
+ * memoria un resumen ligero de cada mquina ({@link MachineStub}). Los slots y vendibles de una mquina
+ * se cargan desde un {@link MachineStore} la primera vez que se pide la mquina, y solo se mantienen
+ * cargadas las mquinas usadas ms recientemente: al superar el lmite, la mquina usada hace ms tiempo
+ * se descarga, guardndola antes si ha cambiado desde que se carg. As la memoria ocupada depende de las
+ * mquinas que se estn usando y no del tamao de la flota.
+ * Al descargar una mquina se conservan sus oyentes de ventas y existencias y su control de admisin,
+ * que se vuelven a conectar al cargarla. Nunca se descarga una mquina con estado que no se guarda en el
+ * almacn: compras o transacciones en curso, slots bloqueados, unidades reservadas, o conexin a un feed
+ * de cambios, un grabador de la traza, un motor de precios o un registro de packs; mientras lo tenga sigue cargada aunque se
+ * supere el lmite.
+ * Las mquinas solo se entregan fijadas con {@link #pinVendingMachine(String)}, que impide descargarlas
+ * hasta soltarlas con {@link #unpinVendingMachine(String)}: una vez descargada una mquina, los cambios
+ * hechos sobre una referencia antigua se perderan, as que no se debe usar la referencia despus de soltarla.
+ * @author rauvill, alvdela
+ *
+ */
+public class LazyVendingCity implements AutoCloseable {
+
+	private final String idProvince;
+	private final String province;
+	private final MachineStore store;
+	private final int maxResident;
+	private final LinkedHashMap<String, Entry> entries;		//todas las mquinas, en orden de alta
+	private final LinkedHashMap<String, Entry> resident;		//mquinas cargadas, de la usada hace ms tiempo a la ms reciente
+	private long loads;
+	private long evictions;
+	private long writeBacks;
+
+	/**
+	 * Inicializa una provincia en modo de carga bajo demanda con las mquinas que ya estuvieran en el
+	 * almacn, de las que solo lee el resumen.
+	 * @param idProvince Identificador de la provincia.
+	 * @param province Nombre de la provincia.
+	 * @param store Almacn en el que se guardan las mquinas.
+	 * @param maxResident Nmero mximo de mquinas cargadas a la vez.
+	 * @throws IllegalArgumentException Si el id o el nombre de la provincia son nulos o estn vacos.
+	 * @throws IllegalArgumentException Si el almacn es nulo.
+	 * @throws IllegalArgumentException Si el nmero mximo de mquinas cargadas no es positivo.
+	 * @throws IOException Si no se pueden leer las mquinas del almacn.
+	 */
+	public LazyVendingCity(String idProvince, String province, MachineStore store, int maxResident) throws IOException {
+		if (idProvince == null || idProvince.isEmpty()) {
+			throw new IllegalArgumentException("El id de la provincia no puede ser nulo ni estar vaco");
+		}
+		if (province == null || province.isEmpty()) {
+			throw new IllegalArgumentException("El nombre de la provincia no puede ser nulo ni estar vaco");
+		}
+		if (store == null) {
+			throw new IllegalArgumentException("El almacn no puede ser nulo.");
+		}
+		if (maxResident <= 0) {
+			throw new IllegalArgumentException("El nmero de mquinas cargadas debe ser positivo.");
+		}
+		this.idProvince = idProvince;
+		this.province = province;
+		this.store = store;
+		this.maxResident = maxResident;
+		entries = new LinkedHashMap<>();
+		resident = new LinkedHashMap<>(16, 0.75f, true);
+		for (MachineStub stub : store.loadStubs()) {
+			entries.put(stub.getIdMachine(), new Entry(stub));
+		}
+	}
+
+	/**
+	 * Aade una nueva mquina a la provincia, guardndola en el almacn. La mquina queda cargada.
+	 * @param newMachine Mquina de vending a aadir.
+	 * @throws IllegalArgumentException Si la mquina es null.
+	 * @throws IllegalArgumentException Si una mquina tiene el mismo id que una mquina de la provincia.
+	 * @throws UncheckedIOException Si no se puede guardar la mquina, o la mquina descargada para hacerle sitio.
+	 */
+	public synchronized void addVendingMachine(VendingMachine newMachine) {
+		if (newMachine == null) {
+			throw new IllegalArgumentException("La maquina no puede ser nula");
+		}
+		if (entries.containsKey(newMachine.getIdMachine())) {
+			throw new IllegalArgumentException("La maquina tiene un id ya registrado en el sistema");
+		}
+		Entry entry = new Entry(MachineStub.of(newMachine));
+		save(newMachine, entry);
+		entry.machine = newMachine;
+		entries.put(newMachine.getIdMachine(), entry);
+		makeResident(entry);
+	}
+
+	/**
+	 * Devuelve la mquina de la provincia con el identificador recibido, cargndola del almacn si no
+	 * estaba cargada, y la fija en memoria: no se descarga hasta soltarla con {@link #unpinVendingMachine(String)}
+	 * tantas veces como se ha fijado, as que la referencia se puede guardar mientras tanto.
+	 * @param idMachine Identificador de la mquina.
+	 * @return La mquina con ese identificador.
+	 * @throws IllegalArgumentException Si el identificador es nulo o est vaco.
+	 * @throws IllegalArgumentException Si la maquina con ese id no esta en la provincia.
+	 * @throws UncheckedIOException Si no se puede cargar la mquina, o guardar la mquina descargada para hacerle sitio.
+	 */
+	public synchronized VendingMachine pinVendingMachine(String idMachine) {
+		Entry entry = findEntry(idMachine);
+		entry.pins++;										//antes de cargarla, para que no se descargue al hacerle sitio
+		try {
+			return load(entry);
+		} catch (RuntimeException e) {
+			entry.pins--;
+			throw e;
+		}
+	}
+
+	/**
+	 * Mtodo privado que devuelve la mquina de una entrada, cargndola del almacn si no estaba cargada.
+	 */
+	private VendingMachine load(Entry entry) {
+		String idMachine = entry.stub.getIdMachine();
+		if (entry.machine == null) {
+			try {
+				entry.machine = store.load(idMachine);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			entry.machine.setListeners(entry.saleListeners, entry.stockListeners);
+			entry.machine.setAdmissionControl(entry.admission);
+			loads++;
+			makeResident(entry);
+		} else {
+			resident.get(idMachine);					//la marca como usada recientemente
+		}
+		return entry.machine;
+	}
+
+	/**
+	 * Suelta una mquina fijada con {@link #pinVendingMachine(String)}, que se podr volver a descargar
+	 * cuando no quede nadie que la tenga fijada.
+	 * @param idMachine Identificador de la mquina.
+	 * @throws IllegalArgumentException Si el identificador es nulo o est vaco.
+	 * @throws IllegalArgumentException Si la maquina con ese id no esta en la provincia.
+	 * @throws IllegalStateException Si la mquina no estaba fijada.
+	 */
+	public synchronized void unpinVendingMachine(String idMachine) {
+		Entry entry = findEntry(idMachine);
+		if (entry.pins == 0) {
+			throw new IllegalStateException("La mquina no estaba fijada.");
+		}
+		entry.pins--;
+	}
+
+	/**
+	 * Elimina una mquina de la provincia y del almacn. Si no se puede borrar del almacn, la mquina
+	 * sigue en la provincia.
+	 * @param idMachine Identificador de la mquina.
+	 * @throws IllegalArgumentException Si el identificador es nulo o est vaco.
+	 * @throws IllegalArgumentException Si la maquina con ese id no esta en la provincia.
+	 * @throws UncheckedIOException Si no se puede borrar la mquina del almacn.
+	 */
+	public synchronized void removeVendingMachine(String idMachine) {
+		findEntry(idMachine);
+		try {
+			store.delete(idMachine);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		entries.remove(idMachine);
+		resident.remove(idMachine);
+	}
+
+	/**
+	 * Devuelve el resumen de una mquina, sin cargarla. Si la mquina esta cargada, el resumen se
+	 * calcula de su estado actual.
+	 * @param idMachine Identificador de la mquina.
+	 * @return El resumen de la mquina.
+	 * @throws IllegalArgumentException Si el identificador es nulo o est vaco.
+	 * @throws IllegalArgumentException Si la maquina con ese id no esta en la provincia.
+	 */
+	public synchronized MachineStub getStub(String idMachine) {
+		return stubOf(findEntry(idMachine));
+	}
+
+	/**
+	 * Devuelve los resmenes de todas las mquinas de la provincia, sin cargar ninguna.
+	 * @return Lista con los resmenes, en el orden en que se aadieron las mquinas.
+	 */
+	public synchronized ArrayList<MachineStub> getStubs() {
+		ArrayList<MachineStub> stubs = new ArrayList<>(entries.size());
+		for (Entry entry : entries.values()) {
+			stubs.add(stubOf(entry));
+		}
+		return stubs;
+	}
+
+	/**
+	 * Devuelve el nmero de mquinas vending operativas, sin cargar ninguna.
+	 * @return Nmero de mquinas operativas en la provincia.
+	 */
+	public synchronized int getVendingOperative() {
+		int operatives = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.machine != null ? entry.machine.isOperative() : entry.stub.isOperative()) {
+				operatives++;
+			}
+		}
+		return operatives;
+	}
+
+	/**
+	 * Devuelve los identificadores de las mquinas que tienen algun hueco vaco, sin cargar ninguna.
+	 * @return Lista de identificadores de mquinas con algun hueco vaco.
+	 */
+	public synchronized ArrayList<String> getAvailableMachines() {
+		ArrayList<String> list = new ArrayList<>();
+		for (Entry entry : entries.values()) {
+			if (entry.machine != null ? entry.machine.checkEmptySlots() : entry.stub.getEmptySlots() > 0) {
+				list.add(entry.stub.getIdMachine());
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Guarda en el almacn todas las mquinas cargadas que han cambiado desde que se guardaron, sin descargarlas.
+	 * @throws UncheckedIOException Si no se puede guardar alguna mquina.
+	 */
+	public synchronized void flush() {
+		for (Entry entry : resident.values()) {
+			if (entry.machine.getVersion() != entry.stub.getVersion()) {
+				save(entry.machine, entry);
+			}
+		}
+	}
+
+	/**
+	 * Guarda las mquinas cargadas que han cambiado, como {@link #flush()}.
+	 */
+	@Override
+	public void close() {
+		flush();
+	}
+
+	/**
+	 * Devuelve el numero de mquinas de la provincia.
+	 * @return nmero de mquinas de la provincia.
+	 */
+	public synchronized int getNumMachines() {
+		return entries.size();
+	}
+
+	/**
+	 * Devuelve el nmero de mquinas cargadas en memoria.
+	 * @return nmero de mquinas cargadas.
+	 */
+	public synchronized int getResidentCount() {
+		return resident.size();
+	}
+
+	/**
+	 * Devuelve cuntas veces se ha cargado una mquina del almacn.
+	 * @return nmero de cargas.
+	 */
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Devuelve cuntas veces se ha descargado una mquina de memoria.
+	 * @return nmero de descargas.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Devuelve cuntas veces se ha guardado una mquina en el almacn, al aadirla o al guardar sus cambios.
+	 * @return nmero de escrituras al almacn.
+	 */
+	public synchronized long getWriteBacks() {
+		return writeBacks;
+	}
+
+	/**
+	 * Devuelve el identificador de la sede de esa provincia.
+	 * @return idProvince Identificador de la provincia
+	 */
+	public String getIdVC() {
+		return idProvince;
+	}
+
+	/**
+	 * Devuelve el nombre de la provincia donde se encuantra la sede.
+	 * @return province nombre de la provincia
+	 */
+	public String getProvince() {
+		return province;
+	}
+
+	private Entry findEntry(String idMachine) {
+		if (idMachine == null) {
+			throw new IllegalArgumentException("El id de una mquina no puede ser nulo");
+		}
+		if (idMachine.isEmpty()) {
+			throw new IllegalArgumentException("El id de una mquina no puede estar vaco");
+		}
+		Entry entry = entries.get(idMachine);
+		if (entry == null) {
+			throw new IllegalArgumentException("La mquina con ese identificador no est en el sistema");
+		}
+		return entry;
+	}
+
+	private MachineStub stubOf(Entry entry) {
+		return entry.machine == null ? entry.stub : MachineStub.of(entry.machine);
+	}
+
+	/**
+	 * Mtodo privado que aade la mquina a las cargadas y, si se supera el lmite, descarga las usadas
+	 * hace ms tiempo que no estn fijadas ni tienen estado que se perdera, guardando antes las que han
+	 * cambiado. Si no hay ninguna que se pueda descargar, se supera el lmite hasta que la haya.
+	 */
+	private void makeResident(Entry entry) {
+		resident.put(entry.stub.getIdMachine(), entry);
+		Iterator<Map.Entry<String, Entry>> eldest = resident.entrySet().iterator();
+		while (resident.size() > maxResident && eldest.hasNext()) {
+			Entry victim = eldest.next().getValue();
+			VendingMachine machine = victim.machine;
+			if (victim == entry || victim.pins > 0 || !machine.isEvictable()) {
+				continue;
+			}
+			if (machine.getVersion() != victim.stub.getVersion()) {		//cualquier cambio de la mquina cambia su versin
+				save(machine, victim);
+			}
+			victim.saleListeners = machine.getSaleListeners();
+			victim.stockListeners = machine.getStockListeners();
+			victim.admission = machine.getAdmissionControl();
+			victim.machine = null;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	private void save(VendingMachine machine, Entry entry) {
+		try {
+			entry.stub = store.save(machine);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		writeBacks++;
+	}
+
+	/**
+	 * Mquina de la provincia: su ltimo resumen guardado, la mquina si esta cargada, cuntas veces esta
+	 * fijada, y sus oyentes y control de admisin mientras esta descargada.
+	 */
+	private static class Entry {
+		MachineStub stub;
+		VendingMachine machine;
+		int pins;
+		SaleListener[] saleListeners = new SaleListener[0];
+		StockListener[] stockListeners = new StockListener[0];
+		AdmissionControl admission;
+
+		Entry(MachineStub stub) {
+			this.stub = stub;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Estados del ciclo de vida de una mquina de vending. Solo se venden vendibles en el estado
+ * {@link #OPERATIVE}.
+ * @author rauvill, alvdela
+ *
+ */
+public enum MachineState {
+	/** En servicio: admite compras. */
+	OPERATIVE,
+	/** Entrando en mantenimiento: no admite compras nuevas, y espera a que terminen las que estaban en curso. */
+	DRAINING,
+	/** En mantenimiento: sin compras en curso, los tcnicos pueden reabastecer y cambiar precios. */
+	MAINTENANCE,
+	/** Fuera de servicio. */
+	OUT_OF_SERVICE
+}
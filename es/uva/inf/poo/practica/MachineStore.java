@@ -0,0 +1,314 @@
+package es.uva.inf.poo.practica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+
+/**
+ * Almacn persistente local de mquinas de vending: guarda cada mquina en un fichero binario de un
+ * directorio. Cada fichero empieza con el resumen de la mquina ({@link MachineStub}), que se puede
+ * leer sin cargar sus slots, seguido de los slots que no estn vacos con su vendible y existencias.
+ * Los ficheros se escriben en uno temporal y se renombran, por lo que una escritura interrumpida no
+ * deja una mquina a medias.
+ * Solo se guarda el inventario, el estado y la ubicacin de la mquina; los oyentes y la tabla de precios no se guardan.
+ * @author rauvill, alvdela
+ *
+ */
+public class MachineStore {
+
+	private static final int MAGIC = 0x564D5354;			//"VMST"
+	private static final int FORMAT = 2;					//el 2 aade la ubicacin; se siguen leyendo los del 1
+	private static final String EXTENSION = ".vm";
+	private static final byte PRODUCT = 0;
+	private static final byte PACK = 1;
+
+	private final Path directory;
+
+	/**
+	 * Inicializa un almacn sobre el directorio recibido, crendolo si no existe.
+	 * @param directory Directorio en el que se guardan las mquinas.
+	 * @throws IllegalArgumentException Cuando el directorio es nulo.
+	 * @throws IOException Cuando no se puede crear el directorio.
+	 */
+	public MachineStore(Path directory) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("El directorio no puede ser nulo.");
+		}
+		this.directory = Files.createDirectories(directory);
+	}
+
+	/**
+	 * Guarda una mquina, sustituyendo la versin guardada anteriormente si la haba.
+	 * Primero se lee cada slot (vendible y existencias a la vez) y el resumen se calcula de lo ledo, as
+	 * que el fichero es coherente aunque la mquina cambie mientras se guarda; la versin se lee antes que
+	 * los slots, de modo que esos cambios se vuelven a guardar la prxima vez.
+	 * @param machine Mquina a guardar.
+	 * @return El resumen de la mquina tal como se ha guardado.
+	 * @throws IllegalArgumentException Cuando la mquina es nula.
+	 * @throws IOException Cuando no se puede escribir el fichero.
+	 */
+	public MachineStub save(VendingMachine machine) throws IOException {
+		if (machine == null) {
+			throw new IllegalArgumentException("La maquina no puede ser nula");
+		}
+		long version = machine.getVersion();
+		MachineState state = machine.getState();
+		int numSlots = machine.getNumSlots();
+		Vendible[] vendibles = new Vendible[numSlots];
+		int[] stocks = new int[numSlots];
+		int[] stock = new int[1];
+		int used = 0;
+		long total = 0;
+		for (int i = 0; i < numSlots; i++) {
+			vendibles[i] = machine.readSlot(i, stock);
+			stocks[i] = stock[0];
+			if (stocks[i] > 0) {
+				used++;
+				total += stocks[i];
+			}
+		}
+		MachineStub stub = new MachineStub(machine.getIdMachine(), state, numSlots, numSlots - used, total, version);
+		Path file = fileOf(machine.getIdMachine());
+		Path tmp = directory.resolve(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeUTF(machine.getIdMachine());
+			out.writeByte(stub.getState().ordinal());
+			out.writeInt(stub.getNumSlots());
+			out.writeInt(stub.getEmptySlots());
+			out.writeLong(stub.getTotalStock());
+			out.writeLong(stub.getVersion());
+			out.writeInt(machine.getNumCol());
+			out.writeInt(machine.getNumLin());
+			out.writeBoolean(machine.isOffHeap());
+			out.writeDouble(machine.getLatitude());
+			out.writeDouble(machine.getLongitude());
+			out.writeInt(used);
+			for (int i = 0; i < numSlots; i++) {
+				if (stocks[i] > 0) {
+					out.writeInt(i);
+					out.writeInt(stocks[i]);
+					writeVendible(out, vendibles[i]);
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return stub;
+	}
+
+	/**
+	 * Carga una mquina guardada, con sus slots, existencias, estado y versin.
+	 * @param idMachine Identificador de la mquina.
+	 * @return La mquina cargada.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo o vaco.
+	 * @throws IllegalArgumentException Cuando la mquina no esta guardada.
+	 * @throws IOException Cuando no se puede leer el fichero o no tiene el formato esperado.
+	 */
+	public VendingMachine load(String idMachine) throws IOException {
+		Path file = existingFileOf(idMachine);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			int format = readFormat(in);
+			MachineStub stub = readStubFields(in);
+			VendingMachine machine = new VendingMachine(stub.getIdMachine(), in.readInt(), in.readInt(), in.readBoolean());
+			if (format >= 2) {
+				machine.restoreLocation(in.readDouble(), in.readDouble());
+			}
+			int used = in.readInt();
+			HashMap<String, ArrayList<Vendible>> read = new HashMap<>();	//los slots con vendibles iguales vuelven a compartir el mismo objeto
+			for (int i = 0; i < used; i++) {
+				int index = in.readInt();
+				int stock = in.readInt();
+				machine.restoreSlot(index, shared(read, readVendible(in)), stock);
+			}
+			machine.restoreState(stub.getState(), stub.getVersion());
+			return machine;
+		}
+	}
+
+	/**
+	 * Lee el resumen de una mquina guardada, sin cargar sus slots.
+	 * @param idMachine Identificador de la mquina.
+	 * @return El resumen de la mquina.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo o vaco.
+	 * @throws IllegalArgumentException Cuando la mquina no esta guardada.
+	 * @throws IOException Cuando no se puede leer el fichero o no tiene el formato esperado.
+	 */
+	public MachineStub loadStub(String idMachine) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(existingFileOf(idMachine))))) {
+			return readStub(in);
+		}
+	}
+
+	/**
+	 * Lee los resmenes de todas las mquinas guardadas en el almacn.
+	 * @return Lista con los resmenes de las mquinas.
+	 * @throws IOException Cuando no se puede leer algn fichero.
+	 */
+	public ArrayList<MachineStub> loadStubs() throws IOException {
+		ArrayList<MachineStub> stubs = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+			for (Path file : files) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+					stubs.add(readStub(in));
+				}
+			}
+		}
+		return stubs;
+	}
+
+	/**
+	 * Elimina una mquina del almacn. Si no estaba guardada no hace nada.
+	 * @param idMachine Identificador de la mquina.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo o vaco.
+	 * @throws IOException Cuando no se puede borrar el fichero.
+	 */
+	public void delete(String idMachine) throws IOException {
+		Files.deleteIfExists(fileOf(idMachine));
+	}
+
+	/**
+	 * Mtodo privado que obtiene el fichero de una mquina. El nombre del fichero es el identificador
+	 * en hexadecimal, para admitir cualquier carcter en los identificadores.
+	 */
+	private Path fileOf(String idMachine) {
+		if (idMachine == null) {
+			throw new IllegalArgumentException("El id de una mquina no puede ser nulo");
+		}
+		if (idMachine.isEmpty()) {
+			throw new IllegalArgumentException("El id de una mquina no puede estar vaco");
+		}
+		StringBuilder name = new StringBuilder();
+		for (byte b : idMachine.getBytes(StandardCharsets.UTF_8)) {
+			name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return directory.resolve(name.append(EXTENSION).toString());
+	}
+
+	private Path existingFileOf(String idMachine) {
+		Path file = fileOf(idMachine);
+		if (!Files.exists(file)) {
+			throw new IllegalArgumentException("La mquina con ese identificador no est en el almacn");
+		}
+		return file;
+	}
+
+	private static MachineStub readStub(DataInputStream in) throws IOException {
+		readFormat(in);
+		return readStubFields(in);
+	}
+
+	private static int readFormat(DataInputStream in) throws IOException {
+		int format = in.readInt() == MAGIC ? in.readInt() : 0;
+		if (format < 1 || format > FORMAT) {
+			throw new IOException("El fichero no contiene una mquina guardada.");
+		}
+		return format;
+	}
+
+	private static MachineStub readStubFields(DataInputStream in) throws IOException {
+		String idMachine = in.readUTF();
+		MachineState state = MachineState.values()[in.readByte()];
+		return new MachineStub(idMachine, state, in.readInt(), in.readInt(), in.readLong(), in.readLong());
+	}
+
+	private static void writeVendible(DataOutputStream out, Vendible vendible) throws IOException {
+		if (vendible instanceof Pack) {
+			Pack pack = (Pack) vendible;
+			out.writeByte(PACK);
+			out.writeUTF(pack.getName());
+			out.writeUTF(pack.getIdentifier());
+			out.writeInt(pack.getPackSize());
+			for (Product product : pack.getProducts()) {
+				writeProduct(out, product);
+			}
+		} else {
+			out.writeByte(PRODUCT);
+			writeProduct(out, (Product) vendible);
+		}
+	}
+
+	private static void writeProduct(DataOutputStream out, Product product) throws IOException {
+		out.writeUTF(product.getName());
+		out.writeUTF(product.getIdentifier());
+		out.writeDouble(product.getPrice());
+		Calendar expiry = product.getExpiryDate();
+		out.writeShort(expiry.get(Calendar.YEAR));
+		out.writeByte(expiry.get(Calendar.MONTH));
+		out.writeByte(expiry.get(Calendar.DAY_OF_MONTH));
+	}
+
+	private static Vendible readVendible(DataInputStream in) throws IOException {
+		byte kind = in.readByte();
+		if (kind == PRODUCT) {
+			return readProduct(in);
+		}
+		if (kind != PACK) {
+			throw new IOException("Tipo de vendible desconocido: " + kind);
+		}
+		String name = in.readUTF();
+		String identifier = in.readUTF();
+		int size = in.readInt();
+		ArrayList<Product> products = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			products.add(readProduct(in));
+		}
+		return Pack.restore(name, identifier, products);
+	}
+
+	/**
+	 * Mtodo privado que obtiene un vendible igual al recibido entre los ya ledos del fichero, o lo aade
+	 * a ellos si no hay ninguno.
+	 */
+	private static Vendible shared(HashMap<String, ArrayList<Vendible>> read, Vendible vendible) {
+		ArrayList<Vendible> versions = read.computeIfAbsent(vendible.getIdentifier(), id -> new ArrayList<>(1));
+		for (Vendible version : versions) {
+			if (sameValue(version, vendible)) {
+				return version;
+			}
+		}
+		versions.add(vendible);
+		return vendible;
+	}
+
+	/**
+	 * Mtodo privado que comprueba si dos vendibles con el mismo identificador tienen el mismo nombre,
+	 * precio y caducidad, y si son packs, los mismos productos.
+	 */
+	private static boolean sameValue(Vendible a, Vendible b) {
+		if (!a.getName().equals(b.getName()) || a.getPrice() != b.getPrice() || a.getExpiryDay() != b.getExpiryDay()) {
+			return false;
+		}
+		if (a instanceof Pack && b instanceof Pack) {
+			Pack p = (Pack) a;
+			Pack q = (Pack) b;
+			if (p.getPackSize() != q.getPackSize()) {
+				return false;
+			}
+			for (int i = 0; i < p.getPackSize(); i++) {
+				if (!p.getProduct(i).getIdentifier().equals(q.getProduct(i).getIdentifier()) || !sameValue(p.getProduct(i), q.getProduct(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return a instanceof Product && b instanceof Product;
+	}
+
+	private static Product readProduct(DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		String upc = in.readUTF();
+		double price = in.readDouble();
+		return Product.restore(price, in.readShort(), in.readByte(), in.readByte(), name, upc);
+	}
+}
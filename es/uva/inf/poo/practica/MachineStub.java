@@ -0,0 +1,102 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Resumen ligero de una mquina de vending: su identificador, su estado y unos contadores de sus
+ * slots, que se pueden consultar sin cargar en memoria los slots y vendibles de la mquina.
+ * Es una instantnea: no cambia aunque cambie la mquina.
+ * @author rauvill, alvdela
+ *
+ */
+public final class MachineStub {
+
+	private final String idMachine;
+	private final MachineState state;
+	private final int numSlots;
+	private final int emptySlots;
+	private final long totalStock;
+	private final long version;
+
+	/**
+	 * Mtodo visible en el paquete que inicializa un resumen con los datos recibidos.
+	 */
+	MachineStub(String idMachine, MachineState state, int numSlots, int emptySlots, long totalStock, long version) {
+		this.idMachine = idMachine;
+		this.state = state;
+		this.numSlots = numSlots;
+		this.emptySlots = emptySlots;
+		this.totalStock = totalStock;
+		this.version = version;
+	}
+
+	/**
+	 * Mtodo visible en el paquete que resume una mquina recorriendo sus slots.
+	 */
+	static MachineStub of(VendingMachine machine) {
+		int empty = 0;
+		long total = 0;
+		for (int i = 0; i < machine.getNumSlots(); i++) {
+			int stock = machine.getStock(i);
+			if (stock == 0) {
+				empty++;
+			}
+			total += stock;
+		}
+		return new MachineStub(machine.getIdMachine(), machine.getState(), machine.getNumSlots(), empty, total, machine.getVersion());
+	}
+
+	/**
+	 * Consulta el identificador de la mquina.
+	 * @return El identificador de la mquina.
+	 */
+	public String getIdMachine() {
+		return idMachine;
+	}
+
+	/**
+	 * Consulta el estado de la mquina.
+	 * @return El estado de la mquina.
+	 */
+	public MachineState getState() {
+		return state;
+	}
+
+	/**
+	 * Consulta si la mquina esta operativa.
+	 * @return True si esta operativa, false si no lo esta.
+	 */
+	public boolean isOperative() {
+		return state == MachineState.OPERATIVE;
+	}
+
+	/**
+	 * Consulta el nmero de slots de la mquina.
+	 * @return Nmero de slots.
+	 */
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * Consulta el nmero de slots vacos de la mquina.
+	 * @return Nmero de slots vacos.
+	 */
+	public int getEmptySlots() {
+		return emptySlots;
+	}
+
+	/**
+	 * Consulta el total de unidades de todos los slots de la mquina.
+	 * @return Unidades en la mquina.
+	 */
+	public long getTotalStock() {
+		return totalStock;
+	}
+
+	/**
+	 * Consulta la versin de la mquina cuando se hizo el resumen.
+	 * @return La versin de la mquina.
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
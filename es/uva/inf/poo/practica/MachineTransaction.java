@@ -0,0 +1,187 @@
+package es.uva.inf.poo.practica;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Transaccin optimista sobre una mquina de vending. Al crearla se lee una instantnea consistente
+ * del catlogo de la mquina (vendible, precio base y existencias de cada slot) junto con su versin
+ * de catlogo. Los cambios se preparan sobre la instantnea sin tocar la mquina, por lo que la
+ * preparacin puede durar lo que haga falta sin bloquear las ventas, y se aplican todos juntos con
+ * {@link #commit()}, que falla si el catlogo ha cambiado mientras tanto. En ese caso se empieza una
+ * transaccin nueva y se vuelven a preparar los cambios (ver {@link VendingMachine#runTransaction}).
+ * Una transaccin solo se puede confirmar una vez, y no debe compartirse entre hilos.
+ * @author rauvill, alvdela
+ *
+ */
+public class MachineTransaction {
+
+	private final VendingMachine machine;
+	private final long readVersion;
+	private final String[] vendibleIds;
+	private final double[] basePrices;
+	private final int[] stock;
+	private final ArrayList<Restock> restocks;
+	private final HashMap<Integer, String> pendingIds;			//vendible que tendr cada slot vaco reabastecido en la transaccin
+	private final LinkedHashMap<String, Double> prices;
+	private boolean finished;
+
+	/**
+	 * Mtodo visible en el paquete que inicializa una transaccin leyendo la instantnea de la mquina.
+	 * Si el catlogo cambia mientras se copia, se vuelve a copiar.
+	 */
+	MachineTransaction(VendingMachine machine) {
+		this.machine = machine;
+		int size = machine.getNumSlots();
+		vendibleIds = new String[size];
+		basePrices = new double[size];
+		stock = new int[size];
+		long version;
+		do {
+			version = machine.getCatalogVersion();
+			for (int i = 0; i < size; i++) {
+				vendibleIds[i] = machine.getVendibleId(i);
+				basePrices[i] = machine.getBasePrice(i);
+				stock[i] = machine.getStock(i);
+			}
+		} while (machine.getCatalogVersion() != version);
+		readVersion = version;
+		restocks = new ArrayList<>();
+		pendingIds = new HashMap<>();
+		prices = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Consulta la versin de catlogo de la instantnea.
+	 * @return Versin del catlogo cuando se ley la instantnea.
+	 */
+	public long getReadVersion() {
+		return readVersion;
+	}
+
+	/**
+	 * Consulta el identificador del vendible de un slot en la instantnea.
+	 * @param idSlot Identificador del slot.
+	 * @return Identificador del vendible, o null si el slot estaba vaco.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo, esta vaco o no esta en la mquina.
+	 */
+	public String getVendibleId(String idSlot) {
+		return vendibleIds[machine.slotIndex(idSlot)];
+	}
+
+	/**
+	 * Consulta el precio base de un slot en la instantnea.
+	 * @param idSlot Identificador del slot.
+	 * @return Precio base del vendible del slot, 0 si estaba vaco.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo, esta vaco o no esta en la mquina.
+	 */
+	public double getBasePrice(String idSlot) {
+		return basePrices[machine.slotIndex(idSlot)];
+	}
+
+	/**
+	 * Consulta las existencias de un slot en la instantnea. Las ventas no invalidan la transaccin,
+	 * por lo que las existencias pueden haber bajado al confirmarla.
+	 * @param idSlot Identificador del slot.
+	 * @return Unidades del slot.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo, esta vaco o no esta en la mquina.
+	 */
+	public int getStock(String idSlot) {
+		return stock[machine.slotIndex(idSlot)];
+	}
+
+	/**
+	 * Prepara el cambio de precio de un producto en todos los slots que lo contienen, solo o en un pack.
+	 * @param upc Identificador del producto a modificar.
+	 * @param newPrice Nuevo precio del producto.
+	 * @throws IllegalArgumentException Cuando el identificador de producto es nulo o esta vaco.
+	 * @throws IllegalArgumentException Cuando el nuevo precio es negativo o 0.
+	 * @throws IllegalStateException Cuando la transaccin ya se ha confirmado.
+	 */
+	public void changeProductPrice(String upc, double newPrice) {
+		checkOpen();
+		if (upc == null) {
+			throw new IllegalArgumentException("El identificador UPC no puede ser nulo.");
+		}
+		if (upc.isEmpty()) {
+			throw new IllegalArgumentException("El identificador UPC no puede estar vaco.");
+		}
+		if (newPrice <= 0) {
+			throw new IllegalArgumentException("El nuevo precio no puede ser 0 o negativo.");
+		}
+		prices.put(upc, newPrice);
+	}
+
+	/**
+	 * Prepara el reabastecimiento de un slot con varias unidades de un vendible, que debe ser el mismo que
+	 * el del slot en la instantnea, o el de un reabastecimiento anterior de la transaccin si estaba vaco.
+	 * @param idSlot Identificador del slot a reabastecer.
+	 * @param vendible Vendible a aadir.
+	 * @param units Unidades a aadir.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo, esta vaco o no esta en la mquina.
+	 * @throws IllegalArgumentException Cuando el vendible es nulo.
+	 * @throws IllegalArgumentException Cuando las unidades no son positivas.
+	 * @throws IllegalArgumentException Cuando el vendible no es igual al que ya hay en el slot.
+	 * @throws IllegalStateException Cuando la transaccin ya se ha confirmado.
+	 */
+	public void restockSlot(String idSlot, Vendible vendible, int units) {
+		checkOpen();
+		int index = machine.slotIndex(idSlot);
+		if (vendible == null) {
+			throw new IllegalArgumentException("El producto no puede ser nulo.");
+		}
+		if (units <= 0) {
+			throw new IllegalArgumentException("Las unidades deben ser positivas.");
+		}
+		String current = vendibleIds[index] != null ? vendibleIds[index] : pendingIds.get(index);
+		if (current != null && !current.equals(vendible.getIdentifier())) {
+			throw new IllegalArgumentException("El vendible debe tener el mismo identificador que los que ya estan en el slot: " + vendible.getIdentifier() + " != " + current);
+		}
+		if (current == null) {
+			pendingIds.put(index, vendible.getIdentifier());
+		}
+		restocks.add(new Restock(index, vendible, units));
+	}
+
+	/**
+	 * Aplica a la mquina todos los cambios preparados, si su catlogo no ha cambiado desde la instantnea.
+	 * @return True si se han aplicado los cambios, false si han chocado con otro cambio y no se ha aplicado ninguno.
+	 * @throws IllegalArgumentException Cuando algn vendible que entra en un slot vaco ha caducado; no se aplica ningn cambio.
+	 * @throws IllegalStateException Cuando la transaccin ya se ha confirmado.
+	 */
+	public boolean commit() {
+		checkOpen();
+		finished = true;
+		return machine.commit(this);
+	}
+
+	ArrayList<Restock> getRestocks() {
+		return restocks;
+	}
+
+	LinkedHashMap<String, Double> getPrices() {
+		return prices;
+	}
+
+	private void checkOpen() {
+		if (finished) {
+			throw new IllegalStateException("La transaccin ya se ha confirmado.");
+		}
+	}
+
+	/**
+	 * Reabastecimiento preparado de un slot.
+	 */
+	static class Restock {
+		final int index;
+		final Vendible vendible;
+		final int units;
+
+		Restock(int index, Vendible vendible, int units) {
+			this.index = index;
+			this.vendible = vendible;
+			this.units = units;
+		}
+	}
+}
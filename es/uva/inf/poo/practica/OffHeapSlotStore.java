@@ -0,0 +1,134 @@
+package es.uva.inf.poo.practica;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Almacn de slots fuera del heap: el estado de cada slot se guarda en un registro de tamao fijo
+ * dentro de un ByteBuffer directo, que el recolector de basura no tiene que recorrer.
+ * Registro de cada slot (16 bytes): precio, existencias y nmero de vendible de referencia. El resto de
+ * datos del vendible se leen del vendible de referencia.
+ * En el heap solo queda un vendible de referencia por cada vendible distinto de la mquina, compartido
+ * por todos los slots que contienen ese mismo objeto. Dos versiones del mismo producto o pack (con otro
+ * precio o caducidad) son vendibles distintos, as que cada slot devuelve exactamente el vendible que se
+ * guard en l, igual que en el heap.
+ * La tabla de vendibles de referencia la comparten todos los slots, as que se consulta y se cambia con
+ * el cerrojo del almacn, aunque los slots se escriban a la vez con cerrojos distintos. Las existencias y
+ * el precio de cada slot se leen sin l.
+ * @author rauvill, alvdela
+ *
+ */
+class OffHeapSlotStore implements SlotStore {
+
+	static final int RECORD_SIZE = 16;
+	private static final int PRICE = 0;
+	private static final int STOCK = 8;
+	private static final int TEMPLATE = 12;
+	private static final int NO_TEMPLATE = -1;
+
+	private final ByteBuffer records;
+	private final int size;
+	private final ArrayList<Vendible> templates;				//vendibles de referencia, compartidos por los slots con el mismo vendible
+	private final ArrayList<Integer> references;				//nmero de slots que usan cada vendible de referencia
+	private final IdentityHashMap<Vendible, Integer> templateIds;	//por identidad: los vendibles son inmutables
+	private final ArrayDeque<Integer> freeTemplates;			//la tabla de referencia solo se usa con el cerrojo del almacn
+
+	/**
+	 * Inicializa un almacn con todos los slots vacos.
+	 * @param size Nmero de slots.
+	 * @throws IllegalArgumentException Cuando los registros no caben en un nico buffer.
+	 */
+	OffHeapSlotStore(int size) {
+		if ((long) size * RECORD_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("La mquina no puede tener tantos slots fuera del heap.");
+		}
+		this.size = size;
+		records = ByteBuffer.allocateDirect(size * RECORD_SIZE);
+		for (int i = 0; i < size; i++) {
+			records.putInt(i * RECORD_SIZE + TEMPLATE, NO_TEMPLATE);
+		}
+		templates = new ArrayList<>();
+		references = new ArrayList<>();
+		templateIds = new IdentityHashMap<>();
+		freeTemplates = new ArrayDeque<>();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized Vendible getVendible(int index) {
+		int template = records.getInt(index * RECORD_SIZE + TEMPLATE);
+		return template == NO_TEMPLATE ? null : templates.get(template);
+	}
+
+	@Override
+	public synchronized void setVendible(int index, Vendible vendible) {
+		int base = index * RECORD_SIZE;
+		release(records.getInt(base + TEMPLATE));
+		if (vendible == null) {
+			records.putDouble(base + PRICE, 0);
+			records.putInt(base + TEMPLATE, NO_TEMPLATE);
+			return;
+		}
+		records.putDouble(base + PRICE, vendible.getPrice());
+		records.putInt(base + TEMPLATE, acquire(vendible));
+	}
+
+	@Override
+	public int getStock(int index) {
+		return records.getInt(index * RECORD_SIZE + STOCK);
+	}
+
+	@Override
+	public void setStock(int index, int stock) {
+		records.putInt(index * RECORD_SIZE + STOCK, stock);
+	}
+
+	@Override
+	public double getPrice(int index) {
+		return records.getDouble(index * RECORD_SIZE + PRICE);
+	}
+
+	/**
+	 * Mtodo privado que obtiene el nmero del vendible de referencia del vendible recibido,
+	 * registrndolo como referencia si ningn slot lo usaba. Se llama con el cerrojo del almacn.
+	 */
+	private int acquire(Vendible vendible) {
+		Integer template = templateIds.get(vendible);
+		if (template == null) {
+			if (freeTemplates.isEmpty()) {
+				template = templates.size();
+				templates.add(vendible);
+				references.add(0);
+			} else {
+				template = freeTemplates.poll();
+				templates.set(template, vendible);
+			}
+			templateIds.put(vendible, template);
+		}
+		references.set(template, references.get(template) + 1);
+		return template;
+	}
+
+	/**
+	 * Mtodo privado que libera una referencia al vendible de referencia recibido, y lo olvida
+	 * cuando ningn slot lo usa. Se llama con el cerrojo del almacn.
+	 */
+	private void release(int template) {
+		if (template == NO_TEMPLATE) {
+			return;
+		}
+		int count = references.get(template) - 1;
+		references.set(template, count);
+		if (count == 0) {
+			templateIds.remove(templates.get(template));
+			templates.set(template, null);
+			freeTemplates.push(template);
+		}
+	}
+}
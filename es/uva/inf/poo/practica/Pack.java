@@ -1,16 +1,25 @@
 package es.uva.inf.poo.practica;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 
 /**
  * Clase que hereda de Vendible e implementa la funcionalidad de un pack de varios productos, 
  * perteneciente a un slot de la mquina de vending.
+ * Los packs son inmutables: cambiar el precio de un producto, aadirlo o quitarlo devuelve una versin
+ * nueva del pack que comparte con la anterior todos los productos que no cambian.
  * @author rauvill, alvdela
  *
  */
 public class Pack extends Vendible {
 	
-	private ArrayList<Product> products;
+	private final Product[] members;						//productos en el orden en que se aadieron, para recorrerlos sin crear objetos
+	private final HashMap<String, Integer> positions;		//posicin de cada producto en members, indexada por UPC; no cambia tras construir el pack
+	private static final Product[] NO_PRODUCTS = new Product[0];
 	
 	/**
 	 * Inicializa un pack de productos, con el nombre, identificador y una lista array de productos recibidos.
@@ -37,12 +46,9 @@ public class Pack extends Vendible {
 			throw
 					new IllegalArgumentException("La lista de productos debe contener un mnimo 2 productos.");
 		}
-		this.products = new ArrayList<>();
-		for(int i=0;i<products.length;i++) {
-			this.products.add(products[i]);
-		}
-		
-		if (this.checkRepeated(this.products)) {
+		members = products.clone();
+		positions = index(members);
+		if (positions == null) {
 			throw
 					new IllegalArgumentException("La lista de productos no puede contener productos repetidos.");
 		}
@@ -73,13 +79,37 @@ public class Pack extends Vendible {
 			throw
 					new IllegalArgumentException("La lista de productos debe contener un mnimo de 2 productos.");
 		}
-		if(this.checkRepeated(products)) {
+		members = products.toArray(NO_PRODUCTS);
+		positions = index(members);
+		if (positions == null) {
+			throw
+					new IllegalArgumentException("La lista de productos recibida no puede contener productos repetidos.");
+		}
+	}
+	
+	/**
+	 * Constructor privado que inicializa un pack con un vector de productos ya comprobado y su ndice por
+	 * UPC, que pasan a ser suyos, sin copiarlos ni comprobar su nmero.
+	 */
+	private Pack(Product[] members, HashMap<String, Integer> positions, String name, String identifier) {
+		super(name, identifier);
+		this.members = members;
+		this.positions = positions;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que reconstruye un pack guardado, que puede haberse quedado con
+	 * menos de 2 productos al eliminarle alguno.
+	 * @throws IllegalArgumentException Cuando la lista de productos contiene productos repetidos.
+	 */
+	static Pack restore(String name, String identifier, ArrayList<Product> products) {
+		Product[] m = products.toArray(NO_PRODUCTS);
+		HashMap<String, Integer> p = index(m);
+		if (p == null) {
 			throw
 					new IllegalArgumentException("La lista de productos recibida no puede contener productos repetidos.");
 		}
-		ArrayList<Product> p = new ArrayList<>();
-		p.addAll(products);
-		this.products = p;
+		return new Pack(m, p, name, identifier);
 	}
 	
 	/**
@@ -88,26 +118,60 @@ public class Pack extends Vendible {
 	 * diciendo que no tiene productos en case de estar vaco.
 	 */
 	public String getProductsName() {
-		if (products.isEmpty()) {
+		if (members.length == 0) {
 			return "Este pack no contiene productos.";
 		}
-		String productsName = "Este Pack esta formado por los productos: " + products.get(0).getName();
-		for(int i = 1;i<products.size();i++) {
-			productsName = productsName + ", " + products.get(i).getName();
+		StringBuilder productsName = new StringBuilder("Este Pack esta formado por los productos: ");
+		String separator = "";
+		for(Product product : members) {
+			productsName.append(separator).append(product.getName());
+			separator = ", ";
 		}
-		return productsName + ".";
+		return productsName.append('.').toString();
 	}
 	
 	public Pack duplicate() {					//No hace falta javadoc porque el javadoc que se lee es el del padre
-		return new Pack(super.getName(), super.getIdentifier(), products);
+		if (members.length < 2) {				//withoutProduct y restore pueden dejarlo con menos productos de los que pide el constructor
+			throw
+					new IllegalArgumentException("El pack debe contener un mnimo de 2 productos.");
+		}
+		return this;							//es inmutable, as que se puede compartir en vez de copiarlo
 	}
 
 	public double getPrice() {
+		return getProductsPrice() * 0.2;		//aplicamos el descuento a la suma de los precios de los productos
+	}
+	
+	/**
+	 * Consulta la suma de los precios de los productos del pack, sin aplicar el descuento del pack.
+	 * @return La suma de los precios de los productos.
+	 */
+	public double getProductsPrice() {
 		double price = 0;						//no puede no devolver un precio porque para crear un objeto pack, tienes que meter minimo 2 productos
-		for(int i=0;i<products.size();i++) {
-			price += products.get(i).getPrice();
+		Product[] m = members;
+		for(int i=0; i<m.length; i++) {
+			price += m[i].getPrice();
 		}
-		return price * 0.2;						//aplicamos el descuento a la suma de los precios de los productos
+		return price;
+	}
+	
+	/**
+	 * Consulta la fecha de caducidad del pack, que es la del producto que caduca antes.
+	 * @return Un objeto Calendar con la fecha de caducidad ms prxima, o null si el pack esta vaco.
+	 */
+	public Calendar getExpiryDate() {
+		int earliest = getExpiryDay();
+		return earliest == Integer.MAX_VALUE ? null : Product.toCalendar(earliest);
+	}
+	
+	@Override
+	int getExpiryDay() {
+		int earliest = Integer.MAX_VALUE;
+		Product[] m = members;
+		for(int i=0; i<m.length; i++) {
+			earliest = Math.min(earliest, m[i].getExpiryDay());
+		}
+		return earliest;
 	}
 	
 	/**
@@ -115,38 +179,44 @@ public class Pack extends Vendible {
 	 * @return La cantidad de productos que hay en el pack.
 	 */
 	public int getPackSize() {
-		return products.size();
+		return members.length;
 	}
 	
 	/**
-	 * Aade un producto al pack. Los productos a aadir no podrn 
-	 * ser iguales que cualquiera de los que ya estaban en el pack.
+	 * Devuelve una versin del pack con un producto ms al final. Los productos a aadir no podrn 
+	 * ser iguales que cualquiera de los que ya estaban en el pack. El pack actual no cambia.
 	 * @param product Producto a aadir al pack.
+	 * @return Un pack nuevo, con el mismo nombre e identificador, que comparte los productos del actual.
 	 * @throws IllegalArgumentException Cuando el producto recibido es nulo.
 	 * @throws IllegalAgumentException Cuando el producto recibido ya se encontraba en el pack.
 	 */
-	public void addProduct(Product product) {
+	public Pack withProduct(Product product) {
 		if (product == null) {
 			throw
 					new IllegalArgumentException("El producto a aadir no puede ser nulo.");
 		}
-		if (products.contains(product)) {
+		if (positions.containsKey(product.getIdentifier())) {			//comparamos por UPC, no por referencia
 			throw
 					new IllegalArgumentException("No se admiten productos repetidos en un mismo pack.");
 		}
-		products.add(product);
+		Product[] m = Arrays.copyOf(members, members.length + 1);
+		m[members.length] = product;
+		HashMap<String, Integer> p = new HashMap<>(positions);
+		p.put(product.getIdentifier(), members.length);
+		return new Pack(m, p, super.getName(), super.getIdentifier());
 	}
 	
 	/**
-	 * Elimina un producto del pack a partir de su identificador nico UPC. 
-	 * Si el pack ya estaba vaco no podr eliminarlo.
+	 * Devuelve una versin del pack sin el producto con el identificador nico UPC recibido. 
+	 * Si el pack ya estaba vaco no podr eliminarlo. El pack actual no cambia.
 	 * @param upc Identificador del producto a eliminar del pack.
+	 * @return Un pack nuevo, con el mismo nombre e identificador, que comparte el resto de productos del actual.
 	 * @throws IllegalArgumentException Cuando el identificador recibido es nulo.
 	 * @throws IllegalArgumentException Cuando el identificador recibido esta vaco.
 	 * @throws IllegalArgumentException Cuando se intenta eliminar un producto de un pack vaco.
 	 * @throws IllegalArgumentException Cuando el producto a eliminar no esta en el pack.
 	 */
-	public void removeProduct(String upc) {
+	public Pack withoutProduct(String upc) {
 		if (upc == null) {
 			throw
 					new IllegalArgumentException("El identificador nico UPC no puede ser nulo.");
@@ -155,18 +225,19 @@ public class Pack extends Vendible {
 			throw
 					new IllegalArgumentException("El identificador nico UPC no puede estar vaco.");
 		}
-		if (products.isEmpty()) {
+		if (members.length == 0) {
 			throw
 					new IllegalArgumentException("El pack ya esta vaco.");
 		}
-		if (!containsProduct(upc)) {
+		Integer index = positions.get(upc);
+		if (index == null) {
 			throw
 					new IllegalArgumentException("El producto no se encuentra en el pack.");
 		}
-		for(int i=0;i<products.size();i++) {
-			if(upc.equals(products.get(i).getIdentifier()))
-				products.remove(i);
-		}
+		Product[] m = new Product[members.length - 1];
+		System.arraycopy(members, 0, m, 0, index);
+		System.arraycopy(members, index + 1, m, index, m.length - index);
+		return new Pack(m, index(m), super.getName(), super.getIdentifier());
 	}
 	
 	/**
@@ -186,29 +257,26 @@ public class Pack extends Vendible {
 			throw
 					new IllegalArgumentException("El identificador UPC no puede estar vaco.");
 		}
-		if (products.isEmpty()) {
+		if (members.length == 0) {
 			throw
 					new IllegalArgumentException("El pack esta vaco.");
 		}
-		boolean check = false;
-		for(int i=0;i<products.size();i++) {
-			if(upc.equals(products.get(i).getIdentifier())) {
-				check = true;
-			}
-		}
-		return check;
+		return positions.containsKey(upc);
 	}
 
 	/**
-	 * Modifica el precio de uno de los productos que contiene el pack.
+	 * Devuelve una versin del pack con otro precio para uno de sus productos. El pack actual no cambia,
+	 * y el nuevo comparte con l todos los dems productos.
 	 * @param upc Identificador nico del producto a modificar.
 	 * @param newPrice Precio que tendr el producto tras la modificacin.
+	 * @return Un pack nuevo con el producto modificado, o el mismo pack si no contiene el producto o ya tena ese precio.
 	 * @throws IllegalArgumentException Cuando el upc es nulo.
 	 * @throws IllegalArgumentException Cuando el upc esta vaco.
 	 * @throws IllegalArgumentException Cuando el nuevo precio es negativo o 0.
 	 * @throws IllegalArgumentException Cuando el pack a modificar esta vaco.
 	 */
-	public void changePricePack(String upc, double newPrice) {
+	@Override
+	public Pack withProductPrice(String upc, double newPrice) {
 		if (upc == null) {
 			throw
 					new IllegalArgumentException("El identificador de producto no puede ser nulo.");
@@ -217,35 +285,64 @@ public class Pack extends Vendible {
 			throw
 					new IllegalArgumentException("El identificador de producto no puede estar vaco.");
 		}
-		if (products.isEmpty()) {
+		if (members.length == 0) {
 			throw
 					new IllegalArgumentException("El pack esta vaco.");
 		}
-		for(int i=0; i<products.size(); i++) {
-			if(upc.equals(products.get(i).getIdentifier())) {
-				products.get(i).setPrice(newPrice);
+		Integer index = positions.get(upc);
+		if (index == null) {
+			if (newPrice <= 0) {
+				throw
+						new IllegalArgumentException("El nuevo precio no puede ser 0 o negativo.");
 			}
+			return this;
+		}
+		Product repriced = members[index].withPrice(newPrice);
+		if (repriced == members[index]) {
+			return this;
 		}
+		Product[] m = members.clone();
+		m[index] = repriced;
+		return new Pack(m, positions, super.getName(), super.getIdentifier());		//las posiciones no cambian, as que comparte el ndice
+	}
+	
+	/**
+	 * Consulta los UPC de los productos del pack.
+	 * @return Lista con los UPC de los productos, en el orden en que se aadieron.
+	 */
+	public ArrayList<String> getProductsUPC() {
+		ArrayList<String> upcs = new ArrayList<>(members.length);
+		for (Product product : members) {
+			upcs.add(product.getIdentifier());
+		}
+		return upcs;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta los productos del pack sin copiarlos, en el orden en que se aadieron.
+	 */
+	Collection<Product> getProducts() {
+		return Collections.unmodifiableList(Arrays.asList(members));
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta el producto del pack en la posicin recibida, sin copiarlo.
+	 */
+	Product getProduct(int index) {
+		return members[index];
 	}
 	
 	/**
-	 * Mtodo privado que comprueba que en un ArrayList de Productos reccibido 
-	 * todos los productos que lo formas sean idnticos (mismo identificador UPC).
-	 * @param p Lista de productos a comprobar.
-	 * @return True si todos los productos son iguales, false si uno o ms de ellos son diferentes.
+	 * Mtodo privado que indexa los productos por su UPC.
+	 * @return La posicin de cada producto por UPC, o null si hay productos repetidos.
 	 */
-	private boolean checkRepeated(ArrayList<Product> p) {	//Comprueba si esta repetido un producto en el arraylist de productos recibido
-		boolean repeated = false;
-		for(int i=0;i<p.size();i++) {
-			int cont = 0;									//un contador dentro de for, para que cada producto tenga su propio contador
-			String identificador = p.get(i).getIdentifier();
-			for(int j=0;j<p.size();j++) {
-				if(identificador.equals(p.get(j).getIdentifier()))
-					cont++;
+	private static HashMap<String, Integer> index(Product[] members) {
+		HashMap<String, Integer> p = new HashMap<>(members.length * 2);
+		for (int i = 0; i < members.length; i++) {
+			if (p.putIfAbsent(members[i].getIdentifier(), i) != null) {
+				return null;
 			}
-			if(cont>1)
-				repeated = true;
 		}
-		return repeated;
+		return p;
 	}
 }
@@ -0,0 +1,217 @@
+package es.uva.inf.poo.practica;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Registro de packs con un ndice inverso desde el UPC de cada producto a los packs que lo contienen,
+ * de modo que saber en qu packs est un producto, o cambiar su precio en todos ellos, no obliga a 
+ * recorrer todos los packs. Como los packs son inmutables, el registro guarda la versin actual de
+ * cada uno: cambiar un precio sustituye los packs afectados por sus versiones nuevas, y un pack al
+ * que se le aaden o quitan productos se sustituye con {@link #update(Pack)}.
+ * El registro se puede conectar a mquinas, provincias o a todo el sistema: los cambios de precio de un
+ * producto en las mquinas conectadas ({@link VendingMachine#changeProductPrice(String, double)}, tambin
+ * dentro de una transaccin) cambian su precio en los packs registrados que lo contienen, as que los
+ * packs que se obtengan despus del registro para reabastecer llevan el precio nuevo.
+ * @author rauvill, alvdela
+ *
+ */
+public class PackRegistry {
+
+	private final HashMap<String, Pack> packs;
+	private final HashMap<String, LinkedHashSet<String>> packsByUpc;		//identificadores de los packs que contienen cada UPC
+	private final FleetListener follower;
+
+	/**
+	 * Inicializa un registro sin packs.
+	 */
+	public PackRegistry() {
+		packs = new HashMap<>();
+		packsByUpc = new HashMap<>();
+		follower = new FleetListener() {
+			@Override
+			public void machineAdded(VendingCity city, VendingMachine machine) {
+				machine.setPackRegistry(PackRegistry.this);
+			}
+
+			@Override
+			public void machineRemoved(VendingCity city, VendingMachine machine) {
+				if (machine.getPackRegistry() == PackRegistry.this) {
+					machine.setPackRegistry(null);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Conecta el registro a todas las mquinas del sistema, incluidas las de las provincias y mquinas
+	 * que se aadan despus.
+	 * @param system Sistema cuyos cambios de precio se propagan al registro.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 */
+	public void attach(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		system.addFleetListener(follower);
+	}
+
+	/**
+	 * Conecta el registro a todas las mquinas de la provincia, incluidas las que se aadan despus.
+	 * @param city Provincia cuyos cambios de precio se propagan al registro.
+	 * @throws IllegalArgumentException Cuando la provincia es nula.
+	 */
+	public void attach(VendingCity city) {
+		if (city == null) {
+			throw new IllegalArgumentException("La provincia no puede ser nula.");
+		}
+		city.addFleetListener(follower);
+	}
+
+	/**
+	 * Conecta el registro a una mquina.
+	 * @param machine Mquina cuyos cambios de precio se propagan al registro.
+	 * @throws IllegalArgumentException Cuando la mquina es nula.
+	 */
+	public void attach(VendingMachine machine) {
+		if (machine == null) {
+			throw new IllegalArgumentException("La maquina no puede ser nula");
+		}
+		machine.setPackRegistry(this);
+	}
+
+	/**
+	 * Aade un pack al registro. No puede haber dos packs con el mismo identificador.
+	 * @param pack Pack a registrar.
+	 * @throws IllegalArgumentException Cuando el pack es nulo.
+	 * @throws IllegalArgumentException Cuando ya hay un pack registrado con el mismo identificador.
+	 */
+	public synchronized void register(Pack pack) {
+		if (pack == null) {
+			throw new IllegalArgumentException("El pack no puede ser nulo.");
+		}
+		if (packs.containsKey(pack.getIdentifier())) {
+			throw new IllegalArgumentException("Ya hay un pack registrado con ese identificador.");
+		}
+		packs.put(pack.getIdentifier(), pack);
+		index(pack);
+	}
+
+	/**
+	 * Sustituye un pack registrado por otra versin suya con el mismo identificador, por ejemplo
+	 * la que se obtiene al aadirle o quitarle productos.
+	 * @param pack Nueva versin del pack.
+	 * @throws IllegalArgumentException Cuando el pack es nulo.
+	 * @throws IllegalArgumentException Cuando no hay ningn pack registrado con su identificador.
+	 */
+	public synchronized void update(Pack pack) {
+		if (pack == null) {
+			throw new IllegalArgumentException("El pack no puede ser nulo.");
+		}
+		unindex(getPack(pack.getIdentifier()));
+		packs.put(pack.getIdentifier(), pack);
+		index(pack);
+	}
+
+	/**
+	 * Elimina un pack del registro.
+	 * @param idPack Identificador del pack.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo.
+	 * @throws IllegalArgumentException Cuando el pack no esta registrado.
+	 */
+	public synchronized void unregister(String idPack) {
+		Pack pack = getPack(idPack);
+		packs.remove(idPack);
+		unindex(pack);
+	}
+
+	/**
+	 * Devuelve el pack registrado con el identificador recibido.
+	 * @param idPack Identificador del pack.
+	 * @return El pack con ese identificador.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo.
+	 * @throws IllegalArgumentException Cuando el pack no esta registrado.
+	 */
+	public synchronized Pack getPack(String idPack) {
+		if (idPack == null) {
+			throw new IllegalArgumentException("El identificador no puede ser nulo.");
+		}
+		Pack pack = packs.get(idPack);
+		if (pack == null) {
+			throw new IllegalArgumentException("El pack no esta en el registro.");
+		}
+		return pack;
+	}
+
+	/**
+	 * Devuelve los packs registrados que contienen el producto con el UPC recibido.
+	 * @param upc Identificador del producto.
+	 * @return Lista de packs que contienen el producto, vaca si no hay ninguno.
+	 * @throws IllegalArgumentException Cuando el UPC es nulo.
+	 */
+	public synchronized ArrayList<Pack> getPacksContaining(String upc) {
+		if (upc == null) {
+			throw new IllegalArgumentException("El identificador UPC no puede ser nulo.");
+		}
+		ArrayList<Pack> list = new ArrayList<>();
+		LinkedHashSet<String> containing = packsByUpc.get(upc);
+		if (containing != null) {
+			for (String idPack : containing) {
+				list.add(packs.get(idPack));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Cambia el precio del producto con el UPC recibido en todos los packs registrados que lo contienen,
+	 * sustituyndolos por sus versiones con el nuevo precio. Los packs que se hayan obtenido antes
+	 * del registro conservan el precio anterior.
+	 * @param upc Identificador del producto.
+	 * @param newPrice Nuevo precio del producto.
+	 * @return Nmero de packs modificados.
+	 * @throws IllegalArgumentException Cuando el UPC es nulo.
+	 * @throws IllegalArgumentException Cuando el nuevo precio es negativo o 0.
+	 */
+	public synchronized int changeProductPrice(String upc, double newPrice) {
+		if (upc == null) {
+			throw new IllegalArgumentException("El identificador UPC no puede ser nulo.");
+		}
+		if (newPrice <= 0) {
+			throw new IllegalArgumentException("El nuevo precio no puede ser 0 o negativo.");
+		}
+		LinkedHashSet<String> containing = packsByUpc.get(upc);
+		if (containing == null) {
+			return 0;
+		}
+		for (String idPack : containing) {
+			packs.put(idPack, packs.get(idPack).withProductPrice(upc, newPrice));		//los UPC no cambian, as que el ndice sigue valiendo
+		}
+		return containing.size();
+	}
+
+	/**
+	 * Mtodo privado que aade los productos del pack al ndice inverso.
+	 */
+	private void index(Pack pack) {
+		for (String upc : pack.getProductsUPC()) {
+			packsByUpc.computeIfAbsent(upc, key -> new LinkedHashSet<>()).add(pack.getIdentifier());
+		}
+	}
+
+	/**
+	 * Mtodo privado que quita los productos del pack del ndice inverso.
+	 */
+	private void unindex(Pack pack) {
+		for (String upc : pack.getProductsUPC()) {
+			LinkedHashSet<String> containing = packsByUpc.get(upc);
+			if (containing != null) {
+				containing.remove(pack.getIdentifier());
+				if (containing.isEmpty()) {
+					packsByUpc.remove(upc);
+				}
+			}
+		}
+	}
+}
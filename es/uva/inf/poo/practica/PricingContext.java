@@ -0,0 +1,73 @@
+package es.uva.inf.poo.practica;
+
+import java.time.LocalDateTime;
+
+/**
+ * Datos de un slot que las reglas de precios pueden consultar al calcular su precio: provincia,
+ * mquina, vendible e instante para el que se calcula la tabla de precios.
+ * El motor de precios reutiliza el mismo contexto para todos los slots, por lo que las reglas no
+ * deben guardarlo.
+ * @author rauvill, alvdela
+ *
+ */
+public final class PricingContext {
+
+	private String idCity;
+	private VendingMachine machine;
+	private Vendible vendible;
+	private LocalDateTime dateTime;
+
+	PricingContext() {
+	}
+
+	void set(String idCity, VendingMachine machine, Vendible vendible, LocalDateTime dateTime) {
+		this.idCity = idCity;
+		this.machine = machine;
+		this.vendible = vendible;
+		this.dateTime = dateTime;
+	}
+
+	/**
+	 * Consulta el identificador de la provincia de la mquina.
+	 * @return El identificador de la provincia.
+	 */
+	public String getIdCity() {
+		return idCity;
+	}
+
+	/**
+	 * Consulta la mquina a la que pertenece el slot.
+	 * @return La mquina del slot.
+	 */
+	public VendingMachine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * Consulta el vendible del slot. No debe modificarse.
+	 * @return El vendible del slot.
+	 */
+	public Vendible getVendible() {
+		return vendible;
+	}
+
+	/**
+	 * Consulta el instante para el que se calculan los precios, en la zona horaria del motor.
+	 * @return Fecha y hora de la tabla de precios.
+	 */
+	public LocalDateTime getDateTime() {
+		return dateTime;
+	}
+
+	/**
+	 * Consulta cuntos das faltan para que caduque el vendible (el producto que caduca antes si es un pack).
+	 * @return Das hasta la caducidad, 0 si caduca hoy, o Long.MAX_VALUE si no tiene fecha de caducidad.
+	 */
+	public long getDaysToExpiry() {
+		int expiry = vendible.getExpiryDay();
+		if (expiry == Integer.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		return expiry - dateTime.toLocalDate().toEpochDay();
+	}
+}
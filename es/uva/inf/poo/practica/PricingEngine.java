@@ -0,0 +1,244 @@
+package es.uva.inf.poo.practica;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Motor de precios dinmicos. Las reglas (franjas horarias, rebajas por caducidad, precios por
+ * provincia, descuentos de packs...) no se evalan en cada venta: el motor las compila en una tabla
+ * con el precio de cada slot de cada mquina, y la recalcula solo cuando alguna regla puede cambiar
+ * de resultado (cambio de franja, cambio de da). As la compra solo lee una posicin de la tabla.
+ * Las tablas instaladas no se modifican nunca: cada cambio publica una tabla nueva, y una tabla
+ * calculada mientras un slot cambiaba se descarta y se vuelve a calcular.
+ * Los slots que cambian de vendible o de precio base se recalculan al reabastecerlos o al cambiar
+ * el precio. El motor sigue tambin a las provincias y mquinas que se aaden despus de conectarlo,
+ * y las mquinas que se retiran vuelven a sus precios base.
+ * @author rauvill, alvdela
+ *
+ */
+public class PricingEngine implements StockListener {
+
+	private final ZoneId zone;
+	private final CopyOnWriteArrayList<PricingRule> rules;
+	private final ConcurrentHashMap<VendingMachine, String> machines;		//mquinas seguidas y su provincia
+	private final FleetListener follower;
+
+	/**
+	 * Inicializa un motor sin reglas en la zona horaria del sistema.
+	 */
+	public PricingEngine() {
+		this(ZoneId.systemDefault());
+	}
+
+	/**
+	 * Inicializa un motor sin reglas en la zona horaria recibida.
+	 * @param zone Zona horaria con la que se evalan las reglas horarias.
+	 * @throws IllegalArgumentException Cuando la zona horaria es nula.
+	 */
+	public PricingEngine(ZoneId zone) {
+		if (zone == null) {
+			throw new IllegalArgumentException("La zona horaria no puede ser nula.");
+		}
+		this.zone = zone;
+		rules = new CopyOnWriteArrayList<>();
+		machines = new ConcurrentHashMap<>();
+		follower = new FleetListener() {
+			@Override
+			public void machineAdded(VendingCity city, VendingMachine machine) {
+				if (machines.putIfAbsent(machine, city.getIdVC()) == null) {
+					machine.addStockListener(PricingEngine.this);
+					install(machine, city.getIdVC(), LocalDateTime.now(PricingEngine.this.zone), new PricingContext());
+				}
+			}
+
+			@Override
+			public void machineRemoved(VendingCity city, VendingMachine machine) {
+				if (machines.remove(machine, city.getIdVC())) {
+					machine.removeStockListener(PricingEngine.this);
+					machine.setPriceTable(null);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Aade una regla al final de las reglas del motor. Se aplica a partir de la siguiente
+	 * actualizacin de las tablas.
+	 * @param rule Regla a aadir.
+	 * @throws IllegalArgumentException Cuando la regla es nula.
+	 */
+	public void addRule(PricingRule rule) {
+		if (rule == null) {
+			throw new IllegalArgumentException("La regla no puede ser nula.");
+		}
+		rules.add(rule);
+	}
+
+	/**
+	 * Aplica el motor a todas las mquinas del sistema, incluidas las de las provincias y mquinas que
+	 * se aadan despus.
+	 * @param system Sistema al que se aplica el motor.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 */
+	public void attach(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		system.addFleetListener(follower);
+	}
+
+	/**
+	 * Aplica el motor a todas las mquinas de la provincia, incluidas las que se aadan despus.
+	 * @param city Provincia a la que se aplica el motor.
+	 * @throws IllegalArgumentException Cuando la provincia es nula.
+	 */
+	public void attach(VendingCity city) {
+		if (city == null) {
+			throw new IllegalArgumentException("La provincia no puede ser nula.");
+		}
+		city.addFleetListener(follower);
+	}
+
+	/**
+	 * Recalcula las tablas de precios de todas las mquinas para el instante recibido.
+	 * @param nowMillis Instante para el que se calculan los precios.
+	 * @return El siguiente instante en el que hay que volver a recalcular, o Long.MAX_VALUE si las
+	 * reglas no dependen de la hora.
+	 */
+	public long refresh(long nowMillis) {
+		LocalDateTime now = LocalDateTime.ofInstant(Instant.ofEpochMilli(nowMillis), zone);
+		PricingContext context = new PricingContext();
+		machines.forEach((machine, idCity) -> install(machine, idCity, now, context));
+		LocalDateTime next = null;
+		for (PricingRule rule : rules) {
+			LocalDateTime boundary = rule.nextBoundary(now);
+			if (boundary != null && (next == null || boundary.isBefore(next))) {
+				next = boundary;
+			}
+		}
+		return next == null ? Long.MAX_VALUE : next.atZone(zone).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * Recalcula las tablas de precios ahora y programa las siguientes actualizaciones en cada
+	 * instante en que alguna regla cambia de resultado.
+	 * @param scheduler Planificador en el que se ejecutan las actualizaciones.
+	 * @throws IllegalArgumentException Cuando el planificador es nulo.
+	 */
+	public void schedule(ScheduledExecutorService scheduler) {
+		if (scheduler == null) {
+			throw new IllegalArgumentException("El planificador no puede ser nulo.");
+		}
+		long now = System.currentTimeMillis();
+		long next = refresh(now);
+		if (next != Long.MAX_VALUE && !scheduler.isShutdown()) {
+			scheduler.schedule(() -> schedule(scheduler), next - now, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Calcula el precio de un slot que se ha quedado sin precio compilado al cambiar de vendible.
+	 * Lo llaman las mquinas seguidas; el vendible se vuelve a leer de la mquina.
+	 */
+	@Override
+	public void stockChanged(VendingMachine machine, String idSlot, String idVendible, int stock) {
+		String idCity = machines.get(machine);
+		if (idCity == null) {
+			return;
+		}
+		int index = machine.indexOf(idSlot);
+		PricingContext context = null;
+		double[] table;
+		double[] repriced;
+		do {
+			table = machine.getPriceTable();
+			if (table == null || !Double.isNaN(table[index]) || machine.getVendible(index) == null) {
+				return;
+			}
+			if (context == null) {
+				context = new PricingContext();
+			}
+			double price = price(machine, index, idCity, LocalDateTime.now(zone), context);
+			if (Double.isNaN(price)) {
+				return;
+			}
+			repriced = table.clone();
+			repriced[index] = price;
+		} while (!machine.replacePriceTable(table, repriced));
+	}
+
+	/**
+	 * Recalcula los slots que se han quedado sin precio compilado al cambiar el precio base de un
+	 * producto. Lo llaman las mquinas seguidas.
+	 */
+	@Override
+	public void priceChanged(VendingMachine machine, String upc, double newPrice) {
+		String idCity = machines.get(machine);
+		if (idCity == null) {
+			return;
+		}
+		PricingContext context = new PricingContext();
+		LocalDateTime now = LocalDateTime.now(zone);
+		double[] table;
+		double[] repriced;
+		do {
+			table = machine.getPriceTable();
+			if (table == null) {
+				return;
+			}
+			repriced = null;
+			for (int i = 0; i < table.length; i++) {
+				if (Double.isNaN(table[i]) && machine.getVendible(i) != null) {
+					if (repriced == null) {
+						repriced = table.clone();
+					}
+					repriced[i] = price(machine, i, idCity, now, context);
+				}
+			}
+			if (repriced == null) {
+				return;
+			}
+		} while (!machine.replacePriceTable(table, repriced));
+	}
+
+	/**
+	 * Mtodo privado que calcula la tabla de precios de una mquina y la instala. Si algn slot cambia
+	 * mientras se calcula, la mquina publica otra tabla y se vuelve a calcular.
+	 */
+	private void install(VendingMachine machine, String idCity, LocalDateTime now, PricingContext context) {
+		double[] table;
+		double[] compiled;
+		do {
+			table = machine.getPriceTable();
+			compiled = new double[machine.getNumSlots()];
+			for (int i = 0; i < compiled.length; i++) {
+				compiled[i] = price(machine, i, idCity, now, context);
+			}
+		} while (!machine.replacePriceTable(table, compiled));
+		if (!idCity.equals(machines.get(machine))) {
+			machine.replacePriceTable(compiled, null);						//se ha retirado mientras se calculaba
+		}
+	}
+
+	/**
+	 * Mtodo privado que aplica las reglas al precio base de un slot. Si el slot esta vaco, o alguna
+	 * regla da un precio no vlido, el slot queda con el precio base (NaN en la tabla).
+	 */
+	private double price(VendingMachine machine, int index, String idCity, LocalDateTime now, PricingContext context) {
+		Vendible vendible = machine.getVendible(index);
+		if (vendible == null) {
+			return Double.NaN;
+		}
+		context.set(idCity, machine, vendible, now);
+		double price = machine.getBasePrice(index);
+		for (PricingRule rule : rules) {
+			price = rule.apply(context, price);
+		}
+		return price > 0 ? price : Double.NaN;
+	}
+}
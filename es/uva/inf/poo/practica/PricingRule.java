@@ -0,0 +1,134 @@
+package es.uva.inf.poo.practica;
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+/**
+ * Regla del motor de precios, que modifica el precio de un slot en funcin de su contexto.
+ * Las reglas se aplican en el orden en que se aaden al motor, cada una sobre el precio que deja la anterior.
+ * @author rauvill, alvdela
+ *
+ */
+public interface PricingRule {
+
+	/**
+	 * Calcula el precio del slot tras aplicar la regla.
+	 * @param context Datos del slot.
+	 * @param price Precio del slot antes de aplicar la regla.
+	 * @return Precio del slot tras aplicar la regla, mayor que 0.
+	 */
+	double apply(PricingContext context, double price);
+
+	/**
+	 * Consulta el siguiente instante en el que el resultado de la regla puede cambiar sin que cambie
+	 * el slot, para que el motor recalcule entonces las tablas de precios.
+	 * @param now Instante actual.
+	 * @return El siguiente instante de cambio, o null si la regla no depende de la hora.
+	 */
+	default LocalDateTime nextBoundary(LocalDateTime now) {
+		return null;
+	}
+
+	/**
+	 * Regla que multiplica el precio durante una franja horaria de cada da, por ejemplo para
+	 * encarecer la hora punta. Si el final es anterior al inicio, la franja cruza la medianoche.
+	 * @param from Hora de inicio de la franja (incluida).
+	 * @param to Hora de fin de la franja (excluida).
+	 * @param factor Factor por el que se multiplica el precio.
+	 * @return La regla.
+	 * @throws IllegalArgumentException Cuando alguna hora es nula.
+	 * @throws IllegalArgumentException Cuando el factor no es positivo.
+	 */
+	static PricingRule timeOfDay(LocalTime from, LocalTime to, double factor) {
+		if (from == null || to == null) {
+			throw new IllegalArgumentException("Las horas de la franja no pueden ser nulas.");
+		}
+		if (factor <= 0) {
+			throw new IllegalArgumentException("El factor debe ser positivo.");
+		}
+		return new PricingRule() {
+			@Override
+			public double apply(PricingContext context, double price) {
+				LocalTime time = context.getDateTime().toLocalTime();
+				boolean inside = from.isAfter(to) ? !time.isBefore(from) || time.isBefore(to) : !time.isBefore(from) && time.isBefore(to);
+				return inside ? price * factor : price;
+			}
+
+			@Override
+			public LocalDateTime nextBoundary(LocalDateTime now) {
+				LocalDateTime start = now.toLocalDate().atTime(from);
+				LocalDateTime end = now.toLocalDate().atTime(to);
+				if (!start.isAfter(now)) {
+					start = start.plusDays(1);
+				}
+				if (!end.isAfter(now)) {
+					end = end.plusDays(1);
+				}
+				return start.isBefore(end) ? start : end;
+			}
+		};
+	}
+
+	/**
+	 * Regla que rebaja los vendibles a los que les quedan pocos das para caducar.
+	 * @param days Das antes de la caducidad a partir de los que se aplica la rebaja (0 para el mismo da).
+	 * @param factor Factor por el que se multiplica el precio.
+	 * @return La regla.
+	 * @throws IllegalArgumentException Cuando los das son negativos.
+	 * @throws IllegalArgumentException Cuando el factor no es positivo.
+	 */
+	static PricingRule expiryMarkdown(int days, double factor) {
+		if (days < 0) {
+			throw new IllegalArgumentException("Los das no pueden ser negativos.");
+		}
+		if (factor <= 0) {
+			throw new IllegalArgumentException("El factor debe ser positivo.");
+		}
+		return new PricingRule() {
+			@Override
+			public double apply(PricingContext context, double price) {
+				return context.getDaysToExpiry() <= days ? price * factor : price;
+			}
+
+			@Override
+			public LocalDateTime nextBoundary(LocalDateTime now) {
+				return now.toLocalDate().plusDays(1).atStartOfDay();
+			}
+		};
+	}
+
+	/**
+	 * Regla que fija el precio de un vendible en todas las mquinas de una provincia.
+	 * @param idCity Identificador de la provincia.
+	 * @param idVendible Identificador del vendible.
+	 * @param price Precio fijo del vendible en la provincia.
+	 * @return La regla.
+	 * @throws IllegalArgumentException Cuando algn identificador es nulo.
+	 * @throws IllegalArgumentException Cuando el precio no es positivo.
+	 */
+	static PricingRule cityOverride(String idCity, String idVendible, double price) {
+		if (idCity == null || idVendible == null) {
+			throw new IllegalArgumentException("Los identificadores no pueden ser nulos.");
+		}
+		if (price <= 0) {
+			throw new IllegalArgumentException("El precio no puede ser 0 o negativo.");
+		}
+		return (context, current) -> idCity.equals(context.getIdCity())
+				&& idVendible.equals(context.getVendible().getIdentifier()) ? price : current;
+	}
+
+	/**
+	 * Regla que sustituye el descuento fijo de los packs: el precio de un pack pasa a ser la suma de
+	 * los precios de sus productos multiplicada por el factor recibido.
+	 * @param factor Factor que se aplica a la suma de los precios de los productos del pack.
+	 * @return La regla.
+	 * @throws IllegalArgumentException Cuando el factor no es positivo.
+	 */
+	static PricingRule packDiscount(double factor) {
+		if (factor <= 0) {
+			throw new IllegalArgumentException("El factor debe ser positivo.");
+		}
+		return (context, price) -> context.getVendible() instanceof Pack
+				? ((Pack) context.getVendible()).getProductsPrice() * factor : price;
+	}
+}
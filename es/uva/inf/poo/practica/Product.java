@@ -1,18 +1,21 @@
 package es.uva.inf.poo.practica;
 
+import java.time.LocalDate;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
 /**
  * Clase que hereda de Vendible, e implementa la funcionalidad de un producto perteneciente a un slot
  * de una mquina de vending.
+ * Los productos son inmutables: cambiar el precio devuelve una versin nueva del producto, por lo que
+ * varios slots, mquinas y packs pueden compartir la misma instancia sin copiarla.
  * @author rauvill, alvdela
  *
  */
 public class Product extends Vendible{
 
-	private double price;						//ahora el upc es el identifier que hereda de vendible
-	private Calendar expiryDate;
+	private final double price;					//ahora el upc es el identifier que hereda de vendible
+	private final int expiryDay;						//das desde 1970-01-01: ocupa menos que un Calendar y se compara sin crear objetos
 	
 	/**
 	 * Inicializa un producto con un precio que puede tener decimales, una fecha de caducidad,
@@ -58,9 +61,29 @@ public class Product extends Vendible{
 			throw
 					new IllegalArgumentException("El UPC no es vlido.");
 		}
-		this.setPrice(price);							//en el setPrice ya controlo la excepcion de que sea 0 o negativo
-		this.expiryDate = new GregorianCalendar();
-		this.expiryDate.set(expiryDate.get(Calendar.YEAR), expiryDate.get(Calendar.MONTH), expiryDate.get(Calendar.DAY_OF_MONTH));
+		if (price <= 0) {
+			throw
+					new IllegalArgumentException("El precio no puede ser 0 o negativo.");
+		}
+		this.price = price;
+		this.expiryDay = (int) LocalDate.of(expiryDate.get(Calendar.YEAR), expiryDate.get(Calendar.MONTH) + 1, expiryDate.get(Calendar.DAY_OF_MONTH)).toEpochDay();
+	}
+	
+	/**
+	 * Constructor privado que inicializa un producto ya validado, sin volver a comprobar el UPC ni la fecha de caducidad.
+	 */
+	private Product(String name, String upc, double price, int expiryDay) {
+		super(name, upc);
+		this.price = price;
+		this.expiryDay = expiryDay;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que reconstruye un producto guardado, que pudo validarse cuando
+	 * todava no haba caducado.
+	 */
+	static Product restore(double price, int year, int month, int day, String name, String upc) {
+		return new Product(name, upc, price, (int) LocalDate.of(year, month + 1, day).toEpochDay());
 	}
 	
 	/**
@@ -72,16 +95,26 @@ public class Product extends Vendible{
 	}
 	
 	/**
-	 * Modifica el precio del producto.
+	 * Devuelve una versin del producto con otro precio. El producto actual no cambia.
 	 * @param price nuevo precio del producto.
+	 * @return Un producto igual que el actual pero con el nuevo precio, o el mismo producto si el precio no cambia.
 	 * @throws IllegalArgumentException Si el precio recibido es negativo o 0.
 	 */
-	public void setPrice(double price) {
+	public Product withPrice(double price) {
 		if (price <= 0) {
 			throw
 					new IllegalArgumentException("El nuevo precio no puede ser 0 o negativo.");
 		}
-		this.price = price;
+		return price == this.price ? this : new Product(super.getName(), super.getIdentifier(), price, expiryDay);
+	}
+	
+	@Override
+	public Product withProductPrice(String upc, double newPrice) {
+		if (upc == null) {
+			throw
+					new IllegalArgumentException("El identificador de producto no puede ser nulo.");
+		}
+		return upc.equals(super.getIdentifier()) ? withPrice(newPrice) : this;
 	}
 	
 	/**
@@ -89,13 +122,32 @@ public class Product extends Vendible{
 	 * @return Un objeto Calendar con la fecha de caducidad.
 	 */
 	public Calendar getExpiryDate() {
-		Calendar c = new GregorianCalendar();
-		c.set(expiryDate.get(Calendar.YEAR), expiryDate.get(Calendar.MONTH), expiryDate.get(Calendar.DAY_OF_MONTH));
-		return c;
+		return toCalendar(expiryDay);
+	}
+	
+	@Override
+	int getExpiryDay() {
+		return expiryDay;
 	}
 	
 	public Product duplicate() {				//no hace falta ponerle javadoc porque el javadoc que se lee es el del padre
-		return new Product(price, expiryDate, super.getName(), super.getIdentifier());
+		if (expiryDay < LocalDate.now().toEpochDay()) {				//el UPC ya se comprob al crear el original, solo puede haber caducado
+			throw
+					new IllegalArgumentException("La fecha de caducidad no puede ser anterior a la actual.");
+		}
+		return this;							//es inmutable, as que se puede compartir en vez de copiarlo
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que construye la fecha de caducidad correspondiente a un da.
+	 * @param day Das desde 1970-01-01.
+	 * @return Un objeto Calendar nuevo con esa fecha.
+	 */
+	static Calendar toCalendar(int day) {
+		LocalDate date = LocalDate.ofEpochDay(day);
+		Calendar c = new GregorianCalendar();
+		c.set(date.getYear(), date.getMonthValue() - 1, date.getDayOfMonth());
+		return c;
 	}
 	
 	/**
@@ -0,0 +1,128 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Reserva de unidades de un slot de una mquina para un pedido hecho desde la aplicacin, que el cliente
+ * recoge despus en la mquina. Mientras esta pendiente, sus unidades no se pueden comprar ni reservar
+ * de nuevo. La crea y la gestiona un {@link ReservationManager}.
+ * @author rauvill, alvdela
+ *
+ */
+public class Reservation {
+
+	/**
+	 * Estado de una reserva.
+	 */
+	public enum State {
+		/** Las unidades siguen reservadas a la espera de que el cliente las recoja. */
+		PENDING,
+		/** El cliente ha recogido las unidades. */
+		CONFIRMED,
+		/** Se ha cancelado la reserva y sus unidades vuelven a estar disponibles. */
+		CANCELLED,
+		/** Ha pasado su tiempo de validez sin recogerla y sus unidades vuelven a estar disponibles. */
+		EXPIRED
+	}
+
+	private final String token;
+	private final VendingMachine machine;
+	private final String idSlot;
+	private final String idVendible;
+	private final int index;
+	private final int units;
+	private final double price;
+	private final long expiresAtMillis;
+	private State state;
+	TimingWheel.Node<Reservation> expiry;							//nodo en la rueda de caducidades mientras esta pendiente
+
+	Reservation(String token, VendingMachine machine, String idSlot, String idVendible, int index, int units, double price, long expiresAtMillis) {
+		this.token = token;
+		this.machine = machine;
+		this.idSlot = idSlot;
+		this.idVendible = idVendible;
+		this.index = index;
+		this.units = units;
+		this.price = price;
+		this.expiresAtMillis = expiresAtMillis;
+		state = State.PENDING;
+	}
+
+	/**
+	 * Consulta el identificador de la reserva.
+	 * @return El identificador con el que se confirma o cancela.
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Consulta la mquina de la reserva.
+	 * @return La mquina en la que estan reservadas las unidades.
+	 */
+	public VendingMachine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * Consulta el slot de la reserva.
+	 * @return Identificador del slot.
+	 */
+	public String getIdSlot() {
+		return idSlot;
+	}
+
+	/**
+	 * Consulta el vendible reservado.
+	 * @return Identificador del vendible que haba en el slot al reservar.
+	 */
+	public String getIdVendible() {
+		return idVendible;
+	}
+
+	/**
+	 * Consulta las unidades reservadas.
+	 * @return Nmero de unidades.
+	 */
+	public int getUnits() {
+		return units;
+	}
+
+	/**
+	 * Consulta el precio por unidad fijado al reservar, que es el que se cobra en la aplicacin.
+	 * @return Precio de venta de cada unidad.
+	 */
+	public double getPrice() {
+		return price;
+	}
+
+	/**
+	 * Consulta el instante en el que caduca la reserva si no se recoge.
+	 * @return Instante de caducidad en milisegundos.
+	 */
+	public long getExpiresAtMillis() {
+		return expiresAtMillis;
+	}
+
+	/**
+	 * Consulta el estado de la reserva.
+	 * @return El estado actual.
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Mtodo visible en el paquete que cambia el estado de una reserva pendiente.
+	 * @return True si estaba pendiente y se ha cambiado, false si ya haba terminado.
+	 */
+	synchronized boolean finish(State next) {
+		if (state != State.PENDING) {
+			return false;
+		}
+		state = next;
+		return true;
+	}
+}
@@ -0,0 +1,208 @@
+package es.uva.inf.poo.practica;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gestor de las reservas de unidades para pedidos de la aplicacin: reserva unidades de un slot para un
+ * identificador durante un tiempo, y las confirma cuando el cliente las recoge o las libera al cancelarlas
+ * o al caducar. Las existencias disponibles de las mquinas ({@link VendingMachine#getAvailableStock(String)})
+ * excluyen las unidades reservadas.
+ * Las caducidades se llevan en una {@link TimingWheel} que un hilo en segundo plano avanza cada tick, as
+ * que reservar, cancelar y caducar cuestan O(1) por reserva, sin un temporizador por reserva ni recorrer
+ * las pendientes, aunque haya millones.
+ * Las reservas solo se guardan en memoria: una mquina que se descarga y se vuelve a cargar (por ejemplo
+ * en {@link LazyVendingCity}) no conserva sus unidades reservadas.
+ * @author rauvill, alvdela
+ *
+ */
+public class ReservationManager implements AutoCloseable {
+
+	/** Duracin del tick por defecto, que es la precisin de las caducidades: 100 ms. */
+	public static final long DEFAULT_TICK_MILLIS = 100;
+
+	private final ConcurrentHashMap<String, Reservation> reservations;
+	private final TimingWheel<Reservation> wheel;
+	private final ScheduledExecutorService ticker;
+
+	/**
+	 * Inicializa el gestor con ticks de 100 ms.
+	 */
+	public ReservationManager() {
+		this(DEFAULT_TICK_MILLIS);
+	}
+
+	/**
+	 * Inicializa el gestor y empieza a caducar las reservas cada tick.
+	 * @param tickMillis Duracin del tick en milisegundos.
+	 * @throws IllegalArgumentException Cuando la duracin del tick no es positiva.
+	 */
+	public ReservationManager(long tickMillis) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("La duracin del tick debe ser positiva.");
+		}
+		reservations = new ConcurrentHashMap<>();
+		wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+		ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "vending-reservations");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleAtFixedRate(this::expireDue, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reserva unidades de un slot de una mquina para un identificador. El precio por unidad queda fijado
+	 * al de venta actual del slot.
+	 * @param machine Mquina.
+	 * @param idSlot Identificador del slot.
+	 * @param units Unidades a reservar.
+	 * @param token Identificador de la reserva, nico entre las reservas pendientes.
+	 * @param ttl Tiempo que se mantiene la reserva si no se confirma.
+	 * @param unit Unidad del tiempo de validez.
+	 * @return La reserva creada.
+	 * @throws IllegalArgumentException Cuando la mquina, el identificador o la unidad son nulos.
+	 * @throws IllegalArgumentException Cuando el identificador de la reserva esta vaco.
+	 * @throws IllegalArgumentException Cuando las unidades o el tiempo de validez no son positivos.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo, esta vaco o no esta en la mquina.
+	 * @throws IllegalArgumentException Cuando ya hay una reserva pendiente con ese identificador.
+	 * @throws IllegalArgumentException Cuando el slot no tiene tantas unidades disponibles.
+	 * @throws IllegalStateException Cuando la mquina no esta operativa o el slot esta bloqueado.
+	 */
+	public Reservation reserve(VendingMachine machine, String idSlot, int units, String token, long ttl, TimeUnit unit) {
+		if (machine == null) {
+			throw new IllegalArgumentException("La maquina no puede ser nula");
+		}
+		if (token == null) {
+			throw new IllegalArgumentException("El identificador de la reserva no puede ser nulo.");
+		}
+		if (token.isEmpty()) {
+			throw new IllegalArgumentException("El identificador de la reserva no puede estar vaco.");
+		}
+		if (units <= 0) {
+			throw new IllegalArgumentException("Las unidades a reservar deben ser positivas.");
+		}
+		if (unit == null || ttl <= 0) {
+			throw new IllegalArgumentException("El tiempo de validez debe ser positivo.");
+		}
+		int index = machine.slotIndex(idSlot);
+		String[] idVendible = new String[1];
+		double price = machine.reserveUnits(index, units, idVendible);
+		Reservation reservation = new Reservation(token, machine, idSlot, idVendible[0], index, units, price,
+				System.currentTimeMillis() + unit.toMillis(ttl));
+		if (reservations.putIfAbsent(token, reservation) != null) {
+			machine.releaseReserved(index, units);
+			throw new IllegalArgumentException("Ya hay una reserva pendiente con ese identificador.");
+		}
+		synchronized (wheel) {
+			reservation.expiry = wheel.schedule(reservation, reservation.getExpiresAtMillis());
+		}
+		return reservation;
+	}
+
+	/**
+	 * Confirma una reserva cuando el cliente recoge las unidades: salen de la mquina como una venta ya
+	 * cobrada en la aplicacin, al precio fijado al reservar.
+	 * @param token Identificador de la reserva.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo.
+	 * @throws IllegalArgumentException Cuando no hay ninguna reserva pendiente con ese identificador.
+	 * @throws IllegalStateException Cuando la mquina no esta operativa o el slot esta bloqueado; la reserva sigue pendiente.
+	 * @throws IllegalStateException Cuando el slot ya no tiene las unidades o el vendible reservados; la reserva sigue pendiente.
+	 */
+	public void confirm(String token) {
+		Reservation reservation = pending(token);
+		reservation.getMachine().dispenseReserved(reservation.getIndex(), reservation.getUnits(), reservation.getIdVendible(),
+				reservation.getPrice(), () -> {
+			if (!end(reservation, Reservation.State.CONFIRMED)) {
+				throw new IllegalArgumentException("No hay ninguna reserva pendiente con ese identificador.");
+			}
+		});
+	}
+
+	/**
+	 * Cancela una reserva y libera sus unidades.
+	 * @param token Identificador de la reserva.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo.
+	 * @throws IllegalArgumentException Cuando no hay ninguna reserva pendiente con ese identificador.
+	 */
+	public void cancel(String token) {
+		Reservation reservation = pending(token);
+		if (!end(reservation, Reservation.State.CANCELLED)) {
+			throw new IllegalArgumentException("No hay ninguna reserva pendiente con ese identificador.");
+		}
+		reservation.getMachine().releaseReserved(reservation.getIndex(), reservation.getUnits());
+	}
+
+	/**
+	 * Consulta una reserva pendiente.
+	 * @param token Identificador de la reserva.
+	 * @return La reserva, o null si no hay ninguna pendiente con ese identificador.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo.
+	 */
+	public Reservation getReservation(String token) {
+		if (token == null) {
+			throw new IllegalArgumentException("El identificador de la reserva no puede ser nulo.");
+		}
+		return reservations.get(token);
+	}
+
+	/**
+	 * Consulta el nmero de reservas pendientes.
+	 * @return Reservas pendientes.
+	 */
+	public int getPending() {
+		return reservations.size();
+	}
+
+	/**
+	 * Caduca las reservas vencidas y libera sus unidades. Lo ejecuta cada tick el hilo del gestor.
+	 * @return Nmero de reservas caducadas.
+	 */
+	public int expireDue() {
+		long now = System.currentTimeMillis();
+		synchronized (wheel) {
+			return wheel.advance(now, reservation -> {
+				if (reservation.finish(Reservation.State.EXPIRED)) {
+					reservations.remove(reservation.getToken(), reservation);
+					reservation.getMachine().releaseReserved(reservation.getIndex(), reservation.getUnits());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Detiene el hilo que caduca las reservas. Las reservas pendientes mantienen sus unidades reservadas
+	 * hasta que se confirmen o cancelen.
+	 */
+	@Override
+	public void close() {
+		ticker.shutdown();
+	}
+
+	private Reservation pending(String token) {
+		Reservation reservation = getReservation(token);
+		if (reservation == null) {
+			throw new IllegalArgumentException("No hay ninguna reserva pendiente con ese identificador.");
+		}
+		return reservation;
+	}
+
+	/**
+	 * Mtodo privado que termina una reserva pendiente y la saca del gestor y de la rueda.
+	 * @return True si estaba pendiente, false si otro hilo ya la haba terminado.
+	 */
+	private boolean end(Reservation reservation, Reservation.State state) {
+		if (!reservation.finish(state)) {
+			return false;
+		}
+		reservations.remove(reservation.getToken(), reservation);
+		synchronized (wheel) {
+			if (reservation.expiry != null) {
+				wheel.cancel(reservation.expiry);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,293 @@
+package es.uva.inf.poo.practica;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Planificador de reabastecimiento de las mquinas de una provincia(ciudad).
+ * Mantiene al da el dficit de cada slot (unidades que faltan hasta su nivel objetivo) a medida
+ * que se venden y reabastecen vendibles, junto con el total por vendible y por mquina, de forma
+ * que cada cambio de existencias solo actualiza su slot y las listas de carga no tienen que
+ * recorrer todas las mquinas: las mquinas y los vendibles con unidades pendientes se mantienen
+ * ordenados por urgencia, y las listas solo recorren los que faltan por cargar.
+ * Los slots se asocian al ltimo vendible que han contenido, as que un slot que se vaca sigue
+ * pidiendo ese vendible.
+ * @author rauvill, alvdela
+ *
+ */
+public class RestockPlanner implements StockListener {
+
+	private final int defaultTarget;
+	private final HashMap<String, MachineDeficit> machines;
+	private final HashMap<String, Demand> demands;
+	private final TreeSet<Demand> route;				//mquinas con unidades pendientes, por urgencia
+	private final TreeSet<Demand> pickList;				//vendibles con unidades pendientes, por urgencia
+
+	/**
+	 * Inicializa el planificador de la provincia recibida, con el mismo nivel objetivo para
+	 * todos los slots, y empieza a seguir todas sus mquinas.
+	 * @param city Provincia a planificar.
+	 * @param defaultTarget Unidades que debera tener cada slot tras reabastecerlo.
+	 * @throws IllegalArgumentException Cuando la provincia es nula.
+	 * @throws IllegalArgumentException Cuando el nivel objetivo no es positivo.
+	 */
+	public RestockPlanner(VendingCity city, int defaultTarget) {
+		if (city == null) {
+			throw new IllegalArgumentException("La provincia no puede ser nula.");
+		}
+		if (defaultTarget <= 0) {
+			throw new IllegalArgumentException("El nivel objetivo debe ser positivo.");
+		}
+		this.defaultTarget = defaultTarget;
+		machines = new HashMap<>();
+		demands = new HashMap<>();
+		route = new TreeSet<>();
+		pickList = new TreeSet<>();
+		city.streamMachines().forEach(this::track);
+	}
+
+	/**
+	 * Empieza a seguir una mquina, por ejemplo una aadida a la provincia despus de crear el
+	 * planificador. Recorre sus slots una nica vez y a partir de ah se actualiza con cada cambio.
+	 * @param machine Mquina a seguir.
+	 * @throws IllegalArgumentException Cuando la mquina es nula.
+	 * @throws IllegalArgumentException Cuando ya se segua una mquina con el mismo identificador.
+	 */
+	public synchronized void track(VendingMachine machine) {
+		if (machine == null) {
+			throw new IllegalArgumentException("La maquina no puede ser nula");
+		}
+		if (machines.containsKey(machine.getIdMachine())) {
+			throw new IllegalArgumentException("La maquina ya esta en el planificador");
+		}
+		machines.put(machine.getIdMachine(), new MachineDeficit(machine));
+		for (int i = 0; i < machine.getNumSlots(); i++) {
+			String idVendible = machine.getVendibleId(i);
+			if (idVendible != null) {
+				stockChanged(machine, machine.getSlotId(i), idVendible, machine.getStock(i));
+			}
+		}
+		machine.addStockListener(this);
+	}
+
+	/**
+	 * Deja de seguir una mquina, por ejemplo al eliminarla de la provincia.
+	 * @param machine Mquina que se deja de seguir.
+	 * @throws IllegalArgumentException Cuando la mquina es nula.
+	 * @throws IllegalArgumentException Cuando la mquina no estaba en el planificador.
+	 */
+	public synchronized void untrack(VendingMachine machine) {
+		if (machine == null) {
+			throw new IllegalArgumentException("La maquina no puede ser nula");
+		}
+		MachineDeficit deficit = machines.remove(machine.getIdMachine());
+		if (deficit == null) {
+			throw new IllegalArgumentException("La maquina no esta en el planificador");
+		}
+		machine.removeStockListener(this);
+		for (SlotDeficit slot : deficit.slots.values()) {
+			apply(deficit, slot, -1);
+		}
+	}
+
+	/**
+	 * Cambia el nivel objetivo de un slot de una mquina.
+	 * @param idMachine Identificador de la mquina.
+	 * @param idSlot Identificador del slot.
+	 * @param target Unidades que debera tener el slot tras reabastecerlo.
+	 * @throws IllegalArgumentException Cuando algn identificador es nulo.
+	 * @throws IllegalArgumentException Cuando el nivel objetivo no es positivo.
+	 * @throws IllegalArgumentException Cuando la mquina no esta en el planificador.
+	 * @throws IllegalArgumentException Cuando el identificador del slot esta vaco o el slot no se encuentra en la mquina.
+	 */
+	public synchronized void setTargetLevel(String idMachine, String idSlot, int target) {
+		if (idSlot == null) {
+			throw new IllegalArgumentException("El identificador del slot no puede ser nulo.");
+		}
+		if (target <= 0) {
+			throw new IllegalArgumentException("El nivel objetivo debe ser positivo.");
+		}
+		MachineDeficit machine = findMachine(idMachine);
+		machine.machine.slotIndex(idSlot);
+		SlotDeficit slot = machine.slots.computeIfAbsent(idSlot, id -> new SlotDeficit(defaultTarget));
+		apply(machine, slot, -1);
+		slot.target = target;
+		apply(machine, slot, 1);
+	}
+
+	/**
+	 * Actualiza el dficit del slot que ha cambiado. Lo llaman las mquinas seguidas.
+	 */
+	@Override
+	public synchronized void stockChanged(VendingMachine machine, String idSlot, String idVendible, int stock) {
+		MachineDeficit deficit = machines.get(machine.getIdMachine());
+		if (deficit == null) {
+			return;
+		}
+		SlotDeficit slot = deficit.slots.computeIfAbsent(idSlot, id -> new SlotDeficit(defaultTarget));
+		apply(deficit, slot, -1);
+		slot.idVendible = idVendible;
+		slot.stock = stock;
+		apply(deficit, slot, 1);
+	}
+
+	/**
+	 * Devuelve la lista de carga de la provincia: las unidades que faltan de cada vendible
+	 * (producto o pack) sumando todas las mquinas, ordenada por urgencia: primero los vendibles
+	 * con ms slots vacos y, a igualdad, los que ms unidades necesitan.
+	 * @return Lista de pares (identificador del vendible, unidades a cargar).
+	 */
+	public synchronized ArrayList<SimpleEntry<String, Integer>> getPickList() {
+		return toList(pickList);
+	}
+
+	/**
+	 * Devuelve la ruta de reabastecimiento: las mquinas a las que les faltan unidades, ordenadas
+	 * por urgencia (primero las que tienen ms slots vacos y, a igualdad, las que necesitan ms unidades).
+	 * @return Lista de pares (identificador de la mquina, unidades a cargar).
+	 */
+	public synchronized ArrayList<SimpleEntry<String, Integer>> getRoute() {
+		return toList(route);
+	}
+
+	/**
+	 * Devuelve la lista de carga de una mquina: las unidades que faltan en cada uno de sus slots,
+	 * con los slots vacos primero.
+	 * @param idMachine Identificador de la mquina.
+	 * @return Lista de pares (identificador del slot, unidades a cargar).
+	 * @throws IllegalArgumentException Cuando el identificador es nulo.
+	 * @throws IllegalArgumentException Cuando la mquina no esta en el planificador.
+	 */
+	public synchronized ArrayList<SimpleEntry<String, Integer>> getMachinePickList(String idMachine) {
+		MachineDeficit machine = findMachine(idMachine);
+		ArrayList<Map.Entry<String, SlotDeficit>> pending = new ArrayList<>(machine.slots.entrySet());
+		pending.sort((a, b) -> Integer.compare(b.getValue().deficit(), a.getValue().deficit()));
+		ArrayList<SimpleEntry<String, Integer>> list = new ArrayList<>();
+		for (Map.Entry<String, SlotDeficit> entry : pending) {
+			if (entry.getValue().deficit() > 0) {
+				list.add(new SimpleEntry<>(entry.getKey(), entry.getValue().deficit()));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Mtodo privado que suma (sign = 1) o resta (sign = -1) la aportacin de un slot a los totales de su
+	 * mquina y de su vendible, recolocndolos en las listas ordenadas.
+	 */
+	private void apply(MachineDeficit machine, SlotDeficit slot, int sign) {
+		if (slot.idVendible == null) {
+			return;
+		}
+		int units = sign * slot.deficit();
+		int empty = slot.stock == 0 ? sign : 0;
+		adjust(route, machine, units, empty);
+		Demand demand = demands.get(slot.idVendible);
+		if (demand == null) {
+			demand = new Demand(slot.idVendible);
+			demands.put(slot.idVendible, demand);
+		}
+		adjust(pickList, demand, units, empty);
+		if (demand.units == 0 && demand.emptySlots == 0) {
+			demands.remove(slot.idVendible);
+		}
+	}
+
+	/**
+	 * Mtodo privado que cambia los totales de una mquina o vendible. Se saca de su lista ordenada antes
+	 * de cambiarlos y se vuelve a meter despus si le siguen faltando unidades.
+	 */
+	private static void adjust(TreeSet<Demand> ranking, Demand demand, int units, int empty) {
+		if (units == 0 && empty == 0) {
+			return;
+		}
+		if (demand.units > 0) {
+			ranking.remove(demand);
+		}
+		demand.units += units;
+		demand.emptySlots += empty;
+		if (demand.units > 0) {
+			ranking.add(demand);
+		}
+	}
+
+	/**
+	 * Mtodo privado que copia una lista ordenada como pares (identificador, unidades).
+	 */
+	private static ArrayList<SimpleEntry<String, Integer>> toList(TreeSet<Demand> ranking) {
+		ArrayList<SimpleEntry<String, Integer>> list = new ArrayList<>(ranking.size());
+		for (Demand demand : ranking) {
+			list.add(new SimpleEntry<>(demand.id, demand.units));
+		}
+		return list;
+	}
+
+	private MachineDeficit findMachine(String idMachine) {
+		if (idMachine == null) {
+			throw new IllegalArgumentException("El id de una mquina no puede ser nulo");
+		}
+		MachineDeficit machine = machines.get(idMachine);
+		if (machine == null) {
+			throw new IllegalArgumentException("La maquina no esta en el planificador");
+		}
+		return machine;
+	}
+
+	/**
+	 * Unidades y slots vacos pendientes, de un vendible o de una mquina. Se ordenan por urgencia y,
+	 * a igualdad, por identificador.
+	 */
+	private static class Demand implements Comparable<Demand> {
+		final String id;
+		int units;
+		int emptySlots;
+
+		Demand(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(Demand other) {
+			if (emptySlots != other.emptySlots) {
+				return Integer.compare(other.emptySlots, emptySlots);
+			}
+			if (units != other.units) {
+				return Integer.compare(other.units, units);
+			}
+			return id.compareTo(other.id);
+		}
+	}
+
+	/**
+	 * Dficit de una mquina, junto con el de cada uno de sus slots.
+	 */
+	private static class MachineDeficit extends Demand {
+		final VendingMachine machine;
+		final HashMap<String, SlotDeficit> slots = new HashMap<>();
+
+		MachineDeficit(VendingMachine machine) {
+			super(machine.getIdMachine());
+			this.machine = machine;
+		}
+	}
+
+	/**
+	 * Estado de un slot: ltimo vendible, existencias y nivel objetivo.
+	 */
+	private static class SlotDeficit {
+		String idVendible;
+		int stock;
+		int target;
+
+		SlotDeficit(int target) {
+			this.target = target;
+		}
+
+		int deficit() {
+			return idVendible == null ? 0 : Math.max(0, target - stock);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Oyente al que una mquina de vending avisa cada vez que se vende un vendible.
+ * @author rauvill, alvdela
+ *
+ */
+@FunctionalInterface
+public interface SaleListener {
+
+	/**
+	 * Se llama despus de completar una venta, desde el hilo que la ha realizado.
+	 * @param machine Mquina en la que se ha realizado la venta.
+	 * @param idSlot Identificador del slot del que ha salido el vendible.
+	 * @param idVendible Identificador nico del vendible vendido (UPC si es un producto).
+	 * @param price Precio cobrado por el vendible.
+	 */
+	void vendibleSold(VendingMachine machine, String idSlot, String idVendible, double price);
+}
@@ -0,0 +1,210 @@
+package es.uva.inf.poo.practica;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estadsticas en tiempo real de los vendibles ms vendidos, por provincia(ciudad) y en todo 
+ * el sistema, sobre ventanas deslizantes de tiempo (ltima hora, ltimo da...).
+ * Se alimenta de las ventas de las mquinas, y usa memoria fija por provincia sin importar 
+ * cuntos productos distintos se vendan, a cambio de que las unidades sean estimaciones 
+ * (nunca menores que las reales).
+ * La ventana de todo el sistema reparte las ventas entre varias franjas, tantas como procesadores, para
+ * que las ventas de toda la flota no se esperen unas a otras; las de cada provincia usan una sola franja
+ * para no multiplicar la memoria por el nmero de provincias.
+ * Al retirar una provincia del sistema se descartan su ventana y su oyente.
+ * @author rauvill, alvdela
+ *
+ */
+public class SalesAnalytics {
+
+	/** Duracin de cada intervalo por defecto: 15 minutos. */
+	public static final long DEFAULT_BUCKET_MILLIS = 15 * 60 * 1000L;
+	/** Nmero de intervalos por defecto, que cubren un da. */
+	public static final int DEFAULT_BUCKETS = 96;
+
+	private static final int FLEET_STRIPES = Math.min(16, Runtime.getRuntime().availableProcessors());
+
+	private final long bucketMillis;
+	private final int buckets;
+	private final int topCapacity;
+	private final int sketchWidth;
+	private final int sketchDepth;
+	private final SalesWindow fleet;
+	private final ConcurrentHashMap<String, SalesWindow> cities;
+	private final ConcurrentHashMap<VendingCity, SaleListener> listeners;		//oyente de las mquinas de cada provincia
+	private final FleetListener follower;
+
+	/**
+	 * Inicializa las estadsticas con ventanas de un da en intervalos de 15 minutos, guardando
+	 * 64 candidatos por intervalo.
+	 */
+	public SalesAnalytics() {
+		this(DEFAULT_BUCKET_MILLIS, DEFAULT_BUCKETS, 64, 256, 4);
+	}
+
+	/**
+	 * Inicializa las estadsticas con la configuracin recibida.
+	 * @param bucketMillis Duracin de cada intervalo en milisegundos; es la precisin de las ventanas.
+	 * @param buckets Nmero de intervalos; la ventana ms larga es bucketMillis * buckets.
+	 * @param topCapacity Candidatos ms vendidos que se guardan por intervalo.
+	 * @param sketchWidth Ancho de los count-min sketch, a mayor ancho menor error.
+	 * @param sketchDepth Profundidad de los count-min sketch.
+	 * @throws IllegalArgumentException Cuando alguno de los valores no es positivo.
+	 */
+	public SalesAnalytics(long bucketMillis, int buckets, int topCapacity, int sketchWidth, int sketchDepth) {
+		if (bucketMillis <= 0 || buckets <= 0 || topCapacity <= 0 || sketchWidth <= 0 || sketchDepth <= 0) {
+			throw new IllegalArgumentException("La configuracin de las estadsticas debe ser positiva.");
+		}
+		this.bucketMillis = bucketMillis;
+		this.buckets = buckets;
+		this.topCapacity = topCapacity;
+		this.sketchWidth = sketchWidth;
+		this.sketchDepth = sketchDepth;
+		fleet = new SalesWindow(bucketMillis, buckets, topCapacity, sketchWidth, sketchDepth, FLEET_STRIPES);
+		cities = new ConcurrentHashMap<>();
+		listeners = new ConcurrentHashMap<>();
+		follower = new FleetListener() {
+			@Override
+			public void machineAdded(VendingCity city, VendingMachine machine) {
+				machine.addSaleListener(listenerOf(city));
+			}
+
+			@Override
+			public void machineRemoved(VendingCity city, VendingMachine machine) {
+				SaleListener listener = listeners.get(city);
+				if (listener != null) {
+					machine.removeSaleListener(listener);
+				}
+			}
+
+			@Override
+			public void cityRemoved(VendingCity city) {
+				listeners.remove(city);
+				cities.remove(city.getIdVC());
+			}
+		};
+	}
+
+	/**
+	 * Registra las estadsticas como oyente de las ventas de todas las mquinas del sistema, incluidas las
+	 * de las provincias y mquinas que se aadan despus. Las mquinas que se retiran dejan de contarse.
+	 * @param system Sistema cuyas ventas se van a contar.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 */
+	public void attach(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		system.addFleetListener(follower);
+	}
+
+	/**
+	 * Registra las estadsticas como oyente de las ventas de todas las mquinas de la provincia, incluidas
+	 * las que se aadan despus. Las mquinas que se retiran dejan de contarse.
+	 * @param city Provincia cuyas ventas se van a contar.
+	 * @throws IllegalArgumentException Cuando la provincia es nula.
+	 */
+	public void attach(VendingCity city) {
+		if (city == null) {
+			throw new IllegalArgumentException("La provincia no puede ser nula.");
+		}
+		city.addFleetListener(follower);
+	}
+
+	/**
+	 * Registra la venta de una unidad de un vendible en una provincia.
+	 * @param idCity Identificador de la provincia.
+	 * @param idVendible Identificador del vendible vendido.
+	 * @param timeMillis Instante de la venta.
+	 * @throws IllegalArgumentException Cuando algn identificador es nulo.
+	 */
+	public void recordSale(String idCity, String idVendible, long timeMillis) {
+		if (idCity == null || idVendible == null) {
+			throw new IllegalArgumentException("Los identificadores no pueden ser nulos.");
+		}
+		cities.computeIfAbsent(idCity, id -> newWindow()).record(idVendible, 1, timeMillis);
+		fleet.record(idVendible, 1, timeMillis);
+	}
+
+	/**
+	 * Consulta los vendibles ms vendidos en una provincia durante la ventana que termina ahora.
+	 * @param idCity Identificador de la provincia.
+	 * @param n Nmero mximo de vendibles a devolver.
+	 * @param windowMillis Duracin de la ventana, que se redondea a intervalos completos.
+	 * @return Lista de pares (identificador, unidades estimadas), de ms a menos vendido.
+	 * @throws IllegalArgumentException Cuando el identificador de la provincia es nulo.
+	 * @throws IllegalArgumentException Cuando n no es positivo.
+	 */
+	public ArrayList<SimpleEntry<String, Long>> getTopSellers(String idCity, int n, long windowMillis) {
+		return getTopSellers(idCity, n, windowMillis, System.currentTimeMillis());
+	}
+
+	/**
+	 * Consulta los vendibles ms vendidos en una provincia durante la ventana que termina en el
+	 * instante recibido.
+	 * @param idCity Identificador de la provincia.
+	 * @param n Nmero mximo de vendibles a devolver.
+	 * @param windowMillis Duracin de la ventana, que se redondea a intervalos completos.
+	 * @param nowMillis Instante en el que termina la ventana.
+	 * @return Lista de pares (identificador, unidades estimadas), de ms a menos vendido.
+	 * @throws IllegalArgumentException Cuando el identificador de la provincia es nulo.
+	 * @throws IllegalArgumentException Cuando n no es positivo.
+	 */
+	public ArrayList<SimpleEntry<String, Long>> getTopSellers(String idCity, int n, long windowMillis, long nowMillis) {
+		if (idCity == null) {
+			throw new IllegalArgumentException("El identificador de la provincia no puede ser nulo.");
+		}
+		if (n <= 0) {
+			throw new IllegalArgumentException("El nmero de vendibles debe ser positivo.");
+		}
+		SalesWindow window = cities.get(idCity);
+		if (window == null) {
+			return new ArrayList<>();
+		}
+		return window.top(n, windowMillis, nowMillis);
+	}
+
+	/**
+	 * Consulta los vendibles ms vendidos en todo el sistema durante la ventana que termina ahora.
+	 * @param n Nmero mximo de vendibles a devolver.
+	 * @param windowMillis Duracin de la ventana, que se redondea a intervalos completos.
+	 * @return Lista de pares (identificador, unidades estimadas), de ms a menos vendido.
+	 * @throws IllegalArgumentException Cuando n no es positivo.
+	 */
+	public ArrayList<SimpleEntry<String, Long>> getTopSellers(int n, long windowMillis) {
+		return getTopSellers(n, windowMillis, System.currentTimeMillis());
+	}
+
+	/**
+	 * Consulta los vendibles ms vendidos en todo el sistema durante la ventana que termina en el
+	 * instante recibido.
+	 * @param n Nmero mximo de vendibles a devolver.
+	 * @param windowMillis Duracin de la ventana, que se redondea a intervalos completos.
+	 * @param nowMillis Instante en el que termina la ventana.
+	 * @return Lista de pares (identificador, unidades estimadas), de ms a menos vendido.
+	 * @throws IllegalArgumentException Cuando n no es positivo.
+	 */
+	public ArrayList<SimpleEntry<String, Long>> getTopSellers(int n, long windowMillis, long nowMillis) {
+		if (n <= 0) {
+			throw new IllegalArgumentException("El nmero de vendibles debe ser positivo.");
+		}
+		return fleet.top(n, windowMillis, nowMillis);
+	}
+
+	private SalesWindow newWindow() {
+		return new SalesWindow(bucketMillis, buckets, topCapacity, sketchWidth, sketchDepth, 1);
+	}
+
+	/**
+	 * Mtodo privado que obtiene el oyente de ventas de las mquinas de una provincia, el mismo para todas
+	 * para poder quitarlo al retirar la mquina.
+	 */
+	private SaleListener listenerOf(VendingCity city) {
+		return listeners.computeIfAbsent(city, c -> {
+			String idCity = c.getIdVC();
+			return (m, idSlot, idVendible, price) -> recordSale(idCity, idVendible, System.currentTimeMillis());
+		});
+	}
+}
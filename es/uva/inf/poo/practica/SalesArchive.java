@@ -0,0 +1,1009 @@
+package es.uva.inf.poo.practica;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Histrico de ventas por columnas, para guardar aos de ventas en poco espacio y agregarlas deprisa.
+ * Las ventas se acumulan en memoria y se escriben en bloques de un nmero fijo de ventas, cada uno en
+ * su fichero. Dentro de un bloque cada dato se guarda en su propia columna comprimida: los instantes
+ * como diferencias con el anterior, la provincia, la mquina, el slot y el vendible como nmeros de un
+ * diccionario del bloque, y los importes en coma fija (diezmilsimas). La cabecera de cada bloque guarda
+ * el nmero de ventas y los instantes e importes mnimos y mximos, que permiten saltarse los bloques
+ * fuera del intervalo consultado.
+ * Las consultas (ingresos o unidades por provincia, mquina, slot o vendible, por da, semana o mes)
+ * solo descomprimen las columnas que necesitan, y recorren los bloques en paralelo.
+ * Los bloques completos los comprime y escribe un hilo en segundo plano, as que las ventas nunca esperan
+ * al disco ni fallan por l. Hasta que su fichero queda escrito y renombrado, cada bloque se sigue
+ * guardando y consultando en memoria; si la escritura falla, se reintenta con el siguiente bloque o al
+ * vaciar o cerrar el histrico.
+ * El histrico sigue tambin a las provincias y mquinas que se aaden despus de conectarlo, y deja de
+ * or las que se retiran. Al cerrarlo se desconecta de todas, y las ventas que se avisen mientras tanto
+ * se descartan sin afectar a la compra.
+ * @author rauvill, alvdela
+ *
+ */
+public class SalesArchive implements AutoCloseable {
+
+	/** Ventas por bloque por defecto. */
+	public static final int DEFAULT_CHUNK_ROWS = 65536;
+	/** Unidades de importe por cada unidad monetaria: los importes se guardan en diezmilsimas. */
+	public static final long AMOUNT_SCALE = 10000;
+
+	private static final int MAGIC = 0x56534131;					//"VSA1"
+	private static final int CITY = 0;
+	private static final int MACHINE = 1;
+	private static final int SLOT = 2;
+	private static final int VENDIBLE = 3;
+	private static final int TIME = 4;
+	private static final int AMOUNT = 5;
+	private static final int COLUMNS = 6;
+	private static final int HEADER = 4 + 4 + 8 * 4 + COLUMNS * 4;	//mgico, ventas, estadsticas y longitudes de las columnas
+	private static final String SUFFIX = ".sales";
+
+	/**
+	 * Dato por el que se agrupan las ventas en las consultas.
+	 */
+	public enum Dimension {
+		/** Provincia(ciudad). */
+		CITY,
+		/** Mquina, como "provincia/mquina". */
+		MACHINE,
+		/** Slot, como "provincia/mquina/slot". */
+		SLOT,
+		/** Vendible: UPC si es un producto, identificador si es un pack. */
+		VENDIBLE
+	}
+
+	/**
+	 * Periodo en el que se agrupan las ventas en las consultas, identificado por su primer da.
+	 */
+	public enum Period {
+		/** Da natural. */
+		DAY,
+		/** Semana de lunes a domingo. */
+		WEEK,
+		/** Mes natural. */
+		MONTH
+	}
+
+	private final Path directory;
+	private final int chunkRows;
+	private final ZoneId zone;
+	private Chunk current;
+	private int nextChunk;
+	private volatile boolean closed;								//solo cambia con el cerrojo del histrico
+	private final TreeMap<Integer, Chunk> sealed;					//bloques completos sin escribir todava, por nmero
+	private final ExecutorService writer;
+	private IOException error;										//ltimo error al escribir un bloque
+	private final ConcurrentHashMap<VendingMachine, SaleListener> machines;	//mquinas conectadas y su oyente
+	private final ArrayList<VendingSystem> systems;					//sistemas y provincias conectados, para desconectarlos al cerrar
+	private final ArrayList<VendingCity> cities;
+	private final FleetListener follower;
+
+	/**
+	 * Inicializa el histrico en el directorio recibido, con bloques del tamao por defecto. Si el directorio
+	 * ya contiene bloques, las consultas los incluyen y los nuevos bloques se escriben a continuacin.
+	 * @param directory Directorio de los bloques, que se crea si no existe.
+	 * @throws IllegalArgumentException Cuando el directorio es nulo.
+	 * @throws IOException Cuando no se puede crear o leer el directorio.
+	 */
+	public SalesArchive(Path directory) throws IOException {
+		this(directory, DEFAULT_CHUNK_ROWS, ZoneId.systemDefault());
+	}
+
+	/**
+	 * Inicializa el histrico en el directorio recibido.
+	 * @param directory Directorio de los bloques, que se crea si no existe.
+	 * @param chunkRows Ventas por bloque.
+	 * @param zone Zona horaria con la que se calculan los das, semanas y meses.
+	 * @throws IllegalArgumentException Cuando el directorio o la zona son nulos.
+	 * @throws IllegalArgumentException Cuando las ventas por bloque no son positivas.
+	 * @throws IOException Cuando no se puede crear o leer el directorio.
+	 */
+	public SalesArchive(Path directory, int chunkRows, ZoneId zone) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("El directorio no puede ser nulo.");
+		}
+		if (zone == null) {
+			throw new IllegalArgumentException("La zona horaria no puede ser nula.");
+		}
+		if (chunkRows <= 0) {
+			throw new IllegalArgumentException("Las ventas por bloque deben ser positivas.");
+		}
+		this.directory = directory;
+		this.chunkRows = chunkRows;
+		this.zone = zone;
+		Files.createDirectories(directory);
+		for (Path file : chunkFiles()) {
+			nextChunk = Math.max(nextChunk, numberOf(file) + 1);
+		}
+		current = new Chunk(chunkRows);
+		sealed = new TreeMap<>();
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "vending-sales-archive");
+			thread.setDaemon(true);
+			return thread;
+		});
+		machines = new ConcurrentHashMap<>();
+		systems = new ArrayList<>();
+		cities = new ArrayList<>();
+		follower = new FleetListener() {
+			@Override
+			public void machineAdded(VendingCity city, VendingMachine machine) {
+				String idCity = city.getIdVC();
+				SaleListener listener = (m, idSlot, idVendible, price) -> append(idCity, m.getIdMachine(), idSlot, idVendible, price, System.currentTimeMillis());
+				if (!closed && machines.putIfAbsent(machine, listener) == null) {
+					machine.addSaleListener(listener);
+					if (closed) {											//se ha cerrado mientras tanto y ya no la va a desconectar
+						machineRemoved(city, machine);
+					}
+				}
+			}
+
+			@Override
+			public void machineRemoved(VendingCity city, VendingMachine machine) {
+				SaleListener listener = machines.remove(machine);
+				if (listener != null) {
+					machine.removeSaleListener(listener);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Registra el histrico como oyente de las ventas de todas las mquinas del sistema, incluidas las de
+	 * las provincias y mquinas que se aadan despus. Las mquinas que se retiran dejan de guardarse.
+	 * @param system Sistema cuyas ventas se van a guardar.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 * @throws IllegalStateException Cuando el histrico esta cerrado.
+	 */
+	public void attach(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("El histrico de ventas esta cerrado.");
+			}
+			systems.add(system);
+		}
+		system.addFleetListener(follower);
+	}
+
+	/**
+	 * Registra el histrico como oyente de las ventas de todas las mquinas de la provincia, incluidas las
+	 * que se aadan despus. Las mquinas que se retiran dejan de guardarse.
+	 * @param city Provincia cuyas ventas se van a guardar.
+	 * @throws IllegalArgumentException Cuando la provincia es nula.
+	 * @throws IllegalStateException Cuando el histrico esta cerrado.
+	 */
+	public void attach(VendingCity city) {
+		if (city == null) {
+			throw new IllegalArgumentException("La provincia no puede ser nula.");
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("El histrico de ventas esta cerrado.");
+			}
+			cities.add(city);
+		}
+		city.addFleetListener(follower);
+	}
+
+	/**
+	 * Guarda una venta. Cuando se completa un bloque se pasa al hilo que lo escribe en su fichero.
+	 * @param idCity Identificador de la provincia.
+	 * @param idMachine Identificador de la mquina.
+	 * @param idSlot Identificador del slot.
+	 * @param idVendible Identificador del vendible vendido.
+	 * @param price Importe cobrado.
+	 * @param timeMillis Instante de la venta.
+	 * @throws IllegalArgumentException Cuando algn identificador es nulo.
+	 * @throws IllegalStateException Cuando el histrico esta cerrado.
+	 */
+	public void recordSale(String idCity, String idMachine, String idSlot, String idVendible, double price, long timeMillis) {
+		if (idCity == null || idMachine == null || idSlot == null || idVendible == null) {
+			throw new IllegalArgumentException("Los identificadores no pueden ser nulos.");
+		}
+		if (!append(idCity, idMachine, idSlot, idVendible, price, timeMillis)) {
+			throw new IllegalStateException("El histrico de ventas esta cerrado.");
+		}
+	}
+
+	/**
+	 * Mtodo privado que guarda una venta ya comprobada. Es lo que llaman los oyentes de las mquinas,
+	 * que no deben lanzar excepciones porque la venta ya se ha cobrado.
+	 * @return True si se ha guardado, false si el histrico esta cerrado y se ha descartado.
+	 */
+	private boolean append(String idCity, String idMachine, String idSlot, String idVendible, double price, long timeMillis) {
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+			current.add(idCity, idMachine, idSlot, idVendible, Math.round(price * AMOUNT_SCALE), timeMillis);
+			if (current.rows < chunkRows) {
+				return true;
+			}
+			seal();
+		}
+		try {
+			writer.execute(this::writeSealed);						//se comprime y escribe sin bloquear las ventas
+		} catch (RejectedExecutionException e) {
+			//el histrico se acaba de cerrar, y el cierre escribe los bloques pendientes
+		}
+		return true;
+	}
+
+	/**
+	 * Escribe en un bloque las ventas que todava estaban solo en memoria, aunque no lo completen, y
+	 * espera a que estn escritos todos los bloques anteriores.
+	 * @throws UncheckedIOException Cuando no se puede escribir algn bloque; sus ventas se siguen
+	 * consultando en memoria y se vuelve a intentar ms tarde.
+	 * @throws IllegalStateException Cuando el histrico esta cerrado.
+	 */
+	public void flush() {
+		int last;
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("El histrico de ventas esta cerrado.");
+			}
+			if (current.rows > 0) {
+				seal();
+			}
+			last = nextChunk - 1;
+		}
+		Future<?> done = writer.submit(this::writeSealed);
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		checkWritten(last);
+	}
+
+	/**
+	 * Desconecta el histrico de los sistemas, provincias y mquinas a los que estaba conectado, escribe
+	 * las ventas pendientes y lo cierra, de modo que deja de admitir ventas. Cerrar un histrico cerrado
+	 * no hace nada.
+	 * @throws UncheckedIOException Cuando no se puede escribir algn bloque; sus ventas se pierden.
+	 */
+	@Override
+	public void close() {
+		ArrayList<VendingSystem> attachedSystems;
+		ArrayList<VendingCity> attachedCities;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (current.rows > 0) {
+				seal();
+			}
+			attachedSystems = new ArrayList<>(systems);
+			attachedCities = new ArrayList<>(cities);
+			systems.clear();
+			cities.clear();
+		}
+		for (VendingSystem system : attachedSystems) {				//sin el cerrojo: avisan con el de la provincia tomado
+			system.removeFleetListener(follower);
+		}
+		for (VendingCity city : attachedCities) {
+			city.removeFleetListener(follower);
+		}
+		for (Map.Entry<VendingMachine, SaleListener> entry : machines.entrySet()) {
+			if (machines.remove(entry.getKey(), entry.getValue())) {
+				entry.getKey().removeSaleListener(entry.getValue());
+			}
+		}
+		writer.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (writer.awaitTermination(1, TimeUnit.MINUTES)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		writeSealed();												//los que no pudo escribir el hilo
+		checkWritten(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Consulta el nmero de bloques escritos.
+	 * @return Nmero de ficheros de bloques del directorio.
+	 * @throws UncheckedIOException Cuando no se puede leer el directorio.
+	 */
+	public int getChunks() {
+		return chunkFiles().size();
+	}
+
+	/**
+	 * Consulta el nmero de bloques completos que todava no se han escrito, porque el hilo no ha llegado
+	 * a ellos o porque su escritura ha fallado.
+	 * @return Nmero de bloques pendientes de escribir.
+	 */
+	public synchronized int getPendingChunks() {
+		return sealed.size();
+	}
+
+	/**
+	 * Calcula los ingresos por dato y periodo de las ventas en el intervalo recibido, incluidas las que
+	 * todava no se han escrito.
+	 * @param dimension Dato por el que se agrupan las ventas.
+	 * @param period Periodo en el que se agrupan las ventas.
+	 * @param fromMillis Comienzo del intervalo, incluido.
+	 * @param toMillis Final del intervalo, excluido.
+	 * @return Para cada valor del dato, los ingresos de cada periodo identificado por su primer da.
+	 * @throws IllegalArgumentException Cuando el dato o el periodo son nulos.
+	 * @throws UncheckedIOException Cuando no se puede leer algn bloque.
+	 */
+	public TreeMap<String, TreeMap<LocalDate, Double>> revenue(Dimension dimension, Period period, long fromMillis, long toMillis) {
+		TreeMap<String, TreeMap<LocalDate, Double>> result = new TreeMap<>();
+		aggregate(dimension, period, fromMillis, toMillis, true).forEach((key, periods) -> {
+			TreeMap<LocalDate, Double> values = new TreeMap<>();
+			periods.forEach((day, totals) -> values.put(day, (double) totals[1] / AMOUNT_SCALE));
+			result.put(key, values);
+		});
+		return result;
+	}
+
+	/**
+	 * Calcula las unidades vendidas por dato y periodo en el intervalo recibido, incluidas las ventas que
+	 * todava no se han escrito. No lee la columna de importes.
+	 * @param dimension Dato por el que se agrupan las ventas.
+	 * @param period Periodo en el que se agrupan las ventas.
+	 * @param fromMillis Comienzo del intervalo, incluido.
+	 * @param toMillis Final del intervalo, excluido.
+	 * @return Para cada valor del dato, las unidades de cada periodo identificado por su primer da.
+	 * @throws IllegalArgumentException Cuando el dato o el periodo son nulos.
+	 * @throws UncheckedIOException Cuando no se puede leer algn bloque.
+	 */
+	public TreeMap<String, TreeMap<LocalDate, Long>> units(Dimension dimension, Period period, long fromMillis, long toMillis) {
+		TreeMap<String, TreeMap<LocalDate, Long>> result = new TreeMap<>();
+		aggregate(dimension, period, fromMillis, toMillis, false).forEach((key, periods) -> {
+			TreeMap<LocalDate, Long> values = new TreeMap<>();
+			periods.forEach((day, totals) -> values.put(day, totals[0]));
+			result.put(key, values);
+		});
+		return result;
+	}
+
+	/**
+	 * Mtodo privado que agrega las ventas de todos los bloques en paralelo, ms las que siguen en memoria.
+	 * @return Para cada valor del dato y cada periodo, las unidades y el importe en coma fija.
+	 */
+	private HashMap<String, HashMap<LocalDate, long[]>> aggregate(Dimension dimension, Period period, long fromMillis, long toMillis, boolean amounts) {
+		if (dimension == null || period == null) {
+			throw new IllegalArgumentException("El dato y el periodo no pueden ser nulos.");
+		}
+		boolean[] needed = new boolean[COLUMNS];
+		needed[TIME] = true;
+		needed[AMOUNT] = amounts;
+		needed[CITY] = true;
+		needed[MACHINE] = dimension == Dimension.MACHINE || dimension == Dimension.SLOT;
+		needed[SLOT] = dimension == Dimension.SLOT;
+		needed[VENDIBLE] = dimension == Dimension.VENDIBLE;
+		Chunk pending;
+		ArrayList<Chunk> unwritten;
+		HashSet<Integer> inMemory;
+		int next;
+		synchronized (this) {										//antes de listar los ficheros: los bloques que se renombren despus se leen de memoria
+			pending = current.copy();
+			unwritten = new ArrayList<>(sealed.values());
+			inMemory = new HashSet<>(sealed.keySet());
+			next = nextChunk;
+		}
+		HashMap<String, HashMap<LocalDate, long[]>> result = chunkFiles().parallelStream()
+				.filter(file -> {
+					int number = numberOf(file);
+					return number < next && !inMemory.contains(number);	//los posteriores ya se han contado en el bloque en memoria
+				})
+				.map(file -> {
+					HashMap<String, HashMap<LocalDate, long[]>> partial = new HashMap<>();
+					Chunk chunk = read(file, needed, fromMillis, toMillis);
+					if (chunk != null) {
+						chunk.aggregate(dimension, period, zone, fromMillis, toMillis, amounts, partial);
+					}
+					return partial;
+				})
+				.reduce(new HashMap<>(), SalesArchive::merge, SalesArchive::merge);
+		HashMap<String, HashMap<LocalDate, long[]>> memory = new HashMap<>();
+		pending.aggregate(dimension, period, zone, fromMillis, toMillis, amounts, memory);
+		for (Chunk chunk : unwritten) {
+			chunk.aggregate(dimension, period, zone, fromMillis, toMillis, amounts, memory);
+		}
+		return merge(result, memory);
+	}
+
+	/**
+	 * Mtodo privado que pasa el bloque en memoria a la lista de bloques pendientes de escribir y empieza
+	 * otro. Se llama con el cerrojo del histrico tomado.
+	 */
+	private void seal() {
+		sealed.put(nextChunk++, current);
+		current = new Chunk(chunkRows);
+	}
+
+	/**
+	 * Mtodo privado que escribe en orden los bloques pendientes, y quita cada uno de la lista cuando su
+	 * fichero ya esta renombrado. Al primer error se detiene y lo guarda; los bloques que quedan se
+	 * reintentan en la siguiente llamada. Solo lo ejecuta un hilo a la vez.
+	 */
+	private void writeSealed() {
+		while (true) {
+			Map.Entry<Integer, Chunk> next;
+			synchronized (this) {
+				next = sealed.firstEntry();
+			}
+			if (next == null) {
+				return;
+			}
+			try {
+				write(next.getValue(), next.getKey());
+			} catch (IOException e) {
+				synchronized (this) {
+					error = e;
+				}
+				return;
+			}
+			synchronized (this) {
+				sealed.remove(next.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Mtodo privado que comprueba que ya se han escrito todos los bloques hasta el nmero recibido.
+	 * @throws UncheckedIOException Con el ltimo error de escritura, si queda alguno.
+	 */
+	private synchronized void checkWritten(int last) {
+		if (!sealed.isEmpty() && sealed.firstKey() <= last) {
+			throw new UncheckedIOException(error != null ? error : new IOException("Quedan bloques de ventas sin escribir."));
+		}
+	}
+
+	private static int numberOf(Path file) {
+		String name = file.getFileName().toString();
+		return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	private static HashMap<String, HashMap<LocalDate, long[]>> merge(HashMap<String, HashMap<LocalDate, long[]>> a, HashMap<String, HashMap<LocalDate, long[]>> b) {
+		HashMap<String, HashMap<LocalDate, long[]>> into = a.size() >= b.size() ? a : b;
+		HashMap<String, HashMap<LocalDate, long[]>> from = into == a ? b : a;
+		for (Map.Entry<String, HashMap<LocalDate, long[]>> entry : from.entrySet()) {
+			HashMap<LocalDate, long[]> periods = into.computeIfAbsent(entry.getKey(), key -> new HashMap<>());
+			for (Map.Entry<LocalDate, long[]> value : entry.getValue().entrySet()) {
+				long[] totals = periods.computeIfAbsent(value.getKey(), key -> new long[2]);
+				totals[0] += value.getValue()[0];
+				totals[1] += value.getValue()[1];
+			}
+		}
+		return into;
+	}
+
+	private ArrayList<Path> chunkFiles() {
+		ArrayList<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return files;
+	}
+
+	/**
+	 * Mtodo privado que comprime cada columna de un bloque y lo escribe en su fichero. El bloque se escribe
+	 * primero con otro nombre y se renombra al terminar, para que las consultas nunca vean un bloque a medias.
+	 * @throws IOException Cuando no se puede escribir o renombrar el fichero.
+	 */
+	private void write(Chunk chunk, int number) throws IOException {
+		byte[][] columns = new byte[COLUMNS][];
+		for (int column = CITY; column <= VENDIBLE; column++) {
+			columns[column] = compress(chunk.encodeDictionary(column));
+		}
+		columns[TIME] = compress(chunk.encodeTimes());
+		columns[AMOUNT] = compress(chunk.encodeAmounts());
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(chunk.rows);
+		header.putLong(chunk.minTime).putLong(chunk.maxTime).putLong(chunk.minAmount).putLong(chunk.maxAmount);
+		for (byte[] column : columns) {
+			header.putInt(column.length);
+		}
+		header.flip();
+		String name = String.format("%08d", number);
+		Path temporary = directory.resolve(name + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			channel.write(header);
+			for (byte[] column : columns) {
+				ByteBuffer data = ByteBuffer.wrap(column);
+				while (data.hasRemaining()) {
+					channel.write(data);
+				}
+			}
+		}
+		Files.move(temporary, directory.resolve(name + SUFFIX));
+	}
+
+	/**
+	 * Mtodo privado que lee de un bloque solo las columnas necesarias, o devuelve null si sus
+	 * estadsticas indican que no tiene ventas en el intervalo.
+	 */
+	private static Chunk read(Path file, boolean[] needed, long fromMillis, long toMillis) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			readFully(channel, header, 0);
+			if (header.getInt() != MAGIC) {
+				throw new IOException("El fichero no contiene un bloque de ventas: " + file);
+			}
+			Chunk chunk = new Chunk(0);
+			chunk.rows = header.getInt();
+			chunk.minTime = header.getLong();
+			chunk.maxTime = header.getLong();
+			chunk.minAmount = header.getLong();
+			chunk.maxAmount = header.getLong();
+			if (chunk.maxTime < fromMillis || chunk.minTime >= toMillis) {
+				return null;
+			}
+			long offset = HEADER;
+			for (int column = 0; column < COLUMNS; column++) {
+				int length = header.getInt(4 + 4 + 8 * 4 + column * 4);
+				if (needed[column]) {
+					ByteBuffer data = ByteBuffer.allocate(length);
+					readFully(channel, data, offset);
+					chunk.decode(column, inflate(data.array()));
+				}
+				offset += length;
+			}
+			return chunk;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Bloque de ventas incompleto.");
+			}
+		}
+		buffer.flip();
+	}
+
+	private static byte[] compress(byte[] raw) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 16);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] compressed) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Columna de ventas incompleta.");
+				}
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Columna de ventas corrupta.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Bloque de ventas en columnas: el que se esta llenando en memoria o uno ledo de su fichero, del que
+	 * solo se rellenan las columnas ledas.
+	 */
+	private static class Chunk {
+		int rows;
+		long[] times;
+		long[] amounts;
+		final int[][] ids = new int[VENDIBLE + 1][];
+		final ArrayList<ArrayList<String>> dictionaries = new ArrayList<>();
+		final ArrayList<HashMap<String, Integer>> lookups = new ArrayList<>();
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		long minAmount = Long.MAX_VALUE;
+		long maxAmount = Long.MIN_VALUE;
+
+		Chunk(int capacity) {
+			times = new long[capacity];
+			amounts = new long[capacity];
+			for (int column = CITY; column <= VENDIBLE; column++) {
+				ids[column] = new int[capacity];
+				dictionaries.add(new ArrayList<>());
+				lookups.add(new HashMap<>());
+			}
+		}
+
+		void add(String idCity, String idMachine, String idSlot, String idVendible, long amount, long time) {
+			ids[CITY][rows] = code(CITY, idCity);
+			ids[MACHINE][rows] = code(MACHINE, idMachine);
+			ids[SLOT][rows] = code(SLOT, idSlot);
+			ids[VENDIBLE][rows] = code(VENDIBLE, idVendible);
+			times[rows] = time;
+			amounts[rows] = amount;
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			minAmount = Math.min(minAmount, amount);
+			maxAmount = Math.max(maxAmount, amount);
+			rows++;
+		}
+
+		private int code(int column, String value) {
+			Integer code = lookups.get(column).get(value);
+			if (code == null) {
+				code = dictionaries.get(column).size();
+				dictionaries.get(column).add(value);
+				lookups.get(column).put(value, code);
+			}
+			return code;
+		}
+
+		/**
+		 * Copia las ventas del bloque en memoria para consultarlas sin bloquear las ventas nuevas.
+		 */
+		Chunk copy() {
+			Chunk copy = new Chunk(0);
+			copy.rows = rows;
+			copy.times = Arrays.copyOf(times, rows);
+			copy.amounts = Arrays.copyOf(amounts, rows);
+			for (int column = CITY; column <= VENDIBLE; column++) {
+				copy.ids[column] = Arrays.copyOf(ids[column], rows);
+				copy.dictionaries.set(column, new ArrayList<>(dictionaries.get(column)));
+			}
+			return copy;
+		}
+
+		byte[] encodeDictionary(int column) {
+			ColumnWriter out = new ColumnWriter();
+			ArrayList<String> dictionary = dictionaries.get(column);
+			out.writeVarLong(dictionary.size());
+			for (String value : dictionary) {
+				out.writeString(value);
+			}
+			for (int i = 0; i < rows; i++) {
+				out.writeVarLong(ids[column][i]);
+			}
+			return out.toByteArray();
+		}
+
+		byte[] encodeTimes() {
+			ColumnWriter out = new ColumnWriter();
+			long previous = 0;
+			for (int i = 0; i < rows; i++) {
+				out.writeZigZag(times[i] - previous);
+				previous = times[i];
+			}
+			return out.toByteArray();
+		}
+
+		byte[] encodeAmounts() {
+			ColumnWriter out = new ColumnWriter();
+			for (int i = 0; i < rows; i++) {
+				out.writeZigZag(amounts[i]);
+			}
+			return out.toByteArray();
+		}
+
+		void decode(int column, byte[] data) throws IOException {
+			ColumnReader in = new ColumnReader(data);
+			if (column == TIME) {
+				times = new long[rows];
+				long previous = 0;
+				for (int i = 0; i < rows; i++) {
+					previous += in.readZigZag();
+					times[i] = previous;
+				}
+			} else if (column == AMOUNT) {
+				amounts = new long[rows];
+				for (int i = 0; i < rows; i++) {
+					amounts[i] = in.readZigZag();
+				}
+			} else {
+				int size = (int) in.readVarLong();
+				ArrayList<String> dictionary = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					dictionary.add(in.readString());
+				}
+				dictionaries.set(column, dictionary);
+				int[] codes = new int[rows];
+				for (int i = 0; i < rows; i++) {
+					codes[i] = (int) in.readVarLong();
+				}
+				ids[column] = codes;
+			}
+		}
+
+		/**
+		 * Suma las ventas del intervalo en el resultado recibido. Cada combinacin de nmeros del diccionario
+		 * recibe un nmero de grupo consecutivo, y las ventas se suman en vectores indexados por grupo. Las
+		 * ventas se recorren en orden de llegada, as que las de un mismo periodo van seguidas: los grupos solo
+		 * se traducen a texto y se pasan al resultado al cambiar de periodo.
+		 */
+		void aggregate(Dimension dimension, Period period, ZoneId zone, long fromMillis, long toMillis, boolean withAmounts,
+				HashMap<String, HashMap<LocalDate, long[]>> result) {
+			GroupTable groups = new GroupTable();
+			LocalDate runPeriod = null;
+			long runStart = 0;
+			long runEnd = 0;
+			long machines = dictionaries.get(MACHINE).size() + 1L;
+			long slots = dictionaries.get(SLOT).size() + 1L;
+			for (int i = 0; i < rows; i++) {
+				long time = times[i];
+				if (time < fromMillis || time >= toMillis) {
+					continue;
+				}
+				if (runPeriod == null || time < runStart || time >= runEnd) {
+					flush(groups, runPeriod, result);
+					runPeriod = periodStart(period, Instant.ofEpochMilli(time).atZone(zone).toLocalDate());
+					runStart = runPeriod.atStartOfDay(zone).toInstant().toEpochMilli();
+					runEnd = periodEnd(period, runPeriod).atStartOfDay(zone).toInstant().toEpochMilli();
+				}
+				int group;
+				switch (dimension) {
+					case CITY:
+						group = groups.of(ids[CITY][i], this, dimension);
+						break;
+					case MACHINE:
+						group = groups.of(ids[CITY][i] * machines + ids[MACHINE][i], this, dimension);
+						break;
+					case SLOT:
+						group = groups.of((ids[CITY][i] * machines + ids[MACHINE][i]) * slots + ids[SLOT][i], this, dimension);
+						break;
+					default:
+						group = groups.of(ids[VENDIBLE][i], this, dimension);
+						break;
+				}
+				groups.add(group, withAmounts ? amounts[i] : 0);
+			}
+			flush(groups, runPeriod, result);
+		}
+
+		/**
+		 * Traduce a texto la combinacin de nmeros del diccionario de un grupo.
+		 */
+		String name(long key, Dimension dimension) {
+			long machines = dictionaries.get(MACHINE).size() + 1L;
+			long slots = dictionaries.get(SLOT).size() + 1L;
+			switch (dimension) {
+				case CITY:
+					return dictionaries.get(CITY).get((int) key);
+				case MACHINE:
+					return dictionaries.get(CITY).get((int) (key / machines)) + "/" + dictionaries.get(MACHINE).get((int) (key % machines));
+				case SLOT:
+					long machine = key / slots;
+					return dictionaries.get(CITY).get((int) (machine / machines)) + "/" + dictionaries.get(MACHINE).get((int) (machine % machines))
+							+ "/" + dictionaries.get(SLOT).get((int) (key % slots));
+				default:
+					return dictionaries.get(VENDIBLE).get((int) key);
+			}
+		}
+
+		private static void flush(GroupTable groups, LocalDate day, HashMap<String, HashMap<LocalDate, long[]>> result) {
+			for (int t = 0; t < groups.touched; t++) {
+				int group = groups.touchedGroups[t];
+				long[] totals = result.computeIfAbsent(groups.names[group], k -> new HashMap<>()).computeIfAbsent(day, k -> new long[2]);
+				totals[0] += groups.units[group];
+				totals[1] += groups.sums[group];
+				groups.units[group] = 0;
+				groups.sums[group] = 0;
+			}
+			groups.touched = 0;
+		}
+
+		private static LocalDate periodStart(Period period, LocalDate date) {
+			switch (period) {
+				case DAY:
+					return date;
+				case WEEK:
+					return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+				default:
+					return date.withDayOfMonth(1);
+			}
+		}
+
+		private static LocalDate periodEnd(Period period, LocalDate start) {
+			switch (period) {
+				case DAY:
+					return start.plusDays(1);
+				case WEEK:
+					return start.plusWeeks(1);
+				default:
+					return start.plusMonths(1);
+			}
+		}
+	}
+
+	/**
+	 * Tabla de direccionamiento abierto que asigna nmeros de grupo consecutivos a las combinaciones de
+	 * nmeros del diccionario de un bloque, con las sumas del periodo en curso de cada grupo.
+	 */
+	private static class GroupTable {
+		long[] keys = new long[64];
+		int[] slots = new int[64];									//grupo + 1, 0 si la posicin esta libre
+		String[] names = new String[16];
+		long[] units = new long[16];
+		long[] sums = new long[16];
+		int[] touchedGroups = new int[16];
+		int size;
+		int touched;
+
+		int of(long key, Chunk chunk, Dimension dimension) {
+			int mask = keys.length - 1;
+			int position = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+			while (slots[position] != 0) {
+				if (keys[position] == key) {
+					return slots[position] - 1;
+				}
+				position = (position + 1) & mask;
+			}
+			if (size == names.length) {
+				names = Arrays.copyOf(names, size * 2);
+				units = Arrays.copyOf(units, size * 2);
+				sums = Arrays.copyOf(sums, size * 2);
+				touchedGroups = Arrays.copyOf(touchedGroups, size * 2);
+			}
+			names[size] = chunk.name(key, dimension);
+			keys[position] = key;
+			slots[position] = ++size;
+			if (size * 2 > keys.length) {
+				rehash();
+			}
+			return size - 1;
+		}
+
+		void add(int group, long amount) {
+			if (units[group] == 0) {
+				touchedGroups[touched++] = group;
+			}
+			units[group]++;
+			sums[group] += amount;
+		}
+
+		private void rehash() {
+			long[] oldKeys = keys;
+			int[] oldSlots = slots;
+			keys = new long[oldKeys.length * 2];
+			slots = new int[oldKeys.length * 2];
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldSlots[i] != 0) {
+					int position = (int) (oldKeys[i] * 0x9E3779B97F4A7C15L >>> 40) & mask;
+					while (slots[position] != 0) {
+						position = (position + 1) & mask;
+					}
+					keys[position] = oldKeys[i];
+					slots[position] = oldSlots[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Escritor de una columna sin comprimir, con enteros de 7 bits por byte.
+	 */
+	private static class ColumnWriter {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				bytes.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			bytes.write((int) value);
+		}
+
+		void writeZigZag(long value) {
+			writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+		void writeString(String value) {
+			byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(utf8.length);
+			bytes.write(utf8, 0, utf8.length);
+		}
+
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Lector de una columna ya descomprimida.
+	 */
+	private static class ColumnReader {
+		private final byte[] data;
+		private int position;
+
+		ColumnReader(byte[] data) {
+			this.data = data;
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (position >= data.length) {
+					throw new IOException("Columna de ventas incompleta.");
+				}
+				int b = data[position++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Entero mal codificado en la columna de ventas.");
+		}
+
+		long readZigZag() throws IOException {
+			long value = readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		String readString() throws IOException {
+			int length = (int) readVarLong();
+			if (length < 0 || length > data.length - position) {
+				throw new IOException("Columna de ventas incompleta.");
+			}
+			String value = new String(data, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+	}
+}
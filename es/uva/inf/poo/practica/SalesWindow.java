@@ -0,0 +1,264 @@
+package es.uva.inf.poo.practica;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ventana deslizante de ventas dividida en intervalos de tiempo (cubos) de la misma duracin.
+ * Cada cubo guarda un count-min sketch con las cuentas estimadas de todos los identificadores y un
+ * contador space-saving con sus candidatos ms vendidos, de modo que la memoria es fija y las 
+ * consultas solo recorren los cubos de la ventana pedida.
+ * Las ventas se reparten entre varias franjas, cada una con sus propios cubos y su propio monitor, segn
+ * el hilo que vende, para que las ventas simultneas no se esperen unas a otras. Los cubos ya cerrados de
+ * una ventana se suman una sola vez y el resultado se guarda con los candidatos ordenados; las consultas
+ * siguientes solo aaden el cubo en curso, y dejan de recorrer candidatos en cuanto ni sumando lo ms que
+ * pueden haber vendido en l alcanzan a los n primeros.
+ * @author rauvill, alvdela
+ *
+ */
+class SalesWindow {
+
+	private static final int CACHED_RANGES = 4;		//ventanas distintas (ltima hora, ltimo da...) con sus cubos cerrados sumados
+
+	private final long bucketMillis;
+	private final int buckets;
+	private final int sketchWidth;
+	private final int sketchDepth;
+	private final Stripe[] stripes;
+	private final AtomicReferenceArray<Aggregate> aggregates;
+	private final AtomicInteger nextAggregate;
+	private final AtomicLong lateWrites;			//ventas en cubos que ya se haban sumado; invalidan las sumas guardadas
+	private volatile long sealedUpTo;				//ltimo cubo que se ha sumado como cerrado
+
+	/**
+	 * Inicializa una ventana sin ventas.
+	 * @param bucketMillis Duracin de cada cubo en milisegundos.
+	 * @param buckets Nmero de cubos, que marca la ventana ms larga que se puede consultar.
+	 * @param topCapacity Candidatos ms vendidos que se guardan por cubo.
+	 * @param sketchWidth Ancho de los count-min sketch.
+	 * @param sketchDepth Profundidad de los count-min sketch.
+	 * @param stripes Nmero de franjas entre las que se reparten las ventas, que se redondea a la siguiente potencia de 2.
+	 */
+	SalesWindow(long bucketMillis, int buckets, int topCapacity, int sketchWidth, int sketchDepth, int stripes) {
+		this.bucketMillis = bucketMillis;
+		this.buckets = buckets;
+		this.sketchWidth = sketchWidth;
+		this.sketchDepth = sketchDepth;
+		int size = Integer.highestOneBit(Math.max(1, stripes));
+		if (size < stripes) {
+			size <<= 1;
+		}
+		this.stripes = new Stripe[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new Stripe(buckets, topCapacity, sketchWidth, sketchDepth);
+		}
+		aggregates = new AtomicReferenceArray<>(CACHED_RANGES);
+		nextAggregate = new AtomicInteger();
+		lateWrites = new AtomicLong();
+		sealedUpTo = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Registra la venta de unidades de un vendible en el instante recibido, en la franja del hilo que
+	 * llama. Si el cubo que le toca contena un intervalo antiguo, se vaca antes de reutilizarlo.
+	 * @param idVendible Identificador del vendible vendido.
+	 * @param units Unidades vendidas.
+	 * @param timeMillis Instante de la venta.
+	 */
+	void record(String idVendible, long units, long timeMillis) {
+		long epoch = timeMillis / bucketMillis;
+		Stripe stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+		if (stripe.record(idVendible, units, epoch) && epoch <= sealedUpTo) {		//se comprueba despus de escribir, ver sealed
+			lateWrites.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Consulta los vendibles ms vendidos en la ventana que termina en el instante recibido.
+	 * La ventana se redondea a cubos completos.
+	 * @param n Nmero mximo de vendibles a devolver.
+	 * @param windowMillis Duracin de la ventana.
+	 * @param nowMillis Instante en el que termina la ventana.
+	 * @return Lista de pares (identificador, unidades estimadas), de mayor a menor.
+	 */
+	ArrayList<SimpleEntry<String, Long>> top(int n, long windowMillis, long nowMillis) {
+		long last = nowMillis / bucketMillis;
+		long first = last - Math.min(buckets, Math.max(1, (windowMillis + bucketMillis - 1) / bucketMillis)) + 1;
+		Aggregate closed = first < last ? sealed(first, last - 1) : null;
+		CountMinSketch live = new CountMinSketch(sketchWidth, sketchDepth);
+		HashSet<String> liveKeys = new HashSet<>();
+		long liveBound = 0;											//lo ms que ha vendido en el cubo en curso una clave que no es candidata en l
+		for (Stripe stripe : stripes) {
+			liveBound += stripe.collectLive(last, live, liveKeys);
+		}
+		PriorityQueue<SimpleEntry<String, Long>> best = new PriorityQueue<>(n + 1, Comparator.comparingLong(SimpleEntry::getValue));
+		for (String key : liveKeys) {
+			offer(best, n, key, (closed == null ? 0 : closed.sketch.estimate(key)) + live.estimate(key));
+		}
+		if (closed != null) {
+			for (int i = 0; i < closed.keys.length; i++) {				//de ms a menos vendido en los cubos cerrados
+				if (best.size() == n && closed.counts[i] + liveBound <= best.peek().getValue()) {
+					break;												//ni sumando lo ms posible del cubo en curso entran las que quedan
+				}
+				if (!liveKeys.contains(closed.keys[i])) {
+					offer(best, n, closed.keys[i], closed.counts[i] + Math.min(live.estimate(closed.keys[i]), liveBound));
+				}
+			}
+		}
+		ArrayList<SimpleEntry<String, Long>> ranking = new ArrayList<>(best);
+		ranking.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+		return ranking;
+	}
+
+	/**
+	 * Mtodo privado que aade un vendible a los n ms vendidos si entra entre ellos.
+	 */
+	private static void offer(PriorityQueue<SimpleEntry<String, Long>> best, int n, String key, long units) {
+		if (best.size() < n) {
+			best.add(new SimpleEntry<>(key, units));
+		} else if (units > best.peek().getValue()) {
+			best.poll();
+			best.add(new SimpleEntry<>(key, units));
+		}
+	}
+
+	/**
+	 * Mtodo privado que obtiene la suma de los cubos cerrados entre dos intervalos, guardada si ninguna
+	 * venta ha cado en ellos desde que se sumaron, o calculndola y guardndola.
+	 * Antes de sumar se marca el ltimo intervalo como cerrado y despus se lee el contador de ventas tardas:
+	 * una venta que escribe en la franja despus de que se haya ledo la ve ya marcada al comprobarlo, y
+	 * cuenta como tarda, as que una suma guardada nunca pierde ventas.
+	 * @param first Primer intervalo.
+	 * @param last ltimo intervalo.
+	 * @return La suma de los cubos de esos intervalos.
+	 */
+	private Aggregate sealed(long first, long last) {
+		long version = lateWrites.get();
+		for (int i = 0; i < CACHED_RANGES; i++) {
+			Aggregate aggregate = aggregates.get(i);
+			if (aggregate != null && aggregate.first == first && aggregate.last == last && aggregate.version == version) {
+				return aggregate;
+			}
+		}
+		synchronized (this) {
+			if (sealedUpTo < last) {
+				sealedUpTo = last;
+			}
+		}
+		version = lateWrites.get();
+		CountMinSketch sketch = new CountMinSketch(sketchWidth, sketchDepth);
+		HashSet<String> candidates = new HashSet<>();
+		for (Stripe stripe : stripes) {
+			stripe.collectSealed(first, last, sketch, candidates);
+		}
+		Aggregate aggregate = new Aggregate(first, last, version, sketch, candidates);
+		aggregates.set(nextAggregate.getAndIncrement() & (CACHED_RANGES - 1), aggregate);
+		return aggregate;
+	}
+
+	/**
+	 * Cubos de una franja de la ventana. Se accede a ellos con el monitor de la franja.
+	 */
+	private static final class Stripe {
+		private final long[] epochs;					//intervalo de tiempo al que corresponde cada cubo, -1 si no se ha usado
+		private final CountMinSketch[] sketches;
+		private final SpaceSaving[] heavyHitters;
+
+		Stripe(int buckets, int topCapacity, int sketchWidth, int sketchDepth) {
+			epochs = new long[buckets];
+			sketches = new CountMinSketch[buckets];
+			heavyHitters = new SpaceSaving[buckets];
+			for (int i = 0; i < buckets; i++) {
+				epochs[i] = -1;
+				sketches[i] = new CountMinSketch(sketchWidth, sketchDepth);
+				heavyHitters[i] = new SpaceSaving(topCapacity);
+			}
+		}
+
+		/**
+		 * Registra la venta en el cubo del intervalo.
+		 * @return True si se ha registrado, false si es ms antigua que la ventana completa.
+		 */
+		synchronized boolean record(String idVendible, long units, long epoch) {
+			int bucket = (int) (epoch % epochs.length);
+			if (epochs[bucket] != epoch) {
+				if (epochs[bucket] > epoch) {
+					return false;
+				}
+				sketches[bucket].clear();
+				heavyHitters[bucket].clear();
+				epochs[bucket] = epoch;
+			}
+			sketches[bucket].add(idVendible, units);
+			heavyHitters[bucket].add(idVendible, units);
+			return true;
+		}
+
+		/**
+		 * Suma al sketch recibido los cubos de los intervalos entre first y last, y aade sus candidatos.
+		 */
+		synchronized void collectSealed(long first, long last, CountMinSketch sketch, HashSet<String> candidates) {
+			for (int i = 0; i < epochs.length; i++) {
+				if (epochs[i] >= first && epochs[i] <= last) {
+					sketch.merge(sketches[i]);
+					for (int j = 0; j < heavyHitters[i].size(); j++) {
+						candidates.add(heavyHitters[i].keyAt(j));
+					}
+				}
+			}
+		}
+
+		/**
+		 * Suma al sketch recibido el cubo del intervalo en curso y aade sus candidatos.
+		 * @return Lo ms que puede haber vendido en el cubo una clave que no es candidata en l.
+		 */
+		synchronized long collectLive(long epoch, CountMinSketch sketch, HashSet<String> candidates) {
+			int bucket = (int) (epoch % epochs.length);
+			if (epochs[bucket] != epoch) {
+				return 0;
+			}
+			sketch.merge(sketches[bucket]);
+			for (int j = 0; j < heavyHitters[bucket].size(); j++) {
+				candidates.add(heavyHitters[bucket].keyAt(j));
+			}
+			return heavyHitters[bucket].unmonitoredBound();
+		}
+	}
+
+	/**
+	 * Suma inmutable de los cubos cerrados de un rango de intervalos: el sketch sumado y la cuenta de
+	 * cada candidato, ordenados de ms a menos vendido.
+	 */
+	private static final class Aggregate {
+		final long first;
+		final long last;
+		final long version;
+		final CountMinSketch sketch;
+		final String[] keys;
+		final long[] counts;
+
+		Aggregate(long first, long last, long version, CountMinSketch sketch, HashSet<String> candidates) {
+			this.first = first;
+			this.last = last;
+			this.version = version;
+			this.sketch = sketch;
+			ArrayList<SimpleEntry<String, Long>> sorted = new ArrayList<>(candidates.size());
+			for (String key : candidates) {
+				sorted.add(new SimpleEntry<>(key, sketch.estimate(key)));
+			}
+			sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+			keys = new String[sorted.size()];
+			counts = new long[sorted.size()];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = sorted.get(i).getKey();
+				counts[i] = sorted.get(i).getValue();
+			}
+		}
+	}
+}
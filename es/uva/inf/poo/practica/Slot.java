@@ -65,7 +65,7 @@ public class Slot {
 			throw
 					new IllegalArgumentException("El vendible debe tener el mismo identificador que los que ya estan en el slot: " + vendible.getIdentifier() + " != " + vendibles.get(0).getIdentifier());
 		}
-		Vendible nuevoV = vendible.duplicate();				//clonamos el vendible que nos pasan
+		Vendible nuevoV = vendible.duplicate();				//es inmutable, as que se comparte en vez de clonarlo
 		vendibles.add(nuevoV);
 	}
 	
@@ -181,14 +181,7 @@ public class Slot {
 					new IllegalArgumentException(msgErrorEmptySlot);
 		}
 		for(int i=0; i<vendibles.size(); i++) {
-			Vendible vendible = vendibles.get(i);
-			try {
-				Pack pack = (Pack)vendible;							//probamos a castearlo a un pack
-				pack.changePricePack(upc, newPrice);
-			} catch(Exception e) {									//si el cast falla, es un producto
-				Product product = (Product)vendible;
-				product.setPrice(newPrice);
-			}
+			vendibles.set(i, vendibles.get(i).withProductPrice(upc, newPrice));		//los vendibles son inmutables, se sustituyen por la versin nueva
 		}
 	}
 }
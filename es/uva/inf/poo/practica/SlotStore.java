@@ -0,0 +1,51 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Almacn del estado de los slots de una mquina de vending, indexado por nmero de slot:
+ * el vendible de referencia, sus existencias y su precio cacheado.
+ * @author rauvill, alvdela
+ *
+ */
+interface SlotStore {
+
+	/**
+	 * Consulta el nmero de slots del almacn.
+	 * @return Nmero de slots.
+	 */
+	int size();
+
+	/**
+	 * Consulta el vendible de referencia del slot.
+	 * @param index Nmero de slot.
+	 * @return El vendible del slot, o null si esta vaco.
+	 */
+	Vendible getVendible(int index);
+
+	/**
+	 * Cambia el vendible de referencia del slot y cachea su precio. Con null se vaca el slot.
+	 * @param index Nmero de slot.
+	 * @param vendible Nuevo vendible de referencia, o null.
+	 */
+	void setVendible(int index, Vendible vendible);
+
+	/**
+	 * Consulta las existencias del slot.
+	 * @param index Nmero de slot.
+	 * @return Unidades del vendible en el slot.
+	 */
+	int getStock(int index);
+
+	/**
+	 * Cambia las existencias del slot.
+	 * @param index Nmero de slot.
+	 * @param stock Unidades del vendible en el slot.
+	 */
+	void setStock(int index, int stock);
+
+	/**
+	 * Consulta el precio cacheado del vendible del slot.
+	 * @param index Nmero de slot.
+	 * @return Precio del vendible, 0 si el slot esta vaco.
+	 */
+	double getPrice(int index);
+}
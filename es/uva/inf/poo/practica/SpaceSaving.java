@@ -0,0 +1,109 @@
+package es.uva.inf.poo.practica;
+
+import java.util.HashMap;
+
+/**
+ * Implementacin del algoritmo space-saving para encontrar las claves ms frecuentes de un flujo
+ * guardando como mucho un nmero fijo de contadores. Cuando no quedan contadores libres, la clave
+ * nueva ocupa el contador ms pequeo, por lo que toda clave con ms apariciones que el mnimo
+ * queda siempre monitorizada.
+ * @author rauvill, alvdela
+ *
+ */
+class SpaceSaving {
+
+	private final String[] keys;
+	private final long[] counts;
+	private final HashMap<String, Integer> positions;
+	private int size;
+
+	/**
+	 * Inicializa el contador sin ninguna clave.
+	 * @param capacity Nmero mximo de claves monitorizadas.
+	 * @throws IllegalArgumentException Cuando la capacidad no es positiva.
+	 */
+	SpaceSaving(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("La capacidad debe ser positiva.");
+		}
+		keys = new String[capacity];
+		counts = new long[capacity];
+		positions = new HashMap<>(capacity * 2);
+	}
+
+	/**
+	 * Suma una cantidad a la cuenta de la clave recibida, reemplazando a la clave menos 
+	 * frecuente si no estaba monitorizada y no quedan contadores libres.
+	 * @param key Clave a contar.
+	 * @param count Cantidad a sumar.
+	 */
+	void add(String key, long count) {
+		Integer position = positions.get(key);
+		if (position != null) {
+			counts[position] += count;
+			return;
+		}
+		if (size < keys.length) {
+			keys[size] = key;
+			counts[size] = count;
+			positions.put(key, size);
+			size++;
+			return;
+		}
+		int min = 0;
+		for (int i = 1; i < size; i++) {
+			if (counts[i] < counts[min]) {
+				min = i;
+			}
+		}
+		positions.remove(keys[min]);
+		keys[min] = key;
+		counts[min] += count;
+		positions.put(key, min);
+	}
+
+	/**
+	 * Consulta el nmero de claves monitorizadas.
+	 * @return Nmero de claves monitorizadas.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Consulta la clave monitorizada en la posicin recibida.
+	 * @param i Posicin, entre 0 y {@link #size()} - 1.
+	 * @return La clave en esa posicin.
+	 */
+	String keyAt(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * Consulta la cuenta mxima que puede tener una clave no monitorizada: la del contador ms pequeo si
+	 * no quedan contadores libres, o 0 si quedan, porque entonces se monitorizan todas las claves vistas.
+	 * @return Cota superior de la cuenta de las claves no monitorizadas.
+	 */
+	long unmonitoredBound() {
+		if (size < keys.length) {
+			return 0;
+		}
+		long min = counts[0];
+		for (int i = 1; i < size; i++) {
+			min = Math.min(min, counts[i]);
+		}
+		return min;
+	}
+
+	/**
+	 * Olvida todas las claves monitorizadas.
+	 */
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			keys[i] = null;
+			counts[i] = 0;
+		}
+		positions.clear();
+		size = 0;
+	}
+}
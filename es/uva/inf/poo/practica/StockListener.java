@@ -0,0 +1,39 @@
+package es.uva.inf.poo.practica;
+
+/**
+ * Oyente al que una mquina de vending avisa cada vez que cambian las existencias de uno de sus slots,
+ * y tambin cuando cambia su ubicacin o el precio de alguno de sus productos.
+ * @author rauvill, alvdela
+ *
+ */
+@FunctionalInterface
+public interface StockListener {
+
+	/**
+	 * Se llama despus de reabastecer un slot o de vender uno de sus vendibles, desde el hilo
+	 * que ha realizado la operacin.
+	 * @param machine Mquina a la que pertenece el slot.
+	 * @param idSlot Identificador del slot.
+	 * @param idVendible Identificador nico del vendible del slot, tambin cuando se ha quedado vaco.
+	 * @param stock Unidades que quedan en el slot tras el cambio.
+	 */
+	void stockChanged(VendingMachine machine, String idSlot, String idVendible, int stock);
+
+	/**
+	 * Se llama despus de cambiar la ubicacin de la mquina, desde el hilo que la ha cambiado.
+	 * Por defecto no hace nada.
+	 * @param machine Mquina que se ha movido.
+	 */
+	default void locationChanged(VendingMachine machine) {
+	}
+
+	/**
+	 * Se llama despus de cambiar el precio de un producto de la mquina, en los slots que lo contienen
+	 * solo o en un pack, desde el hilo que lo ha cambiado. Por defecto no hace nada.
+	 * @param machine Mquina en la que ha cambiado el precio.
+	 * @param upc Identificador del producto.
+	 * @param newPrice Nuevo precio del producto.
+	 */
+	default void priceChanged(VendingMachine machine, String upc, double newPrice) {
+	}
+}
@@ -0,0 +1,66 @@
+package es.uva.inf.poo.practica;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo binario con el que las mquinas fsicas envan lotes de actualizaciones de existencias
+ * al {@link TelemetryServer}. Todos los enteros van en big-endian.
+ * <pre>
+ * lote:          int longitud (bytes que siguen), short + bytes id de provincia (ASCII),
+ *                short + bytes id de mquina (ASCII), int nmero de actualizaciones, actualizaciones
+ * actualizacin: byte operacin, int nmero de slot, int unidades
+ * respuesta:     int actualizaciones aplicadas, int actualizaciones rechazadas
+ * </pre>
+ * Los slots se identifican por su nmero (ver {@link VendingMachine#getSlotId(int)}), para no tener que
+ * decodificar una cadena en cada actualizacin.
+ * @author rauvill, alvdela
+ *
+ */
+public final class TelemetryProtocol {
+
+	/** Operacin: se han vendido unidades del slot (ya cobradas en la mquina). */
+	public static final byte SALE = 1;
+	/** Operacin: se han aadido unidades del vendible que ya hay en el slot. */
+	public static final byte RESTOCK = 2;
+	/** Tamao en bytes de cada actualizacin. */
+	public static final int UPDATE_SIZE = 9;
+	/** Tamao en bytes de la respuesta a cada lote. */
+	public static final int ACK_SIZE = 8;
+	/** Tamao mximo de un lote, sin contar el campo de longitud. */
+	public static final int MAX_BATCH_SIZE = 1 << 20;
+
+	private TelemetryProtocol() {
+	}
+
+	/**
+	 * Escribe un lote de actualizaciones de una mquina en el buffer recibido.
+	 * @param out Buffer en el que se escribe el lote.
+	 * @param idCity Identificador de la provincia.
+	 * @param idMachine Identificador de la mquina.
+	 * @param count Nmero de actualizaciones del lote.
+	 * @param operations Operacin de cada actualizacin ({@link #SALE} o {@link #RESTOCK}).
+	 * @param slots Nmero de slot de cada actualizacin.
+	 * @param units Unidades de cada actualizacin.
+	 * @throws IllegalArgumentException Cuando algn parmetro es nulo o el lote es demasiado grande.
+	 * @throws java.nio.BufferOverflowException Cuando el lote no cabe en el buffer.
+	 */
+	public static void writeBatch(ByteBuffer out, String idCity, String idMachine, int count, byte[] operations, int[] slots, int[] units) {
+		if (out == null || idCity == null || idMachine == null || operations == null || slots == null || units == null) {
+			throw new IllegalArgumentException("Los parmetros del lote no pueden ser nulos.");
+		}
+		byte[] city = idCity.getBytes(StandardCharsets.US_ASCII);
+		byte[] machine = idMachine.getBytes(StandardCharsets.US_ASCII);
+		long length = 2L + city.length + 2 + machine.length + 4 + (long) count * UPDATE_SIZE;
+		if (length > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("El lote es demasiado grande.");
+		}
+		out.putInt((int) length);
+		out.putShort((short) city.length).put(city);
+		out.putShort((short) machine.length).put(machine);
+		out.putInt(count);
+		for (int i = 0; i < count; i++) {
+			out.put(operations[i]).putInt(slots[i]).putInt(units[i]);
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package es.uva.inf.poo.practica;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Servidor NIO que recibe los lotes de actualizaciones de existencias que envan las mquinas fsicas,
+ * con el {@link TelemetryProtocol}, y los aplica a las mquinas del sistema.
+ * Un nico hilo atiende todas las conexiones con un selector. Cada conexin reutiliza sus buffers, y las
+ * actualizaciones se decodifican directamente del buffer sin crear objetos: solo se decodifican los
+ * identificadores de provincia y mquina, una vez por lote, y todas las actualizaciones del lote se
+ * aplican a la mquina de una pasada.
+ * Las respuestas se escriben sin bloquear: lo que el canal no acepta se guarda y se escribe cuando el
+ * canal vuelve a admitir escrituras. Mientras no caben ms respuestas pendientes, la conexin deja de
+ * leerse y de procesar lotes, de modo que un cliente que no lee las respuestas frena sus propios envos.
+ * Las actualizaciones se aplican desde el hilo del servidor con las mismas puertas y monitores de slot que
+ * las compras y los reabastecimientos, as que las mquinas se pueden seguir usando y modificando a la vez
+ * desde otros hilos.
+ * Un fallo al aceptar una conexin, por ejemplo por falta de descriptores, se registra y el servidor deja
+ * de aceptar conexiones durante un momento, sin dejar de atender las que ya tiene, y luego vuelve a aceptarlas
+ * mientras no se cierre.
+ * @author rauvill, alvdela
+ *
+ */
+public class TelemetryServer implements AutoCloseable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long ACCEPT_PAUSE = TimeUnit.MILLISECONDS.toNanos(100);	//sin aceptar conexiones tras un fallo al aceptar
+	private static final System.Logger LOG = System.getLogger(TelemetryServer.class.getName());
+
+	private final VendingSystem system;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final SelectionKey acceptKey;
+	private final Thread thread;
+	private final AtomicLong applied;
+	private final AtomicLong rejected;
+	private final AtomicLong batches;
+	private volatile long startNanos;
+	private long acceptResumeNanos;									//solo lo usa el hilo del servidor
+
+	/**
+	 * Inicializa el servidor escuchando en la direccin recibida. No atiende conexiones hasta
+	 * llamar a {@link #start()}.
+	 * @param system Sistema al que se aplican las actualizaciones.
+	 * @param address Direccin en la que escucha; con puerto 0 se elige un puerto libre.
+	 * @throws IllegalArgumentException Cuando el sistema o la direccin son nulos.
+	 * @throws IOException Cuando no se puede abrir el puerto.
+	 */
+	public TelemetryServer(VendingSystem system, InetSocketAddress address) throws IOException {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		if (address == null) {
+			throw new IllegalArgumentException("La direccin no puede ser nula.");
+		}
+		this.system = system;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(address);
+		server.configureBlocking(false);
+		acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+		thread = new Thread(this::run, "vending-telemetry");
+		thread.setDaemon(true);
+		applied = new AtomicLong();
+		rejected = new AtomicLong();
+		batches = new AtomicLong();
+	}
+
+	/**
+	 * Empieza a atender conexiones en el hilo del servidor.
+	 */
+	public void start() {
+		startNanos = System.nanoTime();
+		thread.start();
+	}
+
+	/**
+	 * Consulta el puerto en el que escucha el servidor.
+	 * @return El puerto local.
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Consulta cuntas actualizaciones se han aplicado desde que arranc el servidor.
+	 * @return Nmero de actualizaciones aplicadas.
+	 */
+	public long getUpdatesApplied() {
+		return applied.get();
+	}
+
+	/**
+	 * Consulta cuntas actualizaciones se han rechazado (mquina o slot desconocidos, unidades
+	 * insuficientes, operacin no vlida...).
+	 * @return Nmero de actualizaciones rechazadas.
+	 */
+	public long getUpdatesRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Consulta cuntos lotes se han procesado.
+	 * @return Nmero de lotes.
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Consulta el rendimiento medio del servidor desde que arranc.
+	 * @return Actualizaciones aplicadas por segundo.
+	 */
+	public double getUpdatesPerSecond() {
+		long elapsed = System.nanoTime() - startNanos;
+		return elapsed <= 0 ? 0 : applied.get() * 1e9 / elapsed;
+	}
+
+	/**
+	 * Detiene el servidor y cierra todas las conexiones.
+	 * @throws IOException Cuando falla el cierre del puerto.
+	 */
+	@Override
+	public void close() throws IOException {
+		thread.interrupt();
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+		server.close();
+	}
+
+	/**
+	 * Mtodo privado con el bucle del selector.
+	 */
+	private void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				selector.select(resumeAccepts());
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					if (key.isWritable()) {
+						write(key);
+					}
+					if (key.isValid() && key.isReadable()) {
+						read(key);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			if (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+				throw new IllegalStateException("El servidor de telemetra se ha detenido.", e);
+			}
+		}
+	}
+
+	/**
+	 * Mtodo privado que vuelve a aceptar conexiones si ha pasado la pausa tras un fallo al aceptar.
+	 * @return Milisegundos que quedan de pausa, o 0 si se estn aceptando conexiones.
+	 */
+	private long resumeAccepts() {
+		if (acceptKey.interestOps() != 0) {
+			return 0;
+		}
+		long remaining = acceptResumeNanos - System.nanoTime();
+		if (remaining <= 0) {
+			acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+			return 0;
+		}
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+	}
+
+	/**
+	 * Mtodo privado que acepta una conexin. Si falla mientras el servidor sigue abierto, se registra el
+	 * fallo y se deja de aceptar durante la pausa, para no repetir el fallo en bucle; solo se propaga si el
+	 * servidor se esta cerrando.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = null;
+		try {
+			channel = server.accept();
+			if (channel != null) {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, new Connection());
+			}
+		} catch (IOException e) {
+			if (channel != null) {
+				channel.close();
+			}
+			if (!server.isOpen() || !selector.isOpen()) {
+				throw e;
+			}
+			LOG.log(System.Logger.Level.WARNING, "No se ha podido aceptar una conexin de telemetra.", e);
+			acceptKey.interestOps(0);
+			acceptResumeNanos = System.nanoTime() + ACCEPT_PAUSE;
+		}
+	}
+
+	/**
+	 * Mtodo privado que lee de una conexin y procesa todos los lotes completos que haya recibido.
+	 */
+	private void read(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		try {
+			if (channel.read(connection.in) < 0) {
+				close(key);
+				return;
+			}
+			process(key, connection);
+		} catch (IOException | RuntimeException e) {
+			close(key);
+		}
+	}
+
+	/**
+	 * Mtodo privado que escribe las respuestas pendientes de una conexin y, si vuelven a caber
+	 * respuestas, procesa los lotes que se haban quedado esperando en el buffer.
+	 */
+	private void write(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		try {
+			process(key, connection);
+		} catch (IOException | RuntimeException e) {
+			close(key);
+		}
+	}
+
+	/**
+	 * Mtodo privado que procesa los lotes completos del buffer de entrada mientras quepan sus
+	 * respuestas, y escribe las respuestas.
+	 */
+	private void process(SelectionKey key, Connection connection) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer in = connection.in;
+		ByteBuffer out = connection.out;
+		flush(channel, out);
+		in.flip();
+		while (in.remaining() >= 4 && out.remaining() >= TelemetryProtocol.ACK_SIZE) {
+			int length = in.getInt(in.position());
+			if (length < 0 || length > TelemetryProtocol.MAX_BATCH_SIZE) {
+				throw new IllegalArgumentException("Lote mal formado.");
+			}
+			if (in.remaining() < 4 + length) {
+				if (4 + length > in.capacity()) {
+					connection.grow(4 + length);
+					in = connection.in;
+				}
+				break;
+			}
+			in.position(in.position() + 4);
+			int end = in.position() + length;
+			processBatch(in, end, out);
+			in.position(end);
+			if (out.remaining() < TelemetryProtocol.ACK_SIZE) {
+				flush(channel, out);
+			}
+		}
+		in.compact();
+		flush(channel, out);
+		int interest = 0;
+		if (out.position() > 0) {
+			interest |= SelectionKey.OP_WRITE;				//queda algo por escribir: se escribe cuando el canal lo admita
+		}
+		if (out.remaining() >= TelemetryProtocol.ACK_SIZE) {
+			interest |= SelectionKey.OP_READ;				//sin sitio para ms respuestas se deja de leer
+		}
+		key.interestOps(interest);
+	}
+
+	/**
+	 * Mtodo privado que escribe lo que el canal acepte de las respuestas pendientes, sin esperar, y deja
+	 * el resto al principio del buffer.
+	 */
+	private static void flush(SocketChannel channel, ByteBuffer out) throws IOException {
+		if (out.position() == 0) {
+			return;
+		}
+		out.flip();
+		channel.write(out);
+		out.compact();
+	}
+
+	/**
+	 * Mtodo privado que decodifica un lote del buffer y lo aplica a su mquina de una pasada.
+	 */
+	private void processBatch(ByteBuffer in, int end, ByteBuffer out) {
+		String idCity = readId(in);
+		String idMachine = readId(in);
+		int count = in.getInt();
+		if (count < 0 || (long) count * TelemetryProtocol.UPDATE_SIZE != end - in.position()) {
+			throw new IllegalArgumentException("Lote mal formado.");
+		}
+		VendingMachine machine = findMachine(idCity, idMachine);
+		int ok = 0;
+		for (int i = 0; i < count; i++) {
+			byte operation = in.get();
+			int slot = in.getInt();
+			int units = in.getInt();
+			if (machine != null && apply(machine, operation, slot, units)) {
+				ok++;
+			}
+		}
+		applied.addAndGet(ok);
+		rejected.addAndGet(count - ok);
+		batches.incrementAndGet();
+		out.putInt(ok).putInt(count - ok);
+	}
+
+	private static boolean apply(VendingMachine machine, byte operation, int slot, int units) {
+		switch (operation) {
+			case TelemetryProtocol.SALE:
+				return machine.applyReportedSales(slot, units);
+			case TelemetryProtocol.RESTOCK:
+				return machine.applyReportedRestock(slot, units);
+			default:
+				return false;
+		}
+	}
+
+	private VendingMachine findMachine(String idCity, String idMachine) {
+		try {
+			return system.getCity(idCity).getVendingMachine(idMachine);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static String readId(ByteBuffer in) {
+		int length = in.getShort();
+		if (length < 0 || length > in.remaining()) {
+			throw new IllegalArgumentException("Lote mal formado.");
+		}
+		String id = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.US_ASCII);
+		in.position(in.position() + length);
+		return id;
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			//la conexin ya estaba cerrada
+		}
+	}
+
+	/**
+	 * Buffers reutilizados de una conexin. El de salida se queda en modo escritura con las respuestas
+	 * pendientes al principio.
+	 */
+	private static class Connection {
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+		void grow(int size) {
+			ByteBuffer bigger = ByteBuffer.allocate(size);
+			in.compact();				//deja el buffer en modo escritura con lo pendiente al principio
+			in.flip();
+			bigger.put(in);
+			bigger.flip();
+			in = bigger;
+		}
+	}
+}
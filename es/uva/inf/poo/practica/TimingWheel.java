@@ -0,0 +1,174 @@
+package es.uva.inf.poo.practica;
+
+import java.util.function.Consumer;
+
+/**
+ * Rueda de tiempos jerrquica para programar caducidades sin un temporizador por elemento ni recorrer
+ * los elementos pendientes. Cada nivel tiene 64 casillas; una casilla del nivel 0 abarca un tick y una
+ * del nivel n abarca 64^n ticks. Cada elemento se guarda en una lista doblemente enlazada de la casilla
+ * del nivel ms bajo que alcanza su vencimiento, as que programar y cancelar cuestan O(1). Al avanzar,
+ * cada vuelta completa de un nivel baja al nivel inferior los elementos de la casilla que le toca, que
+ * como mucho bajan una vez por nivel, y se caducan los de la casilla actual del nivel 0.
+ * No es segura para varios hilos: la sincroniza quien la usa.
+ * @author rauvill, alvdela
+ *
+ */
+class TimingWheel<T> {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 6;							//64^6 ticks: ms de 200 aos con ticks de 100 ms
+
+	private final long tickMillis;
+	private final Node<T>[][] buckets;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * Inicializa una rueda vaca que empieza en el instante recibido.
+	 * @param tickMillis Duracin de un tick, que es la precisin de las caducidades.
+	 * @param nowMillis Instante actual.
+	 * @throws IllegalArgumentException Cuando la duracin del tick no es positiva.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	TimingWheel(long tickMillis, long nowMillis) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("La duracin del tick debe ser positiva.");
+		}
+		this.tickMillis = tickMillis;
+		buckets = new Node[LEVELS][SLOTS];
+		currentTick = nowMillis / tickMillis;
+	}
+
+	/**
+	 * Programa la caducidad de un elemento. Los vencimientos ya pasados caducan en el siguiente avance.
+	 * @param value Elemento.
+	 * @param deadlineMillis Instante en el que caduca; se redondea al tick siguiente.
+	 * @return Nodo del elemento, para cancelarlo.
+	 */
+	Node<T> schedule(T value, long deadlineMillis) {
+		Node<T> node = new Node<>(value, (deadlineMillis + tickMillis - 1) / tickMillis);
+		insert(node, currentTick + 1);								//la casilla del tick actual ya se ha procesado
+		size++;
+		return node;
+	}
+
+	/**
+	 * Cancela la caducidad de un elemento programado. Si ya haba caducado o se haba cancelado no hace nada.
+	 * @param node Nodo devuelto al programar el elemento.
+	 */
+	void cancel(Node<T> node) {
+		if (node.level < 0) {
+			return;
+		}
+		unlink(node);
+		size--;
+	}
+
+	/**
+	 * Avanza la rueda hasta el instante recibido y entrega los elementos que han caducado.
+	 * @param nowMillis Instante actual.
+	 * @param expired Recibe cada elemento caducado, despus de sacarlo de la rueda.
+	 * @return Nmero de elementos caducados.
+	 */
+	int advance(long nowMillis, Consumer<T> expired) {
+		long target = nowMillis / tickMillis;
+		int count = 0;
+		while (currentTick < target) {
+			currentTick++;
+			for (int level = 1; level < LEVELS && (currentTick & ((1L << (BITS * level)) - 1)) == 0; level++) {
+				cascade(level, (int) (currentTick >>> (BITS * level)) & MASK);
+			}
+			int index = (int) currentTick & MASK;
+			Node<T> node = buckets[0][index];
+			buckets[0][index] = null;
+			while (node != null) {
+				Node<T> next = node.next;
+				node.level = -1;
+				node.prev = null;
+				node.next = null;
+				size--;
+				count++;
+				expired.accept(node.value);
+				node = next;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Consulta el nmero de elementos programados.
+	 * @return Elementos pendientes de caducar.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Mtodo privado que baja a los niveles inferiores los elementos de una casilla, que vencen antes de
+	 * que esa casilla vuelva a tocar.
+	 */
+	private void cascade(int level, int index) {
+		Node<T> node = buckets[level][index];
+		buckets[level][index] = null;
+		while (node != null) {
+			Node<T> next = node.next;
+			insert(node, currentTick);								//la casilla del tick actual se procesa a continuacin
+			node = next;
+		}
+	}
+
+	/**
+	 * Mtodo privado que coloca un nodo en la casilla del nivel ms bajo que alcanza su vencimiento, o
+	 * en la del tick ms temprano recibido si ya ha vencido.
+	 */
+	private void insert(Node<T> node, long earliest) {
+		long deadline = Math.max(node.deadlineTick, earliest);
+		long ticks = deadline - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && ticks >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		int index = (int) (deadline >>> (BITS * level)) & MASK;
+		node.level = level;
+		node.index = index;
+		node.prev = null;
+		node.next = buckets[level][index];
+		if (node.next != null) {
+			node.next.prev = node;
+		}
+		buckets[level][index] = node;
+	}
+
+	private void unlink(Node<T> node) {
+		if (node.prev != null) {
+			node.prev.next = node.next;
+		} else {
+			buckets[node.level][node.index] = node.next;
+		}
+		if (node.next != null) {
+			node.next.prev = node.prev;
+		}
+		node.level = -1;
+		node.prev = null;
+		node.next = null;
+	}
+
+	/**
+	 * Elemento programado en la rueda.
+	 */
+	static class Node<T> {
+		final T value;
+		final long deadlineTick;
+		int level = -1;												//-1 si ya no esta en la rueda
+		int index;
+		Node<T> prev;
+		Node<T> next;
+
+		Node(T value, long deadlineTick) {
+			this.value = value;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+}
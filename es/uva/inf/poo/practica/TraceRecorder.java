@@ -0,0 +1,372 @@
+package es.uva.inf.poo.practica;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.HashMap;
+
+/**
+ * Grabador de la actividad de un VendingSystem en un fichero de traza compacto, para reproducirla
+ * despus con {@link TraceReplayer} contra una flota nueva.
+ * Al conectarse graba el estado inicial del sistema (provincias, mquinas y existencias) como altas y
+ * reabastecimientos, y a partir de ah cada operacin pblica que termina correctamente sobre el sistema,
+ * sus provincias y sus mquinas: altas y bajas, reabastecimientos, ventas, cambios de precio, cambios de
+ * estado, bloqueos de slots, consultas de precio y actualizaciones de telemetra. Las operaciones que
+ * fallan no se graban. Al cerrarse graba una huella del estado final, con la que el reproductor comprueba
+ * que llega al mismo estado.
+ * Cada registro lleva el tiempo transcurrido desde el anterior en microsegundos, y los textos se
+ * guardan una nica vez y despus se referencian por nmero. Las credenciales y tarjetas de los
+ * clientes no se graban. Las fechas de caducidad se guardan relativas al da de la grabacin.
+ * Las operaciones de un slot se graban con su monitor tomado, as que quedan en la traza en el mismo
+ * orden en que se aplicaron. Un error al escribir el fichero no llega a las operaciones, que ya se han
+ * aplicado: se guarda, se deja de grabar, y {@link #close()} lo lanza.
+ * @author rauvill, alvdela
+ *
+ */
+public class TraceRecorder implements AutoCloseable {
+
+	static final int MAGIC = 0x56545243;						//"VTRC"
+	static final int FORMAT = 1;
+	static final byte CITY_ADDED = 1;
+	static final byte CITY_REMOVED = 2;
+	static final byte MACHINE_ADDED = 3;
+	static final byte MACHINE_REMOVED = 4;
+	static final byte RESTOCK = 5;
+	static final byte SALE = 6;
+	static final byte PRICE = 7;
+	static final byte SWITCH_OPERATIVE = 8;
+	static final byte START_MAINTENANCE = 9;
+	static final byte END_MAINTENANCE = 10;
+	static final byte LOCK_SLOT = 11;
+	static final byte UNLOCK_SLOT = 12;
+	static final byte PRICE_QUERY = 13;
+	static final byte REPORTED_SALES = 14;
+	static final byte REPORTED_RESTOCK = 15;
+	static final byte END = 16;
+	static final byte PRODUCT = 0;
+	static final byte PACK = 1;
+
+	private final DataOutputStream out;
+	private final HashMap<String, Integer> strings;
+	private final long today;
+	private VendingSystem system;
+	private long lastNanos;
+	private long records;
+	private IOException error;									//primer error al escribir, despus del cual no se graba nada
+	private boolean closed;
+
+	/**
+	 * Inicializa un grabador que escribe la traza en el fichero recibido, sustituyndolo si ya exista.
+	 * No graba nada hasta conectarlo a un sistema con {@link #attach(VendingSystem)}.
+	 * @param file Fichero de la traza.
+	 * @throws IllegalArgumentException Cuando el fichero es nulo.
+	 * @throws IOException Cuando no se puede crear el fichero.
+	 */
+	public TraceRecorder(Path file) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("El fichero no puede ser nulo.");
+		}
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+		strings = new HashMap<>();
+		today = LocalDate.now().toEpochDay();
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT);
+	}
+
+	/**
+	 * Conecta el grabador a un sistema: graba su estado actual y empieza a grabar sus operaciones.
+	 * Cada mquina se conecta a la vez que se graba su contenido, con sus escrituras detenidas, as que
+	 * ninguna operacin se pierde ni se graba dos veces.
+	 * Un grabador solo se puede conectar a un sistema.
+	 * @param system Sistema a grabar.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 * @throws IllegalStateException Cuando el grabador ya estaba conectado o cerrado.
+	 */
+	public void attach(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		synchronized (this) {
+			if (this.system != null || closed) {
+				throw new IllegalStateException("El grabador ya esta conectado a un sistema.");
+			}
+			this.system = system;
+			lastNanos = System.nanoTime();
+		}
+		system.setRecorder(this);									//sin el cerrojo: cada mquina espera a sus escrituras, que pueden estar grabando
+	}
+
+	/**
+	 * Consulta el nmero de operaciones grabadas.
+	 * @return Nmero de registros de la traza.
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Consulta el error con el que se dej de grabar.
+	 * @return El primer error al escribir el fichero, o null si no ha habido ninguno.
+	 */
+	public synchronized IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Desconecta el grabador del sistema, graba la huella del estado final y cierra el fichero.
+	 * Cerrar un grabador ya cerrado no hace nada.
+	 * @throws UncheckedIOException Cuando no se ha podido escribir el fichero, ahora o durante la grabacin.
+	 */
+	@Override
+	public void close() {
+		VendingSystem attached;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			attached = system;
+		}
+		if (attached != null) {
+			attached.setRecorder(null);
+		}
+		synchronized (this) {
+			try {
+				if (attached != null && error == null) {
+					begin(END);
+					out.writeLong(TraceReplayer.fingerprint(attached));
+				}
+				out.close();
+			} catch (IOException e) {
+				failed(e);
+			}
+			closed = true;
+			if (error != null) {
+				throw new UncheckedIOException(error);
+			}
+		}
+	}
+
+	/**
+	 * Mtodo visible en el paquete que graba el alta de una provincia, sin sus mquinas, que se graban
+	 * al conectarlas.
+	 */
+	synchronized void cityAdded(VendingCity city) {
+		try {
+			begin(CITY_ADDED);
+			writeString(city.getIdVC());
+			writeString(city.getProvince());
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void cityRemoved(String idCity) {
+		try {
+			begin(CITY_REMOVED);
+			writeString(idCity);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Mtodo visible en el paquete que graba el alta de una mquina con su contenido actual: sus slots
+	 * no vacos como reabastecimientos y su estado si no esta operativa.
+	 */
+	synchronized void machineAdded(String idCity, VendingMachine machine) {
+		try {
+			begin(MACHINE_ADDED);
+			writeString(idCity);
+			writeString(machine.getIdMachine());
+			writeVarLong(machine.getNumCol());
+			writeVarLong(machine.getNumLin());
+			out.writeBoolean(machine.isOffHeap());
+		} catch (IOException e) {
+			failed(e);
+		}
+		for (int i = 0; i < machine.getNumSlots(); i++) {
+			int stock = machine.getStock(i);
+			if (stock > 0) {
+				restocked(idCity, machine, machine.getSlotId(i), machine.getVendible(i), stock);
+			}
+		}
+		switch (machine.getState()) {
+			case OUT_OF_SERVICE:
+				lifecycle(idCity, machine, SWITCH_OPERATIVE);
+				break;
+			case DRAINING:
+			case MAINTENANCE:
+				lifecycle(idCity, machine, START_MAINTENANCE);
+				break;
+			default:
+				break;
+		}
+	}
+
+	synchronized void machineRemoved(String idCity, String idMachine) {
+		try {
+			begin(MACHINE_REMOVED);
+			writeString(idCity);
+			writeString(idMachine);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void restocked(String idCity, VendingMachine machine, String idSlot, Vendible vendible, int units) {
+		try {
+			beginSlot(RESTOCK, idCity, machine, idSlot);
+			writeVendible(vendible);
+			writeVarLong(units);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void sold(String idCity, VendingMachine machine, String idSlot) {
+		try {
+			beginSlot(SALE, idCity, machine, idSlot);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void priceQueried(String idCity, VendingMachine machine, String idSlot) {
+		try {
+			beginSlot(PRICE_QUERY, idCity, machine, idSlot);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void slotLocked(String idCity, VendingMachine machine, String idSlot, boolean locked) {
+		try {
+			beginSlot(locked ? LOCK_SLOT : UNLOCK_SLOT, idCity, machine, idSlot);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void priceChanged(String idCity, VendingMachine machine, String upc, double newPrice) {
+		try {
+			begin(PRICE);
+			writeString(idCity);
+			writeString(machine.getIdMachine());
+			writeString(upc);
+			out.writeDouble(newPrice);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Mtodo visible en el paquete que graba un cambio de estado de una mquina
+	 * ({@link #SWITCH_OPERATIVE}, {@link #START_MAINTENANCE} o {@link #END_MAINTENANCE}).
+	 */
+	synchronized void lifecycle(String idCity, VendingMachine machine, byte operation) {
+		try {
+			begin(operation);
+			writeString(idCity);
+			writeString(machine.getIdMachine());
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void reported(String idCity, VendingMachine machine, int index, int units, boolean sales) {
+		try {
+			begin(sales ? REPORTED_SALES : REPORTED_RESTOCK);
+			writeString(idCity);
+			writeString(machine.getIdMachine());
+			writeVarLong(index);
+			writeVarLong(units);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Mtodo privado que guarda el primer error al escribir, tras el que se deja de grabar. Las
+	 * operaciones que llegan con el grabador ya cerrado simplemente no se graban.
+	 */
+	private void failed(IOException e) {
+		if (error == null && !closed) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Mtodo privado que empieza un registro con su tipo y los microsegundos desde el anterior.
+	 * @throws IOException Cuando ya ha habido un error o el grabador esta cerrado, para no seguir escribiendo.
+	 */
+	private void begin(byte operation) throws IOException {
+		if (error != null || closed) {
+			throw error != null ? error : new IOException("El grabador esta cerrado.");
+		}
+		long now = System.nanoTime();
+		out.writeByte(operation);
+		writeVarLong(Math.max(0, (now - lastNanos) / 1000));
+		lastNanos = now - (now - lastNanos) % 1000;				//el resto se acumula en el siguiente registro
+		records++;
+	}
+
+	private void beginSlot(byte operation, String idCity, VendingMachine machine, String idSlot) throws IOException {
+		begin(operation);
+		writeString(idCity);
+		writeString(machine.getIdMachine());
+		writeString(idSlot);
+	}
+
+	/**
+	 * Mtodo privado que escribe un texto: la primera vez completo, y despus solo su nmero.
+	 */
+	private void writeString(String value) throws IOException {
+		Integer id = strings.get(value);
+		if (id != null) {
+			writeVarLong(id + 1L);
+			return;
+		}
+		strings.put(value, strings.size());
+		writeVarLong(0);
+		out.writeUTF(value);
+	}
+
+	private void writeVendible(Vendible vendible) throws IOException {
+		if (vendible instanceof Pack) {
+			Pack pack = (Pack) vendible;
+			out.writeByte(PACK);
+			writeString(pack.getName());
+			writeString(pack.getIdentifier());
+			writeVarLong(pack.getPackSize());
+			for (Product product : pack.getProducts()) {
+				writeProduct(product);
+			}
+		} else {
+			out.writeByte(PRODUCT);
+			writeProduct((Product) vendible);
+		}
+	}
+
+	private void writeProduct(Product product) throws IOException {
+		writeString(product.getName());
+		writeString(product.getIdentifier());
+		out.writeDouble(product.getPrice());
+		long days = product.getExpiryDay() - today;
+		writeVarLong((days << 1) ^ (days >> 63));				//zigzag: los das negativos tambin ocupan poco
+	}
+
+	/**
+	 * Mtodo privado que escribe un entero no negativo en 7 bits por byte.
+	 */
+	private void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+}
@@ -0,0 +1,540 @@
+package es.uva.inf.poo.practica;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+import fabricante.externo.tarjetas.TarjetaMonedero;
+
+/**
+ * Reproductor de las trazas grabadas con {@link TraceRecorder}: vuelve a ejecutar las operaciones
+ * grabadas contra un sistema nuevo, al ritmo con el que se grabaron o tan deprisa como sea posible,
+ * con uno o varios hilos, e informa del rendimiento obtenido y de si se llega al mismo estado final.
+ * La traza se lee entera a memoria antes de empezar, para que la lectura del fichero no cuente en
+ * la medida. Con varios hilos, las operaciones se reparten por provincias y cada provincia se reproduce
+ * en orden en un nico hilo, como en {@link VendingSystemExecutor}, por lo que el estado final es el
+ * mismo que con un hilo.
+ * Las compras se pagan con una tarjeta del propio reproductor con saldo de sobra, y las fechas de
+ * caducidad se trasladan al da de la reproduccin.
+ * @author rauvill, alvdela
+ *
+ */
+public class TraceReplayer {
+
+	private static final String CREDENTIAL = "replay";
+
+	private final ArrayList<Entry> entries;
+	private final long fingerprint;
+	private final boolean complete;
+
+	/**
+	 * Inicializa el reproductor leyendo la traza del fichero recibido. Una traza que se cort sin
+	 * cerrar el grabador se lee hasta el ltimo registro completo, y no tiene huella del estado final.
+	 * @param file Fichero de la traza.
+	 * @throws IllegalArgumentException Cuando el fichero es nulo.
+	 * @throws IOException Cuando no se puede leer el fichero o no contiene una traza.
+	 */
+	public TraceReplayer(Path file) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("El fichero no puede ser nulo.");
+		}
+		entries = new ArrayList<>();
+		long today = LocalDate.now().toEpochDay();
+		ArrayList<String> strings = new ArrayList<>();
+		long expected = 0;
+		boolean closed = false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+			if (in.readInt() != TraceRecorder.MAGIC || in.readInt() != TraceRecorder.FORMAT) {
+				throw new IOException("El fichero no contiene una traza.");
+			}
+			long micros = 0;
+			while (!closed) {
+				int operation = in.read();
+				if (operation < 0) {
+					break;
+				}
+				micros += readVarLong(in);
+				if (operation == TraceRecorder.END) {
+					expected = in.readLong();
+					closed = true;
+				} else {
+					entries.add(readEntry(in, (byte) operation, micros, strings, today));
+				}
+			}
+		} catch (EOFException e) {
+			//traza cortada: se reproduce hasta el ltimo registro completo
+		}
+		fingerprint = expected;
+		complete = closed;
+	}
+
+	/**
+	 * Consulta el nmero de operaciones de la traza.
+	 * @return Nmero de operaciones a reproducir.
+	 */
+	public int getOperations() {
+		return entries.size();
+	}
+
+	/**
+	 * Reproduce la traza contra el sistema recibido, que debera estar vaco.
+	 * @param target Sistema sobre el que se ejecutan las operaciones.
+	 * @param paced True para respetar los tiempos grabados entre operaciones, false para ir tan deprisa como sea posible.
+	 * @param threads Nmero de hilos; con ms de uno las provincias se reparten entre ellos.
+	 * @return Informe de la reproduccin.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 * @throws IllegalArgumentException Cuando el nmero de hilos no es positivo.
+	 */
+	public Report replay(VendingSystem target, boolean paced, int threads) {
+		if (target == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		if (threads <= 0) {
+			throw new IllegalArgumentException("El nmero de hilos debe ser positivo.");
+		}
+		ArrayList<ArrayList<Entry>> partitions = partition(threads);
+		long start = System.nanoTime();
+		long failures = 0;
+		if (partitions.size() == 1) {
+			failures = run(target, partitions.get(0), paced, start);
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+			try {
+				ArrayList<Future<Long>> results = new ArrayList<>();
+				for (ArrayList<Entry> partition : partitions) {
+					results.add(executor.submit(() -> run(target, partition, paced, start)));
+				}
+				for (Future<Long> result : results) {
+					failures += result.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("La reproduccin se ha interrumpido.", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("La reproduccin ha fallado.", e.getCause());
+			} finally {
+				executor.shutdown();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		return new Report(entries.size(), failures, elapsed, complete ? fingerprint == fingerprint(target) : null);
+	}
+
+	/**
+	 * Calcula una huella del estado del sistema: las provincias, sus mquinas con su estado y el vendible,
+	 * las existencias y el precio base de cada slot. No depende del orden de las provincias ni de las
+	 * mquinas, que con varios hilos se pueden aadir en otro orden, ni de las fechas de caducidad.
+	 * @param system Sistema.
+	 * @return Huella del estado del sistema.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 */
+	public static long fingerprint(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		long hash = 0;
+		for (VendingCity city : system.getCitiesView()) {
+			long cityHash = mix(city.getIdVC().hashCode());
+			for (VendingMachine machine : city.getMachinesView()) {
+				long machineHash = mix(machine.getIdMachine().hashCode() * 31L + machine.getState().ordinal());
+				for (int i = 0; i < machine.getNumSlots(); i++) {
+					int stock = machine.getStock(i);
+					if (stock > 0) {
+						long slot = machine.getVendibleId(i).hashCode() * 31L + stock;
+						slot = slot * 31L + Double.doubleToLongBits(machine.getBasePrice(i));
+						machineHash = mix(machineHash * 31L + i) ^ slot;
+					}
+				}
+				cityHash += mix(machineHash);
+			}
+			hash += mix(cityHash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Mtodo privado que reparte las operaciones entre los hilos: todas las de una provincia van
+	 * al mismo hilo y conservan su orden.
+	 */
+	private ArrayList<ArrayList<Entry>> partition(int threads) {
+		ArrayList<ArrayList<Entry>> partitions = new ArrayList<>();
+		if (threads == 1) {
+			partitions.add(entries);
+			return partitions;
+		}
+		HashMap<String, Integer> owners = new HashMap<>();
+		for (Entry entry : entries) {
+			Integer owner = owners.get(entry.city);
+			if (owner == null) {
+				owner = owners.size() % threads;
+				owners.put(entry.city, owner);
+				if (owner == partitions.size()) {
+					partitions.add(new ArrayList<>());
+				}
+			}
+			partitions.get(owner).add(entry);
+		}
+		if (partitions.isEmpty()) {
+			partitions.add(entries);
+		}
+		return partitions;
+	}
+
+	/**
+	 * Mtodo privado que reproduce en orden una parte de la traza y devuelve cuntas operaciones han fallado.
+	 */
+	private static long run(VendingSystem target, ArrayList<Entry> part, boolean paced, long start) {
+		TarjetaMonedero card = new TarjetaMonedero(Double.MAX_VALUE);
+		HashMap<String, HashMap<String, VendingMachine>> machines = new HashMap<>();
+		long failures = 0;
+		for (Entry entry : part) {
+			if (paced) {
+				long wait = start + entry.micros * 1000 - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			try {
+				apply(target, machines, card, entry);
+			} catch (IllegalArgumentException | IllegalStateException e) {
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+	private static void apply(VendingSystem target, HashMap<String, HashMap<String, VendingMachine>> machines,
+			TarjetaMonedero card, Entry entry) {
+		switch (entry.operation) {
+			case TraceRecorder.CITY_ADDED:
+				target.addVendingCity(new VendingCity(entry.city, entry.text));
+				machines.put(entry.city, new HashMap<>());
+				return;
+			case TraceRecorder.CITY_REMOVED:
+				target.removeVendingCity(entry.city);
+				machines.remove(entry.city);
+				return;
+			case TraceRecorder.MACHINE_ADDED:
+				VendingMachine added = new VendingMachine(entry.machine, entry.units, entry.index, entry.offHeap);
+				target.getCity(entry.city).addVendingMachine(added);
+				machines.computeIfAbsent(entry.city, id -> new HashMap<>()).put(entry.machine, added);
+				return;
+			case TraceRecorder.MACHINE_REMOVED:
+				target.getCity(entry.city).removeVendingMachine(entry.machine);
+				machines.get(entry.city).remove(entry.machine);
+				return;
+			default:
+				break;
+		}
+		VendingMachine machine = find(machines, entry);
+		switch (entry.operation) {
+			case TraceRecorder.RESTOCK:
+				if (entry.units == 1) {
+					machine.restockSlot(entry.text, entry.vendible);
+				} else {
+					ArrayList<Vendible> vendibles = new ArrayList<>(entry.units);
+					for (int i = 0; i < entry.units; i++) {
+						vendibles.add(entry.vendible);
+					}
+					machine.restockMultipleVendible(entry.text, vendibles);
+				}
+				break;
+			case TraceRecorder.SALE:
+				machine.buyVendible(entry.text, card, CREDENTIAL);
+				break;
+			case TraceRecorder.PRICE_QUERY:
+				machine.getPriceVendible(entry.text);
+				break;
+			case TraceRecorder.PRICE:
+				machine.changeProductPrice(entry.text, entry.price);
+				break;
+			case TraceRecorder.SWITCH_OPERATIVE:
+				machine.switchOperative();
+				break;
+			case TraceRecorder.START_MAINTENANCE:
+				machine.startMaintenance();
+				break;
+			case TraceRecorder.END_MAINTENANCE:
+				machine.endMaintenance();
+				break;
+			case TraceRecorder.LOCK_SLOT:
+				machine.lockSlot(entry.text);
+				break;
+			case TraceRecorder.UNLOCK_SLOT:
+				machine.unlockSlot(entry.text);
+				break;
+			case TraceRecorder.REPORTED_SALES:
+				if (!machine.applyReportedSales(entry.index, entry.units)) {
+					throw new IllegalStateException("No se han podido aplicar las ventas comunicadas.");
+				}
+				break;
+			case TraceRecorder.REPORTED_RESTOCK:
+				if (!machine.applyReportedRestock(entry.index, entry.units)) {
+					throw new IllegalStateException("No se ha podido aplicar el reabastecimiento comunicado.");
+				}
+				break;
+			default:
+				throw new IllegalStateException("Operacin desconocida: " + entry.operation);
+		}
+	}
+
+	private static VendingMachine find(HashMap<String, HashMap<String, VendingMachine>> machines, Entry entry) {
+		HashMap<String, VendingMachine> city = machines.get(entry.city);
+		VendingMachine machine = city == null ? null : city.get(entry.machine);
+		if (machine == null) {
+			throw new IllegalArgumentException("La mquina con ese identificador no est en el sistema");
+		}
+		return machine;
+	}
+
+	/**
+	 * Mtodo privado que lee un registro de la traza, sin su tipo ni su tiempo.
+	 */
+	private static Entry readEntry(DataInputStream in, byte operation, long micros, ArrayList<String> strings, long today) throws IOException {
+		Entry entry = new Entry(operation, micros);
+		entry.city = readString(in, strings);
+		switch (operation) {
+			case TraceRecorder.CITY_ADDED:
+				entry.text = readString(in, strings);
+				break;
+			case TraceRecorder.CITY_REMOVED:
+				break;
+			case TraceRecorder.MACHINE_ADDED:
+				entry.machine = readString(in, strings);
+				entry.units = (int) readVarLong(in);				//columnas
+				entry.index = (int) readVarLong(in);				//lneas
+				entry.offHeap = in.readBoolean();
+				break;
+			case TraceRecorder.RESTOCK:
+				entry.machine = readString(in, strings);
+				entry.text = readString(in, strings);
+				entry.vendible = readVendible(in, strings, today);
+				entry.units = (int) readVarLong(in);
+				break;
+			case TraceRecorder.PRICE:
+				entry.machine = readString(in, strings);
+				entry.text = readString(in, strings);
+				entry.price = in.readDouble();
+				break;
+			case TraceRecorder.SALE:
+			case TraceRecorder.PRICE_QUERY:
+			case TraceRecorder.LOCK_SLOT:
+			case TraceRecorder.UNLOCK_SLOT:
+				entry.machine = readString(in, strings);
+				entry.text = readString(in, strings);
+				break;
+			case TraceRecorder.REPORTED_SALES:
+			case TraceRecorder.REPORTED_RESTOCK:
+				entry.machine = readString(in, strings);
+				entry.index = (int) readVarLong(in);
+				entry.units = (int) readVarLong(in);
+				break;
+			case TraceRecorder.MACHINE_REMOVED:
+			case TraceRecorder.SWITCH_OPERATIVE:
+			case TraceRecorder.START_MAINTENANCE:
+			case TraceRecorder.END_MAINTENANCE:
+				entry.machine = readString(in, strings);
+				break;
+			default:
+				throw new IOException("Operacin desconocida en la traza: " + operation);
+		}
+		return entry;
+	}
+
+	private static String readString(DataInputStream in, ArrayList<String> strings) throws IOException {
+		long id = readVarLong(in);
+		if (id == 0) {
+			String value = in.readUTF();
+			strings.add(value);
+			return value;
+		}
+		if (id > strings.size()) {
+			throw new IOException("Referencia a un texto desconocido en la traza.");
+		}
+		return strings.get((int) id - 1);
+	}
+
+	private static Vendible readVendible(DataInputStream in, ArrayList<String> strings, long today) throws IOException {
+		byte kind = in.readByte();
+		if (kind == TraceRecorder.PRODUCT) {
+			return readProduct(in, strings, today);
+		}
+		if (kind != TraceRecorder.PACK) {
+			throw new IOException("Tipo de vendible desconocido: " + kind);
+		}
+		String name = readString(in, strings);
+		String identifier = readString(in, strings);
+		int size = (int) readVarLong(in);
+		ArrayList<Product> products = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			products.add(readProduct(in, strings, today));
+		}
+		return Pack.restore(name, identifier, products);
+	}
+
+	private static Product readProduct(DataInputStream in, ArrayList<String> strings, long today) throws IOException {
+		String name = readString(in, strings);
+		String upc = readString(in, strings);
+		double price = in.readDouble();
+		long zigzag = readVarLong(in);
+		LocalDate expiry = LocalDate.ofEpochDay(today + ((zigzag >>> 1) ^ -(zigzag & 1)));
+		return Product.restore(price, expiry.getYear(), expiry.getMonthValue() - 1, expiry.getDayOfMonth(), name, upc);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Entero mal codificado en la traza.");
+	}
+
+	/**
+	 * Mtodo privado que mezcla los bits de un valor (finalizador de SplitMix64).
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Lnea de comandos: reproduce la traza del fichero recibido contra un sistema vaco.
+	 * <pre>
+	 * java es.uva.inf.poo.practica.TraceReplayer traza [-paced] [-threads n]
+	 * </pre>
+	 * Termina con cdigo 1 si el estado final no coincide con el grabado.
+	 * @param args Fichero de la traza y opciones.
+	 * @throws IOException Cuando no se puede leer la traza.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Uso: TraceReplayer traza [-paced] [-threads n]");
+			System.exit(2);
+		}
+		boolean paced = false;
+		int threads = 1;
+		for (int i = 1; i < args.length; i++) {
+			if ("-paced".equals(args[i])) {
+				paced = true;
+			} else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			}
+		}
+		Report report = new TraceReplayer(Path.of(args[0])).replay(new VendingSystem(), paced, threads);
+		for (java.util.Map.Entry<String, Object> line : report.toMap().entrySet()) {
+			System.out.println(line.getKey() + ": " + line.getValue());
+		}
+		if (Boolean.FALSE.equals(report.getStateMatches())) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Operacin de la traza ya leda. Los campos que no usa su tipo quedan a null o a 0.
+	 */
+	private static class Entry {
+		final byte operation;
+		final long micros;											//desde el comienzo de la grabacin
+		String city;
+		String machine;
+		String text;												//slot, UPC o nombre de la provincia
+		Vendible vendible;
+		double price;
+		int units;
+		int index;
+		boolean offHeap;
+
+		Entry(byte operation, long micros) {
+			this.operation = operation;
+			this.micros = micros;
+		}
+	}
+
+	/**
+	 * Informe de una reproduccin.
+	 */
+	public static class Report {
+		private final long operations;
+		private final long failures;
+		private final long elapsedNanos;
+		private final Boolean stateMatches;
+
+		Report(long operations, long failures, long elapsedNanos, Boolean stateMatches) {
+			this.operations = operations;
+			this.failures = failures;
+			this.elapsedNanos = elapsedNanos;
+			this.stateMatches = stateMatches;
+		}
+
+		/**
+		 * Consulta el nmero de operaciones reproducidas.
+		 * @return Nmero de operaciones.
+		 */
+		public long getOperations() {
+			return operations;
+		}
+
+		/**
+		 * Consulta cuntas operaciones han fallado al reproducirlas, y que no haban fallado al grabarlas.
+		 * @return Nmero de operaciones fallidas.
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Consulta el tiempo que ha durado la reproduccin.
+		 * @return Duracin en nanosegundos.
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * Consulta el rendimiento de la reproduccin.
+		 * @return Operaciones por segundo.
+		 */
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * Consulta si el estado final coincide con el grabado.
+		 * @return True o false, o null si la traza no tena huella del estado final porque no se cerr.
+		 */
+		public Boolean getStateMatches() {
+			return stateMatches;
+		}
+
+		/**
+		 * Devuelve los datos del informe en el orden en el que se muestran.
+		 * @return Pares (nombre, valor).
+		 */
+		public LinkedHashMap<String, Object> toMap() {
+			LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+			map.put("operaciones", operations);
+			map.put("fallidas", failures);
+			map.put("segundos", elapsedNanos / 1e9);
+			map.put("operaciones/s", Math.round(getThroughput()));
+			map.put("estado final", stateMatches == null ? "sin huella" : stateMatches ? "coincide" : "no coincide");
+			return map;
+		}
+	}
+}
@@ -9,8 +9,8 @@ package es.uva.inf.poo.practica;
  */
 public abstract class Vendible {
 	
-	private String name;
-	private String idVendible;
+	private final String name;
+	private final String idVendible;
 	
 	/**
 	 * Inicializa un vendible, ya sea un Producto o un Pack de productos, con un nombre y un identificador 
@@ -66,8 +66,46 @@ public abstract class Vendible {
 	}
 	
 	/**
-	 * Devuelve una copia del Vendible con el que se llama al mtodo, ya sea un pack o un producto.
+	 * Mtodo visible en el paquete que consulta el da de caducidad del vendible (das desde 1970-01-01),
+	 * el del producto que caduca antes si es un pack, sin crear objetos. No es abstracto para que se
+	 * puedan heredar vendibles fuera del paquete: Product y Pack lo redefinen, y el resto de vendibles
+	 * no tienen fecha de caducidad.
+	 * @return Da de caducidad, o Integer.MAX_VALUE si no tiene fecha de caducidad.
+	 */
+	int getExpiryDay() {
+		return Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Devuelve el Vendible con el que se llama al mtodo, ya sea un pack o un producto, listo para
+	 * guardarlo en un slot. Como los vendibles son inmutables no hace falta copiarlos, y se devuelve
+	 * el mismo objeto.
 	 * @return Un objeto vendible igual que el actual.
+	 * @throws IllegalArgumentException Cuando el vendible es un producto que ya ha caducado.
+	 * @throws IllegalArgumentException Cuando el vendible es un pack con menos de 2 productos.
 	 */
 	public abstract Vendible duplicate();
+	
+	/**
+	 * Devuelve una versin del vendible con otro precio para el producto con el UPC recibido, ya sea
+	 * el propio producto o uno de los productos del pack. El vendible actual no cambia, y si no
+	 * contiene el producto se devuelve el mismo. Product y Pack lo redefinen; el resto de vendibles no
+	 * contienen productos, as que por defecto se devuelve el mismo vendible.
+	 * @param upc Identificador del producto.
+	 * @param newPrice Nuevo precio del producto.
+	 * @return El vendible con el nuevo precio.
+	 * @throws IllegalArgumentException Cuando el upc es nulo.
+	 * @throws IllegalArgumentException Cuando el nuevo precio es negativo o 0.
+	 */
+	public Vendible withProductPrice(String upc, double newPrice) {
+		if (upc == null) {
+			throw
+					new IllegalArgumentException("El identificador de producto no puede ser nulo.");
+		}
+		if (newPrice <= 0) {
+			throw
+					new IllegalArgumentException("El nuevo precio no puede ser 0 o negativo.");
+		}
+		return this;
+	}
 }
@@ -1,6 +1,17 @@
 package es.uva.inf.poo.practica;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Clase que implementa las caractersticas y funcionalidad de un sistema para
@@ -12,9 +23,17 @@ import java.util.ArrayList;
  */
 public class VendingCity {
 
-	private ArrayList<VendingMachine> machines;
+	private static final FleetListener[] NO_FLEET_LISTENERS = new FleetListener[0];
+	private volatile CopyOnWriteArrayList<VendingMachine> machines;	//copy-on-write: las lecturas recorren una instantnea sin copiarla; reorganize la sustituye entera
+	private final List<VendingMachine> machinesView = new MachinesView();	//vista de solo lectura de la lista actual
 	private String idProvince;
 	private String province;
+	private InventoryChangeFeed changeFeed;							//feed de cambios del inventario, null si no se publican
+	private TraceRecorder recorder;									//grabador de la traza, null si no se graba
+	private AdmissionControl admission;								//control de admisin de las compras, null si no hay
+	private FleetListener[] fleetListeners = NO_FLEET_LISTENERS;		//oyentes de las altas y bajas de mquinas
+	private final AtomicLong version = new AtomicLong();			//se incrementa con cada alta o baja de mquina
+	private final LongAdder machineChanges = new LongAdder();		//suma de los cambios de sus mquinas mientras estn en la provincia
 	private static final String msgError1 = "El id de una mquina no puede ser nulo";
 	private static final String msgError2 = "El id de una mquina no puede estar vaco";
 
@@ -28,7 +47,7 @@ public class VendingCity {
 	public VendingCity(String idProvince, String province) {
 		setIdVC(idProvince);
 		setProvince(province);
-		machines = new ArrayList<>();
+		machines = new CopyOnWriteArrayList<>();
 	}
 
 	/**
@@ -54,7 +73,7 @@ public class VendingCity {
 		}
 		setIdVC(idProvince);
 		setProvince(province);
-		this.machines = new ArrayList<>();
+		this.machines = new CopyOnWriteArrayList<>();
 		for (VendingMachine machine : machines) {
 			addVendingMachine(machine);
 		}
@@ -68,7 +87,7 @@ public class VendingCity {
 	 * @throws IllegalArgumentException Si una mquina tiene el mismo id que una
 	 *                                  mquina del sistema.
 	 */
-	public void addVendingMachine(VendingMachine newMachine) {
+	public synchronized void addVendingMachine(VendingMachine newMachine) {
 		if (newMachine == null) {
 			throw new IllegalArgumentException("La maquina no puede ser nula");
 		}
@@ -76,6 +95,21 @@ public class VendingCity {
 			throw new IllegalArgumentException("La maquina tiene un id ya registrado en el sistema");
 		}
 		machines.add(newMachine);
+		version.incrementAndGet();
+		newMachine.setCityChanges(machineChanges);
+		if (changeFeed != null) {
+			newMachine.setChangeFeed(changeFeed, idProvince);
+			changeFeed.publish(InventoryChange.Type.MACHINE_ADDED, idProvince, newMachine.getIdMachine(), null, null, 0, 0, newMachine.isOperative());
+		}
+		if (recorder != null) {
+			newMachine.setRecorder(recorder, idProvince);				//graba el alta con su contenido
+		}
+		if (admission != null) {
+			newMachine.setAdmissionControl(admission);
+		}
+		for (FleetListener listener : fleetListeners) {
+			listener.machineAdded(this, newMachine);
+		}
 	}
 
 	/**
@@ -93,6 +127,30 @@ public class VendingCity {
 		return find;
 	}
 
+	/**
+	 * Devuelve la mquina de la provincia con el identificador recibido.
+	 * @param idMachine Identificador de la mquina.
+	 * @return La mquina con ese identificador.
+	 * @throws IllegalArgumentException Si el identificador es nulo.
+	 * @throws IllegalArgumentException Si el identificador est vaco.
+	 * @throws IllegalArgumentException Si la maquina con ese id no esta en el
+	 *                                  sistema
+	 */
+	public VendingMachine getVendingMachine(String idMachine) {
+		if (idMachine == null) {
+			throw new IllegalArgumentException(msgError1);
+		}
+		if (idMachine.isEmpty()) {
+			throw new IllegalArgumentException(msgError2);
+		}
+		for (VendingMachine machine : machines) {
+			if (machine.getIdMachine().equals(idMachine)) {
+				return machine;
+			}
+		}
+		throw new IllegalArgumentException("La mquina con ese identificador no est en el sistema");
+	}
+
 	/**
 	 * Elimina una mquina de la provincia.
 	 * @param idMachine Identificador de la mquina.
@@ -100,7 +158,7 @@ public class VendingCity {
 	 * @throws IllegalArgumentException Si la maquina con ese id no esta en el
 	 *                                  sistema
 	 */
-	public void removeVendingMachine(String idMachine) {
+	public synchronized void removeVendingMachine(String idMachine) {
 		if (idMachine == null) {
 			throw new IllegalArgumentException(msgError1);
 		}
@@ -111,20 +169,225 @@ public class VendingCity {
 			throw new IllegalArgumentException("La mquina con ese identificador no est en el sistema");
 		}
 		for (int i = 0; i < machines.size(); i++) {
-			if (machines.get(i).getIdMachine().equals(idMachine)) {
+			VendingMachine machine = machines.get(i);
+			if (machine.getIdMachine().equals(idMachine)) {
 				machines.remove(i);
+				version.incrementAndGet();
+				machine.setCityChanges(null);
+				if (changeFeed != null) {
+					machine.setChangeFeed(null, null);
+					changeFeed.publish(InventoryChange.Type.MACHINE_REMOVED, idProvince, idMachine, null, null, 0, 0, machine.isOperative());
+				}
+				if (recorder != null) {
+					machine.setRecorder(null, null);
+					recorder.machineRemoved(idProvince, idMachine);
+				}
+				if (admission != null) {
+					machine.setAdmissionControl(null);
+				}
+				for (FleetListener listener : fleetListeners) {
+					listener.machineRemoved(this, machine);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reorganiza las mquinas de la provincia de una vez, retirando y aadiendo mquinas, solo si la
+	 * provincia no ha cambiado desde que se ley su versin. Permite preparar la reorganizacin sin
+	 * bloquear la provincia y repetirla si otra la ha cambiado entretanto. Se puede retirar una mquina y
+	 * aadir otra con el mismo identificador. La lista de mquinas se sustituye de una vez, as que quien
+	 * las recorra mientras se aplica ve la provincia entera antes o despus de la reorganizacin.
+	 * @param expectedVersion Versin de la provincia con la que se prepar la reorganizacin.
+	 * @param removed Identificadores de las mquinas a retirar.
+	 * @param added Mquinas a aadir.
+	 * @return True si se ha aplicado, false si la provincia haba cambiado y no se ha aplicado nada.
+	 * @throws IllegalArgumentException Si alguna lista es nula o contiene elementos nulos.
+	 * @throws IllegalArgumentException Si alguna mquina a retirar no esta en la provincia.
+	 * @throws IllegalArgumentException Si alguna mquina a aadir tiene el mismo id que otra que sigue en la provincia.
+	 */
+	public synchronized boolean reorganize(long expectedVersion, ArrayList<String> removed, ArrayList<VendingMachine> added) {
+		if (removed == null || added == null) {
+			throw new IllegalArgumentException("Las listas de mquinas no pueden ser nulas.");
+		}
+		if (version.get() != expectedVersion) {
+			return false;
+		}
+		HashSet<String> ids = new HashSet<>();
+		for (VendingMachine machine : machines) {
+			ids.add(machine.getIdMachine());
+		}
+		for (String idMachine : removed) {
+			if (idMachine == null) {
+				throw new IllegalArgumentException(msgError1);
+			}
+			if (!ids.remove(idMachine)) {
+				throw new IllegalArgumentException("La mquina con ese identificador no est en el sistema");
+			}
+		}
+		for (VendingMachine machine : added) {
+			if (machine == null) {
+				throw new IllegalArgumentException("La maquina no puede ser nula");
+			}
+			if (!ids.add(machine.getIdMachine())) {
+				throw new IllegalArgumentException("La maquina tiene un id ya registrado en el sistema");
 			}
 		}
+		HashSet<String> retired = new HashSet<>(removed);
+		ArrayList<VendingMachine> gone = new ArrayList<>();
+		ArrayList<VendingMachine> kept = new ArrayList<>(ids.size());
+		for (VendingMachine machine : machines) {
+			if (retired.contains(machine.getIdMachine())) {
+				gone.add(machine);
+			} else {
+				kept.add(machine);
+			}
+		}
+		kept.addAll(added);
+		machines = new CopyOnWriteArrayList<>(kept);
+		version.incrementAndGet();
+		for (VendingMachine machine : gone) {
+			machine.setCityChanges(null);
+		}
+		for (VendingMachine machine : added) {
+			machine.setCityChanges(machineChanges);
+		}
+		if (changeFeed != null) {
+			for (VendingMachine machine : gone) {
+				machine.setChangeFeed(null, null);
+				changeFeed.publish(InventoryChange.Type.MACHINE_REMOVED, idProvince, machine.getIdMachine(), null, null, 0, 0, machine.isOperative());
+			}
+			for (VendingMachine machine : added) {
+				machine.setChangeFeed(changeFeed, idProvince);
+				changeFeed.publish(InventoryChange.Type.MACHINE_ADDED, idProvince, machine.getIdMachine(), null, null, 0, 0, machine.isOperative());
+			}
+		}
+		if (recorder != null) {
+			for (VendingMachine machine : gone) {
+				machine.setRecorder(null, null);
+				recorder.machineRemoved(idProvince, machine.getIdMachine());
+			}
+			for (VendingMachine machine : added) {
+				machine.setRecorder(recorder, idProvince);
+			}
+		}
+		if (admission != null) {
+			for (VendingMachine machine : gone) {
+				machine.setAdmissionControl(null);
+			}
+			for (VendingMachine machine : added) {
+				machine.setAdmissionControl(admission);
+			}
+		}
+		for (FleetListener listener : fleetListeners) {
+			for (VendingMachine machine : gone) {
+				listener.machineRemoved(this, machine);
+			}
+			for (VendingMachine machine : added) {
+				listener.machineAdded(this, machine);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Conecta la provincia y todas sus mquinas al feed de cambios del inventario, o las
+	 * desconecta con null.
+	 * @param feed Feed en el que se publican los cambios.
+	 */
+	synchronized void setChangeFeed(InventoryChangeFeed feed) {
+		changeFeed = feed;
+		for (VendingMachine machine : machines) {
+			machine.setChangeFeed(feed, feed == null ? null : idProvince);
+		}
+	}
+	
+	/**
+	 * Conecta la provincia y todas sus mquinas a un control de admisin de las compras con tarjeta, o
+	 * las desconecta con null.
+	 * @param admission Control de admisin por el que pasan las compras.
+	 */
+	synchronized void setAdmissionControl(AdmissionControl admission) {
+		this.admission = admission;
+		for (VendingMachine machine : machines) {
+			machine.setAdmissionControl(admission);
+		}
+	}
+	
+	/**
+	 * Registra un oyente de las altas y bajas de mquinas, al que se avisa enseguida de las mquinas que
+	 * ya tiene la provincia.
+	 * @param listener Oyente a registrar.
+	 */
+	synchronized void addFleetListener(FleetListener listener) {
+		FleetListener[] listeners = Arrays.copyOf(fleetListeners, fleetListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		fleetListeners = listeners;
+		for (VendingMachine machine : machines) {
+			listener.machineAdded(this, machine);
+		}
+	}
+	
+	/**
+	 * Elimina un oyente de las altas y bajas de mquinas, al que se avisa de que se retiran todas las
+	 * mquinas de la provincia. Si no estaba registrado no hace nada.
+	 * @param listener Oyente a eliminar.
+	 */
+	synchronized void removeFleetListener(FleetListener listener) {
+		for (int i = 0; i < fleetListeners.length; i++) {
+			if (fleetListeners[i] == listener) {
+				FleetListener[] listeners = new FleetListener[fleetListeners.length - 1];
+				System.arraycopy(fleetListeners, 0, listeners, 0, i);
+				System.arraycopy(fleetListeners, i + 1, listeners, i, listeners.length - i);
+				fleetListeners = listeners;
+				for (VendingMachine machine : machines) {
+					listener.machineRemoved(this, machine);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Conecta la provincia y todas sus mquinas al grabador de la traza, grabando el alta de cada
+	 * mquina con su contenido, o las desconecta con null.
+	 * @param recorder Grabador en el que se graban las operaciones.
+	 */
+	synchronized void setRecorder(TraceRecorder recorder) {
+		this.recorder = recorder;
+		for (VendingMachine machine : machines) {
+			machine.setRecorder(recorder, recorder == null ? null : idProvince);
+		}
 	}
 
 	/**
 	 * Devuelve una lista de todas las mquinas vending que gestiona.
+	 * La lista es una copia, por lo que se puede modificar sin afectar a la provincia. Para
+	 * solo recorrer las mquinas es preferible usar {@link #getMachinesView()} o {@link #streamMachines()},
+	 * que no copian la lista.
 	 * @return La lista de mquinas que gestiona
 	 */
 	public ArrayList<VendingMachine> getMachines() {
-		ArrayList<VendingMachine> list = new ArrayList<>();
-		list.addAll(machines);
-		return list;
+		return new ArrayList<>(machines);
+	}
+
+	/**
+	 * Devuelve una vista de solo lectura de las mquinas vending que gestiona, sin copiarlas.
+	 * La vista refleja las mquinas aadidas o eliminadas despus, y cada recorrido de la vista
+	 * trabaja sobre una instantnea completa, por lo que nunca se observa un alta o baja a medias.
+	 * @return Vista no modificable de las mquinas de la provincia.
+	 */
+	public List<VendingMachine> getMachinesView() {
+		return machinesView;
+	}
+
+	/**
+	 * Devuelve un stream con las mquinas vending que gestiona la provincia en este momento,
+	 * sin copiar la lista de mquinas.
+	 * @return Stream de las mquinas de la provincia.
+	 */
+	public Stream<VendingMachine> streamMachines() {
+		return machines.stream();
 	}
 
 	/**
@@ -144,6 +407,7 @@ public class VendingCity {
 	/**
 	 * Devuelve una lista de las mquinas que tienen algun hueco vaco
 	 * @return list de mquinas con algun hueco vaco
+	 * @see #streamAvailableMachines()
 	 */
 	public ArrayList<VendingMachine> getAvailableMachines() {
 		ArrayList<VendingMachine> list = new ArrayList<>();
@@ -155,6 +419,33 @@ public class VendingCity {
 		return list;
 	}
 
+	/**
+	 * Devuelve un stream con las mquinas que tienen algun hueco vaco, sin construir
+	 * ninguna lista intermedia.
+	 * @return Stream de mquinas con algun hueco vaco.
+	 */
+	public Stream<VendingMachine> streamAvailableMachines() {
+		return machines.stream().filter(VendingMachine::checkEmptySlots);
+	}
+
+	/**
+	 * Devuelve la versin de la provincia, un contador que cambia cada vez que se aade o elimina
+	 * una mquina. Los cambios dentro de las mquinas se reflejan en la versin de cada mquina.
+	 * @return versin actual de la provincia.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Mtodo visible en el paquete que consulta cuntos cambios han tenido las mquinas mientras estaban
+	 * en la provincia. Solo crece, as que mientras no cambie la versin de la provincia sirve para saber
+	 * si ha cambiado alguna de sus mquinas sin recorrerlas.
+	 */
+	long getMachinesVersion() {
+		return machineChanges.sum();
+	}
+
 	/**
 	 * Devuelve el numero de mquinas de la provincia.
 	 * @return nmero de mquinas de la provincia.
@@ -211,4 +502,35 @@ public class VendingCity {
 		}
 		this.province = province;
 	}
+
+	/**
+	 * Vista de solo lectura de la lista de mquinas actual, que sigue a la provincia aunque reorganize
+	 * sustituya la lista. Los recorridos usan el iterador de la lista, que trabaja sobre una instantnea y no admite cambios.
+	 */
+	private final class MachinesView extends AbstractList<VendingMachine> {
+		@Override
+		public VendingMachine get(int index) {
+			return machines.get(index);
+		}
+
+		@Override
+		public int size() {
+			return machines.size();
+		}
+
+		@Override
+		public Iterator<VendingMachine> iterator() {
+			return machines.iterator();						//el iterador copy-on-write no permite modificar la lista
+		}
+
+		@Override
+		public Spliterator<VendingMachine> spliterator() {
+			return machines.spliterator();
+		}
+
+		@Override
+		public void forEach(Consumer<? super VendingMachine> action) {
+			machines.forEach(action);
+		}
+	}
 }
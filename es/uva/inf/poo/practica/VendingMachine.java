@@ -1,6 +1,15 @@
 package es.uva.inf.poo.practica;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import fabricante.externo.tarjetas.TarjetaMonedero;
 
@@ -16,18 +25,56 @@ public class VendingMachine {
 	private final String msgErrorEmptyId = "El identificador no puede estar vaco";
 	private final String msgErrorIdSlot = "El identificador de slot no puede estar vacio.";
 	private final String msgErrorBusqueda = "El slot solicitado no se encuentra en la maquina.";
+	private final String msgErrorEmptySlot = "El slot esta vaco.";
+	private final String msgErrorReserved = "Las unidades que quedan en el slot estan reservadas.";
+	
+	private static final int LETTERS = 26;										//letras del abecedario ingls usadas en los id de columna
+	private static final SaleListener[] NO_LISTENERS = new SaleListener[0];
+	private static final StockListener[] NO_STOCK_LISTENERS = new StockListener[0];
+	private static final MachineState[] STATES = MachineState.values();
+	private static final int STATE_SHIFT = 28;									//bits altos de la palabra de control: estado de la mquina
+	private static final int IN_FLIGHT = (1 << STATE_SHIFT) - 1;				//bits bajos: compras en curso
+	private static final int STATE_MASK = 3 << STATE_SHIFT;
+	private static final int COMMITTING = 1 << 30;								//palabra de escrituras: se est aplicando una transaccin
+	private static final int SLOT_LOCKED = Integer.MIN_VALUE;					//bit de signo de la palabra de un slot: slot bloqueado
+	private static final Object[] SLOT_MONITORS = new Object[4096];			//monitores repartidos entre los slots de todas las mquinas
+	
+	static {
+		for (int i = 0; i < SLOT_MONITORS.length; i++) {
+			SLOT_MONITORS[i] = new Object();
+		}
+	}
 	
 	private String idMachine;
-	private boolean operative;													//true en servicio, false fuera de servicio
-	private ArrayList<ArrayList<Slot>> slots;
-	private char[] dictionary = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();		//creo un diccionario con las letras del abecedario para los id de casillas
+	private final AtomicInteger control;										//estado de la mquina y nmero de compras en curso
+	private final AtomicInteger writes = new AtomicInteger();					//transaccin en curso y nmero de escrituras en curso en los slots
+	private final AtomicIntegerArray slotGates;									//por slot: bit de bloqueo y nmero de compras en curso
+	private final AtomicIntegerArray reserved;									//por slot: unidades reservadas para pedidos de la aplicacin o compras en curso
+	private final int monitorBase = System.identityHashCode(this);				//primer monitor de los slots de la mquina
+	private int numCol;
+	private int numLin;
+	private SlotStore slots;													//estado de los slots indexado por nmero de slot (columna * numLin + lnea)
+	private final AtomicReference<double[]> priceTable = new AtomicReference<>();	//precios compilados por el motor de precios, null si no se usa; nunca se modifica la tabla publicada
+	private volatile SaleListener[] saleListeners = NO_LISTENERS;				//vector en vez de lista para no crear iteradores en cada venta; se copia al cambiar, con el monitor de la mquina
+	private volatile StockListener[] stockListeners = NO_STOCK_LISTENERS;
+	private volatile InventoryChangeFeed changeFeed;							//feed de cambios del inventario, null si no se publican
+	private volatile String feedCity;											//provincia con la que se publican los cambios; se fija antes que el feed
+	private volatile TraceRecorder recorder;									//grabador de la traza, null si no se graba; solo cambia sin escrituras en curso
+	private volatile String recorderCity;										//provincia con la que se graban las operaciones
+	private volatile AdmissionControl admission;								//control de admisin de las compras con tarjeta, null si no hay
+	private volatile PackRegistry packRegistry;									//registro de packs al que se propagan los cambios de precio, null si no hay
+	private final AtomicLong version = new AtomicLong();						//se incrementa con cada cambio de la mquina
+	private volatile LongAdder cityChanges;										//cambios de las mquinas de su provincia, null si no est en ninguna
+	private final AtomicLong catalogVersion = new AtomicLong();				//se incrementa al cambiar el vendible o el precio de algn slot
+	private volatile double[] location;											//latitud y longitud, null si no se conoce; nunca se modifica el vector
 	
 	/**
 	 * Inicializa una mquina de vending con un identificador propio, y las filas y columnas
 	 * que introduzca el usuario.
 	 * Ni las filas ni las columnas pueden ser negativas, y tampoco pueden ser 0.
-	 * El nmero de columnas no puede superar 26, al caracterizarse cada slot(casilla) con una letra del
-	 * abecedario ingls y un entero (ej.: A9), no hay letras para columnas de ms. No existiran slots
+	 * Cada slot(casilla) se caracteriza por las letras de su columna y un entero con su lnea (ej.: A9).
+	 * Las columnas se nombran con letras del abecedario ingls, y a partir de la columna 26 con varias
+	 * letras (Z, AA, AB, ..., AZ, BA, ...), por lo que no hay lmite de columnas. No existiran slots
 	 * con el mismo identificador dentro de la misma mquina.
 	 * @param idMachine La cadena de caracteres que identifica a la mquina.
 	 * @param numCol El nmero de columnas de la mquina.
@@ -36,9 +83,29 @@ public class VendingMachine {
 	 * @throws IllegalArgumentException Cuando el identificador esta vaco.
 	 * @throws IllegalArgumentException Cuando el numero de columnas es negativo, o cero.
 	 * @throws IllegalArgumentException Cuando el numero de filas es negativo, o cero.
-	 * @throws IllegalArgumentException Cuando el nmero de columnas supera 26 (el nmero de letras del diccionario ingls).
+	 * @throws IllegalArgumentException Cuando la mquina tiene demasiados slots para representarse.
 	 */
 	public VendingMachine(String idMachine, int numCol, int numLin) {
+		this(idMachine, numCol, numLin, false);
+	}
+	
+	/**
+	 * Inicializa una mquina de vending igual que {@link #VendingMachine(String, int, int)}, eligiendo
+	 * dnde se guarda el estado de los slots. Fuera del heap, cada slot ocupa un registro de tamao fijo
+	 * (UPC, existencias, precio y caducidad) en memoria directa, y los vendibles con el mismo identificador
+	 * comparten un nico objeto, lo que reduce el heap y el trabajo del recolector de basura en flotas
+	 * muy grandes. El comportamiento de la mquina es el mismo en ambos casos.
+	 * @param idMachine La cadena de caracteres que identifica a la mquina.
+	 * @param numCol El nmero de columnas de la mquina.
+	 * @param numLin El nmero de lneas de la mquina.
+	 * @param offHeap True para guardar el estado de los slots fuera del heap, false para guardarlo en el heap.
+	 * @throws IllegalArgumentException Cuando el identificador de slot es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador esta vaco.
+	 * @throws IllegalArgumentException Cuando el numero de columnas es negativo, o cero.
+	 * @throws IllegalArgumentException Cuando el numero de filas es negativo, o cero.
+	 * @throws IllegalArgumentException Cuando la mquina tiene demasiados slots para representarse.
+	 */
+	public VendingMachine(String idMachine, int numCol, int numLin, boolean offHeap) {
 		if (idMachine == null) {
 			throw
 					new IllegalArgumentException(msgErrorIdNull);
@@ -55,22 +122,18 @@ public class VendingMachine {
 			throw
 					new IllegalArgumentException("El numero de filas no puede ser negativo ni cero.");
 		}
-		if (numCol > dictionary.length) {
+		if ((long) numCol * numLin > Integer.MAX_VALUE - 8) {
 			throw
-					new IllegalArgumentException("El nmero de columnas no puede superar el numero de letras del diccionario: 26.");
+					new IllegalArgumentException("La mquina no puede tener tantos slots.");
 		}
 		this.idMachine = idMachine;
-		operative = true;
-		slots = new ArrayList<>();
-		for(int i=0; i<numCol; i++) {
-			ArrayList<Slot> slot = new ArrayList<>();
-			String letra = Character.toString(dictionary[i]);
-			for(int j=0;j<numLin; j++) {
-				Slot s = new Slot(letra + j);
-				slot.add(s);
-			}
-			slots.add(slot);
-		}
+		control = new AtomicInteger(MachineState.OPERATIVE.ordinal() << STATE_SHIFT);
+		this.numCol = numCol;
+		this.numLin = numLin;
+		int numSlots = numCol * numLin;
+		slots = offHeap ? new OffHeapSlotStore(numSlots) : new HeapSlotStore(numSlots);
+		slotGates = new AtomicIntegerArray(numSlots);
+		reserved = new AtomicIntegerArray(numSlots);
 	}
 	
 	/**
@@ -81,19 +144,248 @@ public class VendingMachine {
 		return idMachine;
 	}
 	
+	/**
+	 * Consulta la versin de la mquina, un contador que cambia con cada modificacin de sus slots,
+	 * precios o estado. Sirve para saber si algo calculado a partir de la mquina sigue al da.
+	 * @return La versin actual de la mquina.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+	
+	/**
+	 * Consulta la versin del catlogo de la mquina, un contador que cambia cuando cambia el vendible o
+	 * el precio de algn slot: al reabastecer un slot vaco, al vaciarse un slot, o al cambiar precios.
+	 * Las ventas que no vacan su slot no lo cambian. Es la versin con la que se validan las transacciones.
+	 * @return La versin actual del catlogo de la mquina.
+	 */
+	public long getCatalogVersion() {
+		return catalogVersion.get();
+	}
+	
+	/**
+	 * Sita la mquina en unas coordenadas geogrficas, con las que se buscan las mquinas ms cercanas
+	 * en {@link FleetIndex}. Avisa del cambio a los oyentes de existencias.
+	 * @param latitude Latitud en grados, entre -90 y 90.
+	 * @param longitude Longitud en grados, entre -180 y 180.
+	 * @throws IllegalArgumentException Cuando la latitud o la longitud estn fuera de rango.
+	 */
+	public void setLocation(double latitude, double longitude) {
+		if (!(latitude >= -90 && latitude <= 90)) {						//tambin descarta NaN
+			throw
+					new IllegalArgumentException("La latitud debe estar entre -90 y 90 grados.");
+		}
+		if (!(longitude >= -180 && longitude <= 180)) {
+			throw
+					new IllegalArgumentException("La longitud debe estar entre -180 y 180 grados.");
+		}
+		location = new double[] {latitude, longitude};
+		changed();
+		StockListener[] listeners = stockListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].locationChanged(this);
+		}
+	}
+	
+	/**
+	 * Comprueba si se conoce la ubicacin de la mquina.
+	 * @return True si la mquina tiene coordenadas, false si no.
+	 */
+	public boolean hasLocation() {
+		return location != null;
+	}
+	
+	/**
+	 * Consulta la latitud de la mquina.
+	 * @return La latitud en grados, o NaN si no se conoce la ubicacin.
+	 */
+	public double getLatitude() {
+		double[] l = location;
+		return l == null ? Double.NaN : l[0];
+	}
+	
+	/**
+	 * Consulta la longitud de la mquina.
+	 * @return La longitud en grados, o NaN si no se conoce la ubicacin.
+	 */
+	public double getLongitude() {
+		double[] l = location;
+		return l == null ? Double.NaN : l[1];
+	}
+	
+	/**
+	 * Empieza una transaccin optimista sobre la mquina: lee una instantnea consistente del catlogo,
+	 * sobre la que se preparan cambios en varios slots que luego se aplican todos juntos con
+	 * {@link MachineTransaction#commit()}. Preparar los cambios no bloquea las ventas.
+	 * @return Transaccin nueva.
+	 */
+	public MachineTransaction beginTransaction() {
+		return new MachineTransaction(this);
+	}
+	
+	/**
+	 * Ejecuta una transaccin optimista, repitindola desde una instantnea nueva mientras choque con
+	 * otros cambios del catlogo, hasta el nmero mximo de intentos.
+	 * @param work Trabajo que prepara los cambios de la transaccin; se ejecuta una vez por intento.
+	 * @param maxAttempts Nmero mximo de intentos.
+	 * @return True si se han aplicado los cambios, false si todos los intentos han chocado.
+	 * @throws IllegalArgumentException Cuando el trabajo es nulo.
+	 * @throws IllegalArgumentException Cuando el nmero de intentos no es positivo.
+	 */
+	public boolean runTransaction(Consumer<MachineTransaction> work, int maxAttempts) {
+		if (work == null) {
+			throw
+					new IllegalArgumentException("El trabajo de la transaccin no puede ser nulo.");
+		}
+		if (maxAttempts <= 0) {
+			throw
+					new IllegalArgumentException("El nmero de intentos debe ser positivo.");
+		}
+		for (int attempt = 0; attempt < maxAttempts; attempt++) {
+			MachineTransaction transaction = beginTransaction();
+			work.accept(transaction);
+			if (transaction.commit()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Consulta el estado de la mquina de vending.
 	 * @return True si esta operativa, False si no lo esta.
 	 */
 	public boolean isOperative() {
-		return operative;
+		return stateOf(control.get()) == MachineState.OPERATIVE;
+	}
+	
+	/**
+	 * Consulta el estado del ciclo de vida de la mquina.
+	 * @return El estado actual de la mquina.
+	 */
+	public MachineState getState() {
+		return stateOf(control.get());
 	}
 	
 	/**
-	 * Cambia el estado de la mquina actual por el opuesto.
+	 * Cambia el estado de la mquina actual por el opuesto: una mquina operativa queda fuera de servicio,
+	 * y una que no lo esta (fuera de servicio o en mantenimiento) vuelve a estar operativa.
+	 * Las compras que estuvieran en curso terminan normalmente.
 	 */
 	public void switchOperative() {
-		operative = !operative;
+		int c;
+		int next;
+		do {
+			c = control.get();
+			MachineState target = stateOf(c) == MachineState.OPERATIVE ? MachineState.OUT_OF_SERVICE : MachineState.OPERATIVE;
+			next = withState(c, target);
+		} while (!control.compareAndSet(c, next));
+		stateChanged();
+		traceLifecycle(TraceRecorder.SWITCH_OPERATIVE);
+	}
+	
+	/**
+	 * Empieza el mantenimiento de la mquina: deja de admitir compras nuevas y, en cuanto terminan
+	 * las que estaban en curso, pasa al estado {@link MachineState#MAINTENANCE}. No espera a que
+	 * terminen; mientras tanto la mquina esta en {@link MachineState#DRAINING}. Si ya estaba en
+	 * mantenimiento no hace nada.
+	 */
+	public void startMaintenance() {
+		int c;
+		int next;
+		do {
+			c = control.get();
+			MachineState state = stateOf(c);
+			if (state == MachineState.DRAINING || state == MachineState.MAINTENANCE) {
+				return;
+			}
+			next = withState(c, (c & IN_FLIGHT) == 0 ? MachineState.MAINTENANCE : MachineState.DRAINING);
+		} while (!control.compareAndSet(c, next));
+		stateChanged();
+		traceLifecycle(TraceRecorder.START_MAINTENANCE);
+	}
+	
+	/**
+	 * Termina el mantenimiento de la mquina, que vuelve a estar operativa.
+	 * @throws IllegalStateException Cuando la mquina no esta en mantenimiento.
+	 */
+	public void endMaintenance() {
+		int c;
+		do {
+			c = control.get();
+			MachineState state = stateOf(c);
+			if (state != MachineState.DRAINING && state != MachineState.MAINTENANCE) {
+				throw
+						new IllegalStateException("La mquina no esta en mantenimiento.");
+			}
+		} while (!control.compareAndSet(c, withState(c, MachineState.OPERATIVE)));
+		stateChanged();
+		traceLifecycle(TraceRecorder.END_MAINTENANCE);
+	}
+	
+	/**
+	 * Bloquea un slot para trabajar en l (reabastecerlo o cambiar su precio) mientras el resto de la
+	 * mquina sigue vendiendo: el slot deja de admitir compras nuevas. No espera a que terminen las
+	 * compras en curso en el slot; {@link #isSlotDrained(String)} indica cundo han terminado.
+	 * @param idSlot Identificador del slot a bloquear.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador del slot esta vaco.
+	 * @throws IllegalArgumentException Cuando el slot no se encuentra en la mquina.
+	 */
+	public void lockSlot(String idSlot) {
+		int index = slotIndex(idSlot);
+		int g;
+		do {
+			g = slotGates.get(index);
+		} while (!slotGates.compareAndSet(index, g, g | SLOT_LOCKED));
+		TraceRecorder trace = recorder;
+		if (trace != null) {
+			trace.slotLocked(recorderCity, this, idSlot, true);
+		}
+	}
+	
+	/**
+	 * Desbloquea un slot, que vuelve a admitir compras.
+	 * @param idSlot Identificador del slot a desbloquear.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador del slot esta vaco.
+	 * @throws IllegalArgumentException Cuando el slot no se encuentra en la mquina.
+	 */
+	public void unlockSlot(String idSlot) {
+		int index = slotIndex(idSlot);
+		int g;
+		do {
+			g = slotGates.get(index);
+		} while (!slotGates.compareAndSet(index, g, g & ~SLOT_LOCKED));
+		TraceRecorder trace = recorder;
+		if (trace != null) {
+			trace.slotLocked(recorderCity, this, idSlot, false);
+		}
+	}
+	
+	/**
+	 * Comprueba si un slot esta bloqueado.
+	 * @param idSlot Identificador del slot a comprobar.
+	 * @return True si el slot esta bloqueado, false si admite compras.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador del slot esta vaco.
+	 * @throws IllegalArgumentException Cuando el slot no se encuentra en la mquina.
+	 */
+	public boolean isSlotLocked(String idSlot) {
+		return slotGates.get(slotIndex(idSlot)) < 0;
+	}
+	
+	/**
+	 * Comprueba si un slot esta bloqueado y ya no tiene compras en curso, de forma que se puede
+	 * trabajar en l.
+	 * @param idSlot Identificador del slot a comprobar.
+	 * @return True si el slot esta bloqueado y sin compras en curso.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador del slot esta vaco.
+	 * @throws IllegalArgumentException Cuando el slot no se encuentra en la mquina.
+	 */
+	public boolean isSlotDrained(String idSlot) {
+		return slotGates.get(slotIndex(idSlot)) == SLOT_LOCKED;
 	}
 	
 	/**
@@ -109,6 +401,7 @@ public class VendingMachine {
 	 * @throws IllegalArgumentException Cuando el vendible recibido es nulo.
 	 * @throws IllegalArgumentException Cuando el slot con el identificador recibido no se encuentra en la mquina.
 	 * @throws IllegalArgumentException Cuando el slot no esta vaco y el identificador del nuevo vendible no es igual al que ya haba.
+	 * @throws IllegalArgumentException Cuando el vendible ha caducado o es un pack con menos de 2 productos.
 	 */
 	public void restockSlot(String idSlot, Vendible vendible) {
 		if (idSlot == null) {
@@ -123,12 +416,28 @@ public class VendingMachine {
 			throw
 					new IllegalArgumentException("El producto no puede ser nulo.");
 		}
-		if (!this.checkSlot(idSlot)) {
+		int index = this.indexOf(idSlot);
+		if (index < 0) {
 			throw
 					new IllegalArgumentException(msgErrorBusqueda);
 		}
-		Slot c = this.findSlot(idSlot);
-		c.addVendible(vendible);					//solo paso vendible como referencia porque en addVendible ya lo duplicamos
+		String idVendible;
+		int stock;
+		enterWrite();
+		try {
+			synchronized (slotMonitor(index)) {
+				this.addVendible(index, vendible);
+				idVendible = slots.getVendible(index).getIdentifier();
+				stock = slots.getStock(index);
+				TraceRecorder trace = recorder;
+				if (trace != null) {
+					trace.restocked(recorderCity, this, idSlot, vendible, 1);
+				}
+			}
+		} finally {
+			exitWrite();
+		}
+		this.fireStockChanged(idSlot, idVendible, stock);
 	}
 
 	/**
@@ -147,6 +456,7 @@ public class VendingMachine {
 	 * @throws IllegalArgumentException Cuando el slot recibido no esta en la mquina.
 	 * @throws IllegalArgumentException Cuando el ArrayList de vendibles contiene vendibles distintos al resto.
 	 * @throws IllegalArgumentException Cuando el slot no estaba vaco, y el identificador del vendible no se corresponde con el que ya estaba en el slot. 
+	 * @throws IllegalArgumentException Cuando algn vendible ha caducado o es un pack con menos de 2 productos; no se aade ninguno.
 	 */
 	public void restockMultipleVendible(String idSlot, ArrayList<Vendible> vendibles) {
 		if (idSlot == null) {
@@ -165,7 +475,8 @@ public class VendingMachine {
 			throw
 					new IllegalArgumentException("La lista de vendibles no puede estar vaca.");
 		}
-		if (!this.checkSlot(idSlot)) {
+		int index = this.indexOf(idSlot);
+		if (index < 0) {
 			throw
 					new IllegalArgumentException(msgErrorBusqueda);
 		}
@@ -173,10 +484,28 @@ public class VendingMachine {
 			throw
 					new IllegalArgumentException("La lista debe contener vendibles iguales (con el mismo identificador nico).");
 		}
-		Slot s = this.findSlot(idSlot);
-		for(int i=0;i<vendibles.size();i++) {
-			s.addVendible(vendibles.get(i));
+		for (int i = 0; i < vendibles.size(); i++) {
+			vendibles.get(i).duplicate();						//se comprueban todas las unidades antes de aadir ninguna
+		}
+		String idVendible;
+		int stock;
+		enterWrite();
+		try {
+			synchronized (slotMonitor(index)) {
+				for(int i=0;i<vendibles.size();i++) {
+					this.addVendible(index, vendibles.get(i));
+				}
+				idVendible = this.slots.getVendible(index).getIdentifier();
+				stock = this.slots.getStock(index);
+				TraceRecorder trace = recorder;
+				if (trace != null) {
+					trace.restocked(recorderCity, this, idSlot, vendibles.get(0), vendibles.size());
+				}
+			}
+		} finally {
+			exitWrite();
 		}
+		this.fireStockChanged(idSlot, idVendible, stock);
 	}
 	
 	/**
@@ -197,17 +526,26 @@ public class VendingMachine {
 			throw
 					new IllegalArgumentException(msgErrorIdSlot);
 		}
-		if (!this.checkSlot(idSlot)) {
+		int index = this.indexOf(idSlot);
+		if (index < 0) {
 			throw
 					new IllegalArgumentException(msgErrorBusqueda);
 		}
-		Slot c = this.findSlot(idSlot);
-		return c.getVendiblePrice();
+		if (slots.getStock(index) == 0) {
+			throw
+					new IllegalArgumentException(msgErrorEmptySlot);
+		}
+		TraceRecorder trace = recorder;
+		if (trace != null) {
+			trace.priceQueried(recorderCity, this, idSlot);
+		}
+		return effectivePrice(index);
 	}
 		
 	/**
 	 * Cambia el precio de un producto que se encuentra en la mquina,referenciado por el identificador nico (UPC) 
-	 * recibido, por el precio nuevo elegido.
+	 * recibido, por el precio nuevo elegido. Si la mquina esta conectada a un {@link PackRegistry}, el precio
+	 * cambia tambin en los packs registrados que contienen el producto.
 	 * @param upc Identificador del producto a modificar.
 	 * @param newPrice Nuevo valor del precio que deber tener ese producto.
 	 * @throws IllegalArgumentException Cuando el identificador de producto es nulo.
@@ -227,15 +565,19 @@ public class VendingMachine {
 			throw
 					new IllegalArgumentException("El nuevo precio no puede ser 0 o negativo.");
 		}
-		for(int i=0; i<slots.size(); i++) {
-			ArrayList<Slot> slotList = slots.get(i);
-			for(int j=0; j<slotList.size(); j++) {
-				Slot slot = slotList.get(j);
-				if(!slot.isSlotEmpty() && slot.containsProduct(upc)) {			//antes de comprobar si contiene el vendible, tenemos que comprobar que no este vaco
-					slot.changePrice(upc, newPrice);
-				}
+		enterWrite();
+		try {
+			applyProductPrice(upc, newPrice);
+			catalogVersion.incrementAndGet();
+			TraceRecorder trace = recorder;
+			if (trace != null) {
+				trace.priceChanged(recorderCity, this, upc, newPrice);
 			}
+		} finally {
+			exitWrite();
 		}
+		changed();
+		firePriceChanged(upc, newPrice);
 	}
 	
 	/**
@@ -253,6 +595,9 @@ public class VendingMachine {
 	 * @throws IllegalArgumentException Cuando el slot buscado no esta en la mquina.
 	 * @throws IllegalArgumentException Cuando no hay saldo suficiente en la tarjeta para comprar el producto.
 	 * @throws IllegalArgumentException Si el slot recibido esta vaco (sin productos).
+	 * @throws IllegalStateException Cuando la mquina no esta operativa.
+	 * @throws IllegalStateException Cuando el slot esta bloqueado.
+	 * @throws IllegalStateException Cuando el control de admisin de la mquina rechaza la compra.
 	 */
 	public void buyVendible(String idSlot, TarjetaMonedero t, String credential) {
 		if (idSlot == null) {
@@ -275,17 +620,190 @@ public class VendingMachine {
 			throw
 					new IllegalArgumentException("La credencial no puede estar vaca.");
 		}
-		if(!checkSlot(idSlot)) {
+		AdmissionControl gate = admission;
+		if (gate != null) {												//antes de buscar el slot y de llamar a la tarjeta
+			gate.admit(this, credential);
+		}
+		int index = indexOf(idSlot);
+		if(index < 0) {
+			throw
+					new IllegalArgumentException(msgErrorBusqueda);
+		}
+		sell(idSlot, index, t, credential, null);
+	}
+	
+	/**
+	 * Compra el producto del slot(casilla) recibido con una sesin de tarjeta preautorizada: el precio se
+	 * descuenta de la cantidad retenida en la sesin, sin llamar a la tarjeta, y se cobra al cerrar la sesin.
+	 * La primera compra de la sesin se cobra en la tarjeta antes de entregarla, para comprobar la credencial.
+	 * @param idSlot Identificador del slot a consultar.
+	 * @param session Sesin abierta con la que se paga la compra.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador del slot esta vaco.
+	 * @throws IllegalArgumentException Cuando la sesin es nula.
+	 * @throws IllegalArgumentException Cuando el slot buscado no esta en la mquina.
+	 * @throws IllegalArgumentException Cuando no queda en la sesin saldo suficiente para comprar el producto.
+	 * @throws IllegalArgumentException Cuando la tarjeta rechaza la credencial de la sesin en la primera compra.
+	 * @throws IllegalArgumentException Si el slot recibido esta vaco (sin productos).
+	 * @throws IllegalStateException Cuando la mquina no esta operativa.
+	 * @throws IllegalStateException Cuando el slot esta bloqueado.
+	 * @throws IllegalStateException Cuando la sesin esta cerrada o ha caducado.
+	 */
+	public void buyVendible(String idSlot, CardSession session) {
+		if (idSlot == null) {
+			throw
+					new IllegalArgumentException(msgErrorIdNull);
+		}
+		if (idSlot.isEmpty()) {
+			throw
+					new IllegalArgumentException(msgErrorIdSlot);
+		}
+		if (session == null) {
+			throw
+					new IllegalArgumentException("No se ha introducido ninguna sesin.");
+		}
+		int index = indexOf(idSlot);
+		if(index < 0) {
 			throw
 					new IllegalArgumentException(msgErrorBusqueda);
 		}
-		if(t.getSaldoActual()<getPriceVendible(idSlot)) {
+		sell(idSlot, index, null, null, session);
+	}
+	
+	/**
+	 * Mtodo privado que realiza una compra ya validada, cobrndola en la tarjeta o, si se recibe una
+	 * sesin, descontndola de su retencin.
+	 * La unidad se aparta antes de cobrar, reservndola con el monitor del slot tomado, de modo que dos
+	 * compras a la vez no pueden llevarse la misma unidad. El cobro se hace sin el monitor; si falla, la
+	 * unidad vuelve a estar disponible, y si no, se retira del slot.
+	 */
+	private void sell(String idSlot, int index, TarjetaMonedero t, String credential, CardSession session) {
+		enterPurchase(index);
+		try {
+			String idVendible;
+			double price;
+			enterWrite();
+			try {
+				synchronized (slotMonitor(index)) {
+					int stock = slots.getStock(index);
+					if(stock == 0) {
+						throw
+								new IllegalArgumentException(msgErrorEmptySlot);
+					}
+					if (stock <= reserved.get(index)) {
+						throw
+								new IllegalArgumentException(msgErrorReserved);
+					}
+					reserved.incrementAndGet(index);				//la unidad queda apartada mientras se cobra
+					idVendible = slots.getVendible(index).getIdentifier();
+					price = effectivePrice(index);
+				}
+			} finally {
+				exitWrite();
+			}
+			boolean charged = false;
+			try {
+				if (session != null) {
+					session.debit(price);
+				} else {
+					if(t.getSaldoActual()<price) {
+						throw
+								new IllegalArgumentException("No hay saldo suficiente en la tarjeta.");
+					}
+					t.descontarDelSaldo(credential, price);
+				}
+				charged = true;
+			} finally {
+				if (!charged) {
+					reserved.decrementAndGet(index);				//no se ha cobrado: la unidad vuelve a estar disponible
+				}
+			}
+			int stock;
+			enterWrite();
+			try {
+				synchronized (slotMonitor(index)) {
+					removeVendible(index);
+					stock = slots.getStock(index);
+					reserved.decrementAndGet(index);
+					TraceRecorder trace = recorder;
+					if (trace != null) {
+						trace.sold(recorderCity, this, idSlot);
+					}
+				}
+			} finally {
+				exitWrite();
+			}
+			fireStockChanged(idSlot, idVendible, stock);
+			SaleListener[] listeners = saleListeners;
+			for (int i = 0; i < listeners.length; i++) {
+				listeners[i].vendibleSold(this, idSlot, idVendible, price);
+			}
+		} finally {
+			exitPurchase(index);
+		}
+	}
+	
+	/**
+	 * Registra un oyente al que se avisar de cada venta realizada en la mquina.
+	 * @param listener Oyente a registrar.
+	 * @throws IllegalArgumentException Cuando el oyente es nulo.
+	 */
+	public synchronized void addSaleListener(SaleListener listener) {
+		if (listener == null) {
+			throw
+					new IllegalArgumentException("El oyente no puede ser nulo.");
+		}
+		SaleListener[] listeners = Arrays.copyOf(saleListeners, saleListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		saleListeners = listeners;
+	}
+	
+	/**
+	 * Elimina un oyente de ventas registrado en la mquina. Si no estaba registrado no hace nada.
+	 * @param listener Oyente a eliminar.
+	 */
+	public synchronized void removeSaleListener(SaleListener listener) {
+		for (int i = 0; i < saleListeners.length; i++) {
+			if (saleListeners[i] == listener) {
+				SaleListener[] listeners = new SaleListener[saleListeners.length - 1];
+				System.arraycopy(saleListeners, 0, listeners, 0, i);
+				System.arraycopy(saleListeners, i + 1, listeners, i, listeners.length - i);
+				saleListeners = listeners;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Registra un oyente al que se avisar de cada cambio de existencias de los slots de la mquina,
+	 * tanto por reabastecimientos como por ventas.
+	 * @param listener Oyente a registrar.
+	 * @throws IllegalArgumentException Cuando el oyente es nulo.
+	 */
+	public synchronized void addStockListener(StockListener listener) {
+		if (listener == null) {
 			throw
-					new IllegalArgumentException("No hay saldo suficiente en la tarjeta.");
+					new IllegalArgumentException("El oyente no puede ser nulo.");
+		}
+		StockListener[] listeners = Arrays.copyOf(stockListeners, stockListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		stockListeners = listeners;
+	}
+	
+	/**
+	 * Elimina un oyente de existencias registrado en la mquina. Si no estaba registrado no hace nada.
+	 * @param listener Oyente a eliminar.
+	 */
+	public synchronized void removeStockListener(StockListener listener) {
+		for (int i = 0; i < stockListeners.length; i++) {
+			if (stockListeners[i] == listener) {
+				StockListener[] listeners = new StockListener[stockListeners.length - 1];
+				System.arraycopy(stockListeners, 0, listeners, 0, i);
+				System.arraycopy(stockListeners, i + 1, listeners, i, listeners.length - i);
+				stockListeners = listeners;
+				return;
+			}
 		}
-		t.descontarDelSaldo(credential, getPriceVendible(idSlot));
-		Slot c = findSlot(idSlot);
-		c.removeVendible(); 				//Se comprueba en este metodo del Slot que el slot no este vacio
 	}
 	
 	/**
@@ -293,17 +811,12 @@ public class VendingMachine {
 	 * @return True si la mquina tiene uno o ms slots de vendibles vacos, false si esta completa.
 	 */
 	public boolean checkEmptySlots() {
-		boolean found = false;
 		for(int i=0; i<slots.size(); i++) {
-			ArrayList<Slot> slotList = slots.get(i);
-			for(int j = 0; j<slotList.size();j++) {
-				Slot slot = slotList.get(j);
-				if (slot.isSlotEmpty()) {
-					found = true;
-				}
+			if (slots.getStock(i) == 0) {
+				return true;
 			}
 		}
-		return found;
+		return false;
 	}
 	
 	/**
@@ -323,54 +836,1012 @@ public class VendingMachine {
 			throw
 					new IllegalArgumentException(msgErrorIdSlot);
 		}
-		if (!this.checkSlot(idSlot)) {
+		int index = this.indexOf(idSlot);
+		if (index < 0) {
 			throw
 					new IllegalArgumentException(msgErrorBusqueda);
 		}
-		Slot slot = findSlot(idSlot);
-		return slot.isSlotEmpty();								//aqui slot no puede ser null, porque aunque lo inicialicemos en buscacasilla a null, nunca puede devorver null porque antes comprobamos que este en la maquina
+		return slots.getStock(index) == 0;
 	}
 	
 	/**
-	 * Mtodo privado que obtiene el slot correspondiente al identificador recibido.
-	 * El Slot que devuelve NO PODRA SER NULL NUNCA, debido a que antes de llamar a este mtodo, 
-	 * siempre se comprueba antes que el slot a buscar est en la mquina, y al ser un mtodo privado, 
-	 * nadie ms podra usarlo.
-	 * @param idSlot Identificador del slot buscado.
-	 * @return El slot buscado con el identificador que se ha recibido.
+	 * Consulta las existencias (unidades) del slot correspondiente al identificador recibido.
+	 * @param idSlot El identificador del slot a consultar.
+	 * @return Nmero de unidades del vendible en el slot, 0 si esta vaco.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador del slot esta vaco.
+	 * @throws IllegalArgumentException Cando el slot no se encuentra en la mquina.
 	 */
-	private Slot findSlot(String idSlot) {
-		Slot found = null;
-		for(int i=0; i<slots.size(); i++) {
-			ArrayList<Slot> slotList = slots.get(i);
-			for(int j=0; j<slotList.size(); j++) {
-				Slot slot = slotList.get(j);
-				if (idSlot.equals(slot.getIdSlot())) {
-					found = slot;
-				}
+	public int getStock(String idSlot) {
+		if(idSlot == null) {
+			throw
+					new IllegalArgumentException(msgErrorIdNull);
+		}
+		if(idSlot.isEmpty()) {
+			throw
+					new IllegalArgumentException(msgErrorIdSlot);
+		}
+		int index = this.indexOf(idSlot);
+		if (index < 0) {
+			throw
+					new IllegalArgumentException(msgErrorBusqueda);
+		}
+		return slots.getStock(index);
+	}
+	
+	/**
+	 * Consulta las unidades del slot que se pueden comprar o reservar: las existencias sin las unidades
+	 * reservadas para pedidos de la aplicacin ({@link ReservationManager}).
+	 * @param idSlot El identificador del slot a consultar.
+	 * @return Nmero de unidades disponibles del slot.
+	 * @throws IllegalArgumentException Cuando el identificador del slot es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador del slot esta vaco.
+	 * @throws IllegalArgumentException Cando el slot no se encuentra en la mquina.
+	 */
+	public int getAvailableStock(String idSlot) {
+		int index = slotIndex(idSlot);
+		return Math.max(0, slots.getStock(index) - reserved.get(index));
+	}
+	
+	/**
+	 * Consulta el nmero de slots de la mquina.
+	 * @return Nmero de slots (columnas por lneas).
+	 */
+	public int getNumSlots() {
+		return slots.size();
+	}
+	
+	/**
+	 * Consulta el identificador del slot con el nmero recibido. Los slots se numeran por columnas:
+	 * A0, A1, ..., B0, B1, ...
+	 * @param index Nmero del slot, entre 0 y {@link #getNumSlots()} - 1.
+	 * @return El identificador del slot.
+	 * @throws IllegalArgumentException Cuando el nmero de slot no est en la mquina.
+	 */
+	public String getSlotId(int index) {
+		checkIndex(index);
+		return columnName(index / numLin) + (index % numLin);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta las existencias del slot con el nmero recibido.
+	 */
+	int getStock(int index) {
+		return slots.getStock(index);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta el identificador del vendible del slot con el 
+	 * nmero recibido, o null si el slot esta vaco.
+	 */
+	String getVendibleId(int index) {
+		Vendible vendible = slots.getVendible(index);
+		return vendible == null ? null : vendible.getIdentifier();
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que lee a la vez el vendible y las existencias de un slot, con su
+	 * monitor tomado, para que sean coherentes entre s.
+	 * @param index Nmero del slot.
+	 * @param stock Vector en cuya primera posicin se dejan las existencias.
+	 * @return El vendible del slot, o null si esta vaco.
+	 */
+	Vendible readSlot(int index, int[] stock) {
+		synchronized (slotMonitor(index)) {
+			stock[0] = slots.getStock(index);
+			return slots.getVendible(index);
+		}
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que comprueba si la mquina se puede descargar de memoria y volver a
+	 * cargar del almacn sin perder nada que no se guarde: no tiene compras ni transacciones en curso,
+	 * slots bloqueados o unidades reservadas, ni est conectada a un feed de cambios, un grabador de la
+	 * traza o un motor de precios.
+	 */
+	boolean isEvictable() {
+		if ((control.get() & IN_FLIGHT) != 0 || writes.get() != 0 || changeFeed != null || recorder != null || priceTable.get() != null
+				|| packRegistry != null) {
+			return false;
+		}
+		for (int i = 0; i < slots.size(); i++) {
+			if (slotGates.get(i) != 0 || reserved.get(i) != 0) {
+				return false;
 			}
 		}
-		return found;
+		return true;
 	}
 	
 	/**
-	 * Mtodo privado que comprueba si el slot con el identificador que recibe
-	 * existe en la mquina de vending o no.
-	 * @param idSlot El identificador del slot que se va a buscar.
-	 * @return True si el slot se encuentra en la mquina, false si no esta.
+	 * Mtodo visible en el paquete que consulta el control de admisin de la mquina, o null si no tiene.
 	 */
-	private boolean checkSlot(String idSlot) {
-		boolean found = false;
-		for(int i=0; i<slots.size(); i++) {
-			ArrayList<Slot> slotList = slots.get(i);
-			for(int j=0; j<slotList.size(); j++) {
-				Slot slot = slotList.get(j);
-				if (idSlot.equals(slot.getIdSlot())) {
-					found = true;
+	AdmissionControl getAdmissionControl() {
+		return admission;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta el vendible de referencia del slot con el nmero
+	 * recibido, o null si el slot esta vaco.
+	 */
+	Vendible getVendible(int index) {
+		return slots.getVendible(index);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta el precio base del slot, el del propio vendible
+	 * sin aplicar el motor de precios.
+	 */
+	double getBasePrice(int index) {
+		return slots.getPrice(index);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta el precio de venta del slot: el de la tabla compilada
+	 * por el motor de precios si lo hay, o el precio base.
+	 */
+	double getSalePrice(int index) {
+		return effectivePrice(index);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que aplica ventas comunicadas por la mquina fsica (ya cobradas
+	 * en la propia mquina), retirando las unidades del slot. Pasan por la misma puerta que las compras,
+	 * y no pueden llevarse unidades reservadas.
+	 * @param index Nmero del slot.
+	 * @param units Unidades vendidas.
+	 * @return True si se han aplicado, false si el slot no existe, no tiene tantas unidades sin reservar,
+	 * la mquina no esta operativa o el slot esta bloqueado.
+	 */
+	boolean applyReportedSales(int index, int units) {
+		if (index < 0 || index >= slots.size() || units <= 0) {
+			return false;
+		}
+		try {
+			enterPurchase(index);
+		} catch (IllegalStateException e) {
+			return false;
+		}
+		try {
+			return applyReportedSalesGated(index, units);
+		} finally {
+			exitPurchase(index);
+		}
+	}
+	
+	/**
+	 * Mtodo privado que retira las unidades de unas ventas comunicadas, dentro de la puerta de compras.
+	 */
+	private boolean applyReportedSalesGated(int index, int units) {
+		String idVendible;
+		double price;
+		int stock;
+		enterWrite();
+		try {
+			synchronized (slotMonitor(index)) {
+				if (slots.getStock(index) - reserved.get(index) < units) {
+					return false;
+				}
+				idVendible = slots.getVendible(index).getIdentifier();
+				price = effectivePrice(index);
+				for (int i = 0; i < units; i++) {
+					removeVendible(index);
+				}
+				stock = slots.getStock(index);
+				TraceRecorder trace = recorder;
+				if (trace != null) {
+					trace.reported(recorderCity, this, index, units, true);
+				}
+			}
+		} finally {
+			exitWrite();
+		}
+		SaleListener[] listeners = saleListeners;
+		if (listeners.length > 0 || stockListeners.length > 0 || changeFeed != null) {		//solo se construye el id del slot si alguien lo va a usar
+			String idSlot = getSlotId(index);
+			fireStockChanged(idSlot, idVendible, stock);
+			for (int u = 0; u < units; u++) {
+				for (int i = 0; i < listeners.length; i++) {
+					listeners[i].vendibleSold(this, idSlot, idVendible, price);
 				}
 			}
 		}
-		return found;
+		return true;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que aplica un reabastecimiento comunicado por la mquina fsica,
+	 * aadiendo unidades del vendible que ya hay en el slot.
+	 * @param index Nmero del slot.
+	 * @param units Unidades aadidas.
+	 * @return True si se ha aplicado, false si el slot no existe o esta vaco (no se sabe qu vendible contiene).
+	 */
+	boolean applyReportedRestock(int index, int units) {
+		if (index < 0 || index >= slots.size() || units <= 0) {
+			return false;
+		}
+		String idVendible;
+		int stock;
+		enterWrite();
+		try {
+			synchronized (slotMonitor(index)) {
+				if (slots.getStock(index) == 0) {
+					return false;
+				}
+				stock = slots.getStock(index) + units;
+				slots.setStock(index, stock);
+				idVendible = slots.getVendible(index).getIdentifier();
+				TraceRecorder trace = recorder;
+				if (trace != null) {
+					trace.reported(recorderCity, this, index, units, false);
+				}
+			}
+		} finally {
+			exitWrite();
+		}
+		changed();
+		if (stockListeners.length > 0 || changeFeed != null) {
+			fireStockChanged(getSlotId(index), idVendible, stock);
+		}
+		return true;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que indica si el estado de los slots se guarda fuera del heap.
+	 */
+	boolean isOffHeap() {
+		return slots instanceof OffHeapSlotStore;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta el nmero de lneas de la mquina.
+	 */
+	int getNumLin() {
+		return numLin;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta el nmero de columnas de la mquina.
+	 */
+	int getNumCol() {
+		return numCol;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que restaura un slot de una mquina guardada, sin duplicar el
+	 * vendible ni avisar a los oyentes.
+	 */
+	void restoreSlot(int index, Vendible vendible, int stock) {
+		slots.setVendible(index, vendible);
+		slots.setStock(index, stock);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que restaura la ubicacin de una mquina guardada, sin avisar a los oyentes.
+	 */
+	void restoreLocation(double latitude, double longitude) {
+		location = latitude == latitude ? new double[] {latitude, longitude} : null;			//NaN: sin ubicacin
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que restaura el estado y la versin de una mquina guardada,
+	 * que no tiene compras en curso.
+	 */
+	void restoreState(MachineState state, long version) {
+		control.set(withState(0, state == MachineState.DRAINING ? MachineState.MAINTENANCE : state));
+		this.version.set(version);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta los oyentes de ventas registrados. El vector no se
+	 * modifica nunca, los cambios de oyentes crean uno nuevo.
+	 */
+	SaleListener[] getSaleListeners() {
+		return saleListeners;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta los oyentes de existencias registrados.
+	 */
+	StockListener[] getStockListeners() {
+		return stockListeners;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que sustituye los oyentes de la mquina, por ejemplo al volver a
+	 * cargar una mquina que se haba descargado de memoria.
+	 */
+	synchronized void setListeners(SaleListener[] sale, StockListener[] stock) {
+		saleListeners = sale;
+		stockListeners = stock;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que conecta la mquina al feed de cambios del inventario, 
+	 * o la desconecta con null.
+	 * @param feed Feed en el que se publican los cambios de la mquina.
+	 * @param idCity Provincia de la mquina, que acompaa a sus cambios.
+	 */
+	void setChangeFeed(InventoryChangeFeed feed, String idCity) {
+		if (feed != null) {
+			feedCity = idCity;													//quien lea el feed ya ve su provincia
+		}
+		changeFeed = feed;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que conecta la mquina a un control de admisin de las compras con
+	 * tarjeta, o la desconecta con null.
+	 * @param admission Control de admisin por el que pasan las compras de la mquina.
+	 */
+	void setAdmissionControl(AdmissionControl admission) {
+		this.admission = admission;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que conecta la mquina a un registro de packs, al que se propagan sus
+	 * cambios de precio, o la desconecta con null.
+	 * @param registry Registro en el que se cambian los precios de los packs.
+	 */
+	void setPackRegistry(PackRegistry registry) {
+		packRegistry = registry;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta el registro de packs de la mquina, o null si no tiene.
+	 */
+	PackRegistry getPackRegistry() {
+		return packRegistry;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que conecta la mquina al grabador de la traza, grabando su alta con
+	 * su contenido actual, o la desconecta con null. Se hace con las escrituras detenidas, como una
+	 * transaccin: las operaciones anteriores quedan en el contenido grabado y las posteriores se graban
+	 * despus, cada una con el monitor de su slot. No se debe llamar con el cerrojo del grabador tomado.
+	 * @param recorder Grabador en el que se graban las operaciones de la mquina.
+	 * @param idCity Provincia de la mquina, que acompaa a sus operaciones.
+	 */
+	void setRecorder(TraceRecorder recorder, String idCity) {
+		beginCommitting();
+		try {
+			if (recorder != null) {
+				recorder.machineAdded(idCity, this);
+			}
+			recorderCity = idCity;
+			this.recorder = recorder;
+		} finally {
+			endCommitting();
+		}
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que reserva unidades de un slot, si tiene tantas disponibles.
+	 * @param index Nmero del slot.
+	 * @param units Unidades a reservar.
+	 * @param idVendible Recibe en su primera posicin el identificador del vendible reservado.
+	 * @return Precio de venta actual del slot.
+	 * @throws IllegalArgumentException Cuando el slot no tiene tantas unidades disponibles.
+	 * @throws IllegalStateException Cuando la mquina no esta operativa o el slot esta bloqueado.
+	 */
+	double reserveUnits(int index, int units, String[] idVendible) {
+		enterPurchase(index);
+		enterWrite();
+		try {
+			synchronized (slotMonitor(index)) {
+				if (slots.getStock(index) - reserved.get(index) < units) {
+					throw
+							new IllegalArgumentException("El slot no tiene tantas unidades disponibles.");
+				}
+				reserved.addAndGet(index, units);
+				idVendible[0] = slots.getVendible(index).getIdentifier();
+				return effectivePrice(index);
+			}
+		} finally {
+			exitWrite();
+			exitPurchase(index);
+		}
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que libera unidades reservadas de un slot, que vuelven a estar disponibles.
+	 */
+	void releaseReserved(int index, int units) {
+		reserved.addAndGet(index, -units);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que entrega las unidades reservadas de un slot al cliente que las recoge,
+	 * como una venta ya cobrada, y avisa a los oyentes con el precio fijado al reservar.
+	 * @param index Nmero del slot.
+	 * @param units Unidades reservadas.
+	 * @param idReserved Identificador del vendible reservado.
+	 * @param price Precio por unidad.
+	 * @param claim Se ejecuta, dentro de la compra, justo antes de retirar las unidades; si lanza una
+	 * excepcin no se retira nada.
+	 * @throws IllegalStateException Cuando la mquina no esta operativa o el slot esta bloqueado.
+	 * @throws IllegalStateException Cuando el slot ya no tiene las unidades reservadas.
+	 * @throws IllegalStateException Cuando el slot tiene ahora otro vendible distinto del reservado.
+	 */
+	void dispenseReserved(int index, int units, String idReserved, double price, Runnable claim) {
+		enterPurchase(index);
+		try {
+			String idVendible;
+			int stock;
+			enterWrite();
+			try {
+				synchronized (slotMonitor(index)) {
+					if (slots.getStock(index) < units) {
+						throw
+								new IllegalStateException("El slot ya no tiene las unidades reservadas.");
+					}
+					idVendible = slots.getVendible(index).getIdentifier();
+					if (!idVendible.equals(idReserved)) {
+						throw
+								new IllegalStateException("El slot ya no tiene el vendible reservado.");
+					}
+					claim.run();
+					for (int u = 0; u < units; u++) {
+						removeVendible(index);
+					}
+					stock = slots.getStock(index);
+					reserved.addAndGet(index, -units);
+					TraceRecorder trace = recorder;
+					if (trace != null) {								//en la traza equivale a ventas comunicadas por la mquina
+						trace.reported(recorderCity, this, index, units, true);
+					}
+				}
+			} finally {
+				exitWrite();
+			}
+			String idSlot = getSlotId(index);
+			fireStockChanged(idSlot, idVendible, stock);
+			SaleListener[] listeners = saleListeners;
+			for (int u = 0; u < units; u++) {
+				for (int i = 0; i < listeners.length; i++) {
+					listeners[i].vendibleSold(this, idSlot, idVendible, price);
+				}
+			}
+		} finally {
+			exitPurchase(index);
+		}
+	}
+	
+	/**
+	 * Mtodo privado que graba un cambio de estado de la mquina si se esta grabando una traza.
+	 */
+	private void traceLifecycle(byte operation) {
+		TraceRecorder trace = recorder;
+		if (trace != null) {
+			trace.lifecycle(recorderCity, this, operation);
+		}
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que instala la tabla de precios compilada por el motor de precios,
+	 * con un precio por slot (NaN para usar el precio base). Con null se vuelve a los precios base.
+	 * La tabla no se debe modificar despus de instalarla. Instalarla cambia la versin de la mquina.
+	 */
+	void setPriceTable(double[] table) {
+		priceTable.set(table);
+		changed();
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que instala la tabla de precios solo si la instalada sigue siendo la
+	 * esperada, es decir, si ningn slot ha cambiado de vendible o de precio base mientras se calculaba.
+	 * Si se instala, cambia la versin de la mquina.
+	 * @return True si se ha instalado, false si la tabla haba cambiado.
+	 */
+	boolean replacePriceTable(double[] expected, double[] table) {
+		if (!priceTable.compareAndSet(expected, table)) {
+			return false;
+		}
+		changed();
+		return true;
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que consulta la tabla de precios instalada, o null si no hay ninguna.
+	 * No se debe modificar.
+	 */
+	double[] getPriceTable() {
+		return priceTable.get();
+	}
+	
+	/**
+	 * Consulta el identificador de columna correspondiente a la posicin recibida: 
+	 * A, B, ..., Z, AA, AB, ..., AZ, BA, ...
+	 * @param col Posicin de la columna, empezando en 0.
+	 * @return Las letras que identifican a la columna.
+	 */
+	static String columnName(int col) {
+		StringBuilder name = new StringBuilder();
+		int n = col + 1;
+		while (n > 0) {
+			n--;
+			name.append((char) ('A' + n % LETTERS));
+			n /= LETTERS;
+		}
+		return name.reverse().toString();
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que calcula el nmero de slot (posicin en los vectores de estado) que corresponde 
+	 * al identificador recibido, sin recorrer la mquina: las letras iniciales indican la columna y 
+	 * el entero que las sigue la lnea.
+	 * @param idSlot El identificador del slot que se va a buscar.
+	 * @return El nmero de slot, o -1 si el slot no se encuentra en la mquina.
+	 */
+	int indexOf(String idSlot) {
+		int length = idSlot.length();
+		int i = 0;
+		long col = 0;
+		while (i < length && idSlot.charAt(i) >= 'A' && idSlot.charAt(i) <= 'Z') {
+			col = col * LETTERS + (idSlot.charAt(i) - 'A' + 1);
+			if (col > numCol) {
+				return -1;
+			}
+			i++;
+		}
+		if (i == 0 || i == length || (idSlot.charAt(i) == '0' && i != length - 1)) {		//sin letras, sin lnea, o lnea con ceros a la izquierda
+			return -1;
+		}
+		long lin = 0;
+		for (; i < length; i++) {
+			char c = idSlot.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			lin = lin * 10 + (c - '0');
+			if (lin >= numLin) {
+				return -1;
+			}
+		}
+		return (int) ((col - 1) * numLin + lin);
+	}
+	
+	/**
+	 * Mtodo privado que comprueba que el nmero de slot est en la mquina.
+	 * @param index Nmero de slot.
+	 * @throws IllegalArgumentException Cuando el nmero de slot no est en la mquina.
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= slots.size()) {
+			throw
+					new IllegalArgumentException(msgErrorBusqueda);
+		}
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que valida el identificador de un slot y obtiene su nmero.
+	 * @param idSlot Identificador del slot.
+	 * @return Nmero del slot.
+	 * @throws IllegalArgumentException Cuando el identificador es nulo, esta vaco o no esta en la mquina.
+	 */
+	int slotIndex(String idSlot) {
+		if(idSlot == null) {
+			throw
+					new IllegalArgumentException(msgErrorIdNull);
+		}
+		if(idSlot.isEmpty()) {
+			throw
+					new IllegalArgumentException(msgErrorIdSlot);
+		}
+		int index = this.indexOf(idSlot);
+		if (index < 0) {
+			throw
+					new IllegalArgumentException(msgErrorBusqueda);
+		}
+		return index;
+	}
+	
+	/**
+	 * Mtodo privado que obtiene el monitor con el que se ordenan los cambios de las existencias, el
+	 * vendible y las reservas de un slot. Los monitores se reparten entre los slots de todas las mquinas,
+	 * as que nunca se toma ms de uno a la vez.
+	 * @param index Nmero del slot.
+	 * @return Monitor del slot.
+	 */
+	private Object slotMonitor(int index) {
+		return SLOT_MONITORS[(monitorBase + index) & (SLOT_MONITORS.length - 1)];
+	}
+	
+	/**
+	 * Mtodo privado que registra el comienzo de una compra en el slot, sin cerrojos: incrementa con CAS
+	 * las compras en curso de la mquina, si esta operativa, y las del slot, si no esta bloqueado.
+	 * @param index Nmero del slot.
+	 * @throws IllegalStateException Cuando la mquina no esta operativa o el slot esta bloqueado.
+	 */
+	private void enterPurchase(int index) {
+		int c;
+		do {
+			c = control.get();
+			if (stateOf(c) != MachineState.OPERATIVE) {
+				throw
+						new IllegalStateException("La mquina no esta operativa.");
+			}
+		} while (!control.compareAndSet(c, c + 1));
+		int g;
+		do {
+			g = slotGates.get(index);
+			if (g < 0) {
+				exitMachine();
+				throw
+						new IllegalStateException("El slot esta bloqueado.");
+			}
+		} while (!slotGates.compareAndSet(index, g, g + 1));
+	}
+	
+	/**
+	 * Mtodo privado que registra el final de una compra en el slot.
+	 * @param index Nmero del slot.
+	 */
+	private void exitPurchase(int index) {
+		slotGates.decrementAndGet(index);
+		exitMachine();
+	}
+	
+	/**
+	 * Mtodo privado que descuenta una compra en curso de la mquina. Si la mquina estaba entrando en
+	 * mantenimiento y era la ltima, la deja en mantenimiento.
+	 */
+	private void exitMachine() {
+		int c;
+		int next;
+		do {
+			c = control.get();
+			next = c - 1;
+			if ((next & IN_FLIGHT) == 0 && stateOf(next) == MachineState.DRAINING) {
+				next = withState(next, MachineState.MAINTENANCE);
+			}
+		} while (!control.compareAndSet(c, next));
+	}
+	
+	/**
+	 * Mtodo privado que registra el comienzo de una escritura corta en los slots (apartar o retirar
+	 * unidades, reabastecer, cambiar precios...). Si se est aplicando una transaccin, espera dormido a
+	 * que termine. El cobro de las compras queda fuera de las escrituras, as que una transaccin nunca
+	 * espera a la tarjeta.
+	 */
+	private void enterWrite() {
+		int w;
+		do {
+			w = writes.get();
+			if ((w & COMMITTING) != 0) {
+				awaitWrites(COMMITTING, 0);
+				w = writes.get();
+			}
+		} while ((w & COMMITTING) != 0 || !writes.compareAndSet(w, w + 1));
+	}
+	
+	/**
+	 * Mtodo privado que registra el final de una escritura, y despierta a la transaccin que espera
+	 * si era la ltima.
+	 */
+	private void exitWrite() {
+		if (writes.decrementAndGet() == COMMITTING) {
+			synchronized (writes) {
+				writes.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Mtodo privado que marca la palabra de escrituras como en una transaccin, esperando a que termine
+	 * la que haya en curso, y espera a que terminen las escrituras que ya haban empezado.
+	 */
+	private void beginCommitting() {
+		int w;
+		do {
+			awaitWrites(COMMITTING, 0);
+			w = writes.get();
+		} while ((w & COMMITTING) != 0 || !writes.compareAndSet(w, w | COMMITTING));
+		awaitWrites(~COMMITTING, 0);
+	}
+	
+	/**
+	 * Mtodo privado que quita la marca de transaccin de la palabra de escrituras y despierta a las
+	 * escrituras que esperan.
+	 */
+	private void endCommitting() {
+		writes.addAndGet(-COMMITTING);
+		synchronized (writes) {
+			writes.notifyAll();
+		}
+	}
+	
+	/**
+	 * Mtodo privado que espera dormido, con el monitor de la palabra de escrituras, hasta que los bits
+	 * indicados de la palabra valgan lo esperado. Las interrupciones no cortan la espera, que es corta;
+	 * se vuelven a marcar al terminar.
+	 */
+	private void awaitWrites(int mask, int expected) {
+		boolean interrupted = false;
+		synchronized (writes) {
+			while ((writes.get() & mask) != expected) {
+				try {
+					writes.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Mtodo privado que obtiene el estado de la mquina codificado en la palabra de control.
+	 */
+	private static MachineState stateOf(int c) {
+		return STATES[(c & STATE_MASK) >>> STATE_SHIFT];
+	}
+	
+	/**
+	 * Mtodo privado que cambia el estado codificado en la palabra de control, conservando el resto de la palabra.
+	 */
+	private static int withState(int c, MachineState state) {
+		return (state.ordinal() << STATE_SHIFT) | (c & ~STATE_MASK);
+	}
+	
+	/**
+	 * Mtodo visible en el paquete que aplica los cambios de una transaccin. Marca la palabra de
+	 * escrituras para que no empiecen escrituras nuevas, espera dormida a que terminen las que estn en
+	 * curso (no los cobros de las compras), comprueba que el catlogo no ha cambiado desde la instantnea
+	 * de la transaccin y valida todos los cambios antes de publicar nada. Los avisos a los oyentes se
+	 * hacen despus, con las escrituras ya desbloqueadas.
+	 * @param transaction Transaccin a aplicar.
+	 * @return True si se han aplicado los cambios, false si el catlogo ha cambiado o se estaba aplicando otra transaccin.
+	 * @throws IllegalArgumentException Cuando algn vendible que entra en un slot vaco ha caducado; no se aplica nada.
+	 */
+	boolean commit(MachineTransaction transaction) {
+		int w;
+		do {
+			w = writes.get();
+			if ((w & COMMITTING) != 0) {
+				return false;
+			}
+		} while (!writes.compareAndSet(w, w | COMMITTING));
+		int[] stocks = new int[transaction.getRestocks().size()];				//existencias tras cada reabastecimiento, para avisar despus
+		try {
+			awaitWrites(~COMMITTING, 0);
+			long read = transaction.getReadVersion();
+			if (catalogVersion.get() != read) {
+				return false;
+			}
+			validate(transaction);
+			catalogVersion.set(read + 1);
+			TraceRecorder trace = recorder;								//la transaccin se graba como sus cambios sueltos, en el mismo orden
+			int r = 0;
+			for (MachineTransaction.Restock restock : transaction.getRestocks()) {
+				synchronized (slotMonitor(restock.index)) {
+					for (int u = 0; u < restock.units; u++) {
+						addVendible(restock.index, restock.vendible);
+					}
+					stocks[r++] = slots.getStock(restock.index);
+					if (trace != null) {
+						trace.restocked(recorderCity, this, getSlotId(restock.index), restock.vendible, restock.units);
+					}
+				}
+			}
+			for (Map.Entry<String, Double> price : transaction.getPrices().entrySet()) {
+				applyProductPrice(price.getKey(), price.getValue());
+				if (trace != null) {
+					trace.priceChanged(recorderCity, this, price.getKey(), price.getValue());
+				}
+			}
+			changed();
+		} finally {
+			endCommitting();
+		}
+		int r = 0;
+		for (MachineTransaction.Restock restock : transaction.getRestocks()) {
+			fireStockChanged(getSlotId(restock.index), restock.vendible.getIdentifier(), stocks[r++]);
+		}
+		for (Map.Entry<String, Double> price : transaction.getPrices().entrySet()) {
+			firePriceChanged(price.getKey(), price.getValue());
+		}
+		return true;
+	}
+	
+	/**
+	 * Mtodo privado que comprueba, con las escrituras detenidas, que todos los reabastecimientos de una
+	 * transaccin se pueden aplicar, teniendo en cuenta los anteriores de la misma transaccin: los vendibles
+	 * no pueden haber caducado ni ser packs incompletos, y los que entran en un slot que no esta vaco deben
+	 * ser iguales a los del slot.
+	 * @throws IllegalArgumentException Cuando algn vendible no se puede aadir a su slot.
+	 */
+	private void validate(MachineTransaction transaction) {
+		Vendible[] filled = new Vendible[slots.size()];
+		for (MachineTransaction.Restock restock : transaction.getRestocks()) {
+			Vendible current = filled[restock.index] != null ? filled[restock.index] : slots.getVendible(restock.index);
+			restock.vendible.duplicate();								//cada unidad, no solo la que llena el slot
+			if (current == null) {
+				filled[restock.index] = restock.vendible;
+			} else if (!restock.vendible.getIdentifier().equals(current.getIdentifier())) {
+				throw
+						new IllegalArgumentException("El vendible debe tener el mismo identificador que los que ya estan en el slot: " + restock.vendible.getIdentifier() + " != " + current.getIdentifier());
+			}
+		}
+	}
+	
+	/**
+	 * Mtodo privado que cambia el precio del producto en todos los slots que lo contienen, solo o en un pack,
+	 * sustituyendo su vendible por la versin con el nuevo precio, y en los packs del registro conectado.
+	 * @param upc Identificador del producto.
+	 * @param newPrice Nuevo precio.
+	 */
+	private void applyProductPrice(String upc, double newPrice) {
+		IdentityHashMap<Vendible, Vendible> versions = new IdentityHashMap<>();	//los slots que compartan vendible comparten tambin la versin nueva
+		for(int i=0; i<slots.size(); i++) {
+			Vendible vendible = slots.getVendible(i);
+			if(vendible != null && containsProduct(vendible, upc)) {			//antes de comprobar si contiene el vendible, tenemos que comprobar que no este vaco
+				Vendible version = versions.computeIfAbsent(vendible, v -> v.withProductPrice(upc, newPrice));
+				synchronized (slotMonitor(i)) {
+					if (slots.getVendible(i) == vendible) {						//si se ha vaciado o cambiado entretanto ya no lleva el precio anterior
+						slots.setVendible(i, version);						//tambin guarda su precio
+						invalidatePrice(i);
+					}
+				}
+			}
+		}
+		PackRegistry registry = packRegistry;
+		if (registry != null) {
+			registry.changeProductPrice(upc, newPrice);
+		}
+	}
+	
+	/**
+	 * Mtodo privado que avisa a los oyentes de existencias de un cambio de precio y lo publica en el feed de cambios.
+	 */
+	private void firePriceChanged(String upc, double newPrice) {
+		StockListener[] listeners = stockListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].priceChanged(this, upc, newPrice);
+		}
+		InventoryChangeFeed feed = changeFeed;
+		if (feed != null) {
+			feed.publish(InventoryChange.Type.PRICE, feedCity, idMachine, null, upc, 0, newPrice, isOperative());
+		}
+	}
+	
+	/**
+	 * Mtodo privado que registra un cambio de la mquina en su versin y en la de su provincia.
+	 */
+	private void changed() {
+		version.incrementAndGet();
+		LongAdder city = cityChanges;
+		if (city != null) {
+			city.increment();
+		}
+	}
+	
+	/**
+	 * Mtodo visible en el paquete con el que la provincia conecta la mquina al contador de cambios de
+	 * sus mquinas, o la desconecta con null.
+	 */
+	void setCityChanges(LongAdder changes) {
+		cityChanges = changes;
+	}
+	
+	/**
+	 * Mtodo privado que registra un cambio de estado de la mquina y lo publica en el feed de cambios.
+	 */
+	private void stateChanged() {
+		changed();
+		InventoryChangeFeed feed = changeFeed;
+		if (feed != null) {
+			feed.publish(InventoryChange.Type.OPERATIVE, feedCity, idMachine, null, null, 0, 0, isOperative());
+		}
+	}
+	
+	/**
+	 * Mtodo privado que obtiene el precio de venta del slot: el de la tabla compilada si lo hay,
+	 * o el precio base del vendible.
+	 * @param index Nmero del slot.
+	 * @return Precio de venta.
+	 */
+	private double effectivePrice(int index) {
+		double[] table = priceTable.get();
+		if (table != null) {
+			double price = table[index];
+			if (price == price) {									//falso solo para NaN
+				return price;
+			}
+		}
+		return slots.getPrice(index);
+	}
+	
+	/**
+	 * Mtodo privado que descarta el precio compilado de un slot cuyo vendible o precio base ha
+	 * cambiado, hasta que el motor de precios lo vuelva a calcular. Publica una tabla nueva aunque el
+	 * slot ya no tuviera precio, para que el motor no instale un precio calculado con el vendible anterior.
+	 * @param index Nmero del slot.
+	 */
+	private void invalidatePrice(int index) {
+		double[] table;
+		double[] invalidated;
+		do {
+			table = priceTable.get();
+			if (table == null) {
+				return;
+			}
+			invalidated = table.clone();
+			invalidated[index] = Double.NaN;
+		} while (!priceTable.compareAndSet(table, invalidated));
+	}
+	
+	/**
+	 * Mtodo privado que avisa a los oyentes de existencias del cambio en un slot.
+	 * @param idSlot Identificador del slot.
+	 * @param idVendible Identificador del vendible del slot, aunque se haya quedado vaco.
+	 * @param stock Existencias del slot ledas con su monitor tomado, justo despus del cambio.
+	 */
+	private void fireStockChanged(String idSlot, String idVendible, int stock) {
+		StockListener[] listeners = stockListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].stockChanged(this, idSlot, idVendible, stock);
+		}
+		InventoryChangeFeed feed = changeFeed;
+		if (feed != null) {
+			feed.publish(InventoryChange.Type.STOCK, feedCity, idMachine, idSlot, idVendible, stock, 0, isOperative());
+		}
+	}
+	
+	/**
+	 * Mtodo privado que aade una unidad del vendible al slot con el nmero recibido.
+	 * Cada unidad pasa por {@link Vendible#duplicate()}, que comprueba su caducidad y que no sea un pack
+	 * incompleto. El primer vendible que entra en un slot vaco queda como vendible de referencia del slot,
+	 * sin copiarlo porque es inmutable; las siguientes unidades solo incrementan las existencias.
+	 * @param index Nmero del slot.
+	 * @param vendible Vendible a aadir.
+	 * @throws IllegalArgumentException Cuando el vendible ha caducado o es un pack con menos de 2 productos.
+	 * @throws IllegalArgumentException Cuando el slot no esta vaco y el identificador del vendible no es igual al que ya haba.
+	 */
+	private void addVendible(int index, Vendible vendible) {
+		Vendible checked = vendible.duplicate();					//comprueba la unidad y devuelve el mismo vendible
+		int units = slots.getStock(index);
+		if (units == 0) {
+			slots.setVendible(index, checked);
+			invalidatePrice(index);
+			catalogVersion.incrementAndGet();
+		} else if (!vendible.getIdentifier().equals(slots.getVendible(index).getIdentifier())) {
+			throw
+					new IllegalArgumentException("El vendible debe tener el mismo identificador que los que ya estan en el slot: " + vendible.getIdentifier() + " != " + slots.getVendible(index).getIdentifier());
+		}
+		slots.setStock(index, units + 1);
+		changed();
+	}
+	
+	/**
+	 * Mtodo privado que retira una unidad del slot con el nmero recibido, que no puede estar vaco.
+	 * @param index Nmero del slot.
+	 */
+	private void removeVendible(int index) {
+		int units = slots.getStock(index) - 1;
+		slots.setStock(index, units);
+		changed();
+		if (units == 0) {
+			slots.setVendible(index, null);
+			invalidatePrice(index);
+			catalogVersion.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Mtodo privado que comprueba si el vendible es el producto con el identificador recibido,
+	 * o un pack que lo contiene.
+	 * @param vendible Vendible a comprobar.
+	 * @param upc Identificador nico del producto.
+	 * @return True si el vendible es o contiene ese producto, false si no.
+	 */
+	private static boolean containsProduct(Vendible vendible, String upc) {
+		if (vendible instanceof Pack) {
+			Pack pack = (Pack)vendible;
+			return pack.getPackSize() > 0 && pack.containsProduct(upc);
+		}
+		return upc.equals(vendible.getIdentifier());
 	}
 	
 	/**
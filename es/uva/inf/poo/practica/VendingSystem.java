@@ -2,7 +2,12 @@ package es.uva.inf.poo.practica;
 
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 /**
  * Clase que implementa la funcionalidad de un sistema 
@@ -11,7 +16,14 @@ import java.util.Iterator;
  *
  */
 public class VendingSystem {
-	private ArrayList<VendingCity> cities;
+	private CopyOnWriteArrayList<VendingCity> cities;				//copy-on-write: las lecturas recorren una instantnea sin copiarla; las altas y bajas se hacen con el monitor del sistema
+	private InventoryChangeFeed changeFeed;							//feed de cambios del inventario, null si no se publican
+	private TraceRecorder recorder;									//grabador de la traza, null si no se graba
+	private AdmissionControl admission;								//control de admisin de las compras, null si no hay
+	private VendingSystemExecutor executor;							//modo de ejecucin por provincias, null si no se usa
+	private FleetListener[] fleetListeners = NO_FLEET_LISTENERS;		//oyentes de las altas y bajas de mquinas de todas las provincias
+	private final AtomicLong version = new AtomicLong();			//se incrementa con cada alta o baja de provincia
+	private static final FleetListener[] NO_FLEET_LISTENERS = new FleetListener[0];
 	private static final String msgError1 = "El id de sede no puede ser nulo";
 	private static final String msgError2 = "La sede con ese identificador no est en el sistema";
 	private static final String msgError3 = "El id de sede no puede estar vaco";
@@ -21,7 +33,7 @@ public class VendingSystem {
 	 * Inicializa un sistema nuevo sin ninguna provincia(ciudad).
 	 */
 	public VendingSystem() {
-		cities = new ArrayList<>();
+		cities = new CopyOnWriteArrayList<>();
 	}
 
 	/**
@@ -41,7 +53,7 @@ public class VendingSystem {
 			throw
 				new IllegalArgumentException("La lista no puede estar vaca.");
 		}
-		this.cities = new ArrayList<>();
+		this.cities = new CopyOnWriteArrayList<>();
 		for (VendingCity city: cities) {
 			addVendingCity(city);
 		}
@@ -54,7 +66,7 @@ public class VendingSystem {
 	 * @throws IllegalArgumentException La provincia es null.
 	 * @throws IllegalArgumentException Una provincia tiene el mismo id que una provincia del sistema.
 	 */
-	public void addVendingCity(VendingCity newCity) {
+	public synchronized void addVendingCity(VendingCity newCity) {
 		if (newCity == null) {
 			throw new IllegalArgumentException("La provincia no puede estar vaca");
 		}
@@ -62,6 +74,21 @@ public class VendingSystem {
 			throw new IllegalArgumentException("La provincia ya est registrada en el sistema");
 		}
 		cities.add(newCity);
+		version.incrementAndGet();
+		if (changeFeed != null) {
+			newCity.setChangeFeed(changeFeed);
+			changeFeed.publish(InventoryChange.Type.CITY_ADDED, newCity.getIdVC(), null, null, null, 0, 0, false);
+		}
+		if (recorder != null) {
+			recorder.cityAdded(newCity);
+			newCity.setRecorder(recorder);
+		}
+		if (admission != null) {
+			newCity.setAdmissionControl(admission);
+		}
+		for (FleetListener listener : fleetListeners) {
+			newCity.addFleetListener(listener);
+		}
 	}
 
 	/**
@@ -86,7 +113,7 @@ public class VendingSystem {
 	 * @throws IllegalArgumentException El identificador de la provincia esta vaco.
 	 * @throws IllegalArgumentException La provincia no se encuentra en el sistema.
 	 */
-	public void removeVendingCity(String idCity) {
+	public synchronized void removeVendingCity(String idCity) {
 		if (idCity == null) {
 			throw new IllegalArgumentException(msgError1);
 		}
@@ -99,7 +126,123 @@ public class VendingSystem {
 		for (VendingCity city : cities) {
 			if (city.getIdVC().equals(idCity)) {
 				cities.remove(city);
+				version.incrementAndGet();
+				if (changeFeed != null) {
+					city.setChangeFeed(null);
+					changeFeed.publish(InventoryChange.Type.CITY_REMOVED, idCity, null, null, null, 0, 0, false);
+				}
+				if (recorder != null) {
+					city.setRecorder(null);
+					recorder.cityRemoved(idCity);
+				}
+				if (admission != null) {
+					city.setAdmissionControl(null);
+				}
+				if (executor != null) {
+					executor.cityRemoved(city);
+				}
+				for (FleetListener listener : fleetListeners) {
+					city.removeFleetListener(listener);
+					listener.cityRemoved(city);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Conecta el sistema, sus provincias y sus mquinas al feed de cambios del inventario, o los
+	 * desconecta con null.
+	 * @param feed Feed en el que se publican los cambios.
+	 */
+	synchronized void setChangeFeed(InventoryChangeFeed feed) {
+		changeFeed = feed;
+		for (VendingCity city : cities) {
+			city.setChangeFeed(feed);
+		}
+	}
+	
+	/**
+	 * Conecta el sistema, sus provincias y sus mquinas a un control de admisin de las compras con
+	 * tarjeta, o los desconecta con null.
+	 * @param admission Control de admisin por el que pasan las compras.
+	 */
+	synchronized void setAdmissionControl(AdmissionControl admission) {
+		this.admission = admission;
+		for (VendingCity city : cities) {
+			city.setAdmissionControl(admission);
+		}
+	}
+	
+	/**
+	 * Conecta el sistema al modo de ejecucin por provincias, o lo desconecta con null, para que el
+	 * modo de ejecucin detenga el hilo de cada provincia que se elimine.
+	 * @param executor Modo de ejecucin por provincias del sistema.
+	 * @throws IllegalStateException Cuando el sistema ya tiene otro modo de ejecucin por provincias.
+	 */
+	synchronized void setExecutor(VendingSystemExecutor executor) {
+		if (executor != null && this.executor != null) {
+			throw new IllegalStateException("El sistema ya tiene un modo de ejecucin por provincias.");
+		}
+		this.executor = executor;
+	}
+	
+	/**
+	 * Comprueba si la provincia recibida sigue en el sistema.
+	 * Visible en el paquete para las clases que guardan estado por provincia.
+	 * @param city Provincia.
+	 * @return True si la provincia esta en el sistema, false si se ha eliminado.
+	 */
+	boolean contains(VendingCity city) {
+		return cities.contains(city);
+	}
+	
+	/**
+	 * Registra un oyente de las altas y bajas de mquinas en todas las provincias del sistema, tambin
+	 * en las que se aadan despus. Al aadir o eliminar una provincia se le avisa de que se aaden o
+	 * retiran sus mquinas.
+	 * @param listener Oyente a registrar.
+	 */
+	synchronized void addFleetListener(FleetListener listener) {
+		FleetListener[] listeners = Arrays.copyOf(fleetListeners, fleetListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		fleetListeners = listeners;
+		for (VendingCity city : cities) {
+			city.addFleetListener(listener);
+		}
+	}
+	
+	/**
+	 * Elimina un oyente de las altas y bajas de mquinas de todas las provincias. Si no estaba
+	 * registrado no hace nada.
+	 * @param listener Oyente a eliminar.
+	 */
+	synchronized void removeFleetListener(FleetListener listener) {
+		for (int i = 0; i < fleetListeners.length; i++) {
+			if (fleetListeners[i] == listener) {
+				FleetListener[] listeners = new FleetListener[fleetListeners.length - 1];
+				System.arraycopy(fleetListeners, 0, listeners, 0, i);
+				System.arraycopy(fleetListeners, i + 1, listeners, i, listeners.length - i);
+				fleetListeners = listeners;
+				for (VendingCity city : cities) {
+					city.removeFleetListener(listener);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Conecta el sistema, sus provincias y sus mquinas al grabador de la traza, grabando el alta de cada
+	 * provincia y de cada mquina con su contenido, o los desconecta con null.
+	 * @param recorder Grabador en el que se graban las operaciones.
+	 */
+	synchronized void setRecorder(TraceRecorder recorder) {
+		this.recorder = recorder;
+		for (VendingCity city : cities) {
+			if (recorder != null) {
+				recorder.cityAdded(city);
 			}
+			city.setRecorder(recorder);
 		}
 	}
 
@@ -141,23 +284,53 @@ public class VendingSystem {
 	 * @throws IllegalArgumentException La provincia no se encuentra en el sistema.
 	 */
 	public ArrayList<VendingMachine> getMachinesXCities(String idCity) {
-		ArrayList<VendingMachine> list = null;
+		return getCity(idCity).getMachines();
+	}
+	
+	/**
+	 * A partir de un identificador de provincia(ciudad) devuelve una vista de solo lectura de las
+	 * mquinas vending en esa provincia, sin copiar la lista.
+	 * @param idCity Identificador de la provincia.
+	 * @return Vista no modificable de las mquinas vending en la provincia(ciudad).
+	 * @throws IllegalArgumentException El identificador de la provincia es nulo.
+	 * @throws IllegalArgumentException El identificador de la provincia est vaco.
+	 * @throws IllegalArgumentException La provincia no se encuentra en el sistema.
+	 */
+	public List<VendingMachine> getMachinesXCitiesView(String idCity) {
+		return getCity(idCity).getMachinesView();
+	}
+	
+	/**
+	 * Busca la provincia(ciudad) con el identificador recibido.
+	 * Visible en el paquete para las clases que operan sobre una provincia concreta.
+	 * @param idCity Identificador de la provincia.
+	 * @return La provincia con ese identificador.
+	 * @throws IllegalArgumentException El identificador de la provincia es nulo.
+	 * @throws IllegalArgumentException El identificador de la provincia est vaco.
+	 * @throws IllegalArgumentException La provincia no se encuentra en el sistema.
+	 */
+	VendingCity getCity(String idCity) {
 		if (idCity == null) {
 			throw new IllegalArgumentException(msgError1);
 		}
 		if (idCity.isEmpty()) {
 			throw new IllegalArgumentException(msgError3);
 		}
-		if (!findCity(idCity)) {
-			throw new IllegalArgumentException(msgError2);
-		}
 		for (VendingCity city : cities) {
 			if (city.getIdVC().equals(idCity)) {
-				list = city.getMachines();
+				return city;
 			}
 		}
-
-		return list;
+		throw new IllegalArgumentException(msgError2);
+	}
+	
+	/**
+	 * Devuelve la versin del sistema, un contador que cambia cada vez que se aade o elimina una
+	 * provincia. Los cambios dentro de las provincias se reflejan en sus propias versiones.
+	 * @return versin actual del sistema.
+	 */
+	public long getVersion() {
+		return version.get();
 	}
 	
 	/**
@@ -183,6 +356,15 @@ public class VendingSystem {
 		return list;
 	}
 	
+	/**
+	 * Devuelve un stream con los nombres de todas las provincias donde hay una ciudad(sede),
+	 * sin construir ninguna lista intermedia.
+	 * @return Stream con los nombres de las provincias.
+	 */
+	public Stream<String> streamNamesCities() {
+		return cities.stream().map(VendingCity::getProvince);
+	}
+	
 	/**
 	 * Devuelve una lista con la cantidad de mquinas vending que se 
 	 * gestionan en cada provincia(ciudad) junto al nombre de dicha provincia.
@@ -199,13 +381,30 @@ public class VendingSystem {
 	
 	/**
 	 * Devuelve una lista de todas las provincia(ciudades) que se encuentran
-	 * el sistema.
+	 * el sistema. La lista es una copia; para solo recorrerlas es preferible usar
+	 * {@link #getCitiesView()} o {@link #streamCities()}.
 	 * @return lista de las provincias que se gestionan. 
 	 */
 	public ArrayList<VendingCity> getCities(){
-		ArrayList<VendingCity> list = new ArrayList<>();
-		list.addAll(cities);
-		return list;
+		return new ArrayList<>(cities);
+	}
+	
+	/**
+	 * Devuelve una vista de solo lectura de las provincias(ciudades) del sistema, sin copiarlas.
+	 * Cada recorrido de la vista trabaja sobre una instantnea completa, por lo que nunca se 
+	 * observa un alta o baja de provincia a medias.
+	 * @return Vista no modificable de las provincias que se gestionan.
+	 */
+	public List<VendingCity> getCitiesView() {
+		return Collections.unmodifiableList(cities);
+	}
+	
+	/**
+	 * Devuelve un stream con las provincias(ciudades) que gestiona el sistema en este momento.
+	 * @return Stream de las provincias que se gestionan.
+	 */
+	public Stream<VendingCity> streamCities() {
+		return cities.stream();
 	}
 	
 }
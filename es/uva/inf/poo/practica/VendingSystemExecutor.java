@@ -0,0 +1,242 @@
+package es.uva.inf.poo.practica;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import fabricante.externo.tarjetas.TarjetaMonedero;
+
+/**
+ * Modo de ejecucin de un VendingSystem en el que cada provincia(ciudad) pertenece a un nico hilo
+ * (un actor), que ejecuta en orden los comandos que recibe por su cola. Cualquier hilo puede enviar
+ * comandos a cualquier provincia, pero solo el hilo de la provincia toca su estado y el de sus mquinas,
+ * por lo que las provincias no necesitan ningn cerrojo y el trabajo de provincias distintas se
+ * reparte entre los ncleos.
+ * Mientras se use este modo, todas las operaciones sobre las provincias y sus mquinas deben
+ * enviarse a travs de l. El hilo de una provincia se detiene cuando se elimina del sistema, despus
+ * de ejecutar los comandos que ya tena en la cola.
+ * @author rauvill, alvdela
+ *
+ */
+public class VendingSystemExecutor implements AutoCloseable {
+
+	private static final String msgErrorClosed = "El modo de ejecucin por provincias esta cerrado.";
+	private static final String msgErrorRemoved = "La sede con ese identificador no est en el sistema";
+
+	private final VendingSystem system;
+	private final ConcurrentHashMap<String, ExecutorService> actors;
+	private volatile boolean closed;
+
+	/**
+	 * Inicializa el modo de ejecucin por provincias sobre el sistema recibido. El hilo de cada
+	 * provincia se crea la primera vez que se le enva un comando.
+	 * @param system Sistema cuyas provincias se van a gestionar.
+	 * @throws IllegalArgumentException Cuando el sistema es nulo.
+	 * @throws IllegalStateException Cuando el sistema ya tiene otro modo de ejecucin por provincias sin cerrar.
+	 */
+	public VendingSystemExecutor(VendingSystem system) {
+		if (system == null) {
+			throw new IllegalArgumentException("El sistema no puede ser nulo.");
+		}
+		this.system = system;
+		actors = new ConcurrentHashMap<>();
+		system.setExecutor(this);
+	}
+
+	/**
+	 * Enva un comando a la provincia con el identificador recibido, que lo ejecutar en su hilo.
+	 * @param <T> Tipo del resultado del comando.
+	 * @param idCity Identificador de la provincia.
+	 * @param command Comando a ejecutar sobre la provincia.
+	 * @return Futuro con el resultado del comando, o con la excepcin que haya lanzado.
+	 * @throws IllegalArgumentException Cuando el comando es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador de la provincia es nulo o esta vaco.
+	 * @throws IllegalArgumentException Cuando la provincia no se encuentra en el sistema.
+	 * @throws IllegalStateException Cuando el modo de ejecucin ya se ha cerrado.
+	 */
+	public <T> CompletableFuture<T> submit(String idCity, Function<VendingCity, T> command) {
+		if (command == null) {
+			throw new IllegalArgumentException("El comando no puede ser nulo.");
+		}
+		VendingCity city = system.getCity(idCity);
+		return dispatch(city, () -> command.apply(city));
+	}
+
+	/**
+	 * Enva a la provincia con el identificador recibido un comando sin resultado.
+	 * @param idCity Identificador de la provincia.
+	 * @param command Comando a ejecutar sobre la provincia.
+	 * @return Futuro que se completa cuando se ha ejecutado el comando.
+	 * @throws IllegalArgumentException Cuando el comando es nulo.
+	 * @throws IllegalArgumentException Cuando el identificador de la provincia es nulo o esta vaco.
+	 * @throws IllegalArgumentException Cuando la provincia no se encuentra en el sistema.
+	 * @throws IllegalStateException Cuando el modo de ejecucin ya se ha cerrado.
+	 */
+	public CompletableFuture<Void> execute(String idCity, Consumer<VendingCity> command) {
+		if (command == null) {
+			throw new IllegalArgumentException("El comando no puede ser nulo.");
+		}
+		return submit(idCity, city -> {
+			command.accept(city);
+			return null;
+		});
+	}
+
+	/**
+	 * Enva una consulta a todas las provincias del sistema, que la ejecutan en paralelo cada una
+	 * en su hilo, y rene los resultados.
+	 * @param <T> Tipo del resultado de la consulta.
+	 * @param query Consulta a ejecutar sobre cada provincia.
+	 * @return Futuro con la lista de resultados, en el mismo orden que las provincias del sistema.
+	 * @throws IllegalArgumentException Cuando la consulta es nula.
+	 * @throws IllegalStateException Cuando el modo de ejecucin ya se ha cerrado.
+	 */
+	public <T> CompletableFuture<List<T>> fanOut(Function<VendingCity, T> query) {
+		if (query == null) {
+			throw new IllegalArgumentException("La consulta no puede ser nula.");
+		}
+		List<CompletableFuture<T>> partials = new ArrayList<>();
+		for (VendingCity city : system.getCitiesView()) {
+			try {
+				partials.add(dispatch(city, () -> query.apply(city)));
+			} catch (IllegalArgumentException e) {					//se ha eliminado mientras se recorran
+				partials.add(CompletableFuture.failedFuture(e));
+			}
+		}
+		return CompletableFuture.allOf(partials.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			List<T> results = new ArrayList<>(partials.size());
+			for (CompletableFuture<T> partial : partials) {
+				results.add(partial.join());
+			}
+			return results;
+		});
+	}
+
+	/**
+	 * Compra un vendible en una mquina de una provincia, desde el hilo de esa provincia.
+	 * @param idCity Identificador de la provincia.
+	 * @param idMachine Identificador de la mquina.
+	 * @param idSlot Identificador del slot.
+	 * @param t TarjetaMonedero a usar para procesar el pago.
+	 * @param credential Credenciales del cliente.
+	 * @return Futuro que se completa cuando se ha realizado la compra, o con la excepcin
+	 * que haya lanzado {@link VendingMachine#buyVendible(String, TarjetaMonedero, String)}.
+	 * @throws IllegalArgumentException Cuando el identificador de la provincia es nulo o esta vaco.
+	 * @throws IllegalArgumentException Cuando la provincia no se encuentra en el sistema.
+	 */
+	public CompletableFuture<Void> buyVendible(String idCity, String idMachine, String idSlot, TarjetaMonedero t, String credential) {
+		return execute(idCity, city -> city.getVendingMachine(idMachine).buyVendible(idSlot, t, credential));
+	}
+
+	/**
+	 * Compra un vendible en una mquina de una provincia con una sesin de tarjeta preautorizada, desde
+	 * el hilo de esa provincia.
+	 * @param idCity Identificador de la provincia.
+	 * @param idMachine Identificador de la mquina.
+	 * @param idSlot Identificador del slot.
+	 * @param session Sesin con la que se paga la compra.
+	 * @return Futuro que se completa cuando se ha realizado la compra, o con la excepcin
+	 * que haya lanzado {@link VendingMachine#buyVendible(String, CardSession)}.
+	 * @throws IllegalArgumentException Cuando el identificador de la provincia es nulo o esta vaco.
+	 * @throws IllegalArgumentException Cuando la provincia no se encuentra en el sistema.
+	 */
+	public CompletableFuture<Void> buyVendible(String idCity, String idMachine, String idSlot, CardSession session) {
+		return execute(idCity, city -> city.getVendingMachine(idMachine).buyVendible(idSlot, session));
+	}
+
+	/**
+	 * Consulta el nmero de mquinas operativas de todo el sistema, repartiendo la cuenta
+	 * entre los hilos de las provincias.
+	 * @return Futuro con el nmero de mquinas operativas.
+	 */
+	public CompletableFuture<Integer> getVendingOperative() {
+		return fanOut(VendingCity::getVendingOperative).thenApply(counts -> {
+			int operatives = 0;
+			for (int count : counts) {
+				operatives += count;
+			}
+			return operatives;
+		});
+	}
+
+	/**
+	 * Detiene los hilos de todas las provincias. Los comandos ya enviados se terminan de ejecutar,
+	 * pero no se admiten comandos nuevos.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (String idCity : actors.keySet()) {
+			actors.computeIfPresent(idCity, (id, actor) -> {			//a la vez que actorOf, que no crea hilos con el modo cerrado
+				actor.shutdown();
+				return null;
+			});
+		}
+		system.setExecutor(null);
+	}
+
+	/**
+	 * Mtodo visible en el paquete con el que el sistema avisa de que se ha eliminado una provincia,
+	 * cuyo hilo se detiene despus de ejecutar los comandos que ya tena.
+	 * @param city Provincia eliminada.
+	 */
+	void cityRemoved(VendingCity city) {
+		actors.computeIfPresent(city.getIdVC(), (id, actor) -> {
+			actor.shutdown();
+			return null;
+		});
+	}
+
+	/**
+	 * Mtodo privado que enva una tarea al hilo de la provincia recibida.
+	 * @param city Provincia.
+	 * @param task Tarea a ejecutar.
+	 * @return Futuro con el resultado de la tarea.
+	 * @throws IllegalArgumentException Cuando la provincia ya no esta en el sistema.
+	 * @throws IllegalStateException Cuando el modo de ejecucin ya se ha cerrado.
+	 */
+	private <T> CompletableFuture<T> dispatch(VendingCity city, Supplier<T> task) {
+		try {
+			return CompletableFuture.supplyAsync(task, actorOf(city));
+		} catch (RejectedExecutionException e) {						//el hilo se ha detenido despus de obtenerlo
+			if (closed) {
+				throw new IllegalStateException(msgErrorClosed);
+			}
+			throw new IllegalArgumentException(msgErrorRemoved);
+		}
+	}
+
+	/**
+	 * Mtodo privado que obtiene el hilo que gestiona la provincia recibida, crendolo si
+	 * todava no exista. La comprobacin de que el modo sigue abierto y la provincia sigue en el
+	 * sistema se hace dentro de la actualizacin de la tabla, de forma que close y cityRemoved, que
+	 * retiran los hilos de la tabla despus de marcar el cierre o eliminar la provincia, nunca dejan
+	 * un hilo creado a la vez sin detener.
+	 * @param city Provincia.
+	 * @return El ejecutor de un nico hilo de la provincia.
+	 * @throws IllegalArgumentException Cuando la provincia ya no esta en el sistema.
+	 * @throws IllegalStateException Cuando el modo de ejecucin ya se ha cerrado.
+	 */
+	private ExecutorService actorOf(VendingCity city) {
+		return actors.computeIfAbsent(city.getIdVC(), id -> {
+			if (closed) {
+				throw new IllegalStateException(msgErrorClosed);
+			}
+			if (!system.contains(city)) {
+				throw new IllegalArgumentException(msgErrorRemoved);
+			}
+			return Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "vending-city-" + id);
+				thread.setDaemon(true);
+				return thread;
+			});
+		});
+	}
+}